@@ -0,0 +1,689 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.plugins.json;
+
+import java.awt.Color;
+import java.awt.Image;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import javax.imageio.ImageIO;
+
+import tiled.core.*;
+import tiled.core.Map;
+import tiled.io.ImageHelper;
+import tiled.io.MapReader;
+import tiled.io.PluginLogger;
+import tiled.io.xml.XMLMapTransformer;
+import tiled.mapeditor.util.cutter.BasicTileCutter;
+
+/**
+ * Reads maps and tilesets in the JSON format written by
+ * {@link JSONMapWriter}. The file is read with a {@link JSONStreamTokener},
+ * and layer data is decoded directly into the layers, one row at a time.
+ * <p>
+ * The map dimensions need to come before the tilesets and layers, and the
+ * tilesets before the layers. The dimensions of a layer and the encoding of
+ * its data need to come before the data, as they do in written files.
+ *
+ * @version $Id$
+ */
+public class JSONMapReader implements MapReader
+{
+    private PluginLogger logger = new PluginLogger();
+    private String basePath = "";
+
+    /** The tiles of the map by global id, or <code>null</code> when the
+        tilesets have changed since it was last built. */
+    private Tile[] tilesByGid;
+
+    public Map readMap(String filename) throws Exception {
+        InputStream in = openFile(filename);
+        try {
+            Map map = readMap(in, getDirectory(filename));
+            map.setFilename(filename);
+            return map;
+        } finally {
+            in.close();
+        }
+    }
+
+    public Map readMap(InputStream in) throws Exception {
+        return readMap(in, "");
+    }
+
+    public TileSet readTileset(String filename) throws Exception {
+        InputStream in = openFile(filename);
+        try {
+            return readTileset(in, getDirectory(filename));
+        } finally {
+            in.close();
+        }
+    }
+
+    public TileSet readTileset(InputStream in) throws Exception {
+        return readTileset(in, "");
+    }
+
+    /**
+     * Reads a map, resolving relative paths against the given directory.
+     * Paths are resolved against the working directory when it is empty.
+     */
+    private Map readMap(InputStream in, String basePath) throws Exception {
+        this.basePath = basePath;
+        JSONStreamTokener t = createTokener(in);
+        tilesByGid = null;
+        try {
+            return readMap(t);
+        } finally {
+            tilesByGid = null;
+        }
+    }
+
+    private TileSet readTileset(InputStream in, String basePath)
+            throws Exception {
+        this.basePath = basePath;
+        return readTileset(createTokener(in), null);
+    }
+
+    private static InputStream openFile(String filename) throws IOException {
+        InputStream in = new FileInputStream(filename);
+        if (filename.endsWith(".gz")) {
+            in = new GZIPInputStream(in, 8192);
+        }
+        return in;
+    }
+
+    private static JSONStreamTokener createTokener(InputStream in) {
+        return new JSONStreamTokener(
+                new InputStreamReader(in, Charset.forName("UTF-8")));
+    }
+
+    private static String getDirectory(String filename) {
+        return filename.substring(0,
+                filename.lastIndexOf(File.separatorChar) + 1);
+    }
+
+    private String resolve(String path) {
+        if (new File(path).isAbsolute()) {
+            return path;
+        }
+        return basePath + path;
+    }
+
+    private Map readMap(JSONStreamTokener t) throws Exception {
+        Map map = null;
+        int width = 0, height = 0, tileWidth = 0, tileHeight = 0;
+        int orientation = Map.MDO_ORTHO;
+        float eyeDistance = 10.f;
+        int viewportWidth = 640, viewportHeight = 480;
+        Properties properties = new Properties();
+
+        t.startObject();
+        String key;
+        while ((key = t.nextKey()) != null) {
+            if ("width".equals(key)) {
+                width = t.nextInt();
+            } else if ("height".equals(key)) {
+                height = t.nextInt();
+            } else if ("tilewidth".equals(key)) {
+                tileWidth = t.nextInt();
+            } else if ("tileheight".equals(key)) {
+                tileHeight = t.nextInt();
+            } else if ("orientation".equals(key)) {
+                orientation = getOrientation(t.nextString());
+            } else if ("eyeDistance".equals(key)) {
+                eyeDistance = t.nextFloat();
+            } else if ("viewportWidth".equals(key)) {
+                viewportWidth = t.nextInt();
+            } else if ("viewportHeight".equals(key)) {
+                viewportHeight = t.nextInt();
+            } else if ("properties".equals(key)) {
+                readProperties(t, properties);
+            } else if ("tilesets".equals(key)) {
+                if (map == null) {
+                    map = createMap(t, width, height, tileWidth, tileHeight);
+                }
+                t.startArray();
+                while (t.hasNextElement()) {
+                    map.addTileset(readTileset(t, map));
+                }
+                tilesByGid = null;
+            } else if ("layers".equals(key)) {
+                if (map == null) {
+                    map = createMap(t, width, height, tileWidth, tileHeight);
+                }
+                t.startArray();
+                while (t.hasNextElement()) {
+                    MapLayer layer = readLayer(t, map);
+                    if (layer != null) {
+                        map.addLayer(layer);
+                    }
+                }
+            } else {
+                t.skipValue();
+            }
+        }
+
+        if (map == null) {
+            map = createMap(t, width, height, tileWidth, tileHeight);
+        }
+        map.setOrientation(orientation);
+        map.setEyeDistance(eyeDistance);
+        map.setViewportWidth(viewportWidth);
+        map.setViewportHeight(viewportHeight);
+        map.getProperties().putAll(properties);
+        return map;
+    }
+
+    private static Map createMap(JSONStreamTokener t, int width, int height,
+                                 int tileWidth, int tileHeight)
+            throws ParseException {
+        if (width <= 0 || height <= 0) {
+            throw t.syntaxError("Couldn't locate map dimensions");
+        }
+        Map map = new Map(width, height);
+        if (tileWidth > 0) {
+            map.setTileWidth(tileWidth);
+        }
+        if (tileHeight > 0) {
+            map.setTileHeight(tileHeight);
+        }
+        return map;
+    }
+
+    private static int getOrientation(String orientation) {
+        if ("isometric".equalsIgnoreCase(orientation)) {
+            return Map.MDO_ISO;
+        } else if ("hexagonal".equalsIgnoreCase(orientation)) {
+            return Map.MDO_HEX;
+        } else if ("shifted".equalsIgnoreCase(orientation)) {
+            return Map.MDO_SHIFTED;
+        }
+        return Map.MDO_ORTHO;
+    }
+
+    private static void readProperties(JSONStreamTokener t, Properties props)
+            throws IOException, ParseException {
+        t.startObject();
+        String key;
+        while ((key = t.nextKey()) != null) {
+            String value = t.nextString();
+            if (value != null) {
+                props.setProperty(key, value);
+            }
+        }
+    }
+
+    /**
+     * Reads a tileset, or a reference to a tileset in another file.
+     *
+     * @param map the map the tileset is part of, or <code>null</code> when
+     *            reading a tileset file
+     */
+    private TileSet readTileset(JSONStreamTokener t, Map map)
+            throws Exception {
+        TileSet set = new TileSet();
+        int firstGid = 1;
+        String source = null, image = null, trans = null;
+        int tileWidth = map != null ? map.getTileWidth() : 0;
+        int tileHeight = map != null ? map.getTileHeight() : 0;
+        int tileSpacing = 0, tileMargin = 0;
+        List<Tile> tiles = new ArrayList<Tile>();
+
+        t.startObject();
+        String key;
+        while ((key = t.nextKey()) != null) {
+            if ("firstgid".equals(key)) {
+                firstGid = t.nextInt();
+            } else if ("source".equals(key)) {
+                source = t.nextString();
+            } else if ("name".equals(key)) {
+                set.setName(t.nextString());
+            } else if ("basedir".equals(key)) {
+                set.setBaseDir(t.nextString());
+            } else if ("tilewidth".equals(key)) {
+                tileWidth = t.nextInt();
+            } else if ("tileheight".equals(key)) {
+                tileHeight = t.nextInt();
+            } else if ("spacing".equals(key)) {
+                tileSpacing = t.nextInt();
+            } else if ("margin".equals(key)) {
+                tileMargin = t.nextInt();
+            } else if ("image".equals(key)) {
+                image = t.nextString();
+            } else if ("trans".equals(key)) {
+                trans = t.nextString();
+            } else if ("images".equals(key)) {
+                t.startArray();
+                while (t.hasNextElement()) {
+                    readImage(t, set);
+                }
+            } else if ("tiles".equals(key)) {
+                t.startArray();
+                while (t.hasNextElement()) {
+                    tiles.add(readTile(t, set));
+                }
+            } else {
+                t.skipValue();
+            }
+        }
+
+        if (source != null) {
+            set = readExternalTileset(resolve(source));
+        } else if (image != null) {
+            if (trans != null) {
+                set.setTransparentColor(new Color(Integer.parseInt(trans, 16)));
+            }
+            String sourcePath = resolve(image);
+            logger.info("Importing " + sourcePath + "...");
+            set.importTileBitmap(sourcePath, new BasicTileCutter(
+                    tileWidth, tileHeight, tileSpacing, tileMargin));
+
+            for (Tile tile : tiles) {
+                Tile existing = set.getTile(tile.getId());
+                if (existing != null) {
+                    existing.getProperties().putAll(tile.getProperties());
+                } else {
+                    set.addTile(tile);
+                }
+            }
+        } else {
+            for (Tile tile : tiles) {
+                set.addTile(tile);
+            }
+        }
+
+        set.setFirstGid(firstGid);
+        return set;
+    }
+
+    private TileSet readExternalTileset(String filename) {
+        TileSet set = null;
+        try {
+            if (filename.endsWith(".tsx")) {
+                XMLMapTransformer reader = new XMLMapTransformer();
+                reader.setLogger(logger);
+                set = reader.readTileset(filename);
+            } else {
+                set = new JSONMapReader().readTileset(filename);
+            }
+            set.setSource(filename);
+        } catch (Exception e) {
+            logger.error("Could not load external tileset " + filename +
+                    ": " + e.getLocalizedMessage());
+        }
+
+        if (set == null) {
+            logger.error("tileset " + filename + " was not loaded correctly!");
+            set = new TileSet();
+        }
+        return set;
+    }
+
+    /**
+     * Reads an image of a tileset without a tileset image. Embedded images
+     * are decoded while reading the base64 string.
+     */
+    private void readImage(JSONStreamTokener t, TileSet set)
+            throws Exception {
+        int id = -1;
+        String source = null;
+        Image image = null;
+
+        t.startObject();
+        String key;
+        while ((key = t.nextKey()) != null) {
+            if ("id".equals(key)) {
+                id = t.nextInt();
+            } else if ("source".equals(key)) {
+                source = t.nextString();
+            } else if ("data".equals(key)) {
+                char quote = t.nextClean();
+                InputStream in = t.nextBase64(quote);
+                image = ImageIO.read(in);
+                // Skip anything the image reader did not need
+                while (in.read() >= 0) {
+                }
+            } else {
+                t.skipValue();
+            }
+        }
+
+        if (image == null && source != null) {
+            image = ImageIO.read(new File(resolve(source)));
+        }
+        if (image == null) {
+            logger.warn("Ignoring image " + id + " that could not be read");
+            return;
+        }
+        image = ImageHelper.toCompatibleImage(image);
+        if (id >= 0) {
+            set.addImage(image, id, source != null ? resolve(source) : null);
+        } else {
+            set.addImage(image, source != null ? resolve(source) : null);
+        }
+    }
+
+    private static Tile readTile(JSONStreamTokener t, TileSet set)
+            throws IOException, ParseException {
+        Tile tile = new Tile(set);
+
+        t.startObject();
+        String key;
+        while ((key = t.nextKey()) != null) {
+            if ("id".equals(key)) {
+                tile.setId(t.nextInt());
+            } else if ("image".equals(key)) {
+                tile.setImage(t.nextInt());
+            } else if ("properties".equals(key)) {
+                readProperties(t, tile.getProperties());
+            } else {
+                t.skipValue();
+            }
+        }
+        return tile;
+    }
+
+    private MapLayer readLayer(JSONStreamTokener t, Map map)
+            throws Exception {
+        String type = null;
+        String name = null;
+        int x = 0, y = 0;
+        int width = map.getWidth(), height = map.getHeight();
+        int tileWidth = map.getTileWidth(), tileHeight = map.getTileHeight();
+        boolean visible = true;
+        float opacity = 1.0f;
+        float viewPlaneDistance = 0.0f;
+        boolean viewPlaneInfinitelyFarAway = false;
+        String encoding = null, compression = null;
+        Properties properties = new Properties();
+        TileLayer tileLayer = null;
+        List<MapObject> objects = new ArrayList<MapObject>();
+
+        t.startObject();
+        String key;
+        while ((key = t.nextKey()) != null) {
+            if ("type".equals(key)) {
+                type = t.nextString();
+            } else if ("name".equals(key)) {
+                name = t.nextString();
+            } else if ("x".equals(key)) {
+                x = t.nextInt();
+            } else if ("y".equals(key)) {
+                y = t.nextInt();
+            } else if ("width".equals(key)) {
+                width = t.nextInt();
+            } else if ("height".equals(key)) {
+                height = t.nextInt();
+            } else if ("tileWidth".equals(key)) {
+                tileWidth = t.nextInt();
+            } else if ("tileHeight".equals(key)) {
+                tileHeight = t.nextInt();
+            } else if ("visible".equals(key)) {
+                visible = t.nextBoolean();
+            } else if ("opacity".equals(key)) {
+                opacity = t.nextFloat();
+            } else if ("viewPlaneDistance".equals(key)) {
+                viewPlaneDistance = t.nextFloat();
+            } else if ("viewPlaneInfinitelyFarAway".equals(key)) {
+                viewPlaneInfinitelyFarAway = t.nextBoolean();
+            } else if ("properties".equals(key)) {
+                readProperties(t, properties);
+            } else if ("encoding".equals(key)) {
+                encoding = t.nextString();
+            } else if ("compression".equals(key)) {
+                compression = t.nextString();
+            } else if ("data".equals(key)) {
+                tileLayer = new TileLayer(width, height, tileWidth, tileHeight);
+                readLayerData(t, tileLayer, map, encoding, compression);
+            } else if ("tileproperties".equals(key)) {
+                if (tileLayer == null) {
+                    t.skipValue();
+                    logger.warn("Ignoring tile properties before layer data");
+                } else {
+                    readTileInstanceProperties(t, tileLayer);
+                }
+            } else if ("objects".equals(key)) {
+                t.startArray();
+                while (t.hasNextElement()) {
+                    objects.add(readMapObject(t));
+                }
+            } else {
+                t.skipValue();
+            }
+        }
+
+        MapLayer layer;
+        if ("objectgroup".equals(type)) {
+            ObjectGroup og = new ObjectGroup(map, 0, 0);
+            for (MapObject object : objects) {
+                og.addObject(object);
+            }
+            layer = og;
+        } else if (tileLayer != null) {
+            layer = tileLayer;
+        } else if (type == null || "tilelayer".equals(type)) {
+            // A tile layer without data is empty
+            layer = new TileLayer(width, height, tileWidth, tileHeight);
+        } else {
+            logger.warn("Ignoring layer of unknown type " + type);
+            return null;
+        }
+
+        if (name != null) {
+            layer.setName(name);
+        }
+        layer.getProperties().putAll(properties);
+        layer.setOpacity(opacity);
+        layer.setViewPlaneDistance(viewPlaneDistance);
+        layer.setViewPlaneInfinitelyFarAway(viewPlaneInfinitelyFarAway);
+
+        // This is done at the end, otherwise the offset is applied during
+        // the loading of the tiles. Invisible layers are locked, so the
+        // visibility is also set after the data is loaded.
+        layer.setOffset(x, y);
+        layer.setVisible(visible);
+        return layer;
+    }
+
+    /**
+     * Reads the global tile ids of a layer, either from an array of numbers
+     * or from base64 encoded bytes, and sets the tiles one row at a time.
+     */
+    private void readLayerData(JSONStreamTokener t, TileLayer layer,
+                               Map map, String encoding, String compression)
+            throws IOException, ParseException {
+        final Tile[] tiles = getTilesByGid(map);
+        final int width = layer.getWidth();
+        final int height = layer.getHeight();
+        final Tile[] row = new Tile[width];
+
+        char c = t.nextClean();
+        if (c == '[') {
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    if (!t.hasNextElement()) {
+                        throw t.syntaxError("Not enough layer data");
+                    }
+                    row[x] = getTile(tiles, t.nextInt());
+                }
+                layer.setRow(0, y, row, 0, width);
+            }
+            while (t.hasNextElement()) {
+                t.skipValue();
+            }
+        } else if (c == '"' || c == '\'') {
+            if (encoding != null && !"base64".equalsIgnoreCase(encoding)) {
+                throw t.syntaxError("Unsupported encoding " + encoding);
+            }
+
+            InputStream base64 = t.nextBase64(c);
+            InputStream in;
+            if ("gzip".equalsIgnoreCase(compression)) {
+                in = new GZIPInputStream(base64, 8192);
+            } else if ("zlib".equalsIgnoreCase(compression)) {
+                in = new InflaterInputStream(base64);
+            } else {
+                in = new BufferedInputStream(base64);
+            }
+
+            DataInputStream data = new DataInputStream(in);
+            final byte[] bytes = new byte[width * 4];
+            for (int y = 0; y < height; y++) {
+                data.readFully(bytes);
+                for (int x = 0, i = 0; x < width; x++, i += 4) {
+                    final int gid = bytes[i] & 0xff |
+                            (bytes[i + 1] & 0xff) << 8 |
+                            (bytes[i + 2] & 0xff) << 16 |
+                            (bytes[i + 3] & 0xff) << 24;
+                    row[x] = getTile(tiles, gid);
+                }
+                layer.setRow(0, y, row, 0, width);
+            }
+
+            // Read up to the end of the string
+            while (base64.read() >= 0) {
+            }
+        } else {
+            throw t.syntaxError("Expected layer data");
+        }
+    }
+
+    /**
+     * Returns the tiles of the map by their global id.
+     */
+    private Tile[] getTilesByGid(Map map) {
+        if (tilesByGid == null) {
+            int maxGid = 0;
+            for (TileSet set : map.getTilesets()) {
+                maxGid = Math.max(maxGid,
+                        set.getFirstGid() + set.getMaxTileId());
+            }
+            tilesByGid = new Tile[maxGid + 1];
+            for (TileSet set : map.getTilesets()) {
+                for (int id = 0; id <= set.getMaxTileId(); id++) {
+                    Tile tile = set.getTile(id);
+                    if (tile != null) {
+                        tilesByGid[set.getFirstGid() + id] = tile;
+                    }
+                }
+            }
+        }
+        return tilesByGid;
+    }
+
+    private static Tile getTile(Tile[] tiles, int gid) {
+        return gid > 0 && gid < tiles.length ? tiles[gid] : null;
+    }
+
+    private static void readTileInstanceProperties(JSONStreamTokener t,
+                                                   TileLayer layer)
+            throws IOException, ParseException {
+        t.startArray();
+        while (t.hasNextElement()) {
+            int x = -1, y = -1;
+            Properties tip = new Properties();
+
+            t.startObject();
+            String key;
+            while ((key = t.nextKey()) != null) {
+                if ("x".equals(key)) {
+                    x = t.nextInt();
+                } else if ("y".equals(key)) {
+                    y = t.nextInt();
+                } else if ("properties".equals(key)) {
+                    readProperties(t, tip);
+                } else {
+                    t.skipValue();
+                }
+            }
+            layer.setTileInstancePropertiesAt(x, y, tip);
+        }
+    }
+
+    private MapObject readMapObject(JSONStreamTokener t)
+            throws IOException, ParseException {
+        MapObject obj = new MapObject(0, 0, 0, 0);
+
+        t.startObject();
+        String key;
+        while ((key = t.nextKey()) != null) {
+            if ("name".equals(key)) {
+                obj.setName(t.nextString());
+            } else if ("type".equals(key)) {
+                obj.setType(t.nextString());
+            } else if ("x".equals(key)) {
+                obj.setX(t.nextInt());
+            } else if ("y".equals(key)) {
+                obj.setY(t.nextInt());
+            } else if ("width".equals(key)) {
+                obj.setWidth(t.nextInt());
+            } else if ("height".equals(key)) {
+                obj.setHeight(t.nextInt());
+            } else if ("properties".equals(key)) {
+                Properties props = new Properties();
+                readProperties(t, props);
+                obj.setProperties(props);
+            } else if ("image".equals(key)) {
+                obj.setImageSource(resolve(t.nextString()));
+            } else {
+                t.skipValue();
+            }
+        }
+        return obj;
+    }
+
+    /**
+     * @see tiled.io.PluggableMapIO#getFilter()
+     */
+    public String getFilter() throws Exception {
+        return "*.js,*.js.gz";
+    }
+
+    public String getPluginPackage() {
+        return "Tiled JSON reader/writer";
+    }
+
+    public String getDescription() {
+        return
+            "The Tiled JSON format reader\n" +
+            "\n" +
+            "Tiled Map Editor, (c) 2004-2008\n" +
+            "Adam Turk\n" +
+            "Bjorn Lindeijer";
+    }
+
+    public String getName() {
+        return "Tiled JSON map reader";
+    }
+
+    public boolean accept(File pathname) {
+        try {
+            String path = pathname.getCanonicalPath();
+            if (path.endsWith(".js") || path.endsWith(".js.gz")) {
+                return true;
+            }
+        } catch (IOException e) {}
+        return false;
+    }
+
+    public void setLogger(PluginLogger logger) {
+        this.logger = logger;
+    }
+}
@@ -12,95 +12,481 @@
 
 package tiled.plugins.json;
 
+import java.awt.Color;
+import java.awt.Image;
+import java.awt.Rectangle;
 import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.prefs.Preferences;
+import java.util.zip.GZIPOutputStream;
 
-import org.json.XML;
-
+import tiled.core.*;
 import tiled.core.Map;
-import tiled.core.TileSet;
+import tiled.io.ImageHelper;
 import tiled.io.MapReader;
 import tiled.io.MapWriter;
+import tiled.io.PluginLogger;
 import tiled.io.xml.XMLMapWriter;
+import tiled.util.TiledConfiguration;
 
 /**
+ * Writes a map or tileset in JSON format. The map is written directly to the
+ * file while walking through it, using the same structure and names as the
+ * TMX format where possible. Layer data is written as an array with a line
+ * per row, or as base64 encoded (and optionally gzip compressed) data, as
+ * configured for the TMX format.
+ *
  * @version $Id$
  */
-public class JSONMapWriter extends  XMLMapWriter implements MapWriter
+public class JSONMapWriter implements MapWriter
 {
+    private static final int LAST_BYTE = 0x000000FF;
+
+    private Preferences prefs = TiledConfiguration.node("saving");
+
+    /** The first global ids of the tilesets of the map being written. These
+        are not stored in the tilesets, since they may be shared by maps. */
+    private final IdentityHashMap<TileSet, Integer> firstGids =
+            new IdentityHashMap<TileSet, Integer>();
+
     public JSONMapWriter() {
-        // TODO Auto-generated constructor stub
     }
 
+    public Preferences getPreferences() {
+        return prefs;
+    }
+
+    public void setPreferences(Preferences prefs) {
+        this.prefs = prefs;
+    }
+
+    public void writeMap(Map map, String filename) throws Exception {
+        OutputStream os = new FileOutputStream(filename);
+        try {
+            if (filename.endsWith(".js.gz")) {
+                os = new GZIPOutputStream(os);
+            }
+            writeMap(map, os, filename);
+        } finally {
+            os.close();
+        }
+    }
+
+    public void writeTileset(TileSet set, String filename) throws Exception {
+        OutputStream os = new FileOutputStream(filename);
+        try {
+            if (filename.endsWith(".js.gz")) {
+                os = new GZIPOutputStream(os);
+            }
+            writeTileset(set, os, filename);
+        } finally {
+            os.close();
+        }
+    }
+
+    public void writeMap(Map map, OutputStream out) throws Exception {
+        writeMap(map, out, "/.");
+    }
+
+    public void writeTileset(TileSet set, OutputStream out) throws Exception {
+        writeTileset(set, out, "/.");
+    }
+
+    private void writeMap(Map map, OutputStream out, String wp)
+            throws IOException {
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(out, Charset.forName("UTF-8")));
+        JSONWriter w = new JSONWriter(writer);
+        writeMap(map, w, wp);
+        writer.flush();
+        if (out instanceof GZIPOutputStream) {
+            ((GZIPOutputStream) out).finish();
+        }
+    }
+
+    private void writeTileset(TileSet set, OutputStream out, String wp)
+            throws IOException {
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(out, Charset.forName("UTF-8")));
+        JSONWriter w = new JSONWriter(writer);
+        writeTileset(set, w, wp);
+        writer.flush();
+        if (out instanceof GZIPOutputStream) {
+            ((GZIPOutputStream) out).finish();
+        }
+    }
+
+    private void writeMap(Map map, JSONWriter w, String wp)
+            throws IOException {
+        w.startObject();
+        w.writeMember("version", "1.0");
+
+        switch (map.getOrientation()) {
+            case Map.MDO_ORTHO:
+                w.writeMember("orientation", "orthogonal"); break;
+            case Map.MDO_ISO:
+                w.writeMember("orientation", "isometric"); break;
+            case Map.MDO_HEX:
+                w.writeMember("orientation", "hexagonal"); break;
+            case Map.MDO_SHIFTED:
+                w.writeMember("orientation", "shifted"); break;
+        }
+
+        w.writeMember("width", map.getWidth());
+        w.writeMember("height", map.getHeight());
+        w.writeMember("tilewidth", map.getTileWidth());
+        w.writeMember("tileheight", map.getTileHeight());
+
+        w.writeMember("eyeDistance", map.getEyeDistance());
+        w.writeMember("viewportWidth", map.getViewportWidth());
+        w.writeMember("viewportHeight", map.getViewportHeight());
+
+        writeProperties(map.getProperties(), w);
+
+        w.key("tilesets");
+        w.startArray();
+        int firstgid = 1;
+        firstGids.clear();
+        for (TileSet tileset : map.getTilesets()) {
+            firstGids.put(tileset, firstgid);
+            writeTilesetReference(tileset, w, wp);
+            firstgid += tileset.getMaxTileId() + 1;
+        }
+        w.endArray();
+
+        w.key("layers");
+        w.startArray();
+        Iterator<MapLayer> ml = map.getLayers();
+        while (ml.hasNext()) {
+            MapLayer layer = ml.next();
+            if (layer instanceof TileLayer || layer instanceof ObjectGroup) {
+                writeMapLayer(layer, w, wp);
+            }
+        }
+        w.endArray();
+
+        w.endObject();
+    }
+
+    private static void writeProperties(Properties props, JSONWriter w)
+            throws IOException
+    {
+        if (!props.isEmpty()) {
+            final SortedSet<Object> propertyKeys = new TreeSet<Object>();
+            propertyKeys.addAll(props.keySet());
+            w.key("properties");
+            w.startObject();
+            for (Object propertyKey : propertyKeys) {
+                final String key = (String) propertyKey;
+                w.writeMember(key, props.getProperty(key));
+            }
+            w.endObject();
+        }
+    }
 
     /**
-     * this method write a map OR a tileset in json format
-     *
-     * @param map
-     * @param set
-     * @param filename
-     * @throws Exception
+     * Writes a reference to an external tileset. In the case where the
+     * tileset is not stored in an external file, writes the contents of the
+     * tileset instead.
      */
-    private void writeMapOrTileset(Map map ,TileSet set, String filename) throws Exception {
+    private void writeTilesetReference(TileSet set, JSONWriter w, String wp)
+            throws IOException {
+        String source = set.getSource();
+
+        if (source == null) {
+            writeTileset(set, w, wp);
+        } else {
+            w.startObject();
+            w.writeMember("firstgid", getFirstGid(set));
+            w.writeMember("source", XMLMapWriter.getRelativePath(wp, source));
+            if (set.getBaseDir() != null) {
+                w.writeMember("basedir", set.getBaseDir());
+            }
+            w.endObject();
+        }
+    }
+
+    private void writeTileset(TileSet set, JSONWriter w, String wp)
+            throws IOException {
+        String tilebmpFile = set.getTilebmpFile();
+        String name = set.getName();
+
+        w.startObject();
+        w.writeMember("firstgid", getFirstGid(set));
 
-        // Create a temporary file
-        File tempFile = File.createTempFile("tiled_json_",".tmx");
+        if (name != null) {
+            w.writeMember("name", name);
+        }
+
+        if (set.getBaseDir() != null) {
+            w.writeMember("basedir", set.getBaseDir());
+        }
 
-        // Write in this temp file an xml content (tmx format)
-        if (map != null) {
-            super.writeMap(map,tempFile.getAbsolutePath());
+        if (tilebmpFile != null) {
+            w.writeMember("tilewidth", set.getTileWidth());
+            w.writeMember("tileheight", set.getTileHeight());
+
+            final int tileSpacing = set.getTileSpacing();
+            final int tileMargin = set.getTileMargin();
+            if (tileSpacing != 0) {
+                w.writeMember("spacing", tileSpacing);
+            }
+            if (tileMargin != 0) {
+                w.writeMember("margin", tileMargin);
+            }
+
+            w.writeMember("image",
+                    XMLMapWriter.getRelativePath(wp, tilebmpFile));
+
+            Color trans = set.getTransparentColor();
+            if (trans != null) {
+                w.writeMember("trans", Integer.toHexString(
+                        trans.getRGB()).substring(2));
+            }
         } else {
-            if (set != null) {
-                super.writeTileset(set,tempFile.getAbsolutePath()); //write in this temp file an xml content (tmx format)
-            } else
-                return;
+            // Embedded tileset, the images are listed separately since they
+            // may be shared by several tiles
+            boolean embedImageData = prefs.getBoolean("embedImages", true);
+
+            w.key("images");
+            w.startArray();
+            Enumeration<String> ids = set.getImageIds();
+            while (ids.hasMoreElements()) {
+                int id = Integer.parseInt(ids.nextElement());
+                String imagePath = set.getImageSource(id);
+
+                w.startObject();
+                w.writeMember("id", id);
+                if (!embedImageData && imagePath != null) {
+                    w.writeMember("source",
+                            XMLMapWriter.getRelativePath(wp, imagePath));
+                } else {
+                    writeEmbeddedImage(set.getImageById(id), w);
+                }
+                w.endObject();
+            }
+            w.endArray();
         }
 
-        tempFile = new File(tempFile.getAbsolutePath()); //TODO useful?
+        // Tiles of a tileset image only need to be written when they have
+        // properties
+        w.key("tiles");
+        w.startArray();
+        Iterator<?> tileIterator = set.iterator();
+        while (tileIterator.hasNext()) {
+            Tile tile = (Tile) tileIterator.next();
+            if (tile == null ||
+                    tilebmpFile != null && tile.getProperties().isEmpty()) {
+                continue;
+            }
+            w.startObject();
+            w.writeMember("id", tile.getId());
+            if (tilebmpFile == null && tile.getImageId() >= 0) {
+                w.writeMember("image", tile.getImageId());
+            }
+            writeProperties(tile.getProperties(), w);
+            w.endObject();
+        }
+        w.endArray();
 
-        // Now read this temp file and get the tmx content
-        int fileSize = 100000; //TODO Replace here by true file size //(int) tempFile.length(); //100000;
-        char[] TMXContent = new char[fileSize];
+        w.endObject();
+    }
 
-        FileReader fileR = new FileReader(tempFile.getAbsolutePath());
-        fileR.read(TMXContent);
-        fileR.close();
+    private static void writeEmbeddedImage(Image image, JSONWriter w)
+            throws IOException {
+        w.writeMember("format", "png");
+        w.key("data");
+        OutputStream out = w.startBase64();
+        out.write(ImageHelper.imageToPNG(image));
+        out.close();
+    }
 
-        // Avoid retrieving xml header like <?xml version=\"1.0\"?>, JSON parser doesn't like it!
-        String TMXContentString = new String(TMXContent).trim().replaceFirst("\\<\\?.*\\?\\>","");
+    /**
+     * Writes a layer. This should be done <b>after</b> the first global ids
+     * for the tilesets are determined, in order for the right gids to be
+     * written to the layer data.
+     */
+    private void writeMapLayer(MapLayer l, JSONWriter w, String wp)
+            throws IOException {
+        Rectangle bounds = l.getBounds();
+
+        w.startObject();
+        w.writeMember("type",
+                l instanceof ObjectGroup ? "objectgroup" : "tilelayer");
+        w.writeMember("name", l.getName());
+        w.writeMember("x", bounds.x);
+        w.writeMember("y", bounds.y);
+        w.writeMember("width", bounds.width);
+        w.writeMember("height", bounds.height);
+        w.writeMember("visible", l.isVisible());
+        w.writeMember("opacity", l.getOpacity());
+        w.writeMember("viewPlaneDistance", l.getViewPlaneDistance());
+        w.writeMember("viewPlaneInfinitelyFarAway",
+                l.isViewPlaneInfinitelyFarAway());
+
+        writeProperties(l.getProperties(), w);
+
+        if (l instanceof ObjectGroup) {
+            w.key("objects");
+            w.startArray();
+            Iterator<MapObject> itr = ((ObjectGroup) l).getObjects();
+            while (itr.hasNext()) {
+                writeMapObject(itr.next(), w, wp);
+            }
+            w.endArray();
+        } else {
+            final TileLayer tl = (TileLayer) l;
+            w.writeMember("tileWidth", tl.getTileWidth());
+            w.writeMember("tileHeight", tl.getTileHeight());
+            writeLayerData(tl, w);
+            writeTileInstanceProperties(tl, w);
+        }
 
-        System.out.println("temp file path="+tempFile.getAbsolutePath());
-        System.out.println("filesize="+fileSize);
-        System.out.println("content="+TMXContentString);
+        w.endObject();
+    }
 
-        // Delete useless temp file
-        tempFile.delete();
+    /**
+     * Writes the global tile ids of a tile layer, one row at a time.
+     */
+    private void writeLayerData(TileLayer tl, JSONWriter w)
+            throws IOException {
+        final boolean encodeLayerData =
+                prefs.getBoolean("encodeLayerData", true);
+        final boolean compressLayerData =
+                prefs.getBoolean("layerCompression", true) &&
+                        encodeLayerData;
 
-        // Turn it into JSON format string
-        String JSONContent = XML.toJSONObject(TMXContentString).toString(2);
+        final Rectangle bounds = tl.getBounds();
+        final Tile[] row = new Tile[bounds.width];
+        final int[] gids = new int[bounds.width];
 
-        System.err.println("json content="+JSONContent);
+        if (encodeLayerData) {
+            w.writeMember("encoding", "base64");
+            if (compressLayerData) {
+                w.writeMember("compression", "gzip");
+            }
+            w.key("data");
 
-        // Write in destination file
-        FileWriter fileW = new FileWriter(filename);
-        fileW.write(JSONContent);
-        fileW.flush();
-        fileW.close();
+            OutputStream base64 = w.startBase64();
+            OutputStream out = compressLayerData ?
+                    new GZIPOutputStream(base64) : base64;
+            final byte[] bytes = new byte[bounds.width * 4];
+
+            for (int y = 0; y < bounds.height; y++) {
+                getGids(tl, bounds.x, bounds.y + y, row, gids);
+                for (int x = 0, i = 0; x < bounds.width; x++) {
+                    final int gid = gids[x];
+                    bytes[i++] = (byte) (gid       & LAST_BYTE);
+                    bytes[i++] = (byte) (gid >> 8  & LAST_BYTE);
+                    bytes[i++] = (byte) (gid >> 16 & LAST_BYTE);
+                    bytes[i++] = (byte) (gid >> 24 & LAST_BYTE);
+                }
+                out.write(bytes);
+            }
+            out.close();
+        } else {
+            w.key("data");
+            w.startArray();
+            for (int y = 0; y < bounds.height; y++) {
+                getGids(tl, bounds.x, bounds.y + y, row, gids);
+                w.values(gids, bounds.width);
+            }
+            w.endArray();
+        }
     }
 
-    public void writeMap(Map map, String filename) throws Exception {
-        writeMapOrTileset(map,null,filename);
+    private void getGids(TileLayer tl, int x, int y, Tile[] row, int[] gids) {
+        tl.getRow(x, y, row, 0, row.length);
+        TileSet set = null;
+        int firstGid = 0;
+        for (int i = 0; i < row.length; i++) {
+            final Tile tile = row[i];
+            if (tile == null) {
+                gids[i] = 0;
+                continue;
+            }
+            // Neighbouring tiles are mostly from the same tileset
+            if (tile.getTileSet() != set || set == null) {
+                set = tile.getTileSet();
+                firstGid = set != null ? getFirstGid(set) : 0;
+            }
+            gids[i] = firstGid + tile.getId();
+        }
     }
 
-    public void writeTileset(TileSet set, String filename) throws Exception {
-        writeMapOrTileset(null,set,filename);
+    /**
+     * Returns the first global id of the tileset in the map being written,
+     * or the one it was read with when only the tileset is written.
+     */
+    private int getFirstGid(TileSet set) {
+        Integer firstGid = firstGids.get(set);
+        return firstGid != null ? firstGid : set.getFirstGid();
     }
 
-    public void writeMap(Map map, OutputStream out) throws Exception {
-        super.writeMap(map,out); //not implemented because can't turn into JSON an OutputStream
+    private static void writeTileInstanceProperties(TileLayer tl,
+                                                    JSONWriter w)
+            throws IOException {
+        boolean started = false;
+
+        for (int y = 0; y < tl.getHeight(); y++) {
+            for (int x = 0; x < tl.getWidth(); x++) {
+                Properties tip = tl.getTileInstancePropertiesAt(x, y);
+
+                if (tip != null && !tip.isEmpty()) {
+                    if (!started) {
+                        w.key("tileproperties");
+                        w.startArray();
+                        started = true;
+                    }
+                    w.startObject();
+                    w.writeMember("x", x);
+                    w.writeMember("y", y);
+                    writeProperties(tip, w);
+                    w.endObject();
+                }
+            }
+        }
+
+        if (started) {
+            w.endArray();
+        }
     }
 
-    public void writeTileset(TileSet set, OutputStream out) throws Exception {
-        super.writeTileset(set,out); //not implemented because can't turn into JSON an OutputStream
+    private static void writeMapObject(MapObject mapObject, JSONWriter w,
+                                       String wp)
+            throws IOException
+    {
+        w.startObject();
+        w.writeMember("name", mapObject.getName());
+
+        if (mapObject.getType().length() != 0) {
+            w.writeMember("type", mapObject.getType());
+        }
+
+        w.writeMember("x", mapObject.getX());
+        w.writeMember("y", mapObject.getY());
+
+        if (mapObject.getWidth() != 0) {
+            w.writeMember("width", mapObject.getWidth());
+        }
+        if (mapObject.getHeight() != 0) {
+            w.writeMember("height", mapObject.getHeight());
+        }
+
+        writeProperties(mapObject.getProperties(), w);
+
+        if (mapObject.getImageSource().length() > 0) {
+            w.writeMember("image", XMLMapWriter.getRelativePath(
+                    wp, mapObject.getImageSource()));
+        }
+
+        w.endObject();
     }
 
     /**
@@ -116,7 +502,7 @@ public class JSONMapWriter extends  XMLMapWriter implements MapWriter
 
     public String getDescription() {
         return
-            "The Tiled JSON format (TMX converted) writer\n" +
+            "The Tiled JSON format writer\n" +
             "\n" +
             "Nader AKHRES"+
             "\n for \n"+
@@ -126,7 +512,7 @@ public class JSONMapWriter extends  XMLMapWriter implements MapWriter
     }
 
     public String getName() {
-        return "Tiled JSON (TMX converted) map writer";
+        return "Tiled JSON map writer";
     }
 
     public boolean accept(File pathname) {
@@ -138,4 +524,7 @@ public class JSONMapWriter extends  XMLMapWriter implements MapWriter
         } catch (IOException e) {}
         return false;
     }
+
+    public void setLogger(PluginLogger logger) {
+    }
 }
@@ -0,0 +1,449 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.plugins.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.text.ParseException;
+
+/**
+ * A tokenizer that reads JSON text from a reader, based on
+ * {@link org.json.JSONTokener}. Instead of parsing values into objects and
+ * arrays, the caller pulls the members of objects and the elements of arrays
+ * one at a time, so large arrays of numbers or base64 strings can be decoded
+ * without keeping the text or a tree of values in memory.
+ *
+ * @version $Id$
+ */
+public class JSONStreamTokener
+{
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int pos, length;
+    private long offset;
+    private boolean end;
+
+    /**
+     * Construct a JSONStreamTokener reading from a reader. The reader does
+     * not need to be buffered.
+     *
+     * @param reader the source of the JSON text
+     */
+    public JSONStreamTokener(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Get the next character in the source.
+     *
+     * @return the next character, or 0 when past the end of the source
+     */
+    public char next() throws IOException {
+        if (pos >= length && !fill()) {
+            pos = length + 1;
+            return 0;
+        }
+        return buffer[pos++];
+    }
+
+    /**
+     * Back up one character. Only the last character that was read can be
+     * backed up.
+     */
+    public void back() {
+        if (pos > 0) {
+            pos--;
+        }
+    }
+
+    /**
+     * Get the next character that is not whitespace.
+     *
+     * @return a character, or 0 when there are no more characters
+     */
+    public char nextClean() throws IOException {
+        for (;;) {
+            char c = next();
+            if (c == 0 || c > ' ') {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Reads the next character that is not whitespace, and throws an
+     * exception when it is not the expected one.
+     */
+    public void expect(char c) throws IOException, ParseException {
+        char n = nextClean();
+        if (n != c) {
+            throw syntaxError("Expected '" + c + "' and not '" + n + "'");
+        }
+    }
+
+    /**
+     * Reads the start of an object. Its members are read by calling
+     * {@link #nextKey} until it returns <code>null</code>.
+     */
+    public void startObject() throws IOException, ParseException {
+        expect('{');
+    }
+
+    /**
+     * Reads the name of the next member of the current object, up to and
+     * including the colon. It has to be followed by reading or skipping the
+     * value of the member.
+     *
+     * @return the name, or <code>null</code> at the end of the object
+     */
+    public String nextKey() throws IOException, ParseException {
+        char c = nextClean();
+        if (c == ',') {
+            c = nextClean();
+        }
+        if (c == '}') {
+            return null;
+        }
+        if (c != '"' && c != '\'') {
+            throw syntaxError("Expected a member name");
+        }
+        String key = nextString(c);
+        expect(':');
+        return key;
+    }
+
+    /**
+     * Reads the start of an array. Each element is read after
+     * {@link #hasNextElement} returned <code>true</code>.
+     */
+    public void startArray() throws IOException, ParseException {
+        expect('[');
+    }
+
+    /**
+     * Returns whether the current array has another element, which then has
+     * to be read or skipped.
+     */
+    public boolean hasNextElement() throws IOException, ParseException {
+        char c = nextClean();
+        if (c == ',') {
+            c = nextClean();
+        }
+        if (c == ']') {
+            return false;
+        }
+        if (c == 0) {
+            throw syntaxError("Unterminated array");
+        }
+        back();
+        return true;
+    }
+
+    /**
+     * Return the characters up to the next close quote character.
+     * Backslash processing is done.
+     *
+     * @param quote the quoting character, either <code>"</code> or
+     *              <code>'</code>
+     * @return the string
+     */
+    public String nextString(char quote) throws IOException, ParseException {
+        StringBuilder sb = new StringBuilder();
+        for (;;) {
+            char c = next();
+            switch (c) {
+                case 0:
+                case '\n':
+                case '\r':
+                    throw syntaxError("Unterminated string");
+                case '\\':
+                    c = next();
+                    switch (c) {
+                        case 'b': sb.append('\b'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'n': sb.append('\n'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'u':
+                            int u = 0;
+                            for (int i = 0; i < 4; i++) {
+                                int h = org.json.JSONTokener.dehexchar(next());
+                                if (h < 0) {
+                                    throw syntaxError("Illegal escape.");
+                                }
+                                u = u << 4 | h;
+                            }
+                            sb.append((char) u);
+                            break;
+                        default:
+                            sb.append(c);
+                    }
+                    break;
+                default:
+                    if (c == quote) {
+                        return sb.toString();
+                    }
+                    sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Reads a string value.
+     *
+     * @return the string, or <code>null</code> when the value is null
+     */
+    public String nextString() throws IOException, ParseException {
+        char c = nextClean();
+        if (c == '"' || c == '\'') {
+            return nextString(c);
+        }
+        back();
+        String literal = nextLiteral();
+        return "null".equals(literal) ? null : literal;
+    }
+
+    /**
+     * Reads an integer value, without creating a string first.
+     */
+    public int nextInt() throws IOException, ParseException {
+        char c = nextClean();
+        boolean negative = c == '-';
+        if (negative) {
+            c = next();
+        }
+        if (c < '0' || c > '9') {
+            throw syntaxError("Expected a number");
+        }
+        int value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            c = next();
+        }
+        if (c == '.' || c == 'e' || c == 'E') {
+            // Not an integer after all, drop the fraction
+            while (c == '.' || c == 'e' || c == 'E' || c == '+' ||
+                    c == '-' || c >= '0' && c <= '9') {
+                c = next();
+            }
+        }
+        back();
+        return negative ? -value : value;
+    }
+
+    public float nextFloat() throws IOException, ParseException {
+        String literal = nextLiteral();
+        try {
+            return Float.parseFloat(literal);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Expected a number and not '" + literal + "'");
+        }
+    }
+
+    public boolean nextBoolean() throws IOException, ParseException {
+        String literal = nextLiteral();
+        if ("true".equals(literal)) {
+            return true;
+        } else if ("false".equals(literal)) {
+            return false;
+        }
+        throw syntaxError("Expected a boolean and not '" + literal + "'");
+    }
+
+    /**
+     * Returns a stream of the bytes encoded as base64 in the string that is
+     * being read. The opening quote has to be read already, the stream ends
+     * at the closing quote. Whitespace and escaped line breaks in the string
+     * are ignored.
+     */
+    public InputStream nextBase64(char quote) {
+        return new Base64InputStream(quote);
+    }
+
+    /**
+     * Skips the next value, including any objects and arrays inside it.
+     */
+    public void skipValue() throws IOException, ParseException {
+        char c = nextClean();
+        switch (c) {
+            case '"':
+            case '\'':
+                nextString(c);
+                break;
+            case '{':
+                back();
+                startObject();
+                while (nextKey() != null) {
+                    skipValue();
+                }
+                break;
+            case '[':
+                back();
+                startArray();
+                while (hasNextElement()) {
+                    skipValue();
+                }
+                break;
+            default:
+                back();
+                nextLiteral();
+        }
+    }
+
+    /**
+     * Make a ParseException to signal a syntax error.
+     *
+     * @param message the error message
+     * @return a ParseException object, suitable for throwing
+     */
+    public ParseException syntaxError(String message) {
+        long at = offset + pos;
+        return new ParseException(message + " at character " + at,
+                (int) Math.min(at, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Reads an unquoted value, like a number, <code>true</code> or
+     * <code>null</code>.
+     */
+    private String nextLiteral() throws IOException, ParseException {
+        StringBuilder sb = new StringBuilder();
+        char c = nextClean();
+        while (c >= ' ' && ",:]}/\\\"[{;=#".indexOf(c) < 0) {
+            sb.append(c);
+            c = next();
+        }
+        back();
+        if (sb.length() == 0) {
+            throw syntaxError("Missing value");
+        }
+        return sb.toString().trim();
+    }
+
+    /**
+     * Reads more characters into the buffer, keeping the last character so
+     * that it can still be backed up.
+     */
+    private boolean fill() throws IOException {
+        if (end) {
+            return false;
+        }
+        int keep = 0;
+        if (length > 0) {
+            buffer[0] = buffer[length - 1];
+            keep = 1;
+        }
+        int read = reader.read(buffer, keep, buffer.length - keep);
+        while (read == 0) {
+            read = reader.read(buffer, keep, buffer.length - keep);
+        }
+        offset += length - keep;
+        if (read < 0) {
+            // Keep the last character available for back()
+            pos = length = keep;
+            end = true;
+            return false;
+        }
+        pos = keep;
+        length = keep + read;
+        return true;
+    }
+
+    private class Base64InputStream extends InputStream
+    {
+        private final char quote;
+        private final int[] decoded = new int[3];
+        private int available, next;
+        private boolean ended;
+
+        public Base64InputStream(char quote) {
+            this.quote = quote;
+        }
+
+        public int read() throws IOException {
+            if (next == available && !decode()) {
+                return -1;
+            }
+            return decoded[next++];
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = 0;
+            while (count < len) {
+                if (next == available && !decode()) {
+                    break;
+                }
+                b[off + count++] = (byte) decoded[next++];
+            }
+            return count == 0 && len > 0 ? -1 : count;
+        }
+
+        /**
+         * Decodes the next group of up to four characters.
+         */
+        private boolean decode() throws IOException {
+            int bits = 0, chars = 0;
+            boolean padded = false;
+            while (!ended && !padded && chars < 4) {
+                char c = next();
+                if (c == '\\') {
+                    // Only an escaped slash is part of the data
+                    c = next();
+                    if (c != '/') {
+                        continue;
+                    }
+                }
+                if (c == quote) {
+                    ended = true;
+                } else if (c == 0) {
+                    throw new IOException(syntaxError(
+                            "Unterminated string").getMessage());
+                } else if (c == '=') {
+                    padded = chars > 0;
+                } else {
+                    int v = decodeChar(c);
+                    if (v >= 0) {
+                        bits = bits << 6 | v;
+                        chars++;
+                    }
+                }
+            }
+            if (chars == 0) {
+                return false;
+            }
+            if (chars == 1) {
+                throw new IOException(syntaxError(
+                        "Truncated base64 data").getMessage());
+            }
+            bits <<= 6 * (4 - chars);
+            decoded[0] = bits >> 16 & 0xff;
+            decoded[1] = bits >> 8 & 0xff;
+            decoded[2] = bits & 0xff;
+            available = chars - 1;
+            next = 0;
+            return true;
+        }
+
+        private int decodeChar(char c) {
+            if (c >= 'A' && c <= 'Z') return c - 'A';
+            if (c >= 'a' && c <= 'z') return c - 'a' + 26;
+            if (c >= '0' && c <= '9') return c - '0' + 52;
+            if (c == '+' || c == '-') return 62;
+            if (c == '/' || c == '_') return 63;
+            return -1;
+        }
+    }
+}
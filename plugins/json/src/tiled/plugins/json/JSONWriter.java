@@ -0,0 +1,255 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.plugins.json;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+import org.json.JSONObject;
+
+/**
+ * A simple helper class to write a JSON document directly to a writer,
+ * without building it in memory first. It works like the XML writer of the
+ * editor: objects and arrays are started and ended, and the writer keeps
+ * track of the commas and the indentation.
+ *
+ * @version $Id$
+ */
+public class JSONWriter
+{
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    private final Writer w;
+    private String indentString = "  ";
+
+    // For each open object or array, whether it has any members yet
+    private boolean[] hasMembers = new boolean[16];
+    private int depth;
+    private boolean afterKey;
+
+    public JSONWriter(Writer writer) {
+        w = writer;
+    }
+
+    public void setIndentString(String indentString) {
+        this.indentString = indentString;
+    }
+
+    public void startObject() throws IOException {
+        beginValue();
+        w.write('{');
+        push();
+    }
+
+    public void endObject() throws IOException {
+        pop('}');
+    }
+
+    public void startArray() throws IOException {
+        beginValue();
+        w.write('[');
+        push();
+    }
+
+    public void endArray() throws IOException {
+        pop(']');
+    }
+
+    /**
+     * Writes the name of the next member of the current object. It has to be
+     * followed by a value, object or array.
+     */
+    public void key(String name) throws IOException {
+        beginMember();
+        w.write(JSONObject.quote(name));
+        w.write(": ");
+        afterKey = true;
+    }
+
+    public void value(String value) throws IOException {
+        beginValue();
+        w.write(value != null ? JSONObject.quote(value) : "null");
+    }
+
+    public void value(int value) throws IOException {
+        beginValue();
+        w.write(Integer.toString(value));
+    }
+
+    /**
+     * Writes a number.
+     *
+     * @throws ArithmeticException when the number is not finite, since JSON
+     *         has no way to write it
+     */
+    public void value(float value) throws IOException {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            throw new ArithmeticException(
+                    "JSON can only serialize finite numbers.");
+        }
+        beginValue();
+        w.write(Float.toString(value));
+    }
+
+    public void value(boolean value) throws IOException {
+        beginValue();
+        w.write(value ? "true" : "false");
+    }
+
+    public void writeMember(String name, String value) throws IOException {
+        key(name);
+        value(value);
+    }
+
+    public void writeMember(String name, int value) throws IOException {
+        key(name);
+        value(value);
+    }
+
+    public void writeMember(String name, float value) throws IOException {
+        key(name);
+        value(value);
+    }
+
+    public void writeMember(String name, boolean value) throws IOException {
+        key(name);
+        value(value);
+    }
+
+    /**
+     * Writes a number of values of the current array on a single line.
+     *
+     * @param values the array containing the values
+     * @param len    the number of values to write
+     */
+    public void values(int[] values, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        beginMember();
+        for (int i = 0; i < len; i++) {
+            if (i > 0) {
+                w.write(',');
+            }
+            w.write(Integer.toString(values[i]));
+        }
+    }
+
+    /**
+     * Starts a string value containing the base64 encoding of the bytes
+     * written to the returned stream. The string ends when the stream is
+     * closed, which does not close the underlying writer.
+     *
+     * @return the stream to write the bytes to
+     */
+    public OutputStream startBase64() throws IOException {
+        beginValue();
+        w.write('"');
+        return new Base64OutputStream();
+    }
+
+    /**
+     * Flushes the underlying writer.
+     */
+    public void flush() throws IOException {
+        w.flush();
+    }
+
+    private void push() {
+        if (depth == hasMembers.length) {
+            boolean[] grown = new boolean[depth * 2];
+            System.arraycopy(hasMembers, 0, grown, 0, depth);
+            hasMembers = grown;
+        }
+        hasMembers[depth++] = false;
+    }
+
+    private void pop(char close) throws IOException {
+        final boolean empty = !hasMembers[--depth];
+        if (!empty) {
+            writeNewLine();
+        }
+        w.write(close);
+        if (depth == 0) {
+            w.write('\n');
+        }
+    }
+
+    private void beginValue() throws IOException {
+        if (afterKey) {
+            afterKey = false;
+        } else if (depth > 0) {
+            beginMember();
+        }
+    }
+
+    private void beginMember() throws IOException {
+        if (hasMembers[depth - 1]) {
+            w.write(',');
+        }
+        hasMembers[depth - 1] = true;
+        writeNewLine();
+    }
+
+    private void writeNewLine() throws IOException {
+        w.write('\n');
+        for (int i = 0; i < depth; i++) {
+            w.write(indentString);
+        }
+    }
+
+    /**
+     * Encodes the bytes written to it as base64, directly to the writer.
+     */
+    private class Base64OutputStream extends OutputStream
+    {
+        private final char[] out = new char[4];
+        private int buffer;
+        private int count;
+
+        public void write(int b) throws IOException {
+            buffer = buffer << 8 | (b & 0xff);
+            if (++count == 3) {
+                out[0] = BASE64[buffer >> 18 & 0x3f];
+                out[1] = BASE64[buffer >> 12 & 0x3f];
+                out[2] = BASE64[buffer >> 6 & 0x3f];
+                out[3] = BASE64[buffer & 0x3f];
+                w.write(out, 0, 4);
+                buffer = 0;
+                count = 0;
+            }
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        public void close() throws IOException {
+            if (count > 0) {
+                buffer <<= 8 * (3 - count);
+                out[0] = BASE64[buffer >> 18 & 0x3f];
+                out[1] = BASE64[buffer >> 12 & 0x3f];
+                out[2] = count == 2 ? BASE64[buffer >> 6 & 0x3f] : '=';
+                out[3] = '=';
+                w.write(out, 0, 4);
+                count = 0;
+            }
+            w.write('"');
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.plugins.json;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import tiled.core.Map;
+import tiled.core.TileSet;
+
+/**
+ * Checks how the JSON reader resolves the relative paths in maps and
+ * tilesets read from files and from streams.
+ *
+ * @version $Id$
+ */
+public class JSONMapReaderTest
+{
+    private File dir;
+    private File image;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("jsontest", "");
+        dir.delete();
+        dir.mkdir();
+        image = new File(dir, "sheet.png");
+        ImageIO.write(new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB),
+                "png", image);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    @Test
+    public void resolvesFilePathsAgainstFile() throws Exception {
+        File file = write("map.js", createMap("sheet.png"));
+
+        Map map = new JSONMapReader().readMap(file.getPath());
+
+        assertImage(map.getTilesets().get(0));
+    }
+
+    @Test
+    public void resolvesStreamPathsAgainstWorkingDirectory() throws Exception {
+        JSONMapReader reader = new JSONMapReader();
+        // Reading a file in another directory first must not affect the
+        // stream read after it
+        reader.readMap(write("maps/map.js",
+                createMap("../sheet.png")).getPath());
+
+        String path = getPathFromWorkingDirectory(image);
+        Map map = reader.readMap(toStream(createMap(path)));
+
+        assertImage(map.getTilesets().get(0));
+    }
+
+    @Test
+    public void resolvesStreamTilesetPathsAgainstWorkingDirectory()
+            throws Exception {
+        JSONMapReader reader = new JSONMapReader();
+        reader.readTileset(write("maps/set.js",
+                createTileset("../sheet.png")).getPath());
+
+        String path = getPathFromWorkingDirectory(image);
+        TileSet set = reader.readTileset(toStream(createTileset(path)));
+
+        assertImage(set);
+    }
+
+    private void assertImage(TileSet set) throws IOException {
+        assertEquals(8, set.size());
+        assertEquals(image.getCanonicalFile(),
+                new File(set.getTilebmpFile()).getCanonicalFile());
+    }
+
+    private static String createTileset(String image) {
+        return "{\"name\":\"sheet\",\"tilewidth\":16,\"tileheight\":16," +
+                "\"image\":\"" + image.replace("\\", "\\\\") + "\"}";
+    }
+
+    private static String createMap(String image) {
+        return "{\"version\":\"1.0\",\"orientation\":\"orthogonal\"," +
+                "\"width\":2,\"height\":1,\"tilewidth\":16,\"tileheight\":16," +
+                "\"tilesets\":[{\"firstgid\":1," +
+                createTileset(image).substring(1) + "]," +
+                "\"layers\":[{\"type\":\"tilelayer\",\"name\":\"layer\"," +
+                "\"width\":2,\"height\":1,\"data\":[1,8]}]}";
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        file.getParentFile().mkdirs();
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static ByteArrayInputStream toStream(String content)
+            throws IOException {
+        return new ByteArrayInputStream(content.getBytes("UTF-8"));
+    }
+
+    /**
+     * Returns a relative path from the working directory to the given file.
+     */
+    private static String getPathFromWorkingDirectory(File file)
+            throws IOException {
+        File cwd = new File("").getCanonicalFile();
+        StringBuilder up = new StringBuilder();
+        for (File parent = cwd; parent != null;
+                parent = parent.getParentFile()) {
+            String prefix = parent.getPath();
+            if (!prefix.endsWith(File.separator)) {
+                prefix += File.separator;
+            }
+            String path = file.getCanonicalPath();
+            if (path.startsWith(prefix)) {
+                return up + path.substring(prefix.length());
+            }
+            up.append("..").append(File.separator);
+        }
+        return file.getCanonicalPath();
+    }
+}
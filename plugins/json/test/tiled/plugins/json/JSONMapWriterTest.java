@@ -0,0 +1,206 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.plugins.json;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Properties;
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import tiled.core.Map;
+import tiled.core.MapObject;
+import tiled.core.ObjectGroup;
+import tiled.core.Tile;
+import tiled.core.TileLayer;
+import tiled.core.TileSet;
+import tiled.mapeditor.util.cutter.BasicTileCutter;
+import tiled.util.OverriddenPreferences;
+
+/**
+ * Writes maps with the JSON writer and reads them back with the JSON reader,
+ * in each of the layer data encodings.
+ *
+ * @version $Id$
+ */
+public class JSONMapWriterTest
+{
+    private File dir;
+    private Map map;
+    private TileLayer layer;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("jsontest", "");
+        dir.delete();
+        dir.mkdir();
+        File image = new File(dir, "sheet.png");
+        ImageIO.write(new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB),
+                "png", image);
+
+        TileSet sheet = new TileSet();
+        sheet.setName("sheet");
+        sheet.importTileBitmap(image.getPath(),
+                new BasicTileCutter(16, 16, 0, 0));
+        sheet.getTile(2).getProperties().setProperty("key", "line\nline \u00e9");
+
+        // A tileset without image, whose tiles share a single image
+        TileSet embedded = new TileSet();
+        embedded.setName("embedded");
+        int imageId = embedded.addImage(
+                new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB));
+        for (int i = 0; i < 3; i++) {
+            Tile tile = new Tile(embedded);
+            tile.setImage(imageId);
+            embedded.addNewTile(tile);
+        }
+
+        map = new Map(30, 20);
+        map.addTileset(sheet);
+        map.addTileset(embedded);
+        map.getProperties().setProperty("author", "me");
+
+        layer = (TileLayer) map.addLayer();
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 30; x++) {
+                if ((x + y) % 3 != 0) {
+                    layer.setTileAt(x, y, x % 5 == 0 ?
+                            embedded.getTile(x % 3) : sheet.getTile(x * y % 8));
+                }
+            }
+        }
+        Properties properties = new Properties();
+        properties.setProperty("a", "b");
+        layer.setTileInstancePropertiesAt(1, 1, properties);
+        layer.setOpacity(0.5f);
+
+        ObjectGroup group = new ObjectGroup(map);
+        group.setName("objects");
+        group.addObject(new MapObject(1, 2, 3, 4));
+        map.addLayer(group);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void roundTripsArrayData() throws Exception {
+        checkRoundTrip(false, false, "map.js");
+    }
+
+    @Test
+    public void roundTripsEncodedData() throws Exception {
+        checkRoundTrip(true, false, "map.js");
+    }
+
+    @Test
+    public void roundTripsCompressedData() throws Exception {
+        checkRoundTrip(true, true, "map.js");
+    }
+
+    @Test
+    public void roundTripsCompressedFile() throws Exception {
+        checkRoundTrip(true, false, "map.js.gz");
+    }
+
+    @Test
+    public void writesFiniteNumbers() throws IOException {
+        StringWriter out = new StringWriter();
+        JSONWriter w = new JSONWriter(out);
+        w.startArray();
+        w.value(0.5f);
+        w.value(-2.0f);
+        w.endArray();
+
+        assertEquals("[0.5,-2.0]", out.toString().replaceAll("\\s", ""));
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void rejectsNaN() throws IOException {
+        JSONWriter w = new JSONWriter(new StringWriter());
+        w.startArray();
+        w.value(Float.NaN);
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void rejectsInfinity() throws IOException {
+        JSONWriter w = new JSONWriter(new StringWriter());
+        w.startArray();
+        w.value(Float.NEGATIVE_INFINITY);
+    }
+
+    private void checkRoundTrip(boolean encode, boolean compress,
+                                String name) throws Exception {
+        JSONMapWriter writer = new JSONMapWriter();
+        OverriddenPreferences prefs =
+                new OverriddenPreferences(writer.getPreferences());
+        prefs.putBoolean("encodeLayerData", encode);
+        prefs.putBoolean("layerCompression", compress);
+        writer.setPreferences(prefs);
+
+        String filename = new File(dir, name).getPath();
+        writer.writeMap(map, filename);
+        Map read = new JSONMapReader().readMap(filename);
+
+        assertEquals(30, read.getWidth());
+        assertEquals(20, read.getHeight());
+        assertEquals("me", read.getProperties().getProperty("author"));
+        assertEquals(2, read.getTotalLayers());
+        assertEquals(2, read.getTilesets().size());
+
+        TileSet sheet = read.getTilesets().get(0);
+        assertEquals("sheet", sheet.getName());
+        assertEquals("line\nline \u00e9",
+                sheet.getTile(2).getProperties().getProperty("key"));
+        TileSet embedded = read.getTilesets().get(1);
+        assertEquals(1, embedded.getTotalImages());
+        assertEquals(3, embedded.size());
+
+        TileLayer readLayer = (TileLayer) read.getLayer(0);
+        assertEquals(0.5f, readLayer.getOpacity(), 0.0001);
+        assertEquals("b",
+                readLayer.getTileInstancePropertiesAt(1, 1).getProperty("a"));
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 30; x++) {
+                Tile expected = layer.getTileAt(x, y);
+                Tile actual = readLayer.getTileAt(x, y);
+                String at = "tile at " + x + "," + y;
+                if (expected == null) {
+                    assertNull(at, actual);
+                } else {
+                    assertNotNull(at, actual);
+                    assertEquals(at, expected.getId(), actual.getId());
+                    assertEquals(at, expected.getTileSet().getName(),
+                            actual.getTileSet().getName());
+                }
+            }
+        }
+
+        ObjectGroup group = (ObjectGroup) read.getLayer(1);
+        assertEquals("objects", group.getName());
+        MapObject object = group.getObjects().next();
+        assertEquals(new Rectangle(1, 2, 3, 4), object.getBounds());
+    }
+}
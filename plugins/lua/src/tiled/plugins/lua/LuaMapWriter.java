@@ -14,11 +14,14 @@ package tiled.plugins.lua;
 import java.io.*;
 import java.awt.Color;
 import java.awt.Rectangle;
+import java.nio.charset.Charset;
 import java.util.Enumeration;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.prefs.Preferences;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 import tiled.io.*;
 import tiled.core.*;
@@ -28,53 +31,152 @@ import tiled.mapeditor.selection.SelectionLayer;
 /**
  * Exporter for writing maps to a Lua file. Loading maps in Lua could
  * barely be easier!
+ * <p>
+ * Layer data is written as rows of numbers, or when layer data encoding is
+ * enabled in the saving preferences, as a base64 string of (optionally zlib
+ * compressed) little-endian global tile ids. In the latter case the file
+ * starts with a small function that decodes the strings into rows of numbers
+ * again when the file is loaded. Compressed data is inflated by the global
+ * function <code>tiled_inflate</code> when it is defined, or by the
+ * <code>zlib</code> module otherwise.
  */
 public class LuaMapWriter implements MapWriter
 {
     private static final int LAST_BYTE = 0x000000FF;
+
+    /** The Lua code that decodes the encoded layer data. */
+    private static final String[] DECODER = {
+        "local function decode(content, compression)",
+        "  local index = {}",
+        "  local chars = \"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/\"",
+        "  for i = 1, 64 do index[chars:byte(i)] = i - 1 end",
+        "  local out, bits, count = {}, 0, 0",
+        "  for i = 1, #content do",
+        "    local v = index[content:byte(i)]",
+        "    if v then",
+        "      bits, count = bits * 64 + v, count + 1",
+        "      if count == 4 then",
+        "        out[#out + 1] = string.char(math.floor(bits / 65536),",
+        "                                    math.floor(bits / 256) % 256, bits % 256)",
+        "        bits, count = 0, 0",
+        "      end",
+        "    end",
+        "  end",
+        "  if count == 3 then",
+        "    out[#out + 1] = string.char(math.floor(bits / 1024), math.floor(bits / 4) % 256)",
+        "  elseif count == 2 then",
+        "    out[#out + 1] = string.char(math.floor(bits / 16))",
+        "  end",
+        "  local bytes = table.concat(out)",
+        "  if compression == \"zlib\" then",
+        "    bytes = tiled_inflate and tiled_inflate(bytes) or require(\"zlib\").inflate()(bytes)",
+        "  end",
+        "  local data = {}",
+        "  for i = 1, #bytes - 3, 4 do",
+        "    local a, b, c, d = bytes:byte(i, i + 3)",
+        "    data[#data + 1] = a + b * 256 + c * 65536 + d * 16777216",
+        "  end",
+        "  return data",
+        "end",
+    };
+
+    /** The Lua code that replaces the encoded layer data. */
+    private static final String[] DECODE_LAYERS = {
+        "for _, layer in ipairs(map[\"layers\"]) do",
+        "  if layer[\"encoding\"] == \"base64\" then",
+        "    layer[\"data\"] = decode(layer[\"data\"], layer[\"compression\"])",
+        "    layer[\"encoding\"], layer[\"compression\"] = nil, nil",
+        "  end",
+        "end",
+    };
+
     private PluginLogger logger;
     private Writer writer;
-    private String indent;
+
+    /** Spaces to write indentation from, grown when needed. */
+    private char[] spaces = new char[64];
+    private int indent;
+
+    /** Buffer used for writing a row of layer data at once. */
+    private char[] rowBuffer = new char[0];
+
+    /** The first global ids of the tilesets of the map being written. These
+        are not stored in the tilesets, since they may be shared by maps. */
+    private final IdentityHashMap<TileSet, Integer> firstGids =
+            new IdentityHashMap<TileSet, Integer>();
+
+    public LuaMapWriter() {
+        java.util.Arrays.fill(spaces, ' ');
+    }
 
     /**
      * Writes the Indent to file.
      * @throws java.io.IOException
      */
     private void writeIndent() throws IOException {
-        writer.write(indent);
+        writer.write(spaces, 0, indent);
     }
 
     /**
      * Increases the indent by two spaces.
      */
     private void addIndent() {
-        indent += "  ";
+        indent += 2;
+        if (indent > spaces.length) {
+            spaces = new char[spaces.length * 2];
+            java.util.Arrays.fill(spaces, ' ');
+        }
     }
 
     /**
      * Decreases the indent by two spaces.
      */
     private void minusIndent() {
-        indent = indent.substring(2);
+        indent -= 2;
     }
 
     /**
-     * Writes a string to file.
+     * Writes a string to file, including a newline at its end.
      * @param str the string to be written
      * @throws java.io.IOException
      */
-    private void writeString(String str) throws IOException {
+    private void writelnString(String str) throws IOException {
         writeIndent();
         writer.write(str);
+        writer.write('\n');
     }
 
     /**
-     * Writes a string to file, including a newline at its end.
+     * Writes the start of a table Key-Value pair, up to the value.
+     * @param hash the key
+     * @throws java.io.IOException
+     */
+    private void writeKey(String hash) throws IOException {
+        writeIndent();
+        writer.write('[');
+        writeQuoted(hash);
+        writer.write("] = ");
+    }
+
+    /**
+     * Writes a string as a quoted Lua string.
      * @param str the string to be written
      * @throws java.io.IOException
      */
-    private void writelnString( String str ) throws IOException {
-        writeString( str + "\n" );
+    private void writeQuoted(String str) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"':  writer.write("\\\""); break;
+                case '\\': writer.write("\\\\"); break;
+                case '\n': writer.write("\\n"); break;
+                case '\r': writer.write("\\r"); break;
+                case '\0': writer.write("\\0"); break;
+                default:   writer.write(c);
+            }
+        }
+        writer.write('"');
     }
 
     /**
@@ -84,7 +186,9 @@ public class LuaMapWriter implements MapWriter
      * @throws java.io.IOException
      */
     private void writelnKeyAndValue(String hash, String value) throws IOException {
-        writelnString("[\"" + hash + "\"] = \"" + value + "\";");
+        writeKey(hash);
+        writeQuoted(value != null ? value : "");
+        writer.write(";\n");
     }
 
     /**
@@ -94,7 +198,9 @@ public class LuaMapWriter implements MapWriter
      * @throws java.io.IOException
      */
     private void writelnKeyAndValue(String hash, int value) throws IOException {
-        writelnString("[\"" + hash + "\"] = " + String.valueOf(value) + ";");
+        writeKey(hash);
+        writer.write(Integer.toString(value));
+        writer.write(";\n");
     }
 
     /**
@@ -104,7 +210,9 @@ public class LuaMapWriter implements MapWriter
      * @throws java.io.IOException
      */
     private void writelnKeyAndValue(String hash, float value) throws IOException {
-        writelnString("[\"" + hash + "\"] = " + String.valueOf(value) + ";");
+        writeKey(hash);
+        writer.write(Float.toString(value));
+        writer.write(";\n");
     }
 
     /**
@@ -113,7 +221,8 @@ public class LuaMapWriter implements MapWriter
      * @throws java.io.IOException
      */
     private void startTable(String tablename) throws IOException {
-        writelnString( "[\"" + tablename + "\"] = {");
+        writeKey(tablename);
+        writer.write("{\n");
         addIndent();
     }
 
@@ -212,7 +321,7 @@ public class LuaMapWriter implements MapWriter
             startTable();
             writelnKeyAndValue("label", "tileset");
             try {
-                writelnKeyAndValue("firstgid", set.getFirstGid());
+                writelnKeyAndValue("firstgid", getFirstGid(set));
                 writelnKeyAndValue("source", source.substring(
                             source.lastIndexOf(File.separatorChar) + 1));
                 if (set.getBaseDir() != null) {
@@ -240,7 +349,7 @@ public class LuaMapWriter implements MapWriter
             writelnKeyAndValue("name", name);
         }
 
-        writelnKeyAndValue("firstgid", set.getFirstGid());
+        writelnKeyAndValue("firstgid", getFirstGid(set));
 
         if (tilebmpFile != null) {
             writelnKeyAndValue("tilewidth", set.getTileWidth());
@@ -272,7 +381,7 @@ public class LuaMapWriter implements MapWriter
             endTable();
 
             // Write tile properties when necessary.
-            Iterator<Object> tileIterator = set.iterator();
+            Iterator<?> tileIterator = set.iterator();
 
             while (tileIterator.hasNext()) {
                 Tile tile = (Tile) tileIterator.next();
@@ -294,7 +403,8 @@ public class LuaMapWriter implements MapWriter
     }
 
     /**
-     * Writes a map layer, support for GZIP included.
+     * Writes a map layer. The layer data is written as rows of numbers, or
+     * as a base64 string when encoding is enabled.
      * @param l the map layer
      * @throws java.io.IOException
      */
@@ -339,65 +449,108 @@ public class LuaMapWriter implements MapWriter
 
         if (l instanceof ObjectGroup){
             writeObjectGroup((ObjectGroup)l);
-        } else {
-            startTable("data");
-            if (encodeLayerData) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                OutputStream out;
-
-                writelnKeyAndValue("encoding", "base64");
+        } else if (encodeLayerData) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            OutputStream out = baos;
 
-                if (compressLayerData) {
-                    writelnKeyAndValue("compression", "gzip");
-                    out = new GZIPOutputStream(baos);
-                } else {
-                    out = baos;
-                }
+            writelnKeyAndValue("encoding", "base64");
 
-                for (int y = 0; y < l.getHeight(); y++) {
-                    for (int x = 0; x < l.getWidth(); x++) {
-                        Tile tile = ((TileLayer) l).getTileAt(x + bounds.x,
-                                                              y + bounds.y);
-                        int gid = 0;
-
-                        if (tile != null) {
-                            gid = tile.getGid();
-                        }
-
-                        out.write(gid       & LAST_BYTE);
-                        out.write(gid >> 8  & LAST_BYTE);
-                        out.write(gid >> 16 & LAST_BYTE);
-                        out.write(gid >> 24 & LAST_BYTE);
-                    }
-                }
+            if (compressLayerData) {
+                writelnKeyAndValue("compression", "zlib");
+                out = new DeflaterOutputStream(baos,
+                        new Deflater(Deflater.BEST_COMPRESSION), 8192);
+            }
 
-                if (compressLayerData) {
-                    ((GZIPOutputStream)out).finish();
+            final Tile[] row = new Tile[bounds.width];
+            final byte[] bytes = new byte[bounds.width * 4];
+            for (int y = 0; y < bounds.height; y++) {
+                ((TileLayer) l).getRow(bounds.x, bounds.y + y, row, 0,
+                                       bounds.width);
+                for (int x = 0, i = 0; x < bounds.width; x++) {
+                    final int gid = getGid(row[x]);
+                    bytes[i++] = (byte) (gid       & LAST_BYTE);
+                    bytes[i++] = (byte) (gid >> 8  & LAST_BYTE);
+                    bytes[i++] = (byte) (gid >> 16 & LAST_BYTE);
+                    bytes[i++] = (byte) (gid >> 24 & LAST_BYTE);
                 }
+                out.write(bytes);
+            }
+            out.close();
 
-                writelnKeyAndValue("content", new String(Base64.encode(baos.toByteArray())) );
-            } else {
-                for (int y = 0; y < l.getHeight(); y++) {
-                    for (int x = 0; x < l.getWidth(); x++) {
-                        Tile tile = ((TileLayer)l).getTileAt(x, y);
-                        int gid = 0;
-
-                        if (tile != null) {
-                            gid = tile.getGid();
-                        }
-
-                        startTable();
-                        writelnKeyAndValue("label", "tile");
-                        writelnKeyAndValue("gid", gid);
-                        endTable();
-                    }
-                }
+            writeKey("data");
+            writer.write('"');
+            writer.write(Base64.encode(baos.toByteArray()));
+            writer.write("\";\n");
+        } else {
+            startTable("data");
+            final Tile[] row = new Tile[bounds.width];
+            for (int y = 0; y < bounds.height; y++) {
+                ((TileLayer) l).getRow(bounds.x, bounds.y + y, row, 0,
+                                       bounds.width);
+                writeRow(row);
             }
             endTable();
         }
         endTable();
     }
 
+    /**
+     * Returns the first global id of the tileset in the map being written,
+     * or the one it was read with when only the tileset is written.
+     */
+    private int getFirstGid(TileSet set) {
+        Integer firstGid = firstGids.get(set);
+        return firstGid != null ? firstGid : set.getFirstGid();
+    }
+
+    private int getGid(Tile tile) {
+        if (tile == null) {
+            return 0;
+        }
+        TileSet set = tile.getTileSet();
+        return set != null ? getFirstGid(set) + tile.getId() : tile.getId();
+    }
+
+    /**
+     * Writes the global ids of a row of tiles on a single line, separated
+     * by commas.
+     * @param row the tiles of the row
+     * @throws java.io.IOException
+     */
+    private void writeRow(Tile[] row) throws IOException {
+        // A gid takes at most 10 digits, followed by a comma
+        final int needed = indent + row.length * 11 + 1;
+        if (rowBuffer.length < needed) {
+            rowBuffer = new char[needed];
+        }
+
+        System.arraycopy(spaces, 0, rowBuffer, 0, indent);
+        int len = indent;
+        for (Tile tile : row) {
+            int gid = getGid(tile);
+            if (gid < 0) {
+                // Written as the unsigned value it was stored as
+                String digits = Long.toString(gid & 0xFFFFFFFFL);
+                digits.getChars(0, digits.length(), rowBuffer, len);
+                len += digits.length();
+            } else {
+                final int start = len;
+                do {
+                    rowBuffer[len++] = (char) ('0' + gid % 10);
+                    gid /= 10;
+                } while (gid > 0);
+                // Digits were written from least significant
+                for (int i = start, j = len - 1; i < j; i++, j--) {
+                    char c = rowBuffer[i];
+                    rowBuffer[i] = rowBuffer[j];
+                    rowBuffer[j] = c;
+                }
+            }
+            rowBuffer[len++] = ',';
+        }
+        rowBuffer[len++] = '\n';
+        writer.write(rowBuffer, 0, len);
+    }
 
     /**
      * Saves a map to a file.
@@ -408,7 +561,12 @@ public class LuaMapWriter implements MapWriter
      */
     public void writeMap(Map map, String filename) throws IOException
     {
-        writeMap(map, new FileOutputStream(filename));
+        OutputStream out = new FileOutputStream(filename);
+        try {
+            writeMap(map, out);
+        } finally {
+            out.close();
+        }
     }
 
     /**
@@ -420,11 +578,22 @@ public class LuaMapWriter implements MapWriter
      * @throws java.io.IOException
      */
     public void writeMap(Map map, OutputStream out) throws IOException {
-        writer = new OutputStreamWriter(out);
-        indent = "";
+        writer = new BufferedWriter(
+                new OutputStreamWriter(out, Charset.forName("UTF-8")), 65536);
+        indent = 0;
+
+        final boolean decodeLayers =
+                TiledConfiguration.node("saving").getBoolean(
+                        "encodeLayerData", true) && hasTileLayers(map);
 
         writelnString("-- Generated by Tiled's Lua Exporter Plugin.");
-        writeString("map = ");
+        if (decodeLayers) {
+            for (String line : DECODER) {
+                writelnString(line);
+            }
+        }
+        writeIndent();
+        writer.write("map = ");
         startTable();
         writelnKeyAndValue("label", "map");
 
@@ -450,10 +619,11 @@ public class LuaMapWriter implements MapWriter
 
         startTable("tilesets");
         int firstgid = 1;
+        firstGids.clear();
         Iterator<TileSet> itr = map.getTilesets().iterator();
         while (itr.hasNext()) {
             TileSet tileset = itr.next();
-            tileset.setFirstGid(firstgid);
+            firstGids.put(tileset, firstgid);
             writeTilesetReference(tileset);
             firstgid += tileset.getMaxTileId() + 1;
         }
@@ -468,12 +638,27 @@ public class LuaMapWriter implements MapWriter
         endTable();
 
         endTable();
+        if (decodeLayers) {
+            for (String line : DECODE_LAYERS) {
+                writelnString(line);
+            }
+        }
         writelnString("-- EOF");
 
         writer.flush();
         writer = null;
     }
 
+    private static boolean hasTileLayers(Map map) {
+        Iterator<MapLayer> ml = map.getLayers();
+        while (ml.hasNext()) {
+            if (ml.next() instanceof TileLayer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Overload this to write a tileset to an open stream. Tilesets are not
      * supported by this writer.
@@ -17,38 +17,13 @@ import java.io.*;
 public class Chunk
 {
     private String headerTag;
-    private int chunkSize;
-    private ByteArrayInputStream bais;
     private ByteArrayOutputStream out;
 
-    public Chunk(InputStream in) throws IOException {
-        byte[] header = new byte[4];
-        byte[] data;
-        int readSize;
-
-        in.read(header);
-        headerTag = new String(header);
-        chunkSize = (int)Util.readLongReverse(in);
-        if (chunkSize > 0) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            data = new byte[chunkSize];
-            readSize = in.read(data, 0, chunkSize);
-            if(readSize!=chunkSize)
-                throw new IOException("Incomplete read!");
-            baos.write(data);
-            bais = new ByteArrayInputStream(baos.toByteArray());
-        }
-    }
-
     public Chunk(String header) {
         headerTag = header;
         out = new ByteArrayOutputStream();
     }
 
-    public boolean isGood() {
-        return chunkSize > 0;
-    }
-
     public boolean equals(Object o) {
         if (o instanceof String) {
             return o.equals(headerTag);
@@ -69,10 +44,6 @@ public class Chunk
         out.write(data);
     }
 
-    public InputStream getInputStream() {
-        return bais;
-    }
-
     public OutputStream getOutputStream() {
         return out;
     }
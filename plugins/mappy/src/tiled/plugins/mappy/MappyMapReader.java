@@ -13,22 +13,27 @@
 package tiled.plugins.mappy;
 
 import java.io.*;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 import java.util.Properties;
-import java.util.Vector;
-import java.util.Iterator;
 
 import tiled.io.MapReader;
 import tiled.io.PluginLogger;
 import tiled.core.*;
 
 /**
+ * Reads Mappy FMAP files. The file is mapped into memory and the chunks are
+ * read directly from the mapped buffer, without copying them first.
+ *
  * @version $Id$
  */
 public class MappyMapReader implements MapReader
 {
-    private LinkedList<Chunk> chunks;
-    private Vector<BlkStr> blocks;
+    private java.util.Map<String, ByteBuffer> chunks;
+    private BlkStr[] blocks;
     private static final int BLKSTR_WIDTH = 32;
     private int twidth, theight;
 
@@ -51,43 +56,78 @@ public class MappyMapReader implements MapReader
      * @param filename the filename of the map file
      */
     public Map readMap(String filename) throws Exception {
-        return readMap(new FileInputStream(filename));
+        FileInputStream in = new FileInputStream(filename);
+        try {
+            return readMap(in);
+        } finally {
+            in.close();
+        }
     }
 
     public Map readMap(InputStream in) throws Exception {
-        Map ret = null;
-        chunks = new LinkedList<Chunk>();
-        blocks = new Vector<BlkStr>();
-        byte[] hdr = new byte[4];
+        ByteBuffer buffer;
+        if (in instanceof FileInputStream) {
+            FileChannel channel = ((FileInputStream) in).getChannel();
+            long position = channel.position();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                    position, channel.size() - position);
+        } else {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] data = new byte[8192];
+            int read;
+            while ((read = in.read(data)) > 0) {
+                out.write(data, 0, read);
+            }
+            buffer = ByteBuffer.wrap(out.toByteArray());
+        }
+        return readMap(buffer);
+    }
 
-        in.read(hdr);
-        @SuppressWarnings("unused")
-        long size = Util.readLongReverse(in);
-        in.read(hdr);
+    private Map readMap(ByteBuffer in) throws Exception {
+        Map ret;
+        chunks = new HashMap<String, ByteBuffer>();
 
-        try {
-            Chunk chunk = new Chunk(in);
-            while (chunk.isGood()) {
-                chunks.add(chunk);
-                chunk = new Chunk(in);
+        // Skip the "FORM" header, the size of the file and the "FMAP" tag
+        in.order(ByteOrder.BIG_ENDIAN);
+        if (in.remaining() < 12) {
+            throw new IOException("Not a Mappy map!");
+        }
+        in.position(in.position() + 12);
+
+        // Build a table of the chunks, each one a view of the file
+        byte[] tag = new byte[4];
+        while (in.remaining() >= 8) {
+            in.get(tag);
+            int chunkSize = in.getInt();
+            if (chunkSize <= 0 || chunkSize > in.remaining()) {
+                break;
             }
-        } catch (IOException ioe) {}
+            ByteBuffer chunk = in.slice();
+            chunk.limit(chunkSize);
+            String header = new String(tag, "ISO-8859-1");
+            if (!chunks.containsKey(header)) {
+                chunks.put(header, chunk);
+            }
+            in.position(in.position() + chunkSize);
+        }
 
         // now build a Tiled map...
-        Chunk c = findChunk("MPHD");
+        ByteBuffer c = findChunk("MPHD");
         if (c != null) {
-            ret = readMPHDChunk(c.getInputStream());
+            ret = readMPHDChunk(c);
         } else {
             throw new IOException("No MPHD chunk found!");
         }
 
         c = findChunk("BODY");
         if (c != null) {
-            readBODYChunk(ret, c.getInputStream());
+            readBODYChunk(ret, c);
         } else {
             throw new IOException("No BODY chunk found!");
         }
 
+        chunks = null;
+        blocks = null;
         return ret;
     }
 
@@ -152,47 +192,48 @@ public class MappyMapReader implements MapReader
     }
 
 
-    private Chunk findChunk(String header) {
-        Iterator<Chunk> itr = chunks.iterator();
-
-        while (itr.hasNext()) {
-            Chunk c = (Chunk)itr.next();
-            if (c.equals(header)) {
-                return c;
-            }
+    /**
+     * Returns the contents of the first chunk with the given header, ordered
+     * little endian and positioned at its start.
+     */
+    private ByteBuffer findChunk(String header) {
+        ByteBuffer chunk = chunks.get(header);
+        if (chunk != null) {
+            chunk = chunk.duplicate().order(ByteOrder.LITTLE_ENDIAN);
         }
-        return null;
+        return chunk;
     }
 
-    private Map readMPHDChunk(InputStream in) throws IOException {
+    private Map readMPHDChunk(ByteBuffer in) throws IOException {
         Map ret = null;
         TileSet set = new TileSet();
         int major, minor;
-        major = in.read();
-        minor = in.read();
-        in.skip(2); // skip lsb and reserved bytes - always msb
-        ret = new Map(Util.readShort(in), Util.readShort(in));
+        major = in.get() & 0xFF;
+        minor = in.get() & 0xFF;
+        in.position(in.position() + 2); // skip lsb and reserved bytes - always msb
+        int width = readShort(in);
+        ret = new Map(width, readShort(in));
         Properties retProps = ret.getProperties();
         ret.setOrientation(Map.MDO_ORTHO);        //be sure to set the orientation!
         retProps.setProperty("(s)fmap reader", "Don't modify properties marked (s) unless you really know what you're doing.");
         retProps.setProperty("version", "" + major + "." + minor);
-        in.skip(4); // reserved
-        twidth = Util.readShort(in);
-        theight = Util.readShort(in);
+        in.position(in.position() + 4); // reserved
+        twidth = readShort(in);
+        theight = readShort(in);
         ret.setTileWidth(twidth);
         ret.setTileHeight(theight);
         set.setName("Static tiles");
         ret.addTileset(set);
-        int depth = Util.readShort(in);
+        int depth = readShort(in);
         if (depth < 16) {
             throw new
                 IOException("Tile bitdepths less than 16 are not supported!");
         }
         retProps.setProperty("(s)depth", String.valueOf(depth));
-        in.skip(2);
-        int numBlocks = Util.readShort(in);
-        int numBlocksGfx = Util.readShort(in);
-        Chunk c = findChunk("BKDT");
+        in.position(in.position() + 2);
+        int numBlocks = readShort(in);
+        int numBlocksGfx = readShort(in);
+        ByteBuffer c = findChunk("BKDT");
         if(c == null) {
             throw new IOException("No BKDT block found!");
         }
@@ -215,11 +256,11 @@ public class MappyMapReader implements MapReader
         ml.setName("fg 3");
         ret.addLayer(ml);
 
-        readBKDTChunk(ret, c.getInputStream(), numBlocks);
+        readBKDTChunk(ret, c, numBlocks);
 
         c = findChunk("BGFX");
         if(c != null) {
-            readBGFXChunk(ret, c.getInputStream(), numBlocksGfx);
+            readBGFXChunk(ret, c, numBlocksGfx);
         }else{
             throw new IOException("No BGFX chunk found!");
         }
@@ -229,14 +270,18 @@ public class MappyMapReader implements MapReader
     }
 
     @SuppressWarnings("unused")
-    private void readATHRChunk(Map m, InputStream in) {
+    private void readATHRChunk(Map m, ByteBuffer in) {
 
     }
 
-    private void readBKDTChunk(Map m, InputStream in, int num) throws IOException {
+    private void readBKDTChunk(Map m, ByteBuffer in, int num) throws IOException {
         logger.debug("Reading " + num + " blocks...");
+        if (in.remaining() < num * BLKSTR_WIDTH) {
+            throw new IOException("BKDT chunk is too small!");
+        }
+        blocks = new BlkStr[num];
         for (int i = 0; i < num; i++) {
-            blocks.add(readBLKSTR(in));
+            blocks[i] = readBLKSTR(in);
         }
     }
 
@@ -248,26 +293,57 @@ public class MappyMapReader implements MapReader
      * @param in
      * @throws IOException
      */
-    private void readBODYChunk(Map m, InputStream in) throws IOException {
+    private void readBODYChunk(Map m, ByteBuffer in) throws IOException {
         TileSet set = m.getTilesets().get(0);
         TileLayer bg = (TileLayer)m.getLayer(0),
                   fg0 = (TileLayer)m.getLayer(7),
                   fg1 = (TileLayer)m.getLayer(8),
                   fg2 = (TileLayer)m.getLayer(9);
 
-        for (int i = 0; i < m.getHeight(); i++) {
-            for (int j = 0; j < m.getWidth(); j++) {
-                int block = (Util.readShort(in) & 0x00FF) / BLKSTR_WIDTH;
-                //System.out.print("" + block);
-                BlkStr blk = (BlkStr)blocks.get(block);
-                //System.out.println("bg: " + blk.bg);
-                bg.setTileAt(j,i, set.getTile((int)blk.bg));
-                fg0.setTileAt(j,i, set.getTile((int)blk.fg0));
-                fg1.setTileAt(j,i, set.getTile((int)blk.fg1));
-                fg2.setTileAt(j,i, set.getTile((int)blk.fg2));
+        final int width = m.getWidth();
+        final int height = m.getHeight();
+        if (in.remaining() < width * height * 2) {
+            throw new IOException("BODY chunk is too small!");
+        }
+
+        // Look up the tiles of each block only once
+        Tile[] bgTiles = new Tile[blocks.length];
+        Tile[] fg0Tiles = new Tile[blocks.length];
+        Tile[] fg1Tiles = new Tile[blocks.length];
+        Tile[] fg2Tiles = new Tile[blocks.length];
+        for (int i = 0; i < blocks.length; i++) {
+            bgTiles[i] = set.getTile((int) blocks[i].bg);
+            fg0Tiles[i] = set.getTile((int) blocks[i].fg0);
+            fg1Tiles[i] = set.getTile((int) blocks[i].fg1);
+            fg2Tiles[i] = set.getTile((int) blocks[i].fg2);
+        }
+
+        ShortBuffer body = in.asShortBuffer();
+        short[] values = new short[width];
+        int[] row = new int[width];
+        Tile[] tiles = new Tile[width];
+
+        for (int i = 0; i < height; i++) {
+            body.get(values);
+            for (int j = 0; j < width; j++) {
+                row[j] = (values[j] & 0x00FF) / BLKSTR_WIDTH;
+                if (row[j] >= blocks.length) {
+                    throw new IOException("Invalid block at " + j + "," + i);
+                }
             }
-            //System.out.println();
+            setRow(bg, i, row, bgTiles, tiles);
+            setRow(fg0, i, row, fg0Tiles, tiles);
+            setRow(fg1, i, row, fg1Tiles, tiles);
+            setRow(fg2, i, row, fg2Tiles, tiles);
+        }
+    }
+
+    private static void setRow(TileLayer layer, int y, int[] row,
+                               Tile[] blockTiles, Tile[] tiles) {
+        for (int x = 0; x < row.length; x++) {
+            tiles[x] = blockTiles[row[x]];
         }
+        layer.setRow(0, y, tiles, 0, row.length);
     }
 
     /**
@@ -278,10 +354,13 @@ public class MappyMapReader implements MapReader
      * @param num Number of Tiles to read
      * @throws IOException
      */
-    private void readBGFXChunk(Map m, InputStream in, int num) throws IOException {
+    private void readBGFXChunk(Map m, ByteBuffer in, int num) throws IOException {
+        if (in.remaining() < num * twidth * theight * 2) {
+            throw new IOException("BGFX chunk is too small!");
+        }
         TileSet set = m.getTilesets().get(0);
         set.addTile(new Tile());
-        Util.readRawImage(in, twidth, theight);   // skip the null-tile
+        in.position(in.position() + twidth * theight * 2);   // skip the null-tile
         for (int i = 1; i < num; i++) {
             Tile t = new Tile();
             @SuppressWarnings("unused")
@@ -292,24 +371,33 @@ public class MappyMapReader implements MapReader
         }
     }
 
-    private BlkStr readBLKSTR(InputStream in) throws IOException {
+    private BlkStr readBLKSTR(ByteBuffer in) {
         BlkStr ret = new BlkStr();
         long widthMod = twidth * theight * 512;
-        ret.bg = Util.readLongReverse(in) / widthMod;
-        ret.fg0 = Util.readLongReverse(in) / widthMod;
-        ret.fg1 = Util.readLongReverse(in) / widthMod;
-        ret.fg2 = Util.readLongReverse(in) / widthMod;
-
-        ret.user1 = Util.readLongReverse(in);
-        ret.user2 = Util.readLongReverse(in);
-        ret.user3 = Util.readShort(in);
-        ret.user4 = Util.readShort(in);
-        ret.user5 = in.read();
-        ret.user6 = in.read();
-        ret.user7 = in.read();
-
-        ret.bits = in.read();
+        in.order(ByteOrder.BIG_ENDIAN);
+        ret.bg = in.getInt() / widthMod;
+        ret.fg0 = in.getInt() / widthMod;
+        ret.fg1 = in.getInt() / widthMod;
+        ret.fg2 = in.getInt() / widthMod;
+
+        ret.user1 = in.getInt();
+        ret.user2 = in.getInt();
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        ret.user3 = readShort(in);
+        ret.user4 = readShort(in);
+        ret.user5 = in.get() & 0xFF;
+        ret.user6 = in.get() & 0xFF;
+        ret.user7 = in.get() & 0xFF;
+
+        ret.bits = in.get() & 0xFF;
 
         return ret;
     }
+
+    /**
+     * Reads an unsigned short from a little endian buffer.
+     */
+    private static int readShort(ByteBuffer in) {
+        return in.getShort() & 0xFFFF;
+    }
 }
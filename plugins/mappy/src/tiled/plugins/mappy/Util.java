@@ -12,12 +12,14 @@
 
 package tiled.plugins.mappy;
 
-import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.image.DirectColorModel;
-import java.awt.image.MemoryImageSource;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * @version $Id$
@@ -58,21 +60,28 @@ public class Util
         //TODO: this
     }
 
-    public static Image readRawImage(InputStream in, int twidth, int theight) throws IOException {
+    /**
+     * Reads a 16 bit (5-6-5) image from the buffer, most significant byte
+     * first. The pixels are read in one go and converted straight into the
+     * raster of the returned image.
+     */
+    public static BufferedImage readRawImage(ByteBuffer in, int twidth, int theight) {
         DirectColorModel cm = new DirectColorModel(16, 0xF800, 0x07E0, 0x001F);
 
-        int [] pixels = new int[twidth * theight + 1];
-        int i, j;
+        short[] pixels = new short[twidth * theight];
+        ByteOrder order = in.order();
+        in.order(ByteOrder.BIG_ENDIAN);
+        in.asShortBuffer().get(pixels);
+        in.position(in.position() + pixels.length * 2);
+        in.order(order);
 
-        for (i = 0; i < theight; i++)
-            for (j = 0; j < twidth; j++) {
-                pixels[i * twidth + j] = readShortReverse(in);
-                //System.out.println(pixels[i*width+j]);
-            }
+        BufferedImage image = new BufferedImage(twidth, theight,
+                BufferedImage.TYPE_INT_RGB);
+        int[] rgb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            rgb[i] = cm.getRGB(pixels[i] & 0xFFFF);
+        }
 
-        MemoryImageSource s = new MemoryImageSource(twidth, theight, cm, pixels, 0, twidth);
-
-        return Toolkit.getDefaultToolkit().createImage(s);
-        //return(Toolkit.getDefaultToolkit().createImage(new FilteredImageSource(orig.getSource(),new TransImageFilter(cm.getRGB(64305)))));
+        return image;
     }
 }
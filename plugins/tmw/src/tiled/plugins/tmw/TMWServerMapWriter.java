@@ -20,13 +20,9 @@ import tiled.core.*;
 
 /**
  * An exporter for TMW server map files, used to determine where a character
- * can walk. The format is very simple:
- *
- * <pre>
- *  short (width)
- *  short (height)
- *  char[] (data)
- * </pre>
+ * can walk. The collision data is written with a byte for each cell (.wlk),
+ * a bit for each cell (.wlb) or as run lengths (.wlr), see {@link WLKWriter}.
+ * To export a whole directory of maps at once, use {@link WLKBatchExporter}.
  *
  * @version $Id$
  */
@@ -43,7 +39,7 @@ public class TMWServerMapWriter implements MapWriter
      * @param filename the filename of the map file
      */
     public void writeMap(Map map, String filename) throws Exception {
-        writeMap(map, new FileOutputStream(filename));
+        WLKWriter.writeMap(map, filename);
     }
 
     /**
@@ -68,7 +64,7 @@ public class TMWServerMapWriter implements MapWriter
      * @see tiled.io.PluggableMapIO#getFilter()
      */
     public String getFilter() throws Exception {
-        return "*.wlk";
+        return "*.wlk,*.wlb,*.wlr";
     }
 
     public String getDescription() {
@@ -92,7 +88,8 @@ public class TMWServerMapWriter implements MapWriter
     public boolean accept(File pathname) {
         try {
             String path = pathname.getCanonicalPath().toLowerCase();
-            if (path.endsWith(".wlk")) {
+            if (path.endsWith(".wlk") || path.endsWith(".wlb") ||
+                    path.endsWith(".wlr")) {
                 return true;
             }
         } catch (IOException e) {}
@@ -0,0 +1,180 @@
+/*
+ *  The Mana World Plugin for Tiled, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.plugins.tmw;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import tiled.core.Map;
+import tiled.io.TilesetRegistry;
+import tiled.io.xml.XMLMapTransformer;
+
+/**
+ * Exports the collision data of all TMX maps in a directory and its
+ * subdirectories. The maps are read and written in parallel, one map per
+ * task. Usage:
+ *
+ * <pre>
+ *  java -cp tiled.jar:plugins/tmw.jar tiled.plugins.tmw.WLKBatchExporter
+ *       [-wlk|-wlb|-wlr] [-threads n] &lt;map directory&gt; [output directory]
+ * </pre>
+ *
+ * Each map is written to the output directory, or next to the map when no
+ * output directory is given, with the extension of the chosen format.
+ *
+ * @version $Id$
+ */
+public class WLKBatchExporter
+{
+    private final int format;
+    private final int threads;
+
+    /**
+     * @param format  one of the formats of {@link WLKWriter}
+     * @param threads the number of maps to export at the same time
+     */
+    public WLKBatchExporter(int format, int threads) {
+        this.format = format;
+        this.threads = threads;
+    }
+
+    /**
+     * Exports all maps in the given directory.
+     *
+     * @param mapDir the directory to look for maps in
+     * @param outDir the directory to write to, or <code>null</code> to write
+     *               next to the maps
+     * @return the number of maps that failed to export
+     */
+    public int export(File mapDir, File outDir) throws InterruptedException {
+        List<String> paths = new ArrayList<String>();
+        findMaps(mapDir, "", paths);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int failed = 0;
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (String path : paths) {
+                final File map = new File(mapDir, path);
+                final File out = new File(outDir != null ? outDir : mapDir,
+                        stripExtension(path) + WLKWriter.getExtension(format));
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        exportMap(map, out);
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    System.err.println(paths.get(i) + ": " +
+                            e.getCause().getMessage());
+                    failed++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return failed;
+    }
+
+    private void exportMap(File mapFile, File outFile) throws Exception {
+        Map map = new XMLMapTransformer().readMap(mapFile.getPath());
+
+        File parent = outFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() &&
+                !parent.isDirectory()) {
+            throw new IOException("Could not create " + parent);
+        }
+        try {
+            WLKWriter.writeMap(map, outFile.getPath());
+        } finally {
+            TilesetRegistry.getInstance().release(map);
+        }
+    }
+
+    private static void findMaps(File dir, String prefix, List<String> paths) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                findMaps(file, prefix + name + File.separator, paths);
+            } else if (name.endsWith(".tmx") || name.endsWith(".tmx.gz")) {
+                paths.add(prefix + name);
+            }
+        }
+    }
+
+    private static String stripExtension(String path) {
+        if (path.endsWith(".gz")) {
+            path = path.substring(0, path.length() - 3);
+        }
+        return path.substring(0, path.lastIndexOf('.'));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int format = WLKWriter.FORMAT_BYTES;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<String> dirs = new ArrayList<String>();
+        boolean valid = true;
+
+        // Maps in the same directory usually share their tilesets
+        TilesetRegistry.getInstance().setEnabled(true);
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads")) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(args[++i]));
+                } catch (NumberFormatException e) {
+                    valid = false;
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    valid = false;
+                }
+            } else if (args[i].startsWith("-")) {
+                String extension = "." + args[i].substring(1);
+                format = WLKWriter.getFormat(extension);
+                valid &= WLKWriter.getExtension(format).equals(extension);
+            } else {
+                dirs.add(args[i]);
+            }
+        }
+
+        if (!valid || dirs.isEmpty() || dirs.size() > 2) {
+            System.err.println("Usage: WLKBatchExporter [-wlk|-wlb|-wlr] " +
+                    "[-threads n] <map directory> [output directory]");
+            System.exit(1);
+        }
+
+        File mapDir = new File(dirs.get(0));
+        File outDir = dirs.size() > 1 ? new File(dirs.get(1)) : null;
+
+        long start = System.currentTimeMillis();
+        int failed = new WLKBatchExporter(format, threads).export(mapDir, outDir);
+        System.out.println("Exported maps in " +
+                (System.currentTimeMillis() - start) + " ms" +
+                (failed > 0 ? ", " + failed + " failed" : ""));
+        System.exit(failed > 0 ? 1 : 0);
+    }
+}
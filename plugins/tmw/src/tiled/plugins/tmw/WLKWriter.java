@@ -13,11 +13,17 @@
 package tiled.plugins.tmw;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 
 import tiled.core.*;
 
 /**
- * The WLK file writer. The format is very simple:
+ * The WLK file writer. All formats start with the size of the map, followed
+ * by the collision data of each row. A cell is blocked when the collision
+ * layer has a tile with an id other than 0 there.
  *
  * <pre>
  *  short (width)
@@ -25,48 +31,181 @@ import tiled.core.*;
  *  char[] (data)
  * </pre>
  *
+ * In the byte format (.wlk) the data has a byte for each cell, which is 1
+ * when the cell is blocked. In the bit format (.wlb) each row has
+ * <code>(width + 7) / 8</code> bytes, and bit <code>x % 8</code> of byte
+ * <code>x / 8</code> is set when the cell is blocked. In the run length
+ * format (.wlr) each row is a list of run lengths, alternating between
+ * walkable and blocked cells and starting with walkable ones. The runs of a
+ * row add up to the width, and each is written as an unsigned variable
+ * length number of 7 bits per byte, least significant first, with the high
+ * bit set on all but the last byte.
+ *
  * @version $Id$
  */
 public class WLKWriter
 {
-    private static final int FIRST_BYTE = 0x000000FF;
+    public static final int FORMAT_BYTES = 0;
+    public static final int FORMAT_BITS = 1;
+    public static final int FORMAT_RLE = 2;
+
+    private static final String[] EXTENSIONS = {".wlk", ".wlb", ".wlr"};
+
+    /**
+     * Returns the format to use for the given file name, based on its
+     * extension. Unknown extensions use the byte format.
+     */
+    public static int getFormat(String filename) {
+        String name = filename.toLowerCase();
+        for (int format = EXTENSIONS.length - 1; format > 0; format--) {
+            if (name.endsWith(EXTENSIONS[format])) {
+                return format;
+            }
+        }
+        return FORMAT_BYTES;
+    }
+
+    /**
+     * Returns the extension of the files written in the given format,
+     * including the dot.
+     */
+    public static String getExtension(int format) {
+        return EXTENSIONS[format];
+    }
 
     public static void writeMap(Map map, OutputStream out) throws Exception {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        writeMap(map, out, FORMAT_BYTES);
+    }
 
-        MapLayer layer = null;
+    public static void writeMap(Map map, OutputStream out, int format)
+            throws Exception
+    {
+        ByteBuffer data = encode(map, format);
+        out.write(data.array(), data.arrayOffset(), data.limit());
+    }
 
-        // Get the last "collision" layer
-        for (MapLayer mapLayer : map) {
-            if (mapLayer.getName().equalsIgnoreCase("collision")) {
-                layer = mapLayer;
+    /**
+     * Writes the collision data of the map to a file, in the format given by
+     * the extension of the file name.
+     */
+    public static void writeMap(Map map, String filename) throws Exception {
+        ByteBuffer data = encode(map, getFormat(filename));
+        FileChannel channel = new FileOutputStream(filename).getChannel();
+        try {
+            while (data.hasRemaining()) {
+                channel.write(data);
             }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Encodes the collision layer of the map in the given format.
+     *
+     * @return a buffer holding the encoded data, positioned at its start
+     * @throws Exception when the map has no collision layer
+     */
+    public static ByteBuffer encode(Map map, int format) throws Exception {
+        TileLayer layer = findCollisionLayer(map);
+        if (layer == null) {
+            throw new Exception("No collision layer found!");
+        }
+
+        final int width = layer.getWidth();
+        final int height = layer.getHeight();
+        final Tile[] row = new Tile[width];
+
+        int rowSize;
+        switch (format) {
+            case FORMAT_BITS: rowSize = (width + 7) / 8; break;
+            // Every run takes at most three bytes, and there can be one
+            // more run than there are cells
+            case FORMAT_RLE: rowSize = (width + 1) * 3; break;
+            default: rowSize = width;
         }
 
-        if (layer != null && layer instanceof TileLayer) {
-            int width = layer.getWidth();
-            int height = layer.getHeight();
-
-            // Write width and height
-            out.write(width       & FIRST_BYTE);
-            out.write(width >> 8  & FIRST_BYTE);
-            out.write(height      & FIRST_BYTE);
-            out.write(height >> 8 & FIRST_BYTE);
-
-            for (int y = 0; y < height; y++) {
-                for (int x= 0; x < width; x++) {
-                    Tile tile = ((TileLayer) layer).getTileAt(x, y);
-                    if (tile != null && tile.getId() > 0) {
-                        out.write(1);
-                    } else {
-                        out.write(0);
+        ByteBuffer out = ByteBuffer.allocate(
+                4 + (format == FORMAT_RLE ? rowSize : rowSize * height));
+        out.order(ByteOrder.LITTLE_ENDIAN);
+
+        // Write width and height
+        out.putShort((short) width);
+        out.putShort((short) height);
+
+        byte[] bytes = new byte[width];
+        for (int y = 0; y < height; y++) {
+            layer.getRow(0, y, row, 0, width);
+
+            switch (format) {
+                case FORMAT_BITS:
+                    Arrays.fill(bytes, 0, rowSize, (byte) 0);
+                    for (int x = 0; x < width; x++) {
+                        if (isBlocked(row[x])) {
+                            bytes[x >> 3] |= 1 << (x & 7);
+                        }
+                    }
+                    out.put(bytes, 0, rowSize);
+                    break;
+                case FORMAT_RLE:
+                    if (out.remaining() < rowSize) {
+                        ByteBuffer grown = ByteBuffer.allocate(
+                                Math.max(out.capacity() * 2,
+                                        out.position() + rowSize));
+                        grown.order(ByteOrder.LITTLE_ENDIAN);
+                        out.flip();
+                        grown.put(out);
+                        out = grown;
                     }
-                }
+                    boolean blocked = false;
+                    int run = 0;
+                    for (int x = 0; x < width; x++) {
+                        if (isBlocked(row[x]) != blocked) {
+                            putRunLength(out, run);
+                            blocked = !blocked;
+                            run = 0;
+                        }
+                        run++;
+                    }
+                    putRunLength(out, run);
+                    break;
+                default:
+                    for (int x = 0; x < width; x++) {
+                        bytes[x] = (byte) (isBlocked(row[x]) ? 1 : 0);
+                    }
+                    out.put(bytes, 0, width);
             }
+        }
 
-            baos.writeTo(out);
-        } else {
-            throw new Exception("No collision layer found!");
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Returns the last tile layer named "collision", or <code>null</code>
+     * when there is none.
+     */
+    public static TileLayer findCollisionLayer(Map map) {
+        for (int i = map.getTotalLayers() - 1; i >= 0; i--) {
+            MapLayer mapLayer = map.getLayer(i);
+            if (mapLayer.getName() != null &&
+                    mapLayer.getName().equalsIgnoreCase("collision")) {
+                return mapLayer instanceof TileLayer ?
+                        (TileLayer) mapLayer : null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isBlocked(Tile tile) {
+        return tile != null && tile.getId() > 0;
+    }
+
+    private static void putRunLength(ByteBuffer out, int length) {
+        while (length >= 0x80) {
+            out.put((byte) (length & 0x7F | 0x80));
+            length >>>= 7;
         }
+        out.put((byte) length);
     }
 }
@@ -0,0 +1,248 @@
+/*
+ *  The Mana World Plugin for Tiled, (c) 2004-2006
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.plugins.tmw;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import tiled.core.Map;
+import tiled.core.Tile;
+import tiled.core.TileLayer;
+
+/**
+ * Encodes collision layers in each of the WLK formats and decodes them
+ * again following the format description.
+ *
+ * @version $Id$
+ */
+public class WLKWriterTest
+{
+    private final Tile walkable = createTile(0);
+    private final Tile blocked = createTile(1);
+
+    @Test
+    public void encodesBytes() throws Exception {
+        Map map = createMap(new boolean[][] {
+                {false, true, true},
+                {true, false, false}});
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WLKWriter.writeMap(map, out);
+
+        assertArrayEquals(new byte[] {3, 0, 2, 0, 0, 1, 1, 1, 0, 0},
+                out.toByteArray());
+    }
+
+    @Test
+    public void encodesBits() throws Exception {
+        boolean[][] cells = new boolean[1][10];
+        cells[0][0] = true;
+        cells[0][3] = true;
+        cells[0][9] = true;
+
+        ByteBuffer data = WLKWriter.encode(createMap(cells),
+                WLKWriter.FORMAT_BITS);
+
+        assertArrayEquals(new byte[] {10, 0, 1, 0, 0x09, 0x02},
+                toArray(data));
+    }
+
+    @Test
+    public void encodesRuns() throws Exception {
+        // A walkable run of 200 cells needs two bytes
+        boolean[][] cells = new boolean[1][203];
+        cells[0][200] = true;
+        cells[0][201] = true;
+
+        ByteBuffer data = WLKWriter.encode(createMap(cells),
+                WLKWriter.FORMAT_RLE);
+
+        assertArrayEquals(new byte[] {(byte) 203, 0, 1, 0,
+                (byte) (200 & 0x7F | 0x80), (byte) (200 >> 7), 2, 1},
+                toArray(data));
+    }
+
+    @Test
+    public void encodesRowStartingBlocked() throws Exception {
+        ByteBuffer data = WLKWriter.encode(createMap(new boolean[][] {
+                {true, true, false}}), WLKWriter.FORMAT_RLE);
+
+        assertArrayEquals(new byte[] {3, 0, 1, 0, 0, 2, 1}, toArray(data));
+    }
+
+    @Test
+    public void roundTripsRandomMaps() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 50; i++) {
+            int width = 1 + random.nextInt(i < 40 ? 40 : 600);
+            int height = 1 + random.nextInt(20);
+            // Some maps have long runs, which need several bytes
+            int changeChance = 1 + random.nextInt(i < 25 ? 3 : 300);
+            boolean[][] cells = new boolean[height][width];
+            for (int y = 0; y < height; y++) {
+                boolean state = random.nextBoolean();
+                for (int x = 0; x < width; x++) {
+                    if (random.nextInt(changeChance) == 0) {
+                        state = !state;
+                    }
+                    cells[y][x] = state;
+                }
+            }
+            Map map = createMap(cells);
+
+            for (int format = WLKWriter.FORMAT_BYTES;
+                    format <= WLKWriter.FORMAT_RLE; format++) {
+                boolean[][] decoded = decode(
+                        WLKWriter.encode(map, format), format);
+                for (int y = 0; y < height; y++) {
+                    assertArrayEquals("format " + format + ", row " + y,
+                            toBytes(cells[y]), toBytes(decoded[y]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void picksFormatFromExtension() throws Exception {
+        assertEquals(WLKWriter.FORMAT_BYTES, WLKWriter.getFormat("a.wlk"));
+        assertEquals(WLKWriter.FORMAT_BITS, WLKWriter.getFormat("a.WLB"));
+        assertEquals(WLKWriter.FORMAT_RLE, WLKWriter.getFormat("a.wlr"));
+        assertEquals(WLKWriter.FORMAT_BYTES, WLKWriter.getFormat("a.map"));
+        for (int format = WLKWriter.FORMAT_BYTES;
+                format <= WLKWriter.FORMAT_RLE; format++) {
+            assertEquals(format, WLKWriter.getFormat(
+                    "map" + WLKWriter.getExtension(format)));
+        }
+
+        Map map = createMap(new boolean[][] {{true, false, true}});
+        File file = File.createTempFile("wlk", ".wlr");
+        try {
+            WLKWriter.writeMap(map, file.getPath());
+            byte[] written = new byte[(int) file.length()];
+            FileInputStream in = new FileInputStream(file);
+            try {
+                assertEquals(written.length, in.read(written));
+            } finally {
+                in.close();
+            }
+            assertArrayEquals(
+                    toArray(WLKWriter.encode(map, WLKWriter.FORMAT_RLE)),
+                    written);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = Exception.class)
+    public void requiresCollisionLayer() throws Exception {
+        Map map = new Map(2, 2);
+        map.addLayer().setName("ground");
+        WLKWriter.encode(map, WLKWriter.FORMAT_BYTES);
+    }
+
+    private static Tile createTile(int id) {
+        Tile tile = new Tile();
+        tile.setId(id);
+        return tile;
+    }
+
+    private Map createMap(boolean[][] cells) {
+        int height = cells.length;
+        int width = cells[0].length;
+        Map map = new Map(width, height);
+        map.addLayer().setName("ground");
+
+        TileLayer layer = new TileLayer(width, height, 32, 32);
+        layer.setName("Collision");
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                // Empty locations are walkable as well
+                layer.setTileAt(x, y, cells[y][x] ? blocked :
+                        (x + y) % 2 == 0 ? walkable : null);
+            }
+        }
+        map.addLayer(layer);
+        return map;
+    }
+
+    private static boolean[][] decode(ByteBuffer data, int format) {
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        int width = data.getShort() & 0xFFFF;
+        int height = data.getShort() & 0xFFFF;
+        boolean[][] cells = new boolean[height][width];
+        for (int y = 0; y < height; y++) {
+            switch (format) {
+                case WLKWriter.FORMAT_BITS:
+                    byte[] bits = new byte[(width + 7) / 8];
+                    data.get(bits);
+                    for (int x = 0; x < width; x++) {
+                        cells[y][x] = (bits[x / 8] & (1 << (x % 8))) != 0;
+                    }
+                    break;
+                case WLKWriter.FORMAT_RLE:
+                    boolean blocked = false;
+                    int x = 0;
+                    while (x < width) {
+                        int run = getRunLength(data);
+                        for (int i = 0; i < run; i++) {
+                            cells[y][x++] = blocked;
+                        }
+                        blocked = !blocked;
+                    }
+                    assertEquals("runs add up to the width", width, x);
+                    break;
+                default:
+                    for (x = 0; x < width; x++) {
+                        byte cell = data.get();
+                        assertTrue(cell == 0 || cell == 1);
+                        cells[y][x] = cell == 1;
+                    }
+            }
+        }
+        assertFalse("no data after the last row", data.hasRemaining());
+        return cells;
+    }
+
+    private static int getRunLength(ByteBuffer data) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data.get();
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return length;
+    }
+
+    private static byte[] toArray(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] toBytes(boolean[] cells) {
+        byte[] bytes = new byte[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            bytes[i] = (byte) (cells[i] ? 1 : 0);
+        }
+        return bytes;
+    }
+}
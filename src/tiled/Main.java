@@ -5,10 +5,12 @@
 
 package tiled;
 
+import tiled.command.CommandDaemon;
 import tiled.command.CommandInterpreter;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import tiled.io.TilesetRegistry;
 import tiled.mapeditor.MapEditor;
 import tiled.util.TiledConfiguration;
 
@@ -27,9 +29,13 @@ public class Main {
         
         if(args.length > 0){
             if(args[0].equals("-commandmode")){
+                TilesetRegistry.getInstance().setEnabled(true);
                 CommandInterpreter i = new CommandInterpreter();
                 int result = i.interpret(args, 1);
                 System.exit(result);
+            } else if(args[0].equals("-daemon")){
+                TilesetRegistry.getInstance().setEnabled(true);
+                System.exit(runDaemon(args));
             } else if(args[0].equals("-?") || args[0].equals("-help")){
                 printHelpMessage();
             } else {
@@ -57,6 +63,25 @@ public class Main {
         }
     }
 
+    private static int runDaemon(String[] args) {
+        int port = CommandDaemon.DEFAULT_PORT;
+        try {
+            if (args.length > 1) {
+                port = Integer.parseInt(args[1]);
+            }
+            CommandDaemon daemon = new CommandDaemon(port);
+            System.out.println("Tiled daemon listening on port " +
+                    daemon.getPort() + ", token in " + daemon.getTokenFile());
+            daemon.run();
+            return 0;
+        } catch (NumberFormatException e) {
+            System.err.println("invalid port '" + args[1] + "'");
+        } catch (IOException e) {
+            System.err.println("could not start daemon - " + e.getMessage());
+        }
+        return 1;
+    }
+
     private static void printHelpMessage() {
         PrintStream o = System.out;
         o.println();
@@ -72,7 +97,16 @@ public class Main {
             "\twill start tiled in command interpreter mode. All commands are\n" +
             "\tread from the command line after the -commandmode option.\n" +
             "\tFor a list of available commands, run tiled with\n" +
-            "\t'-commandmode help' (which runs the help command)\n");
+            "\t'-commandmode help' (which runs the help command)\n" +
+            "\n" +
+            "-daemon [port]\n" +
+            "\tkeeps tiled running in the background, listening on the given\n" +
+            "\tlocal port (default " + CommandDaemon.DEFAULT_PORT + ") for command lines to\n" +
+            "\trun. Each connection sends the token written to the file\n" +
+            "\t~/.tiled-daemon-<port>, then the arguments that would follow\n" +
+            "\t-commandmode, one per line, ended by an empty line, and gets\n" +
+            "\tback the output followed by 'exit <status>'. The argument\n" +
+            "\t'shutdown' stops the daemon.\n");
         o.println();
     }
 }
@@ -0,0 +1,311 @@
+package tiled.command;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps Tiled running in the background and runs command lines sent to it
+ * over a local socket, so that tools calling Tiled often do not pay for
+ * starting the virtual machine, loading classes, reading plugins and
+ * decoding tileset images every time. Tileset images stay in the shared
+ * image cache between jobs, until their files change.
+ *
+ * A job is a connection to the daemon. The client first sends the token
+ * of the daemon on a line of its own, then the same arguments that would
+ * follow <code>-commandmode</code>, one per line, and ends them with an
+ * empty line. The daemon runs them with a new {@link CommandInterpreter}
+ * and sends back the output of the commands, including anything printed by
+ * plugins while running them, followed by a last line
+ * <code>exit &lt;status&gt;</code>. Sending the single argument
+ * <code>shutdown</code> stops the daemon.
+ *
+ * The daemon only accepts connections from the local machine, and only
+ * runs jobs sent with its token. The token is random for every daemon and
+ * is written to a file only readable by the user running the daemon, see
+ * {@link #getTokenFile()}. A few jobs run at the same time and a few more
+ * wait for their turn; further connections are refused. Relative paths are
+ * resolved against the working directory of the daemon.
+ */
+public class CommandDaemon {
+
+    public static final int DEFAULT_PORT = 7451;
+
+    private static final String SHUTDOWN = "shutdown";
+
+    /** How long a client may take to send its job, in milliseconds. */
+    private static final int READ_TIMEOUT = 30000;
+
+    /** The number of jobs that may wait while others are running. */
+    private static final int MAX_WAITING_JOBS = 16;
+
+    /** How long a shutdown waits for accepted jobs to finish, in seconds. */
+    private static final int SHUTDOWN_TIMEOUT = 300;
+
+    private final ServerSocket serverSocket;
+    private final ThreadPoolExecutor executor;
+    private final String token;
+    private final File tokenFile;
+
+    /** Where System.out and System.err go for the threads of each job.
+        Threads started by a job, also shared ones, inherit its output, which
+        is only used while the job is running. */
+    private final InheritableThreadLocal<PrintStream> jobOutput =
+            new InheritableThreadLocal<PrintStream>();
+    private final Set<PrintStream> runningJobs =
+            Collections.synchronizedSet(new HashSet<PrintStream>());
+
+    /**
+     * Creates a daemon listening on the given port of the loopback address,
+     * and writes its token to the token file.
+     *
+     * @param port the port, or 0 to pick a free one
+     */
+    public CommandDaemon(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_WAITING_JOBS));
+
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        token = hex.toString();
+
+        tokenFile = new File(System.getProperty("user.home"),
+                ".tiled-daemon-" + getPort());
+        try {
+            writeTokenFile();
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the file holding the token clients have to send. The file is
+     * removed when the daemon stops.
+     */
+    public File getTokenFile() {
+        return tokenFile;
+    }
+
+    private void writeTokenFile() throws IOException {
+        Path path = tokenFile.toPath();
+        Files.deleteIfExists(path);
+        if (FileSystems.getDefault().supportedFileAttributeViews()
+                .contains("posix")) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(path);
+            tokenFile.setReadable(false, false);
+            tokenFile.setWritable(false, false);
+            tokenFile.setReadable(true, true);
+            tokenFile.setWritable(true, true);
+        }
+        Files.write(path, (token + "\n").getBytes("UTF-8"),
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Accepts and runs jobs until a client asks the daemon to shut down.
+     * Jobs accepted before the shutdown are given some time to finish, so
+     * that they do not leave partly written files behind.
+     */
+    public void run() {
+        // Plugins print to System.out and System.err, which is sent to the
+        // client of the job printing it
+        PrintStream systemOut = System.out;
+        PrintStream systemErr = System.err;
+        System.setOut(new PrintStream(new JobOutputStream(systemOut), true));
+        System.setErr(new PrintStream(new JobOutputStream(systemErr), true));
+        try {
+            while (!serverSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    // The socket was closed by a shutdown job
+                    break;
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            runJob(socket);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    refuseJob(socket);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("daemon stopped - " + e.getMessage());
+        } finally {
+            executor.shutdown();
+            awaitJobs();
+            System.setOut(systemOut);
+            System.setErr(systemErr);
+            tokenFile.delete();
+        }
+    }
+
+    private void awaitJobs() {
+        try {
+            if (executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int unfinished = executor.getActiveCount() + executor.getQueue().size();
+        System.err.println("daemon stopped with " + unfinished +
+                " job(s) still running");
+    }
+
+    private void refuseJob(Socket socket) {
+        try {
+            PrintStream out = new PrintStream(
+                    socket.getOutputStream(), true, "UTF-8");
+            out.println("daemon busy, try again later");
+            out.println("exit 1");
+        } catch (IOException e) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private boolean isValidToken(String line) throws IOException {
+        return line != null && MessageDigest.isEqual(
+                token.getBytes("UTF-8"), line.getBytes("UTF-8"));
+    }
+
+    private void runJob(Socket socket) {
+        try {
+            socket.setSoTimeout(READ_TIMEOUT);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), "UTF-8"));
+            PrintStream out = new PrintStream(
+                    socket.getOutputStream(), true, "UTF-8");
+
+            if (!isValidToken(in.readLine())) {
+                out.println("invalid token");
+                out.println("exit 1");
+                return;
+            }
+
+            List<String> arguments = new ArrayList<String>();
+            String line = in.readLine();
+            while (line != null && line.length() > 0) {
+                arguments.add(line);
+                line = in.readLine();
+            }
+
+            int result;
+            boolean shutdown =
+                    arguments.size() == 1 && arguments.get(0).equals(SHUTDOWN);
+            if (shutdown) {
+                out.println("daemon shutting down");
+                result = 0;
+            } else if (arguments.isEmpty()) {
+                out.println("no command given");
+                result = 1;
+            } else {
+                CommandInterpreter interpreter = new CommandInterpreter(out, out);
+                jobOutput.set(out);
+                runningJobs.add(out);
+                try {
+                    result = interpreter.interpret(
+                            arguments.toArray(new String[arguments.size()]), 0);
+                } finally {
+                    runningJobs.remove(out);
+                    jobOutput.remove();
+                }
+                interpreter.setMap(null);
+            }
+            out.println("exit " + result);
+
+            if (shutdown) {
+                socket.close();
+                serverSocket.close();
+            }
+        } catch (SocketTimeoutException e) {
+            System.err.println("daemon job timed out");
+        } catch (IOException e) {
+            System.err.println("daemon job failed - " + e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    /**
+     * Writes to the output of the job run by the current thread, or to the
+     * original stream for threads not running a job.
+     */
+    private class JobOutputStream extends OutputStream
+    {
+        private final OutputStream fallback;
+
+        public JobOutputStream(OutputStream fallback) {
+            this.fallback = fallback;
+        }
+
+        private OutputStream getTarget() {
+            PrintStream out = jobOutput.get();
+            return out != null && runningJobs.contains(out) ? out : fallback;
+        }
+
+        public void write(int b) throws IOException {
+            getTarget().write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            getTarget().write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            getTarget().flush();
+        }
+    }
+}
@@ -5,11 +5,15 @@
 
 package tiled.command;
 
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import tiled.io.PluginLogger;
+import tiled.io.TilesetRegistry;
+import tiled.mapeditor.plugin.PluginClassLoader;
 
 /**
  *
@@ -18,11 +22,14 @@ import java.util.logging.Logger;
 public class CommandInterpreter {
 
     void raiseError(String string) {
-        System.err.println(string);
+        err.println(string);
     }
 
     private tiled.core.Map map = null;
     private String mapFileName = null;
+    private static PluginClassLoader pluginLoader = null;
+    private final PrintStream out;
+    private final PrintStream err;
     
     Map<String,Command> commandPrototypes;
     
@@ -33,10 +40,37 @@ public class CommandInterpreter {
             new HelpCommand(this),
             new OpenCommand(this),
             new SaveCommand(this),
+            new PyramidCommand(this),
+            new ConvertCommand(this),
         };
         for(Command c : commands)
             commandPrototypes.put(c.getName(), c);
     }
+
+    public CommandInterpreter() {
+        this(System.out, System.err);
+    }
+
+    /**
+     * Creates an interpreter that prints the output of its commands and its
+     * errors to the given streams.
+     */
+    public CommandInterpreter(PrintStream out, PrintStream err) {
+        this.out = out;
+        this.err = err;
+    }
+
+    PrintStream getOut() {
+        return out;
+    }
+
+    /**
+     * Returns a logger for a reader or writer that prints its errors and
+     * warnings together with the errors of the commands.
+     */
+    PluginLogger createPluginLogger() {
+        return new PluginLogger(err);
+    }
     
     public int interpret(String[] commandLine, int off) {
         
@@ -136,10 +170,36 @@ public class CommandInterpreter {
     }
 
     public void setMap(tiled.core.Map map, String fileName) {
+        if (this.map != null && this.map != map) {
+            TilesetRegistry.getInstance().release(this.map);
+        }
         this.map = map;
     }
 
     public String getMapFileName() {
         return mapFileName;
     }
+
+    /**
+     * Returns the plugin loader, which reads the available plugins the first
+     * time it is asked for by any interpreter.
+     */
+    public PluginClassLoader getPluginLoader() {
+        synchronized (CommandInterpreter.class) {
+            if (pluginLoader == null) {
+                pluginLoader = readPlugins();
+            }
+            return pluginLoader;
+        }
+    }
+
+    private PluginClassLoader readPlugins() {
+        PluginClassLoader loader = PluginClassLoader.getInstance();
+        try {
+            loader.readPlugins(null, null);
+        } catch (Exception e) {
+            raiseError("could not read plugins - " + e.getMessage());
+        }
+        return loader;
+    }
 }
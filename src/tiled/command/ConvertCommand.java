@@ -0,0 +1,293 @@
+package tiled.command;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import tiled.io.MapReader;
+import tiled.io.MapWriter;
+import tiled.io.TilesetRegistry;
+import tiled.io.xml.XMLMapTransformer;
+import tiled.io.xml.XMLMapWriter;
+
+/**
+ * Converts a number of maps to another format. Inputs can be map files,
+ * directories, in which all TMX maps are converted, or glob patterns like
+ * <code>maps/&#42;&#42;/&#42;.tmx</code>. The output format is the extension
+ * of the files to write, and the writer for it is found among the plugins.
+ * Each converted map is written next to its input, or to the same relative
+ * location in the output directory.
+ *
+ * The maps are converted in parallel. Tileset images are decoded only once,
+ * since they are shared through the image cache.
+ *
+ * convert input{,input},format=ext[,output=dir][,threads=n]
+ */
+class ConvertCommand extends Command {
+
+    private String format = getFormatDefault();
+    private String output = getOutputDefault();
+    private int threads = getThreadsDefault();
+
+    ConvertCommand(CommandInterpreter interpreter) {
+        super("convert", ArgumentRequirement.REQUIRES_ONE_OR_MORE, interpreter);
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public String getFormatDefault() {
+        return null;
+    }
+
+    public void setOutput(String output) {
+        this.output = output;
+    }
+
+    public String getOutputDefault() {
+        return null;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public Integer getThreadsDefault() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    int execute() {
+        if (format == null || threads <= 0) {
+            interpreter.raiseError("convert: a format is required and " +
+                    "threads must be positive");
+            return 1;
+        }
+        if (format.startsWith(".")) {
+            format = format.substring(1);
+        }
+        try {
+            createWriter();
+        } catch (Exception e) {
+            interpreter.raiseError("convert: no writer for format '" +
+                    format + "'");
+            return 1;
+        }
+
+        List<File[]> jobs = new ArrayList<File[]>();
+        try {
+            for (String input : getArguments()) {
+                findMaps(input, jobs);
+            }
+        } catch (IOException e) {
+            interpreter.raiseError("convert: " + e.getMessage());
+            return 1;
+        }
+        if (jobs.isEmpty()) {
+            interpreter.raiseError("convert: no maps found");
+            return 1;
+        }
+
+        long start = System.currentTimeMillis();
+        int failed = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (File[] job : jobs) {
+                results.add(executor.submit(new ConvertTask(job[0], job[1])));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    interpreter.getOut().println(results.get(i).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    interpreter.raiseError(jobs.get(i)[0] + ": failed: " +
+                            (cause.getMessage() != null ?
+                                    cause.getMessage() : cause.toString()));
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            interpreter.raiseError("convert: interrupted");
+            return 1;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        interpreter.getOut().println("converted " +
+                (jobs.size() - failed) + " of " + jobs.size() + " maps in " +
+                (System.currentTimeMillis() - start) + " ms" +
+                (failed > 0 ? ", " + failed + " failed" : ""));
+        return failed > 0 ? 1 : 0;
+    }
+
+    /**
+     * Finds the maps matching an input, and adds a pair of input and output
+     * file for each of them.
+     */
+    private void findMaps(String input, final List<File[]> jobs)
+            throws IOException {
+        int glob = indexOfGlob(input);
+        File file = new File(input);
+
+        if (glob < 0 && file.isFile()) {
+            File base = file.getAbsoluteFile().getParentFile();
+            jobs.add(new File[] {file, getOutputFile(base, file)});
+            return;
+        }
+
+        final File base;
+        final PathMatcher matcher, shallowMatcher;
+        if (glob < 0) {
+            if (!file.isDirectory()) {
+                throw new IOException("could not find " + input);
+            }
+            base = file;
+            matcher = null;
+            shallowMatcher = null;
+        } else {
+            // The directory before the first pattern is walked, and the
+            // rest of the pattern is matched against the paths inside it
+            int slash = Math.max(input.lastIndexOf('/', glob),
+                    input.lastIndexOf(File.separatorChar, glob));
+            base = new File(slash >= 0 ? input.substring(0, slash + 1) : ".");
+            String pattern = input.substring(slash + 1);
+            matcher = FileSystems.getDefault().getPathMatcher(
+                    "glob:" + pattern);
+
+            // A "**/" in a glob needs at least one directory to match, while
+            // maps/**/*.tmx should also match the maps directly in maps/
+            shallowMatcher = pattern.indexOf("**/") >= 0 ?
+                    FileSystems.getDefault().getPathMatcher(
+                            "glob:" + pattern.replace("**/", "")) :
+                    null;
+            if (!base.isDirectory()) {
+                return;
+            }
+        }
+
+        final Path basePath = base.toPath();
+        final List<File[]> found = new ArrayList<File[]>();
+        Files.walkFileTree(basePath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                String name = path.getFileName().toString();
+                Path relative = basePath.relativize(path);
+                boolean matches = matcher != null ?
+                        matcher.matches(relative) || (shallowMatcher != null &&
+                                shallowMatcher.matches(relative)) :
+                        name.endsWith(".tmx") || name.endsWith(".tmx.gz");
+                if (matches && attrs.isRegularFile()) {
+                    File map = path.toFile();
+                    found.add(new File[] {map, getOutputFile(base, map)});
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        jobs.addAll(found);
+    }
+
+    private static int indexOfGlob(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if ("*?[{".indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the file to write a map to. It has the same location relative
+     * to the output directory as the map has to the base directory it was
+     * found in.
+     */
+    private File getOutputFile(File base, File map) {
+        String name = map.getName();
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - 3);
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        name += "." + format;
+
+        if (output == null) {
+            return new File(map.getParentFile(), name);
+        }
+        String relative = base.getAbsoluteFile().toPath().relativize(
+                map.getAbsoluteFile().getParentFile().toPath()).toString();
+        return new File(new File(output, relative), name);
+    }
+
+    private MapReader createReader(String filename) throws Exception {
+        if (filename.endsWith(".tmx") || filename.endsWith(".tmx.gz")) {
+            return new XMLMapTransformer();
+        }
+        return (MapReader) interpreter.getPluginLoader().getReaderFor(filename);
+    }
+
+    private MapWriter createWriter() throws Exception {
+        if (format.equals("tmx") || format.equals("tmx.gz")) {
+            return new XMLMapWriter();
+        }
+        return (MapWriter) interpreter.getPluginLoader().getWriterFor(
+                "map." + format);
+    }
+
+    /**
+     * Reads a single map and writes it in the output format, with new
+     * reader and writer instances, since these keep state while working.
+     */
+    private class ConvertTask implements Callable<String> {
+        private final File input, output;
+
+        ConvertTask(File input, File output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        public String call() throws Exception {
+            long start = System.currentTimeMillis();
+            MapReader reader = createReader(input.getPath());
+            reader.setLogger(interpreter.createPluginLogger());
+            tiled.core.Map map = reader.readMap(input.getPath());
+            if (map == null) {
+                throw new IOException("could not read map");
+            }
+            long read = System.currentTimeMillis();
+
+            try {
+                File parent = output.getAbsoluteFile().getParentFile();
+                if (!parent.isDirectory() && !parent.mkdirs() &&
+                        !parent.isDirectory()) {
+                    throw new IOException(
+                            "could not create directory " + parent);
+                }
+                MapWriter writer = createWriter();
+                writer.setLogger(interpreter.createPluginLogger());
+                writer.writeMap(map, output.getPath());
+            } finally {
+                TilesetRegistry.getInstance().release(map);
+            }
+            long written = System.currentTimeMillis();
+
+            return input + " -> " + output + ": read in " + (read - start) +
+                    " ms, written in " + (written - read) + " ms";
+        }
+    }
+}
@@ -18,11 +18,11 @@ class HelpCommand extends Command {
     @Override
     int execute() {
         // FIXME: this should be more detailed
-        System.out.println("Supported commands are: ");
+        interpreter.getOut().println("Supported commands are: ");
         for(Command c : interpreter.getCommandPrototypes()){
-            System.out.println("\t'"+c.getName()+'\'');
+            interpreter.getOut().println("\t'"+c.getName()+'\'');
         }
-        System.out.println();
+        interpreter.getOut().println();
         return 0;
     }
     
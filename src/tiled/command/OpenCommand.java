@@ -7,6 +7,7 @@ class OpenCommand extends Command {
     @Override
     int execute() {
         XMLMapTransformer t = new XMLMapTransformer();
+        t.setLogger(interpreter.createPluginLogger());
         String filename = getArguments()[0];
         try {
             interpreter.setMap(t.readMap(filename), filename);
@@ -0,0 +1,299 @@
+package tiled.command;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+import tiled.view.MapView;
+
+/**
+ * Renders the current map into a pyramid of PNG tiles, as used by web map
+ * viewers. The tiles are written to <code>dir/z/x/y.png</code>. The highest
+ * zoom level shows the map at its normal size and is rendered directly;
+ * every lower level is made by scaling down four tiles of the level above.
+ * At zoom level 0 the whole map fits in a single tile. Tiles that would be
+ * fully transparent are not written.
+ *
+ * pyramid output-dir[,tileSize=256][,threads=n]
+ */
+class PyramidCommand extends Command {
+
+    private int tileSize = getTileSizeDefault();
+    private int threads = getThreadsDefault();
+
+    // Each rendering thread uses its own view, since views keep state
+    // while painting
+    private ThreadLocal<MapView> views;
+
+    PyramidCommand(CommandInterpreter interpreter) {
+        super("pyramid", ArgumentRequirement.REQUIRES_ONE, interpreter);
+    }
+
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    public Integer getTileSizeDefault() {
+        return 256;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public Integer getThreadsDefault() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    int execute() {
+        if (interpreter.getMap() == null) {
+            interpreter.raiseError("pyramid: no map loaded");
+            return 1;
+        }
+        if (tileSize <= 0 || tileSize % 2 != 0 || threads <= 0) {
+            interpreter.raiseError("pyramid: tileSize must be even and " +
+                    "tileSize and threads must be positive");
+            return 1;
+        }
+
+        final tiled.core.Map map = interpreter.getMap();
+        final List<MapView> createdViews =
+                Collections.synchronizedList(new ArrayList<MapView>());
+        views = new ThreadLocal<MapView>() {
+            @Override
+            protected MapView initialValue() {
+                MapView view = MapView.createViewforMap(map);
+                view.setMode(MapView.PF_NOSPECIAL, true);
+                view.setMapBackground(null);
+                view.setLevelOfDetailEnabled(false);
+                createdViews.add(view);
+                return view;
+            }
+        };
+
+        final File dir = new File(getArguments()[0]);
+        final Dimension size = views.get().getPreferredSize();
+        final int columns = (size.width + tileSize - 1) / tileSize;
+        final int rows = (size.height + tileSize - 1) / tileSize;
+
+        int maxZoom = 0;
+        while ((1 << maxZoom) < Math.max(columns, rows)) {
+            maxZoom++;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long start = System.currentTimeMillis();
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int y = 0; y < rows; y++) {
+                for (int x = 0; x < columns; x++) {
+                    results.add(executor.submit(
+                            new RenderTask(dir, maxZoom, x, y, size)));
+                }
+            }
+            report(maxZoom, results, start);
+
+            for (int z = maxZoom - 1; z >= 0; z--) {
+                start = System.currentTimeMillis();
+                results.clear();
+                final int scale = 1 << (maxZoom - z);
+                final int levelColumns = (columns + scale - 1) / scale;
+                final int levelRows = (rows + scale - 1) / scale;
+                for (int y = 0; y < levelRows; y++) {
+                    for (int x = 0; x < levelColumns; x++) {
+                        results.add(executor.submit(
+                                new DownsampleTask(dir, z, x, y)));
+                    }
+                }
+                report(z, results, start);
+            }
+        } catch (ExecutionException e) {
+            interpreter.raiseError("pyramid: " + e.getCause());
+            return 1;
+        } catch (InterruptedException e) {
+            interpreter.raiseError("pyramid: interrupted");
+            return 1;
+        } finally {
+            executor.shutdownNow();
+
+            // The views listen to the map, which outlives this command
+            synchronized (createdViews) {
+                for (MapView view : createdViews) {
+                    view.dispose();
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Waits for all tiles of a zoom level and prints how many were written.
+     */
+    private void report(int zoom, List<Future<Boolean>> results,
+                        long start)
+            throws InterruptedException, ExecutionException {
+        int written = 0;
+        for (Future<Boolean> result : results) {
+            if (result.get()) {
+                written++;
+            }
+        }
+        interpreter.getOut().println("zoom " + zoom + ": " + written + " of " +
+                results.size() + " tiles written in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private File getTileFile(File dir, int z, int x, int y) {
+        return new File(dir, z + File.separator + x + File.separator + y + ".png");
+    }
+
+    /**
+     * Writes a tile, unless it is fully transparent.
+     *
+     * @return whether the tile was written
+     */
+    private boolean writeTile(BufferedImage tile, File dir, int z, int x, int y)
+            throws IOException {
+        if (isEmpty(tile)) {
+            return false;
+        }
+        File file = getTileFile(dir, z, x, y);
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("could not create directory " + parent);
+        }
+        ImageIO.write(tile, "png", file);
+        return true;
+    }
+
+    private static boolean isEmpty(BufferedImage tile) {
+        final int w = tile.getWidth();
+        final int[] row = new int[w];
+        for (int y = 0; y < tile.getHeight(); y++) {
+            tile.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; x++) {
+                if ((row[x] >>> 24) != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Renders a tile of the highest zoom level from the map.
+     */
+    private class RenderTask implements Callable<Boolean> {
+        private final File dir;
+        private final int z, x, y;
+        private final Dimension mapSize;
+
+        RenderTask(File dir, int z, int x, int y, Dimension mapSize) {
+            this.dir = dir;
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.mapSize = mapSize;
+        }
+
+        public Boolean call() throws IOException {
+            Rectangle area = new Rectangle(
+                    x * tileSize, y * tileSize, tileSize, tileSize)
+                    .intersection(new Rectangle(mapSize));
+
+            BufferedImage tile = new BufferedImage(
+                    tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = tile.createGraphics();
+            g.translate(-x * tileSize, -y * tileSize);
+            g.setClip(area);
+            views.get().paintComponent(g);
+            g.dispose();
+
+            return writeTile(tile, dir, z, x, y);
+        }
+    }
+
+    /**
+     * Builds a tile by scaling down the four tiles it covers on the zoom
+     * level above. Each resulting pixel is the average of four pixels,
+     * weighted by their alpha.
+     */
+    private class DownsampleTask implements Callable<Boolean> {
+        private final File dir;
+        private final int z, x, y;
+
+        DownsampleTask(File dir, int z, int x, int y) {
+            this.dir = dir;
+            this.z = z;
+            this.x = x;
+            this.y = y;
+        }
+
+        public Boolean call() throws IOException {
+            BufferedImage tile = new BufferedImage(
+                    tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+            final int half = tileSize / 2;
+            final int[] src = new int[tileSize * tileSize];
+            final int[] dst = new int[half * half];
+            boolean any = false;
+
+            for (int i = 0; i < 4; i++) {
+                final int cx = 2 * x + (i & 1);
+                final int cy = 2 * y + (i >> 1);
+                File file = getTileFile(dir, z + 1, cx, cy);
+                if (!file.exists()) {
+                    continue;
+                }
+                BufferedImage child = ImageIO.read(file);
+                if (child == null) {
+                    throw new IOException("could not read " + file);
+                }
+                child.getRGB(0, 0, tileSize, tileSize, src, 0, tileSize);
+                downsample(src, dst, half);
+                tile.setRGB((i & 1) * half, (i >> 1) * half,
+                        half, half, dst, 0, half);
+                any = true;
+            }
+
+            return any && writeTile(tile, dir, z, x, y);
+        }
+
+        private void downsample(int[] src, int[] dst, int half) {
+            for (int dy = 0; dy < half; dy++) {
+                for (int dx = 0; dx < half; dx++) {
+                    final int i = 2 * dy * tileSize + 2 * dx;
+                    dst[dy * half + dx] = average(src[i], src[i + 1],
+                            src[i + tileSize], src[i + tileSize + 1]);
+                }
+            }
+        }
+    }
+
+    private static int average(int p0, int p1, int p2, int p3) {
+        final int a0 = p0 >>> 24, a1 = p1 >>> 24, a2 = p2 >>> 24, a3 = p3 >>> 24;
+        final int a = a0 + a1 + a2 + a3;
+        if (a == 0) {
+            return 0;
+        }
+        final int r = (((p0 >> 16) & 0xff) * a0 + ((p1 >> 16) & 0xff) * a1 +
+                ((p2 >> 16) & 0xff) * a2 + ((p3 >> 16) & 0xff) * a3) / a;
+        final int g = (((p0 >> 8) & 0xff) * a0 + ((p1 >> 8) & 0xff) * a1 +
+                ((p2 >> 8) & 0xff) * a2 + ((p3 >> 8) & 0xff) * a3) / a;
+        final int b = ((p0 & 0xff) * a0 + (p1 & 0xff) * a1 +
+                (p2 & 0xff) * a2 + (p3 & 0xff) * a3) / a;
+        return (a / 4) << 24 | r << 16 | g << 8 | b;
+    }
+}
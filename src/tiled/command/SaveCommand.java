@@ -39,6 +39,7 @@ class SaveCommand extends Command {
             filename = getArguments()[0];
         }
         try {
+            mapWriter.setLogger(outer.createPluginLogger());
             mapWriter.writeMap(outer.getMap(), filename);
         } catch (Exception ex) {
             outer.raiseError("could not write map to " + filename + " - " + ex.getMessage());
@@ -14,9 +14,7 @@ package tiled.core;
 
 import java.awt.Graphics;
 import java.awt.Image;
-import java.util.Iterator;
 
-import tiled.core.Sprite.KeyFrame;
 import tiled.util.TiledConfiguration;
 
 /**
@@ -67,34 +65,54 @@ public class AnimatedTile extends Tile {
     }
 
     /**
-     * In an AnimatedTile we must take the extra step of zooming all frames of
-     * the animation. This function can be somewhat slower than calling
-     * getScaledImage() on a Tile, but it depends on several factors.
+     * Returns the scaled image of the current frame. Each frame caches its
+     * own scaled image, so only frames that are actually shown get scaled.
      *
      * @see tiled.core.Tile#getScaledImage(double)
      */
     public Image getScaledImage(double zoom) {
-        try {
-            Iterator<KeyFrame> itr = sprite.getKeys();
-
-            while (itr.hasNext()) {
-                KeyFrame key = itr.next();
-                for (int i = 0;i < key.getTotalFrames(); i++) {
-                    key.getFrame(i).getScaledImage(zoom);
-                }
-            }
-        } catch (Exception e) {}
-        return sprite.getCurrentFrame().getScaledImage(zoom);
+        Tile frame = getCurrentFrame();
+        return frame != null ? frame.getScaledImage(zoom) : super.getScaledImage(zoom);
+    }
+
+    private Tile getCurrentFrame() {
+        if (sprite == null || sprite.getCurrentKey() == null) {
+            return null;
+        }
+        return sprite.getCurrentFrame();
+    }
+
+    /**
+     * Returns the average color of the current frame.
+     *
+     * @see tiled.core.Tile#getAverageColor()
+     */
+    public int getAverageColor() {
+        Tile frame = getCurrentFrame();
+        return frame != null ? frame.getAverageColor() : 0;
     }
 
     /**
-     * Handles drawing the correct frame, and iterating by the
-     * frame rate
+     * Animated tiles are never considered opaque, since their frames may
+     * differ in transparency.
+     */
+    public boolean isOpaque() {
+        return false;
+    }
+
+    /**
+     * Draws the current frame. Drawing does not advance the animation; that
+     * is done by {@link Sprite#update(long)} from a clock, so that the speed
+     * of the animation does not depend on how often the tile is drawn.
      *
      * @see tiled.core.Tile#draw(Graphics, int, int, double)
      */
     public void draw(Graphics g, int x, int y, double zoom) {
-        sprite.getCurrentFrame().draw(g, x, y, zoom);
-        sprite.iterateFrame();
+        Tile frame = getCurrentFrame();
+        if (frame != null) {
+            frame.draw(g, x, y, zoom);
+        } else {
+            super.draw(g, x, y, zoom);
+        }
     }
 }
@@ -463,10 +463,15 @@ public class Map extends MultilayerPlane implements MapLayerChangeListener
      * Get the tile set that matches the given global tile id, only to be used
      * when loading a map.
      *
+     * @deprecated A tileset shared between maps through the
+     *             {@link tiled.io.TilesetRegistry} does not know its first
+     *             global id in this map. Readers keep their own table of
+     *             the first global ids of the map being read.
      * @param gid a global tile id
      * @return the tileset containing the tile with the given global tile id,
      *         or <code>null</code> when no such tileset exists
      */
+    @Deprecated
     public TileSet findTileSetForTileGID(int gid) {
         TileSet has = null;
         for (TileSet tileset : tilesets) {
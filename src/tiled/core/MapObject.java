@@ -18,6 +18,8 @@ import java.io.File;
 import java.io.IOException;
 import javax.imageio.ImageIO;
 
+import tiled.io.ImageHelper;
+
 /**
  * An object occupying an {@link ObjectGroup}.
  */
@@ -109,8 +111,8 @@ public class MapObject implements Cloneable
         if (scaledImage == null || scaledImage.getWidth(null) != zoomedWidth
                 || scaledImage.getHeight(null) != zoomedHeight)
         {
-            scaledImage = image.getScaledInstance(zoomedWidth, zoomedHeight,
-                    Image.SCALE_SMOOTH);
+            scaledImage = ImageHelper.getScaledImage(image,
+                    zoomedWidth, zoomedHeight);
         }
 
         return scaledImage;
@@ -30,6 +30,8 @@ public class Sprite
     private float currentFrame = 0;
     private Rectangle frameSize;
     private boolean bPlaying = true;
+    private long lastUpdate = -1;
+    private boolean frameChanged;
 
     public class KeyFrame
     {
@@ -99,7 +101,7 @@ public class Sprite
         }
 
         public Tile getFrame(int f) {
-            if (f > 0 && f < frames.length) {
+            if (f >= 0 && f < frames.length) {
                 return frames[f];
             }
             return null;
@@ -130,6 +132,7 @@ public class Sprite
     }
 
     public Sprite(Tile[] frames) {
+        this();
         setFrames(frames);
     }
 
@@ -277,6 +280,9 @@ public class Sprite
 
     public void addKey(KeyFrame k) {
         keys.add(k);
+        if (currentKey == null) {
+            currentKey = k;
+        }
     }
 
     public void removeKey(String name) {
@@ -299,6 +305,36 @@ public class Sprite
         }
     }
 
+    /**
+     * Advances the animation to the given time, using the frame rate of the
+     * current key in frames per second. The first call only records the
+     * time. Calling this again with the same time does not advance the
+     * animation further, so a sprite that is shown in several places can be
+     * updated from each of them on every tick of a shared clock.
+     *
+     * @param time the current time in milliseconds
+     * @return whether the frame shown at this time differs from the one
+     *         shown at the previous update
+     */
+    public boolean update(long time) {
+        if (time == lastUpdate) {
+            return frameChanged;
+        }
+
+        final int frameBefore = (int) currentFrame;
+        final KeyFrame keyBefore = currentKey;
+
+        if (lastUpdate >= 0 && currentKey != null && bPlaying) {
+            setCurrentFrame(currentFrame +
+                    currentKey.getFrameRate() * (time - lastUpdate) / 1000.0f);
+        }
+
+        lastUpdate = time;
+        frameChanged = (int) currentFrame != frameBefore ||
+                currentKey != keyBefore;
+        return frameChanged;
+    }
+
     /**
      * Sets the current frame relative to the starting frame of the
      * current key.
@@ -16,6 +16,8 @@ import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.util.Properties;
 
+import tiled.io.ImageHelper;
+
 /**
  * The core class for our tiles.
  *
@@ -31,6 +33,10 @@ public class Tile
     private double myZoom = 1.0;
     private Properties properties;
     private TileSet tileset;
+    private int averageColor;
+    private boolean opaque;
+    private int analyzedWidth, analyzedHeight;
+    private volatile Image analyzedImage;
 
     public Tile() {
         properties = new Properties();
@@ -50,10 +56,6 @@ public class Tile
         properties = (Properties)t.properties.clone();
         tileImageId = t.tileImageId;
         tileset = t.tileset;
-        if (tileset != null) {
-            scaledImage = getImage().getScaledInstance(
-                    -1, -1, Image.SCALE_DEFAULT);
-        }
     }
 
     /**
@@ -131,8 +133,13 @@ public class Tile
     /**
      * Returns the global tile id by adding the tile id to the map-assigned.
      *
+     * @deprecated A tileset shared between maps through the
+     *             {@link tiled.io.TilesetRegistry} has a different first
+     *             global id in each map. Readers and writers keep track of
+     *             the first global ids of the map they work on.
      * @return id
      */
+    @Deprecated
     public int getGid() {
         if (tileset != null) {
             return id + tileset.getFirstGid();
@@ -231,8 +238,7 @@ public class Tile
     }
 
     /**
-     * Returns a scaled instance of the tile image. Using a MediaTracker
-     * instance, this function waits until the scaling operation is done.
+     * Returns a scaled copy of the tile image.
      * <p/>
      * Internally it caches the scaled image in order to optimize the common
      * case, where the same scale is requested as the last time.
@@ -249,19 +255,8 @@ public class Tile
             Image img = getImage();
             if (img != null)
             {
-                scaledImage = img.getScaledInstance(
-                        (int)(getWidth() * zoom), (int)(getHeight() * zoom),
-                        BufferedImage.SCALE_SMOOTH);
-
-                MediaTracker mediaTracker = new MediaTracker(new Canvas());
-                mediaTracker.addImage(scaledImage, 0);
-                try {
-                    mediaTracker.waitForID(0);
-                }
-                catch (InterruptedException ie) {
-                    System.err.println(ie);
-                }
-                mediaTracker.removeImage(scaledImage);
+                scaledImage = ImageHelper.getScaledImage(img,
+                        (int)(getWidth() * zoom), (int)(getHeight() * zoom));
                 myZoom = zoom;
                 return scaledImage;
             }
@@ -270,6 +265,161 @@ public class Tile
         return null;
     }
 
+    /**
+     * Returns a color representative of the tile image. It is used instead
+     * of the image itself when the map is zoomed out too far for single
+     * tiles to be told apart. The color is cached and only recomputed when
+     * the tile image changes.
+     *
+     * @return the alpha weighted average color of the tile image as an ARGB
+     *         value, or 0 (fully transparent) if the tile has no image
+     * @see #analyzeImage()
+     */
+    public int getAverageColor() {
+        if (getImage() != analyzedImage) {
+            analyzeImage();
+        }
+        return averageColor;
+    }
+
+    /**
+     * Returns whether every pixel of the tile image is fully opaque.
+     *
+     * @return <code>true</code> if the tile has an image without any
+     *         transparent pixels, <code>false</code> otherwise
+     * @see #analyzeImage()
+     */
+    public boolean isOpaque() {
+        if (getImage() != analyzedImage) {
+            analyzeImage();
+        }
+        return opaque;
+    }
+
+    /**
+     * Returns whether this tile completely hides a cell of the given size
+     * when drawn into it, so that anything drawn into that cell before can
+     * be skipped.
+     *
+     * @param cellWidth  the unzoomed width of the cell
+     * @param cellHeight the unzoomed height of the cell
+     * @return <code>true</code> if the tile is opaque and covers the cell
+     */
+    public boolean coversCell(int cellWidth, int cellHeight) {
+        return isOpaque() && groundHeight == 0 &&
+                analyzedWidth >= cellWidth && analyzedHeight >= cellHeight;
+    }
+
+    /**
+     * Returns whether this tile stays within a cell of the given size when
+     * drawn into it.
+     *
+     * @param cellWidth  the unzoomed width of the cell
+     * @param cellHeight the unzoomed height of the cell
+     * @return <code>true</code> if the tile doesn't extend past the cell
+     */
+    public boolean fitsCell(int cellWidth, int cellHeight) {
+        if (getImage() != analyzedImage) {
+            analyzeImage();
+        }
+        return analyzedWidth > 0 && groundHeight == 0 &&
+                analyzedWidth <= cellWidth && analyzedHeight <= cellHeight;
+    }
+
+    /**
+     * Recalculates the cached average color and opacity from the current
+     * tile image. Called by the tileset when tiles are added or their
+     * images reloaded, so that this information is available before the
+     * tile is first drawn.
+     */
+    public void analyzeImage() {
+        // A scaled copy of an earlier image is no longer valid
+        scaledImage = null;
+
+        Image img = getImage();
+        BufferedImage buffer = toBufferedImage(img);
+
+        if (buffer == null) {
+            // Also remembered when the image could not be analyzed, so that
+            // it is not waited for again on every call
+            averageColor = 0;
+            opaque = false;
+            analyzedWidth = analyzedHeight = 0;
+            analyzedImage = img;
+            return;
+        }
+
+        final int w = buffer.getWidth();
+        final int h = buffer.getHeight();
+        final int[] row = new int[w];
+        long a = 0, r = 0, g = 0, b = 0;
+        int minAlpha = 255;
+
+        for (int y = 0; y < h; y++) {
+            buffer.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; x++) {
+                final int pixel = row[x];
+                final int alpha = pixel >>> 24;
+                minAlpha = Math.min(minAlpha, alpha);
+                a += alpha;
+                r += ((pixel >> 16) & 0xff) * alpha;
+                g += ((pixel >> 8) & 0xff) * alpha;
+                b += (pixel & 0xff) * alpha;
+            }
+        }
+
+        analyzedWidth = w;
+        analyzedHeight = h;
+        opaque = minAlpha == 255;
+        averageColor = 0;
+
+        if (a > 0) {
+            averageColor = (int) (a / (w * h)) << 24
+                    | (int) (r / a) << 16
+                    | (int) (g / a) << 8
+                    | (int) (b / a);
+        }
+
+        // Set last, so that other threads never see a partial result
+        analyzedImage = img;
+    }
+
+    /**
+     * Returns the given image as a <code>BufferedImage</code>, drawing it
+     * into a new one if necessary.
+     *
+     * @return the buffered image, or <code>null</code> when there is no
+     *         image or its size is not known yet
+     */
+    private static BufferedImage toBufferedImage(Image img) {
+        if (img == null || img instanceof BufferedImage) {
+            return (BufferedImage) img;
+        }
+
+        MediaTracker mediaTracker = new MediaTracker(new Canvas());
+        mediaTracker.addImage(img, 0);
+        try {
+            mediaTracker.waitForID(0);
+        }
+        catch (InterruptedException ie) {
+            System.err.println(ie);
+        }
+        mediaTracker.removeImage(img);
+
+        int w = img.getWidth(null);
+        int h = img.getHeight(null);
+        if (w <= 0 || h <= 0) {
+            return null;
+        }
+
+        BufferedImage buffer =
+                new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics g = buffer.getGraphics();
+        g.drawImage(img, 0, 0, null);
+        g.dispose();
+        return buffer;
+    }
+
     /**
      * @see java.lang.Object#toString()
      */
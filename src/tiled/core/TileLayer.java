@@ -15,6 +15,7 @@ package tiled.core;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.geom.Area;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Properties;
 
@@ -304,6 +305,77 @@ public class TileLayer extends MapLayer
         }
     }
     
+    /**
+     * Sets a horizontal run of tiles, starting at the specified position. The
+     * part of the run that falls outside of this layer is ignored.
+     *
+     * @param tx     x position of the first tile
+     * @param ty     y position of the tiles
+     * @param length the number of tiles to set
+     * @param ti     the tile object to place
+     */
+    public void fillRow(int tx, int ty, int length, Tile ti) {
+        if (ty < bounds.y || ty >= bounds.y + bounds.height || getLocked()) {
+            return;
+        }
+        final int start = Math.max(tx, bounds.x);
+        final int end = Math.min(tx + length, bounds.x + bounds.width);
+        if (start < end) {
+            Arrays.fill(map[ty - bounds.y],
+                    start - bounds.x, end - bounds.x, ti);
+        }
+    }
+
+    /**
+     * Copies a horizontal run of tiles into this layer, starting at the
+     * specified position. The part of the run that falls outside of this
+     * layer is ignored.
+     *
+     * @param tx     x position of the first tile
+     * @param ty     y position of the tiles
+     * @param tiles  the tiles to place
+     * @param offset the index in <code>tiles</code> of the first tile
+     * @param length the number of tiles to copy
+     */
+    public void setRow(int tx, int ty, Tile[] tiles, int offset, int length) {
+        if (ty < bounds.y || ty >= bounds.y + bounds.height || getLocked()) {
+            return;
+        }
+        final int start = Math.max(tx, bounds.x);
+        final int end = Math.min(tx + length, bounds.x + bounds.width);
+        if (start < end) {
+            System.arraycopy(tiles, offset + start - tx,
+                    map[ty - bounds.y], start - bounds.x, end - start);
+        }
+    }
+
+    /**
+     * Copies a horizontal run of tiles from this layer, starting at the
+     * specified position. Positions outside of this layer are returned as
+     * <code>null</code>.
+     *
+     * @param tx     x position of the first tile
+     * @param ty     y position of the tiles
+     * @param tiles  the array to copy the tiles to
+     * @param offset the index in <code>tiles</code> to copy the first tile to
+     * @param length the number of tiles to copy
+     */
+    public void getRow(int tx, int ty, Tile[] tiles, int offset, int length) {
+        if (ty < bounds.y || ty >= bounds.y + bounds.height) {
+            Arrays.fill(tiles, offset, offset + length, null);
+            return;
+        }
+        final int start = Math.min(Math.max(tx, bounds.x), tx + length);
+        final int end = Math.max(start,
+                Math.min(tx + length, bounds.x + bounds.width));
+        Arrays.fill(tiles, offset, offset + start - tx, null);
+        if (start < end) {
+            System.arraycopy(map[ty - bounds.y], start - bounds.x,
+                    tiles, offset + start - tx, end - start);
+        }
+        Arrays.fill(tiles, offset + end - tx, offset + length, null);
+    }
+
     /**
      * Returns the tile at the specified position.
      *
@@ -14,13 +14,17 @@ package tiled.core;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.FilteredImageSource;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import javax.imageio.ImageIO;
-
-import tiled.mapeditor.util.TransparentImageFilter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import tiled.io.ImageCache;
 import tiled.mapeditor.util.cutter.BasicTileCutter;
 import tiled.mapeditor.util.cutter.TileCutter;
 import tiled.util.NumberedSet;
@@ -52,9 +56,14 @@ public class TileSet
     private Color transparentColor;
     private Properties defaultTileProperties;
     private Image tileSetImage;
+    private boolean mergeDuplicates;
     private LinkedList<TilesetChangeListener> tilesetChangeListeners;
     private java.util.Map<Integer, String> imageSources = new HashMap<Integer, String>();
 
+    /** Hashes tile images when looking for duplicates. Created when first
+        needed and kept for later imports, since its threads are daemons. */
+    private static ExecutorService hashExecutor;
+
     /**
      * Default constructor
      */
@@ -77,27 +86,31 @@ public class TileSet
     public void importTileBitmap(String imgFilename, TileCutter cutter)
             throws IOException
     {
-        setTilesetImageFilename(imgFilename);
-
-        Image image = ImageIO.read(new File(imgFilename));
-        if (image == null) {
-            throw new IOException("Failed to load " + tilebmpFile);
-        }
-
-        Toolkit tk = Toolkit.getDefaultToolkit();
+        importTileBitmap(imgFilename, cutter, false);
+    }
 
-        if (transparentColor != null) {
-            int rgb = transparentColor.getRGB();
-            image = tk.createImage(
-                    new FilteredImageSource(image.getSource(),
-                            new TransparentImageFilter(rgb)));
-        }
+    /**
+     * Creates a tileset from a tileset image file. When
+     * <code>mergeDuplicates</code> is set, tiles with identical pixels share
+     * a single image. There is still a tile for every part of the tileset
+     * image, so tile ids are not affected.
+     *
+     * @param imgFilename     the tileset image file
+     * @param cutter          the tile cutter
+     * @param mergeDuplicates whether identical tile images should be shared
+     * @throws IOException
+     * @see #replaceDuplicateTiles(Map)
+     */
+    public void importTileBitmap(String imgFilename, TileCutter cutter,
+                                 boolean mergeDuplicates)
+            throws IOException
+    {
+        this.mergeDuplicates = mergeDuplicates;
+        setTilesetImageFilename(imgFilename);
 
-        BufferedImage buffered = new BufferedImage(
-                image.getWidth(null),
-                image.getHeight(null),
-                BufferedImage.TYPE_INT_ARGB);
-        buffered.getGraphics().drawImage(image, 0, 0, null);
+        // Tileset images are shared with other tilesets using the same file
+        BufferedImage buffered = ImageCache.getInstance().getImage(
+                new File(imgFilename), transparentColor);
 
         importTileBitmap(buffered, cutter);
     }
@@ -127,13 +140,231 @@ public class TileSet
             tilesPerRow = basicTileCutter.getTilesPerRow();
         }
 
-        Image tile = cutter.getNextTile();
-        while (tile != null) {
+        if (!mergeDuplicates) {
+            Image tile = cutter.getNextTile();
+            while (tile != null) {
+                Tile newTile = new Tile();
+                newTile.setImage(addImage(tile));
+                addNewTile(newTile);
+                tile = cutter.getNextTile();
+            }
+            return;
+        }
+
+        Image[] cut = cutTiles(cutter);
+        int[] original = findDuplicates(cut);
+        int[] imageIds = new int[cut.length];
+        for (int i = 0; i < cut.length; i++) {
+            imageIds[i] = original[i] == i ?
+                    images.add(cut[i]) : imageIds[original[i]];
             Tile newTile = new Tile();
-            newTile.setImage(addImage(tile));
+            newTile.setImage(imageIds[i]);
             addNewTile(newTile);
+        }
+    }
+
+    private static Image[] cutTiles(TileCutter cutter) {
+        ArrayList<Image> cut = new ArrayList<Image>();
+        Image tile = cutter.getNextTile();
+        while (tile != null) {
+            cut.add(tile);
             tile = cutter.getNextTile();
         }
+        return cut.toArray(new Image[cut.size()]);
+    }
+
+    /**
+     * Finds the images that have the same pixels as an earlier image. The
+     * pixels of all images are read and hashed in parallel.
+     *
+     * @param images the images to compare
+     * @return for each image, the index of the first image with the same
+     *         pixels, which is its own index when there is no such image
+     */
+    private static int[] findDuplicates(final Image[] images) {
+        final PixelKey[] keys = new PixelKey[images.length];
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final int batch = Math.max(64, (images.length + threads - 1) / threads);
+
+        ExecutorService executor = getHashExecutor();
+        try {
+            ArrayList<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int i = 0; i < images.length; i += batch) {
+                final int first = i;
+                final int last = Math.min(i + batch, images.length);
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (int j = first; j < last; j++) {
+                            if (images[j] instanceof BufferedImage) {
+                                keys[j] = new PixelKey(
+                                        (BufferedImage) images[j]);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        int[] original = new int[images.length];
+        HashMap<PixelKey, Integer> seen = new HashMap<PixelKey, Integer>();
+        for (int i = 0; i < images.length; i++) {
+            original[i] = i;
+            if (keys[i] != null) {
+                Integer first = seen.get(keys[i]);
+                if (first != null) {
+                    original[i] = first;
+                } else {
+                    seen.put(keys[i], i);
+                }
+            }
+        }
+        return original;
+    }
+
+    private static synchronized ExecutorService getHashExecutor() {
+        if (hashExecutor == null) {
+            hashExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "Tile hasher");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return hashExecutor;
+    }
+
+    /**
+     * Makes all locations in the map that use a tile of this set, which has
+     * the same pixels and properties as a tile with a lower id, use that
+     * tile instead. Layers that can not be edited are skipped.
+     *
+     * @param map the map to update
+     * @return the number of locations that were changed
+     * @see #findDuplicateTiles()
+     * @see #replaceTiles(TileLayer, Tile[])
+     */
+    public int replaceDuplicateTiles(Map map) {
+        final Tile[] replacements = findDuplicateTiles();
+        int changed = 0;
+        Iterator<MapLayer> layers = map.getLayers();
+        while (layers.hasNext()) {
+            MapLayer ml = layers.next();
+            if (ml instanceof TileLayer && ml.canEdit()) {
+                changed += replaceTiles((TileLayer) ml, replacements);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Finds the tiles of this set that have the same pixels and properties
+     * as a tile with a lower id.
+     *
+     * @return for each tile id, the identical tile with the lowest id, or
+     *         <code>null</code> when the tile has no duplicate with a lower
+     *         id
+     */
+    public Tile[] findDuplicateTiles() {
+        final int maxId = getMaxTileId();
+        final Image[] tileImages = new Image[maxId + 1];
+        for (int id = 0; id <= maxId; id++) {
+            Tile tile = getTile(id);
+            if (tile != null) {
+                tileImages[id] = tile.getImage();
+            }
+        }
+
+        // Tiles with identical images are only duplicates when they are
+        // also equal otherwise
+        final int[] original = findDuplicates(tileImages);
+        final Tile[] replacements = new Tile[maxId + 1];
+        for (int id = 0; id <= maxId; id++) {
+            Tile tile = getTile(id);
+            Tile first = getTile(original[id]);
+            if (original[id] != id && tile != null && first != null &&
+                    first.getClass() == tile.getClass() &&
+                    first.getProperties().equals(tile.getProperties())) {
+                replacements[id] = replacements[original[id]] != null ?
+                        replacements[original[id]] : first;
+            }
+        }
+        return replacements;
+    }
+
+    /**
+     * Makes all locations in the layer that use a tile of this set, for
+     * which a replacement is given, use the replacement instead.
+     *
+     * @param layer        the layer to update
+     * @param replacements the replacements by tile id, as returned by
+     *                     {@link #findDuplicateTiles()}
+     * @return the number of locations that were changed
+     */
+    public int replaceTiles(TileLayer layer, Tile[] replacements) {
+        int changed = 0;
+        Rectangle bounds = layer.getBounds();
+        Tile[] row = new Tile[bounds.width];
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            layer.getRow(bounds.x, y, row, 0, bounds.width);
+            boolean rowChanged = false;
+            for (int x = 0; x < row.length; x++) {
+                Tile tile = row[x];
+                if (tile != null && tile.getTileSet() == this &&
+                        tile.getId() < replacements.length &&
+                        replacements[tile.getId()] != null &&
+                        getTile(tile.getId()) == tile) {
+                    row[x] = replacements[tile.getId()];
+                    rowChanged = true;
+                    changed++;
+                }
+            }
+            if (rowChanged) {
+                layer.setRow(bounds.x, y, row, 0, bounds.width);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Identifies an image by its pixels, used to find identical images.
+     */
+    private static class PixelKey
+    {
+        private final int width, height;
+        private final int[] pixels;
+        private final int hash;
+
+        PixelKey(BufferedImage image) {
+            width = image.getWidth();
+            height = image.getHeight();
+            pixels = image.getRGB(0, 0, width, height, null, 0, width);
+            hash = (width * 31 + height) * 31 + Arrays.hashCode(pixels);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof PixelKey)) {
+                return false;
+            }
+            PixelKey other = (PixelKey) o;
+            return width == other.width && height == other.height &&
+                    Arrays.equals(pixels, other.pixels);
+        }
     }
 
     /**
@@ -147,25 +378,8 @@ public class TileSet
     {
         String imgFilename = tilebmpFile.getPath();
 
-        Image image = ImageIO.read(new File(imgFilename));
-        if (image == null) {
-            throw new IOException("Failed to load " + tilebmpFile);
-        }
-
-        Toolkit tk = Toolkit.getDefaultToolkit();
-
-        if (transparentColor != null) {
-            int rgb = transparentColor.getRGB();
-            image = tk.createImage(
-                    new FilteredImageSource(image.getSource(),
-                            new TransparentImageFilter(rgb)));
-        }
-
-        BufferedImage buffered = new BufferedImage(
-                image.getWidth(null),
-                image.getHeight(null),
-                BufferedImage.TYPE_INT_ARGB);
-        buffered.getGraphics().drawImage(image, 0, 0, null);
+        BufferedImage buffered = ImageCache.getInstance().getImage(
+                new File(imgFilename), transparentColor);
 
         refreshImportedTileBitmap(buffered);
     }
@@ -185,11 +399,32 @@ public class TileSet
         tileSetImage = tilebmp;
         tileDimensions = new Rectangle(tileCutter.getTileDimensions());
 
+        if (mergeDuplicates) {
+            // Which tiles are identical may have changed, so the images are
+            // shared out again
+            Image[] cut = cutTiles(tileCutter);
+            int[] original = findDuplicates(cut);
+            int[] imageIds = new int[cut.length];
+            images = new NumberedSet();
+            for (int id = 0; id < cut.length; id++) {
+                imageIds[id] = original[id] == id ?
+                        images.add(cut[id]) : imageIds[original[id]];
+                Tile t = getTile(id);
+                if (t != null) {
+                    t.setImage(imageIds[id]);
+                    t.analyzeImage();
+                }
+            }
+            fireTilesetChanged();
+            return;
+        }
+
         int id = 0;
         Image tile = tileCutter.getNextTile();
         while (tile != null) {
-            int imgId = getTile(id).tileImageId;
-            overlayImage(imgId, tile);
+            Tile t = getTile(id);
+            overlayImage(t.tileImageId, tile);
+            t.analyzeImage();
             tile = tileCutter.getNextTile();
             id++;
         }
@@ -197,6 +432,69 @@ public class TileSet
         fireTilesetChanged();
     }
 
+    /**
+     * Cuts a new version of the tileset image into tiles, the same way this
+     * tileset was cut. The tileset itself is not changed, so this can be
+     * done on another thread than the one the tileset is used on.
+     *
+     * @param tilebmp the new tileset image
+     * @return the tile images by tile id, or <code>null</code> when the
+     *         tileset was not cut from an image by a basic tile cutter
+     * @see #updateTileImages(BufferedImage, java.util.Map)
+     */
+    public Image[] cutTileImages(BufferedImage tilebmp) {
+        if (!(tileCutter instanceof BasicTileCutter)) {
+            return null;
+        }
+        TileCutter cutter = new BasicTileCutter(getTileWidth(),
+                getTileHeight(), tileSpacing, tileMargin);
+        cutter.setImage(tilebmp);
+        return cutTiles(cutter);
+    }
+
+    /**
+     * Updates the tileset after its tileset image was changed. Only the
+     * given tiles get new images, and the listeners are notified once
+     * afterwards. Tiles beyond the last tile are added.
+     *
+     * @param tilebmp the new tileset image
+     * @param changed the new images of the tiles that changed by tile id, or
+     *                <code>null</code> to cut all tiles again
+     */
+    public void updateTileImages(BufferedImage tilebmp,
+                                 java.util.Map<Integer, Image> changed)
+    {
+        if (tilebmpFile != null) {
+            tilebmpFileLastModified = tilebmpFile.lastModified();
+        }
+
+        // Which tiles share an image may have changed along with the pixels
+        if (changed == null || mergeDuplicates) {
+            refreshImportedTileBitmap(tilebmp);
+            return;
+        }
+
+        tileSetImage = tilebmp;
+        for (java.util.Map.Entry<Integer, Image> entry : changed.entrySet()) {
+            Tile t = getTile(entry.getKey());
+            if (t != null) {
+                overlayImage(t.tileImageId, entry.getValue());
+                t.analyzeImage();
+            } else {
+                // Added like addTile does, without an event for every tile
+                Tile newTile = new Tile();
+                newTile.setId(entry.getKey());
+                newTile.setImage(addImage(entry.getValue()));
+                newTile.getProperties().putAll(defaultTileProperties);
+                tiles.put(newTile.getId(), newTile);
+                newTile.setTileSet(this);
+                newTile.analyzeImage();
+            }
+        }
+
+        fireTilesetChanged();
+    }
+
     public void checkUpdate() throws IOException {
         if (tilebmpFile != null &&
                 tilebmpFile.lastModified() > tilebmpFileLastModified)
@@ -299,6 +597,7 @@ public class TileSet
 
         tiles.put(t.getId(), t);
         t.setTileSet(this);
+        t.analyzeImage();
 
         fireTilesetChanged();
 
@@ -419,6 +718,17 @@ public class TileSet
         return tileMargin;
     }
 
+    /**
+     * Returns whether tiles with identical pixels share a single image. This
+     * is only used for tilesets cut from a tileset image.
+     *
+     * @return <code>true</code> if identical tile images are merged
+     * @see #importTileBitmap(String, TileCutter, boolean)
+     */
+    public boolean isMergeDuplicates() {
+        return mergeDuplicates;
+    }
+
     /**
      * Returns the number of tiles per row in the original tileset image.
      * @return the number of tiles per row in the original tileset image.
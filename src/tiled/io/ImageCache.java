@@ -0,0 +1,127 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.io;
+
+import java.awt.Color;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.imageio.ImageIO;
+
+/**
+ * A cache of decoded tileset images, shared by all maps and tilesets in the
+ * process. Images are found by the canonical path of their file and the
+ * transparent color that was removed from them, and are decoded again when
+ * the file was modified since. The images are only softly referenced, so
+ * they are dropped when memory runs low.
+ * <p>
+ * The cached images are shared, so they must not be drawn on. When several
+ * threads ask for the same image at the same time, it is decoded only once.
+ *
+ * @version $Id$
+ */
+public class ImageCache
+{
+    private static final ImageCache instance = new ImageCache();
+
+    private final ConcurrentHashMap<String, Entry> entries =
+            new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Returns the cache shared by the whole process.
+     */
+    public static ImageCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the image in the given file, converted to a format compatible
+     * with the screen and with the transparent color removed.
+     *
+     * @param file             the image file
+     * @param transparentColor the color to make transparent, or
+     *                         <code>null</code>
+     * @return the image
+     * @throws IOException when the file can not be read or is not an image
+     * @see ImageHelper#toCompatibleImage(Image, Color)
+     */
+    public BufferedImage getImage(File file, Color transparentColor)
+            throws IOException
+    {
+        String key = file.getCanonicalPath();
+        if (transparentColor != null) {
+            key += '#' + Integer.toHexString(transparentColor.getRGB());
+        }
+
+        final long modified = file.lastModified();
+        final long length = file.length();
+
+        Entry entry = entries.get(key);
+        if (entry == null || entry.modified != modified ||
+                entry.length != length) {
+            entry = new Entry(modified, length);
+            entries.put(key, entry);
+        }
+        return entry.getImage(file, transparentColor);
+    }
+
+    /**
+     * Forgets about the image in the given file, so that it is decoded again
+     * the next time it is asked for.
+     */
+    public void remove(File file) throws IOException {
+        String path = file.getCanonicalPath();
+        for (String key : entries.keySet()) {
+            if (key.equals(path) || key.startsWith(path + '#')) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all images from the cache.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private static class Entry
+    {
+        private final long modified;
+        private final long length;
+        private SoftReference<BufferedImage> image;
+
+        public Entry(long modified, long length) {
+            this.modified = modified;
+            this.length = length;
+        }
+
+        public synchronized BufferedImage getImage(File file, Color color)
+                throws IOException
+        {
+            BufferedImage cached = image != null ? image.get() : null;
+            if (cached == null) {
+                Image decoded = ImageIO.read(file);
+                if (decoded == null) {
+                    throw new IOException("Failed to load " + file);
+                }
+                cached = ImageHelper.toCompatibleImage(decoded, color);
+                image = new SoftReference<BufferedImage>(cached);
+            }
+            return cached;
+        }
+    }
+}
@@ -12,9 +12,16 @@
 
 package tiled.io;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
 import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -240,6 +247,136 @@ public class ImageHelper
         return ImageIO.read(file);
     }
 
+    /**
+     * Returns the given image in the format that is drawn to the screen the
+     * fastest. When the image already has this format, it is returned as is.
+     *
+     * @param image a fully loaded image
+     * @return the compatible image
+     * @see #toCompatibleImage(Image, Color)
+     */
+    public static BufferedImage toCompatibleImage(Image image) {
+        return toCompatibleImage(image, null);
+    }
+
+    /**
+     * Returns a copy of the given image in the format that is drawn to the
+     * screen the fastest, with all pixels of the given color made fully
+     * transparent. This replaces filtering the image through the toolkit,
+     * which produces an image that needs to be loaded asynchronously.
+     *
+     * @param image            a fully loaded image
+     * @param transparentColor the color to make transparent, or
+     *                         <code>null</code> to keep all pixels
+     * @return the compatible image
+     */
+    public static BufferedImage toCompatibleImage(Image image,
+                                                  Color transparentColor) {
+        final int w = image.getWidth(null);
+        final int h = image.getHeight(null);
+
+        int transparency = Transparency.TRANSLUCENT;
+        if (image instanceof Transparency) {
+            transparency = ((Transparency) image).getTransparency();
+        }
+        if (transparentColor != null && transparency == Transparency.OPAQUE) {
+            transparency = Transparency.BITMASK;
+        }
+
+        BufferedImage compatible = createCompatibleImage(
+                Math.max(w, 1), Math.max(h, 1), transparency);
+        if (transparentColor == null && image instanceof BufferedImage &&
+                ((BufferedImage) image).getColorModel().equals(
+                        compatible.getColorModel())) {
+            return (BufferedImage) image;
+        }
+
+        Graphics2D g = compatible.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+
+        if (transparentColor != null) {
+            removeColor(compatible, transparentColor.getRGB());
+        }
+        return compatible;
+    }
+
+    /**
+     * Returns a copy of the given image, scaled to the given size. Images are
+     * scaled down in steps of at most half their size, so that all pixels
+     * still contribute to the result.
+     *
+     * @param image  a fully loaded image
+     * @param width  the width of the scaled image
+     * @param height the height of the scaled image
+     * @return the scaled image, in the format that is drawn to the screen
+     *         the fastest
+     */
+    public static BufferedImage getScaledImage(Image image,
+                                               int width, int height) {
+        width = Math.max(width, 1);
+        height = Math.max(height, 1);
+
+        int transparency = Transparency.TRANSLUCENT;
+        if (image instanceof Transparency) {
+            transparency = ((Transparency) image).getTransparency();
+        }
+
+        Image current = image;
+        int w = image.getWidth(null);
+        int h = image.getHeight(null);
+        do {
+            w = w / 2 >= width ? w / 2 : width;
+            h = h / 2 >= height ? h / 2 : height;
+
+            BufferedImage step = createCompatibleImage(w, h, transparency);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, w, h, null);
+            g.dispose();
+            current = step;
+        } while (w != width || h != height);
+
+        return (BufferedImage) current;
+    }
+
+    private static BufferedImage createCompatibleImage(int width, int height,
+                                                       int transparency) {
+        if (!GraphicsEnvironment.isHeadless()) {
+            GraphicsConfiguration gc = GraphicsEnvironment
+                    .getLocalGraphicsEnvironment()
+                    .getDefaultScreenDevice().getDefaultConfiguration();
+            return gc.createCompatibleImage(width, height, transparency);
+        }
+        return new BufferedImage(width, height,
+                transparency == Transparency.OPAQUE ?
+                        BufferedImage.TYPE_INT_RGB :
+                        BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * Makes all pixels of the given color transparent, one row at a time.
+     */
+    private static void removeColor(BufferedImage image, int rgb) {
+        final int w = image.getWidth();
+        final int[] row = new int[w];
+
+        for (int y = 0; y < image.getHeight(); y++) {
+            image.getRGB(0, y, w, 1, row, 0, w);
+            boolean changed = false;
+            for (int x = 0; x < w; x++) {
+                if (row[x] == rgb) {
+                    row[x] = 0;
+                    changed = true;
+                }
+            }
+            if (changed) {
+                image.setRGB(0, y, w, 1, row, 0, w);
+            }
+        }
+    }
+
     public static enum ImageFormat {
         PNG,
         RAW;
@@ -322,6 +459,9 @@ public class ImageHelper
      * @return
      */
     public static int getImageWidth(Image image){
+        if (image instanceof RenderedImage) {
+            return ((RenderedImage) image).getWidth();
+        }
         SynchronizedImageObserver o = new SynchronizedImageObserver();
         
         // we use the image observer as lock
@@ -340,12 +480,15 @@ public class ImageHelper
         }
     }
     /**
-     * This grabs the width of the specified image. If the width is not
+     * This grabs the height of the specified image. If the height is not
      * available, this method will block until it becomes available
      * @param image
      * @return
      */
     public static int getImageHeight(Image image){
+        if (image instanceof RenderedImage) {
+            return ((RenderedImage) image).getHeight();
+        }
         SynchronizedImageObserver o = new SynchronizedImageObserver();
         
         // we use the image observer as lock
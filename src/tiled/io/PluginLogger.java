@@ -12,6 +12,7 @@
 
 package tiled.io;
 
+import java.io.PrintStream;
 import java.util.LinkedList;
 
 /**
@@ -20,11 +21,31 @@ import java.util.LinkedList;
 public class PluginLogger
 {
     private final LinkedList<Object> messages = new LinkedList<Object>();
+    private final PrintStream out;
+
+    public PluginLogger() {
+        this(null);
+    }
+
+    /**
+     * Creates a logger that prints errors and warnings to the given stream.
+     *
+     * @param out the stream to print to, or <code>null</code> to drop them
+     */
+    public PluginLogger(PrintStream out) {
+        this.out = out;
+    }
 
     public void error(Object message) {
+        if (out != null) {
+            out.println("error: " + message);
+        }
     }
 
     public void warn(Object message) {
+        if (out != null) {
+            out.println("warning: " + message);
+        }
     }
 
     public void info(Object message) {
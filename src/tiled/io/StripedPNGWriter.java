@@ -0,0 +1,240 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.io;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a PNG image one strip of rows at a time. Unlike ImageIO, this does
+ * not need the whole image in memory, which makes it possible to save images
+ * that are much larger than the available heap. The image is written as
+ * 8-bit RGB without alpha.
+ *
+ * <pre>
+ * StripedPNGWriter writer = new StripedPNGWriter(out, width, height);
+ * for (each strip) {
+ *     writer.writeRows(strip, 0, strip.getHeight());
+ * }
+ * writer.close();
+ * </pre>
+ *
+ * @version $Id$
+ */
+public class StripedPNGWriter
+{
+    private static final byte[] SIGNATURE = {
+        (byte) 137, 80, 78, 71, 13, 10, 26, 10
+    };
+    private static final int IDAT_SIZE = 64 * 1024;
+    private static final byte FILTER_SUB = 1;
+
+    private final int width;
+    private final int height;
+    private final DataOutputStream out;
+    private final DeflaterOutputStream deflater;
+    private final Deflater def;
+    private final byte[] line;
+    private final int[] pixels;
+    private int rowsWritten;
+
+    /**
+     * Writes the PNG header to the given stream and prepares for receiving
+     * the image rows.
+     *
+     * @param out    the stream to write the PNG image to
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @throws IOException when writing to the stream fails
+     */
+    public StripedPNGWriter(OutputStream out, int width, int height)
+            throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(
+                    "Invalid image size " + width + "x" + height);
+        }
+
+        this.width = width;
+        this.height = height;
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        line = new byte[1 + width * 3];
+        pixels = new int[width];
+
+        this.out.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 8;      // bit depth
+        header[9] = 2;      // color type: RGB
+        header[10] = 0;     // compression: deflate
+        header[11] = 0;     // filter method: adaptive
+        header[12] = 0;     // no interlacing
+        writeChunk("IHDR", header, header.length);
+
+        def = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater = new DeflaterOutputStream(new ChunkOutputStream(), def,
+                IDAT_SIZE);
+    }
+
+    /**
+     * Appends rows taken from the given image.
+     *
+     * @param strip the image containing the rows
+     * @param y     the first row in <code>strip</code> to write
+     * @param rows  the number of rows to write
+     * @throws IOException when writing fails
+     * @throws IllegalStateException when more rows are written than the
+     *         image height
+     */
+    public void writeRows(BufferedImage strip, int y, int rows)
+            throws IOException {
+        if (rowsWritten + rows > height) {
+            throw new IllegalStateException("Writing past end of image");
+        }
+
+        final int w = Math.min(width, strip.getWidth());
+        for (int r = y; r < y + rows; r++) {
+            if (w < width) {
+                Arrays.fill(pixels, w, width, 0);
+            }
+            strip.getRGB(0, r, w, 1, pixels, 0, width);
+
+            // Use the 'Sub' filter, which generally compresses rendered maps
+            // a lot better than no filtering at all
+            line[0] = FILTER_SUB;
+            int prevR = 0, prevG = 0, prevB = 0;
+            for (int x = 0, i = 1; x < width; x++) {
+                final int p = pixels[x];
+                final int red = (p >> 16) & 0xff;
+                final int green = (p >> 8) & 0xff;
+                final int blue = p & 0xff;
+                line[i++] = (byte) (red - prevR);
+                line[i++] = (byte) (green - prevG);
+                line[i++] = (byte) (blue - prevB);
+                prevR = red;
+                prevG = green;
+                prevB = blue;
+            }
+            deflater.write(line);
+        }
+        rowsWritten += rows;
+    }
+
+    /**
+     * Finishes the image and closes the underlying stream.
+     *
+     * @throws IOException when writing fails
+     * @throws IllegalStateException when not all rows have been written
+     */
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IllegalStateException(
+                        "Only " + rowsWritten + " of " + height +
+                        " rows were written");
+            }
+            deflater.finish();
+            deflater.flush();
+            writeChunk("IEND", new byte[0], 0);
+            out.flush();
+        } finally {
+            def.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Closes the underlying stream without finishing the image. Used to
+     * clean up after an error occurred while producing the rows.
+     */
+    public void abort() {
+        def.end();
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Already failing, nothing more to do about it
+        }
+    }
+
+    private void writeChunk(String type, byte[] data, int length)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >>> 24);
+        b[offset + 1] = (byte) (value >>> 16);
+        b[offset + 2] = (byte) (value >>> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Collects compressed data and writes it out as IDAT chunks.
+     */
+    private class ChunkOutputStream extends OutputStream
+    {
+        private final byte[] buffer = new byte[IDAT_SIZE];
+        private int count;
+
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        public void flush() throws IOException {
+            flushChunk();
+        }
+
+        public void close() throws IOException {
+            flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            if (count > 0) {
+                writeChunk("IDAT", buffer, count);
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import tiled.core.Map;
+import tiled.core.TileSet;
+
+/**
+ * The external tilesets loaded by all maps in the process. A tileset file
+ * that is used by several maps is loaded only once, and the maps share the
+ * same {@link TileSet} instance, until the file is modified.
+ * <p>
+ * Each map that acquired a tileset holds a reference to it until it is
+ * released. Tilesets that are no longer referenced by any map are only
+ * softly referenced, so that opening another map using them is instant,
+ * while they are dropped when memory runs low.
+ * <p>
+ * Since the instances are shared, the first global id stored in them is
+ * meaningless for any particular map. Readers and writers keep track of
+ * the first global ids of the tilesets of a map themselves.
+ * <p>
+ * The registry is disabled by default, since the editor changes tilesets in
+ * place and those changes must not show up in other maps, or survive
+ * closing the map without saving. It is enabled for the command
+ * interpreter and the daemon, which only read and write maps.
+ *
+ * @version $Id$
+ */
+public class TilesetRegistry
+{
+    private static final TilesetRegistry instance = new TilesetRegistry();
+
+    private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+    private volatile boolean enabled;
+
+    /**
+     * Loads a tileset file when it is not in the registry.
+     */
+    public interface Loader
+    {
+        public TileSet load(File file) throws Exception;
+    }
+
+    /**
+     * Returns the registry shared by the whole process.
+     */
+    public static TilesetRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns whether readers should share tilesets through the registry.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets whether readers should share tilesets through the registry. This
+     * should only be enabled when the loaded tilesets are not modified.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns the tileset in the given file, loading it when it is not
+     * registered yet or when the file was modified since. The map is
+     * counted as a user of the tileset until it is released.
+     *
+     * @param file   the tileset file
+     * @param map    the map that will use the tileset
+     * @param loader loads the tileset when needed
+     * @return the shared tileset, or <code>null</code> when the loader
+     *         returned <code>null</code>
+     * @throws Exception when the loader failed
+     * @see #release(Map)
+     */
+    public TileSet acquire(File file, Map map, Loader loader) throws Exception {
+        final String key = file.getCanonicalPath();
+        final long modified = file.lastModified();
+        final long length = file.length();
+
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null || entry.modified != modified ||
+                    entry.length != length) {
+                entry = new Entry(modified, length);
+                entries.put(key, entry);
+            }
+        }
+
+        // Tilesets are loaded outside of the lock on the registry, so that
+        // different tilesets can be loaded at the same time
+        TileSet set = entry.getTileset(file, loader);
+        if (set != null) {
+            synchronized (this) {
+                entry.users.add(map);
+                entry.tileset = set;
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Releases all tilesets acquired for the given map. Tilesets no longer
+     * used by any map are kept until memory runs low.
+     *
+     * @param map the map that is no longer used
+     */
+    public synchronized void release(Map map) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            entry.users.remove(map);
+            if (entry.users.isEmpty()) {
+                entry.tileset = null;
+                if (entry.cached == null || entry.cached.get() == null) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the registered tileset of the given file as up to date, after it
+     * was reloaded in place from the changed file. Maps opened afterwards
+     * share the reloaded tileset instead of loading the file again.
+     *
+     * @param file    the tileset file
+     * @param tileset the tileset that was reloaded
+     */
+    public synchronized void refresh(File file, TileSet tileset)
+            throws IOException
+    {
+        Entry entry = entries.get(file.getCanonicalPath());
+        if (entry != null && entry.cached != null &&
+                entry.cached.get() == tileset) {
+            entry.modified = file.lastModified();
+            entry.length = file.length();
+        }
+    }
+
+    /**
+     * Returns the number of maps using the tileset in the given file.
+     */
+    public synchronized int getReferenceCount(File file) throws IOException {
+        Entry entry = entries.get(file.getCanonicalPath());
+        return entry != null ? entry.users.size() : 0;
+    }
+
+    /**
+     * Removes all tilesets from the registry. Maps keep the tilesets they
+     * already have.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static class Entry
+    {
+        private long modified;
+        private long length;
+
+        /** The maps using the tileset. Maps that are garbage collected
+            without being released are forgotten as well. */
+        private final Set<Map> users =
+                Collections.newSetFromMap(new WeakHashMap<Map, Boolean>());
+
+        /** Holds on to the tileset while it is used by some map. */
+        private TileSet tileset;
+        private SoftReference<TileSet> cached;
+
+        public Entry(long modified, long length) {
+            this.modified = modified;
+            this.length = length;
+        }
+
+        public synchronized TileSet getTileset(File file, Loader loader)
+                throws Exception
+        {
+            TileSet set = cached != null ? cached.get() : null;
+            if (set == null) {
+                set = loader.load(file);
+                if (set != null) {
+                    cached = new SoftReference<TileSet>(set);
+                }
+            }
+            return set;
+        }
+    }
+}
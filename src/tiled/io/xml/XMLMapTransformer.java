@@ -21,6 +21,7 @@ import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.Properties;
+import java.util.TreeMap;
 import java.util.zip.GZIPInputStream;
 import javax.imageio.ImageIO;
 import javax.xml.parsers.DocumentBuilder;
@@ -38,6 +39,7 @@ import tiled.core.*;
 import tiled.io.ImageHelper;
 import tiled.io.MapReader;
 import tiled.io.PluginLogger;
+import tiled.io.TilesetRegistry;
 import tiled.mapeditor.Resources;
 import tiled.mapeditor.util.cutter.BasicTileCutter;
 import tiled.util.Base64;
@@ -53,6 +55,11 @@ public class XMLMapTransformer implements MapReader
     private PluginLogger logger;
     private final EntityResolver entityResolver = new MapEntityResolver();
 
+    /** The tilesets of the map being read by their first global id, since
+        shared tilesets do not know their first global id in this map. */
+    private final TreeMap<Integer, TileSet> tilesetsByFirstGid =
+            new TreeMap<Integer, TileSet>();
+
     public XMLMapTransformer() {
         logger = new PluginLogger();
     }
@@ -225,8 +232,6 @@ public class XMLMapTransformer implements MapReader
                 source = makeUrl(baseDir + source);
             }
             img = ImageIO.read(new URL(source));
-            // todo: check whether external images would also be faster drawn
-            // todo: from a scaled instance, see below
         } else {
             NodeList nl = t.getChildNodes();
 
@@ -254,20 +259,17 @@ public class XMLMapTransformer implements MapReader
                                 img = ImageHelper.rawToImage(imageData, pixelFormat, bigEndian, width, height);
                             }    break;
                         }
-
-                        // Deriving a scaled instance, even if it has the same
-                        // size, somehow makes drawing of the tiles a lot
-                        // faster on various systems (seen on Linux, Windows
-                        // and MacOS X).
-                        img = img.getScaledInstance(
-                                img.getWidth(null), img.getHeight(null),
-                                Image.SCALE_FAST);
                     }
                     break;
                 }
             }
         }
 
+        // Images in the format of the screen are drawn a lot faster
+        if (img != null) {
+            img = ImageHelper.toCompatibleImage(img);
+        }
+
         /*
         if (getAttributeValue(t, "set") != null) {
             TileSet ts = (TileSet)map.getTilesets().get(
@@ -322,6 +324,15 @@ public class XMLMapTransformer implements MapReader
         return set;
     }
 
+    private TileSet loadTilesetFile(String filename) throws Exception {
+        InputStream in = new URL(makeUrl(filename)).openStream();
+        try {
+            return unmarshalTilesetFile(in, filename);
+        } finally {
+            in.close();
+        }
+    }
+
     private TileSet unmarshalTileset(Node t) throws Exception {
         String source = getAttributeValue(t, "source");
         String basedir = getAttributeValue(t, "basedir");
@@ -348,8 +359,24 @@ public class XMLMapTransformer implements MapReader
                     logger.warn("tileset files should end in .tsx! ("+source+")");
                 }
 
-                InputStream in = new URL(makeUrl(filename)).openStream();
-                ext = unmarshalTilesetFile(in, filename);
+                final File file = new File(filename);
+                TilesetRegistry registry = TilesetRegistry.getInstance();
+                if (map != null && registry.isEnabled() && file.isFile()) {
+                    // Tilesets used by several maps are loaded only once
+                    TilesetRegistry.Loader loader = new TilesetRegistry.Loader() {
+                        public TileSet load(File f) throws Exception {
+                            return loadTilesetFile(f.getPath());
+                        }
+                    };
+                    ext = registry.acquire(file, map, loader);
+
+                    // A map using the same file twice needs separate tilesets
+                    if (tilesetsByFirstGid.containsValue(ext)) {
+                        ext = loadTilesetFile(filename);
+                    }
+                } else {
+                    ext = loadTilesetFile(filename);
+                }
             } catch (FileNotFoundException fnf) {
                 logger.error("Could not find external tileset file " +
                         filename);
@@ -360,7 +387,6 @@ public class XMLMapTransformer implements MapReader
                 ext = new TileSet();
             }
 
-            ext.setFirstGid(firstGid);
             return ext;
         }
         else {
@@ -368,6 +394,8 @@ public class XMLMapTransformer implements MapReader
             final int tileHeight = getAttribute(t, "tileheight", map != null ? map.getTileHeight() : 0);
             final int tileSpacing = getAttribute(t, "spacing", 0);
             final int tileMargin = getAttribute(t, "margin", 0);
+            final boolean mergeDuplicates =
+                    getAttribute(t, "mergeduplicates", 0) == 1;
 
             TileSet set = new TileSet();
 
@@ -412,7 +440,8 @@ public class XMLMapTransformer implements MapReader
                         }
 
                         set.importTileBitmap(sourcePath, new BasicTileCutter(
-                                tileWidth, tileHeight, tileSpacing, tileMargin));
+                                tileWidth, tileHeight, tileSpacing, tileMargin),
+                                mergeDuplicates);
                     } else {
                         Image image = unmarshalImage(child, tilesetBaseDir);
                         String idValue = getAttributeValue(child, "id");
@@ -649,13 +678,7 @@ public class XMLMapTransformer implements MapReader
                                 tileId |= is.read() << 16;
                                 tileId |= is.read() << 24;
 
-                                TileSet ts = map.findTileSetForTileGID(tileId);
-                                if (ts != null) {
-                                    ml.setTileAt(x, y,
-                                            ts.getTile(tileId - ts.getFirstGid()));
-                                } else {
-                                    ml.setTileAt(x, y, null);
-                                }
+                                ml.setTileAt(x, y, getTileForGid(tileId));
                             }
                         }
                     }
@@ -667,13 +690,7 @@ public class XMLMapTransformer implements MapReader
                     {
                         if ("tile".equalsIgnoreCase(dataChild.getNodeName())) {
                             int tileId = getAttribute(dataChild, "gid", -1);
-                            TileSet ts = map.findTileSetForTileGID(tileId);
-                            if (ts != null) {
-                                ml.setTileAt(x, y,
-                                        ts.getTile(tileId - ts.getFirstGid()));
-                            } else {
-                                ml.setTileAt(x, y, null);
-                            }
+                            ml.setTileAt(x, y, getTileForGid(tileId));
 
                             x++;
                             if (x == ml.getWidth()) {
@@ -718,9 +735,24 @@ public class XMLMapTransformer implements MapReader
         return ml;
     }
 
+    /**
+     * Returns the tile with the given global id in the map being read, or
+     * <code>null</code> when no tileset contains it.
+     */
+    private Tile getTileForGid(int gid) {
+        java.util.Map.Entry<Integer, TileSet> entry =
+                tilesetsByFirstGid.floorEntry(gid);
+        if (entry == null) {
+            return null;
+        }
+        return entry.getValue().getTile(gid - entry.getKey());
+    }
+
     private void buildMap(Document doc) throws Exception {
         Node item, mapNode;
 
+        tilesetsByFirstGid.clear();
+
         mapNode = doc.getDocumentElement();
 
         if (!"map".equals(mapNode.getNodeName())) {
@@ -783,8 +815,10 @@ public class XMLMapTransformer implements MapReader
 
         // Load tilesets first, in case order is munged
         NodeList l = doc.getElementsByTagName("tileset");
-            for (int i = 0; (item = l.item(i)) != null; i++) {
-                    map.addTileset(unmarshalTileset(item));
+        for (int i = 0; (item = l.item(i)) != null; i++) {
+            TileSet set = unmarshalTileset(item);
+            map.addTileset(set);
+            tilesetsByFirstGid.put(getAttribute(item, "firstgid", 1), set);
         }
 
         // Load the layers and objectgroups
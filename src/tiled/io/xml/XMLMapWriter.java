@@ -38,6 +38,11 @@ public class XMLMapWriter implements MapWriter
     private static final int LAST_BYTE = 0x000000FF;
     
     private Preferences prefs = TiledConfiguration.node("saving");
+
+    /** The first global ids of the tilesets of the map being written. These
+        are not stored in the tilesets, since they may be shared by maps. */
+    private final IdentityHashMap<TileSet, Integer> firstGids =
+            new IdentityHashMap<TileSet, Integer>();
     
     public Preferences getPreferences(){
         return prefs;
@@ -144,8 +149,9 @@ public class XMLMapWriter implements MapWriter
         writeProperties(map.getProperties(), w);
 
         int firstgid = 1;
+        firstGids.clear();
         for (TileSet tileset : map.getTilesets()) {
-            tileset.setFirstGid(firstgid);
+            firstGids.put(tileset, firstgid);
             writeTilesetReference(tileset, w, wp);
             firstgid += tileset.getMaxTileId() + 1;
         }
@@ -185,6 +191,20 @@ public class XMLMapWriter implements MapWriter
         }
     }
 
+    /**
+     * Returns the first global id of the tileset in the map being written,
+     * or the one it was read with when only the tileset is written.
+     */
+    private int getFirstGid(TileSet set) {
+        Integer firstGid = firstGids.get(set);
+        return firstGid != null ? firstGid : set.getFirstGid();
+    }
+
+    private int getGid(Tile tile) {
+        TileSet set = tile.getTileSet();
+        return set != null ? getFirstGid(set) + tile.getId() : tile.getId();
+    }
+
     /**
      * Writes a reference to an external tileset into a XML document. In the
      * case where the tileset is not stored in an external file, writes the
@@ -204,7 +224,7 @@ public class XMLMapWriter implements MapWriter
             writeTileset(set, w, wp);
         } else {
             w.startElement("tileset");
-            w.writeAttribute("firstgid", set.getFirstGid());
+            w.writeAttribute("firstgid", getFirstGid(set));
             w.writeAttribute("source", getRelativePath(wp, source));
             if (set.getBaseDir() != null) {
                 w.writeAttribute("basedir", set.getBaseDir());
@@ -260,7 +280,7 @@ public class XMLMapWriter implements MapWriter
         String name = set.getName();
 
         w.startElement("tileset");
-        w.writeAttribute("firstgid", set.getFirstGid());
+        w.writeAttribute("firstgid", getFirstGid(set));
 
         if (name != null) {
             w.writeAttribute("name", name);
@@ -278,6 +298,9 @@ public class XMLMapWriter implements MapWriter
             if (tileMargin != 0) {
                 w.writeAttribute("margin", tileMargin);
             }
+            if (set.isMergeDuplicates()) {
+                w.writeAttribute("mergeduplicates", 1);
+            }
         }
 
         if (set.getBaseDir() != null) {
@@ -456,7 +479,7 @@ public class XMLMapWriter implements MapWriter
                         int gid = 0;
 
                         if (tile != null) {
-                            gid = tile.getGid();
+                            gid = getGid(tile);
                         }
 
                         out.write(gid       & LAST_BYTE);
@@ -478,7 +501,7 @@ public class XMLMapWriter implements MapWriter
                         int gid = 0;
 
                         if (tile != null) {
-                            gid = tile.getGid();
+                            gid = getGid(tile);
                         }
 
                         w.startElement("tile");
@@ -575,7 +598,7 @@ public class XMLMapWriter implements MapWriter
         w.endElement();
     }
 
-    private static void writeAnimation(Sprite s, XMLWriter w) throws IOException {
+    private void writeAnimation(Sprite s, XMLWriter w) throws IOException {
         w.startElement("animation");
         for (int k = 0; k < s.getTotalKeys(); k++) {
             Sprite.KeyFrame key = s.getKey(k);
@@ -584,7 +607,7 @@ public class XMLMapWriter implements MapWriter
             for (int it = 0; it < key.getTotalFrames(); it++) {
                 Tile stile = key.getFrame(it);
                 w.startElement("tile");
-                w.writeAttribute("gid", stile.getGid());
+                w.writeAttribute("gid", getGid(stile));
                 w.endElement();
             }
             w.endElement();
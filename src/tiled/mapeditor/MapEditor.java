@@ -13,13 +13,14 @@
 package tiled.mapeditor;
 
 import java.awt.*;
+import java.awt.datatransfer.Clipboard;
+import java.awt.datatransfer.Transferable;
 import java.awt.event.*;
-import java.awt.geom.Area;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.ListIterator;
-import java.util.Stack;
 import java.util.Vector;
 import java.util.prefs.PreferenceChangeEvent;
 import java.util.prefs.PreferenceChangeListener;
@@ -29,14 +30,17 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.undo.CompoundEdit;
 import javax.swing.undo.UndoableEditSupport;
 
 import tiled.core.*;
 import tiled.io.MapHelper;
 import tiled.io.MapReader;
+import tiled.io.TilesetRegistry;
 import tiled.mapeditor.actions.*;
 import tiled.mapeditor.brush.AbstractBrush;
 import tiled.mapeditor.brush.BrushException;
+import tiled.mapeditor.brush.BrushStroke;
 import tiled.mapeditor.brush.CustomBrush;
 import tiled.mapeditor.brush.LayerInvisibleBrushException;
 import tiled.mapeditor.brush.LayerLockedBrushException;
@@ -45,6 +49,7 @@ import tiled.mapeditor.dialogs.*;
 import tiled.mapeditor.plugin.PluginClassLoader;
 import tiled.mapeditor.selection.ObjectSelectionToolSemantic;
 import tiled.mapeditor.selection.SelectionLayer;
+import tiled.mapeditor.selection.SelectionMask;
 import tiled.mapeditor.selection.SelectionSet;
 import tiled.mapeditor.selection.ToolSemantic;
 import tiled.mapeditor.undo.*;
@@ -87,6 +92,7 @@ public class MapEditor implements ActionListener, MouseListener,
     private final UndoableEditSupport undoSupport;
     private final MapEventAdapter mapEventAdapter;
     private final PluginClassLoader pluginLoader;
+    private final TilesetWatcher tilesetWatcher;
     private static final Preferences prefs = TiledConfiguration.root();
 
     private int currentPointerState;
@@ -103,6 +109,7 @@ public class MapEditor implements ActionListener, MouseListener,
     private AbstractBrush currentBrush;
     private SelectionLayer marqueeSelection;
     private MapLayer clipboardLayer;
+    private TileRegion clipboardRegion;
     private float relativeMidX, relativeMidY;
 
     // GUI components
@@ -139,6 +146,10 @@ public class MapEditor implements ActionListener, MouseListener,
     private AboutDialog aboutDialog;
     private MapLayerEdit paintEdit;
 
+    /// Positions of the current paint or erase stroke, stamped once per frame
+    private final BrushStroke stroke = new BrushStroke();
+    private Timer strokeTimer;
+
     private FloatablePanel layersPanel;
     private FloatablePanel parallaxPanel;
     private FloatablePanel tilesetsPanel;
@@ -162,6 +173,9 @@ public class MapEditor implements ActionListener, MouseListener,
     private final Action showLayerPropertiesAction;
     private final ToggleParallaxModeAction toggleParallaxModeAction;
     
+    /** The time between two batches of brush stamps, in milliseconds. */
+    private static final int STROKE_FRAME_INTERVAL = 16;
+
     private static final String IMPORT_ERROR_MSG = Resources.getString("dialog.newtileset.import.error.message");
 
     private static final String PANEL_TILE_PALETTE = Resources.getString("panel.tilepalette.title");
@@ -185,6 +199,8 @@ public class MapEditor implements ActionListener, MouseListener,
     private static final String STATUS_FILE_ERROR_LOAD_FAILURE = Resources.getString("status.file.error.load.failure");
     private static final String STATUS_LAYER_SELECTED_FORMAT = Resources.getString("status.layer.selectedformat_name_w_h_x_y_tilew_tileh");
     private static final String STATUS_LAYER_MOVED_FORMAT = Resources.getString("status.layer.movedformat_x_y");
+    private static final String STATUS_TILESET_ERROR_WATCH_FORMAT = Resources.getString("status.tileset.error.watchformat_dir_message");
+    private static final String STATUS_TILESET_ERROR_RELOAD_FORMAT = Resources.getString("status.tileset.error.reloadformat_file_message");
     
     private ToolSemantic currentToolSemantic;
     
@@ -225,6 +241,39 @@ public class MapEditor implements ActionListener, MouseListener,
 
         mapEventAdapter = new MapEventAdapter();
 
+        // Reload tileset images when they are changed in another program
+        tilesetWatcher = new TilesetWatcher(new TilesetChangeListener() {
+            public void tilesetChanged(TilesetChangedEvent event) {
+                if (mapView != null) {
+                    mapView.repaint();
+                }
+                if (miniMap != null) {
+                    miniMap.refresh();
+                }
+                brushPreview.setBrush(currentBrush);
+            }
+
+            public void nameChanged(TilesetChangedEvent event,
+                                    String oldName, String newName) {
+            }
+
+            public void sourceChanged(TilesetChangedEvent event,
+                                      String oldSource, String newSource) {
+            }
+        }, new TilesetWatcher.ErrorListener() {
+            public void watchFailed(File dir, IOException e) {
+                statusLabel.setErrorText(String.format(
+                        STATUS_TILESET_ERROR_WATCH_FORMAT, dir,
+                        e.getLocalizedMessage()));
+            }
+
+            public void reloadFailed(File file, Exception e) {
+                statusLabel.setErrorText(String.format(
+                        STATUS_TILESET_ERROR_RELOAD_FORMAT, file,
+                        e.getLocalizedMessage()));
+            }
+        });
+
         // Create the actions
         saveAction = new SaveAction(this);
         saveAsAction = new SaveAsAction(this);
@@ -329,6 +378,10 @@ public class MapEditor implements ActionListener, MouseListener,
                 else if ("showGrid".equals(key)) {
                     mapView.setShowGrid(display.getBoolean("showGrid", false));
                 }
+                else if ("levelOfDetail".equals(key)) {
+                    mapView.setLevelOfDetailEnabled(
+                            display.getBoolean("levelOfDetail", true));
+                }
             }
         });
     }
@@ -676,10 +729,8 @@ public class MapEditor implements ActionListener, MouseListener,
         layerPopupMenu.add(showLayerPropertiesAction);
             
         //navigation and tool options
-        // TODO: the minimap is prohibitively slow, need to speed this up
-        // before it can be used
         miniMap = new MiniMapViewer();
-        //miniMap.setMainPanel(mapScrollPane);
+        miniMap.setMainPanel(mapScrollPane);
         JScrollPane miniMapSp = new JScrollPane();
         miniMapSp.getViewport().setView(miniMap);
         miniMapSp.setMinimumSize(new Dimension(0, 120));
@@ -754,7 +805,7 @@ public class MapEditor implements ActionListener, MouseListener,
         c.insets = new Insets(3, 0, 0, 0); c.weightx = 1; c.weighty = 0;
         c.fill = GridBagConstraints.BOTH;
         c.gridx = 0; c.gridy = 0;
-        //layerPanel.add(miniMapSp, c);
+        layerPanel.add(miniMapSp, c);
         c.weighty = 0; c.gridy += 1;
         layerPanel.add(sliderPanel, c);
         c.weighty = 1; c.gridy += 1;
@@ -1039,36 +1090,25 @@ public class MapEditor implements ActionListener, MouseListener,
                 case PS_PAINT:
                     paintEdit.setPresentationName(TOOL_PAINT);
                     if (layer instanceof TileLayer) {
-                        try {
-                            mapView.repaintRegion(
-                                    layer,currentBrush.doPaint(tile.x, tile.y));
-                            statusLabel.clearText();
-                        } catch(LayerLockedBrushException llx) {
-                            statusLabel.setErrorText(STATUS_PAINT_ERROR_LAYER_LOCKED);
-                        } catch(LayerInvisibleBrushException llx) {
-                            statusLabel.setErrorText(STATUS_PAINT_ERROR_LAYER_INVISIBLE);
-                        } catch(BrushException bx){
-                            statusLabel.setErrorText(STATUS_PAINT_ERROR_GENERAL);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
+                        stroke.lineTo(tile.x, tile.y);
+                        scheduleStroke();
                     }
                     break;
                 case PS_ERASE:
                     paintEdit.setPresentationName(TOOL_ERASE);
                     if (layer instanceof TileLayer) {
-                        ((TileLayer) layer).setTileAt(tile.x, tile.y, null);
-                        mapView.repaintRegion(layer,new Rectangle(
-                                tile.x, tile.y, 1, 1));
+                        stroke.lineTo(tile.x, tile.y);
+                        scheduleStroke();
                     }
                     break;
                 case PS_POUR:
-                    paintEdit = null;
                     if (layer instanceof TileLayer) {
-                        TileLayer tileLayer = (TileLayer) layer;
-                        Tile oldTile = tileLayer.getTileAt(tile.x, tile.y);
-                        pour(tileLayer, tile.x, tile.y, currentTile, oldTile);
-                        mapView.repaint();
+                        Rectangle affected = pour((TileLayer) layer,
+                                tile.x, tile.y, currentTile);
+                        if (affected != null) {
+                            mapView.repaintRegion(layer, affected);
+                            miniMap.refreshRegion(affected);
+                        }
                     }
                     break;
                 case PS_EYED:
@@ -1086,6 +1126,7 @@ public class MapEditor implements ActionListener, MouseListener,
                     layer.translate(translation.x, translation.y);
                     moveDist.translate(translation.x, translation.y);
                     mapView.repaint();
+                    miniMap.refresh();
                     statusLabel.setInfoText(String.format(STATUS_LAYER_MOVED_FORMAT, layer.getBounds().x, layer.getBounds().y));
                     break;
                 }
@@ -1106,9 +1147,9 @@ public class MapEditor implements ActionListener, MouseListener,
                                 (Math.max(limp.y, tile.y) - miny)+1);
 
                         if (event.isShiftDown()) {
-                            marqueeSelection.add(new Area(selRect));
+                            marqueeSelection.add(selRect);
                         } else if (event.isControlDown()) {
-                            marqueeSelection.subtract(new Area(selRect));
+                            marqueeSelection.subtract(selRect);
                         } else {
                             marqueeSelection.selectRegion(selRect);
                         }
@@ -1205,6 +1246,7 @@ public class MapEditor implements ActionListener, MouseListener,
         bMouseIsDragging = false;
         mousePressLocation = mapView.screenToTileCoords(layer,e.getX(), e.getY());
         mouseInitialPressLocation = mousePressLocation;
+        stroke.reset();
 
         if (mouseButton == MouseEvent.BUTTON2 ||
                 (mouseButton == MouseEvent.BUTTON1 &&
@@ -1220,7 +1262,6 @@ public class MapEditor implements ActionListener, MouseListener,
                                                 mouseButton, currentLayer);
                     }
                 case PS_ERASE:
-                case PS_POUR:
                     paintEdit =
                             new MapLayerEdit(layer, createLayerCopy(layer),
                                              null);
@@ -1231,7 +1272,7 @@ public class MapEditor implements ActionListener, MouseListener,
 
         if (currentPointerState == PS_MARQUEE) {
             boolean contains = false;
-            if (marqueeSelection != null && marqueeSelection.getSelectedArea().contains(tile.x,tile.y)) {
+            if (marqueeSelection != null && marqueeSelection.isSelected(tile.x, tile.y)) {
                 contains = true;
             }
             if (marqueeSelection == null && !contains) {
@@ -1260,6 +1301,11 @@ public class MapEditor implements ActionListener, MouseListener,
         final MapLayer layer = getCurrentLayer();
         final Point limp = mouseInitialPressLocation;
 
+        // Stamp what is left of the stroke before the brush and the edit
+        // are finished
+        flushStroke();
+        stroke.reset();
+
         if (currentPointerState == PS_MARQUEE) {
             // Uncommented to allow single tile selections
             /*
@@ -1376,6 +1422,85 @@ public class MapEditor implements ActionListener, MouseListener,
         bMouseIsDragging = false;
     }
 
+    /**
+     * Makes sure the pending positions of the current stroke are stamped
+     * with the next frame. All positions collected until then are painted
+     * together, so that only a single region needs to be repainted.
+     */
+    private void scheduleStroke() {
+        if (strokeTimer == null) {
+            strokeTimer = new Timer(STROKE_FRAME_INTERVAL,
+                    new ActionListener() {
+                        public void actionPerformed(ActionEvent e) {
+                            flushStroke();
+                        }
+                    });
+            strokeTimer.setRepeats(false);
+        }
+        if (!strokeTimer.isRunning()) {
+            strokeTimer.start();
+        }
+    }
+
+    /**
+     * Stamps all pending positions of the current stroke with the current
+     * brush, or erases them when using the eraser, and repaints the union
+     * of the affected areas.
+     */
+    private void flushStroke() {
+        if (strokeTimer != null) {
+            strokeTimer.stop();
+        }
+        if (!stroke.hasPending()) {
+            return;
+        }
+
+        final Point[] positions = stroke.takePending();
+        final MapLayer layer = getCurrentLayer();
+        if (!(layer instanceof TileLayer)) {
+            return;
+        }
+
+        Rectangle damage = null;
+        if (currentPointerState == PS_ERASE) {
+            TileLayer tileLayer = (TileLayer) layer;
+            for (Point p : positions) {
+                tileLayer.setTileAt(p.x, p.y, null);
+                damage = union(damage, new Rectangle(p.x, p.y, 1, 1));
+            }
+        } else if (currentPointerState == PS_PAINT) {
+            try {
+                for (Point p : positions) {
+                    damage = union(damage, currentBrush.doPaint(p.x, p.y));
+                }
+                statusLabel.clearText();
+            } catch(LayerLockedBrushException llx) {
+                statusLabel.setErrorText(STATUS_PAINT_ERROR_LAYER_LOCKED);
+            } catch(LayerInvisibleBrushException llx) {
+                statusLabel.setErrorText(STATUS_PAINT_ERROR_LAYER_INVISIBLE);
+            } catch(BrushException bx){
+                statusLabel.setErrorText(STATUS_PAINT_ERROR_GENERAL);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (damage != null) {
+            mapView.repaintRegion(layer, damage);
+            miniMap.refreshRegion(damage);
+        }
+    }
+
+    private static Rectangle union(Rectangle damage, Rectangle affected) {
+        if (affected == null) {
+            return damage;
+        } else if (damage == null) {
+            return new Rectangle(affected);
+        }
+        damage.add(affected);
+        return damage;
+    }
+
     public void mouseMoved(MouseEvent e) {
         // Update state of mouse buttons
         bMouseIsDown = e.getButton() != MouseEvent.NOBUTTON;
@@ -1545,7 +1670,8 @@ public class MapEditor implements ActionListener, MouseListener,
             }
         } else if (command.equals(Resources.getString("menu.tilesets.manager"))) {
             if (currentMap != null) {
-                TilesetManager manager = new TilesetManager(appFrame, currentMap);
+                TilesetManager manager = new TilesetManager(appFrame, currentMap,
+                        undoSupport);
                 manager.setVisible(true);
             }
         } else if (command.equals(Resources.getString("menu.map.properties"))) {
@@ -1675,6 +1801,7 @@ public class MapEditor implements ActionListener, MouseListener,
             Rectangle viewRect = mapViewport.getViewRect();
             relativeMidX = Math.min(1, (viewRect.x + viewRect.width / 2) / (float)mapView.getWidth());
             relativeMidY = Math.min(1, (viewRect.y + viewRect.height / 2) / (float)mapView.getHeight());
+            miniMap.repaint();
         }
     }
 
@@ -1690,6 +1817,16 @@ public class MapEditor implements ActionListener, MouseListener,
         return mapView;
     }
 
+    /**
+     * Returns the minimap. Like {@link #getMapView()}, this is used by the
+     * {@link UndoHandler} to update the minimap after an undo or redo.
+     *
+     * @return the minimap.
+     */
+    public MiniMapViewer getMiniMap() {
+        return miniMap;
+    }
+
     /**
      * Called when the editor is exiting.
      */
@@ -1710,6 +1847,8 @@ public class MapEditor implements ActionListener, MouseListener,
         mainSplit.save();
         paletteSplit.save();
         rightSplit.save();        
+
+        tilesetWatcher.close();
     }
 
     private void showAboutDialog() {
@@ -1827,6 +1966,7 @@ public class MapEditor implements ActionListener, MouseListener,
             transEdit.end(createLayerCopy(currentLayer));
             undoSupport.postEdit(transEdit);
             mapView.repaint();
+            miniMap.refresh();
         }
     }
 
@@ -1991,15 +2131,16 @@ public class MapEditor implements ActionListener, MouseListener,
             if (currentMap != null && marqueeSelection != null) {
                 MapLayer cl = getCurrentLayer();
                 if (cl instanceof TileLayer) {
-                    clipboardLayer = new TileLayer(
-                            marqueeSelection.getSelectedAreaBounds(), cl.getTileWidth(), cl.getTileHeight());
-                } else if (getCurrentLayer() instanceof ObjectGroup) {
+                    ArrayList<TileLayer> layers = new ArrayList<TileLayer>();
+                    layers.add((TileLayer) cl);
+                    copyToClipboard(layers);
+                } else if (cl instanceof ObjectGroup) {
+                    clipboardRegion = null;
                     clipboardLayer = new ObjectGroup(
                             marqueeSelection.getSelectedAreaBounds());
+                    clipboardLayer.maskedCopyFrom(
+                            cl, marqueeSelection.getSelectedArea());
                 }
-                clipboardLayer.maskedCopyFrom(
-                        getCurrentLayer(),
-                        marqueeSelection.getSelectedArea());
             }
         }
     }
@@ -2015,18 +2156,15 @@ public class MapEditor implements ActionListener, MouseListener,
         public void actionPerformed(ActionEvent evt) {
             //FIXME: only works for TileLayers
             if (currentMap != null && marqueeSelection != null) {
-                MapLayer cl = getCurrentLayer();
-                clipboardLayer = new TileLayer(
-                        marqueeSelection.getSelectedAreaBounds(), cl.getTileWidth(), cl.getTileHeight());
+                ArrayList<TileLayer> layers = new ArrayList<TileLayer>();
                 ListIterator<MapLayer> itr = currentMap.getLayers();
                 while(itr.hasNext()) {
-                    MapLayer layer = (MapLayer) itr.next();
+                    MapLayer layer = itr.next();
                     if (layer instanceof TileLayer) {
-                        clipboardLayer.maskedMergeOnto(
-                                layer,
-                                marqueeSelection.getSelectedArea());
+                        layers.add((TileLayer) layer);
                     }
                 }
+                copyToClipboard(layers);
             }
         }
     }
@@ -2043,29 +2181,24 @@ public class MapEditor implements ActionListener, MouseListener,
             if (currentMap != null && marqueeSelection != null) {
                 MapLayer ml = getCurrentLayer();
 
-                if (getCurrentLayer() instanceof TileLayer) {
-                    clipboardLayer = new TileLayer(
-                            marqueeSelection.getSelectedAreaBounds(), ml.getTileWidth(), ml.getTileHeight());
-                } else if (getCurrentLayer() instanceof ObjectGroup) {
+                if (ml instanceof TileLayer) {
+                    ArrayList<TileLayer> layers = new ArrayList<TileLayer>();
+                    layers.add((TileLayer) ml);
+                    copyToClipboard(layers);
+                } else if (ml instanceof ObjectGroup) {
+                    clipboardRegion = null;
                     clipboardLayer = new ObjectGroup(
                             marqueeSelection.getSelectedAreaBounds());
+                    clipboardLayer.maskedCopyFrom(
+                            ml, marqueeSelection.getSelectedArea());
                 }
-                clipboardLayer.maskedCopyFrom(
-                        ml, marqueeSelection.getSelectedArea());
 
                 Rectangle area = marqueeSelection.getSelectedAreaBounds();
-                Area mask = marqueeSelection.getSelectedArea();
                 if (ml instanceof TileLayer) {
-                    TileLayer tl = (TileLayer)ml;
-                    for (int i = area.y; i < area.height+area.y; i++) {
-                        for (int j = area.x; j < area.width + area.x; j++){
-                            if (mask.contains(j,i)) {
-                                tl.setTileAt(j, i, null);
-                            }
-                        }
-                    }
+                    fillSelection((TileLayer) ml, null);
                 }
                 mapView.repaintRegion(ml,area);
+                miniMap.refreshRegion(area);
             }
         }
     }
@@ -2079,78 +2212,148 @@ public class MapEditor implements ActionListener, MouseListener,
                      Resources.getString("action.paste.tooltip"));
         }
         public void actionPerformed(ActionEvent evt) {
-            if (currentMap != null && clipboardLayer != null) {
-                Vector<MapLayer> layersBefore = currentMap.getLayerVector();
-                MapLayer ml = createLayerCopy(clipboardLayer);
+            if (currentMap == null) {
+                return;
+            }
+
+            ArrayList<MapLayer> pasted = new ArrayList<MapLayer>();
+            ArrayList<TileSet> addedTilesets = new ArrayList<TileSet>();
+            try {
+                if (clipboardLayer != null) {
+                    pasted.add(createLayerCopy(clipboardLayer));
+                } else {
+                    TileRegion region = getClipboardRegion();
+                    if (region != null) {
+                        pasted.addAll(region.paste(currentMap, addedTilesets));
+                    }
+                }
+            } catch (IOException e) {
+                reportPasteError(e);
+                return;
+            }
+            if (pasted.isEmpty()) {
+                return;
+            }
+
+            // Tilesets added by the paste are undone together with the
+            // pasted layers
+            CompoundEdit edit = new CompoundEdit();
+            for (TileSet set : addedTilesets) {
+                edit.addEdit(new AddTilesetEdit(currentMap, set));
+            }
+            Vector<MapLayer> layersBefore =
+                    new Vector<MapLayer>(currentMap.getLayerVector());
+            for (MapLayer ml : pasted) {
                 ml.setName(Resources.getString("general.layer.layer")+" " + currentMap.getTotalLayers());
                 currentMap.addLayer(ml);
-                undoSupport.postEdit(
-                        new MapLayerStateEdit(currentMap, layersBefore,
-                            new Vector<MapLayer>(currentMap.getLayerVector()),
-                            "Paste Selection"));
             }
+            edit.addEdit(
+                    new MapLayerStateEdit(currentMap, layersBefore,
+                        new Vector<MapLayer>(currentMap.getLayerVector()),
+                        "Paste Selection"));
+            edit.end();
+            undoSupport.postEdit(edit);
         }
     }
 
-    private void pour(TileLayer layer, int x, int y,
-            Tile newTile, Tile oldTile) {
-        if (newTile == oldTile || !layer.canEdit()) return;
+    /**
+     * Puts the selected part of the given tile layers on the clipboard. The
+     * region is also put on the system clipboard, so that it can be pasted
+     * in other instances of the editor.
+     */
+    private void copyToClipboard(ArrayList<TileLayer> layers) {
+        clipboardLayer = null;
+        clipboardRegion = TileRegion.copy(layers, marqueeSelection.getMask());
 
-        Rectangle area;
-        TileLayer before = (TileLayer) createLayerCopy(layer);
-        TileLayer after;
+        Clipboard clipboard = getSystemClipboard();
+        if (clipboard != null && clipboardRegion != null) {
+            try {
+                clipboard.setContents(
+                        new TileRegionTransferable(clipboardRegion), null);
+            } catch (IllegalStateException e) {
+                // The clipboard is in use, the region is still available
+                // within this editor
+            }
+        }
+    }
 
-        // Check that the copy was succesfully created
-        if (before == null) {
-            return;
+    /**
+     * Returns the region on the system clipboard, or the last region copied
+     * within this editor when the system clipboard doesn't contain one.
+     *
+     * @throws IOException when the system clipboard contains a region that
+     *         could not be read
+     */
+    private TileRegion getClipboardRegion() throws IOException {
+        Clipboard clipboard = getSystemClipboard();
+        if (clipboard != null) {
+            try {
+                Transferable contents = clipboard.getContents(null);
+                TileRegion region = TileRegionTransferable.getRegion(contents);
+                if (region != null) {
+                    return region;
+                }
+            } catch (IllegalStateException e) {
+                // The clipboard is in use
+            }
         }
+        return clipboardRegion;
+    }
 
-        if (marqueeSelection == null) {
-            area = new Rectangle(new Point(x, y));
-            Stack<Point> stack = new Stack<Point>();
+    private void reportPasteError(IOException e) {
+        String msg = e.getLocalizedMessage() + (e.getCause() != null ?
+                "\nCause: " + e.getCause().getLocalizedMessage() : "");
+        JOptionPane.showMessageDialog(appFrame, msg,
+                Resources.getString("action.paste.error.title"),
+                JOptionPane.ERROR_MESSAGE);
+        statusLabel.setErrorText(e.getLocalizedMessage());
+    }
 
-            stack.push(new Point(x, y));
-            while (!stack.empty()) {
-                // Remove the next tile from the stack
-                Point p = stack.pop();
+    private static Clipboard getSystemClipboard() {
+        try {
+            return Toolkit.getDefaultToolkit().getSystemClipboard();
+        } catch (HeadlessException e) {
+            return null;
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
 
-                // If the tile it meets the requirements, set it and push its
-                // neighbouring tiles on the stack.
-                if (layer.contains(p.x, p.y) &&
-                        layer.getTileAt(p.x, p.y) == oldTile)
-                {
-                    layer.setTileAt(p.x, p.y, newTile);
-                    area.add(p);
+    /**
+     * Fills the area of connected equal tiles around the given location
+     * with a new tile. When there is a selection, the fill stays within it.
+     *
+     * @return the affected area, or <code>null</code> when nothing changed
+     */
+    private Rectangle pour(TileLayer layer, int x, int y, Tile newTile) {
+        final Tile oldTile = layer.getTileAt(x, y);
+        final SelectionMask mask = marqueeSelection != null ?
+                marqueeSelection.getMask() : null;
 
-                    stack.push(new Point(p.x, p.y - 1));
-                    stack.push(new Point(p.x, p.y + 1));
-                    stack.push(new Point(p.x + 1, p.y));
-                    stack.push(new Point(p.x - 1, p.y));
-                }
-            }
-        } else {
-            if (marqueeSelection.getSelectedArea().contains(x, y)) {
-                area = marqueeSelection.getSelectedAreaBounds();
-                for (int i = area.y; i < area.height + area.y; i++) {
-                    for (int j = area.x; j < area.width + area.x; j++) {
-                        if (marqueeSelection.getSelectedArea().contains(j, i)){
-                            layer.setTileAt(j, i, newTile);
-                        }
-                    }
-                }
-            } else {
-                return;
-            }
+        int[] spans = FloodFill.fill(layer, x, y, newTile, mask);
+        if (spans.length == 0) {
+            return null;
         }
 
-        Rectangle bounds = new Rectangle(
-                area.x, area.y, area.width + 1, area.height + 1);
-        after = new TileLayer(bounds, layer.getTileWidth(), layer.getTileHeight());
-        after.copyFrom(layer);
+        undoSupport.postEdit(new FillEdit(layer, spans, oldTile, newTile));
+        return FloodFill.getBounds(spans);
+    }
 
-        MapLayerEdit mle = new MapLayerEdit(layer, before, after);
-        mle.setPresentationName(TOOL_FILL);
-        undoSupport.postEdit(mle);
+    /**
+     * Sets all selected locations of the given layer to the given tile, one
+     * run of selected tiles at a time.
+     */
+    private void fillSelection(TileLayer layer, Tile tile) {
+        SelectionMask mask = marqueeSelection.getMask();
+        Rectangle area = mask.getBounds();
+        for (int y = area.y; y < area.y + area.height; y++) {
+            int[] row = mask.getRow(y);
+            for (int i = 0; i < row.length; i += 2) {
+                for (int x = row[i]; x < row[i + 1]; x++) {
+                    layer.setTileAt(x, y, tile);
+                }
+            }
+        }
     }
 
     public void resetBrush() {
@@ -2291,6 +2494,11 @@ public class MapEditor implements ActionListener, MouseListener,
         }
         marqueeSelection = null;
 
+        // The tilesets of the closed map may be used by the next one
+        if (currentMap != null && currentMap != newMap) {
+            TilesetRegistry.getInstance().release(currentMap);
+        }
+
         currentMap = newMap;
         boolean mapLoaded = currentMap != null;
 
@@ -2301,6 +2509,7 @@ public class MapEditor implements ActionListener, MouseListener,
 
         tabbedTilesetsPane.setMap(currentMap);
         parallaxEditorPanel.setCurrentMap(currentMap);
+        tilesetWatcher.setMap(currentMap);
         
         if (!mapLoaded) {
             mapEventAdapter.fireEvent(MapEventAdapter.ME_MAPINACTIVE);
@@ -2326,6 +2535,8 @@ public class MapEditor implements ActionListener, MouseListener,
             mapView.setGridColor(new Color(display.getInt("gridColor",
                     MapView.DEFAULT_GRID_COLOR.getRGB())));
             mapView.setShowGrid(display.getBoolean("showGrid", false));
+            mapView.setLevelOfDetailEnabled(
+                    display.getBoolean("levelOfDetail", true));
             JViewport mapViewport = new JViewport();
             mapViewport.setView(mapView);
             mapViewport.addChangeListener(this);
@@ -2370,11 +2581,9 @@ public class MapEditor implements ActionListener, MouseListener,
         zoomNormalAction.setEnabled(mapLoaded && mapView.getZoomLevel() !=
                 MapView.ZOOM_NORMALSIZE);
 
-        /*
-        if (miniMap != null && currentMap != null) {
-            miniMap.setView(MapView.createViewforMap(currentMap));
+        if (miniMap != null) {
+            miniMap.setMap(currentMap);
         }
-        */
 
         undoHandler.discardAllEdits();
         updateLayerTable();
@@ -18,6 +18,7 @@ import java.awt.Graphics2D;
 import java.awt.event.ActionEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import javax.imageio.ImageIO;
 import javax.swing.AbstractAction;
@@ -27,6 +28,7 @@ import javax.swing.KeyStroke;
 import javax.swing.filechooser.FileFilter;
 
 import tiled.core.Map;
+import tiled.io.StripedPNGWriter;
 import tiled.mapeditor.MapEditor;
 import tiled.mapeditor.Resources;
 import tiled.mapeditor.util.ConfirmableFileFilter;
@@ -48,6 +50,9 @@ public class SaveAsImageAction extends AbstractAction
     private static final String ACTION_TOOLTIP = Resources.getString("action.map.saveasimage.tooltip");
     private static final String DIALOG_TITLE = Resources.getString("dialog.saveasimage.title");
 
+    /** The number of pixels rendered at once when saving as PNG. */
+    private static final int STRIP_PIXELS = 4 * 1024 * 1024;
+
     public SaveAsImageAction(MapEditor editor) {
         super(ACTION_NAME);
 
@@ -111,6 +116,11 @@ public class SaveAsImageAction extends AbstractAction
         final String format = filename.substring(lastDot + 1);
 
         try {
+            if ("png".equalsIgnoreCase(format)) {
+                saveStripedPNG(myView, imgSize, new File(filename));
+                return;
+            }
+
             BufferedImage img = new BufferedImage(
                     imgSize.width, imgSize.height, BufferedImage.TYPE_INT_RGB);
             Graphics2D g = img.createGraphics();
@@ -126,6 +136,12 @@ public class SaveAsImageAction extends AbstractAction
                         "Error while saving map image",
                         JOptionPane.ERROR_MESSAGE);
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            JOptionPane.showMessageDialog(appFrame,
+                    "Error while saving " + filename + ": " + e.toString(),
+                    "Error while saving map image",
+                    JOptionPane.ERROR_MESSAGE);
         } catch (OutOfMemoryError memoryError) {
             JOptionPane.showMessageDialog(appFrame,
                     "Out of memory while creating image. Try increasing\n" +
@@ -135,6 +151,53 @@ public class SaveAsImageAction extends AbstractAction
         }
     }
 
+    /**
+     * Renders the map in horizontal strips, passing each strip on to the
+     * PNG encoder before rendering the next. This way only a single strip
+     * needs to be kept in memory, regardless of the size of the map.
+     *
+     * @param view    the view used to render the map
+     * @param imgSize the size of the whole image
+     * @param file    the file to save the image to
+     * @throws IOException when writing the file fails
+     */
+    private static void saveStripedPNG(MapView view, Dimension imgSize,
+                                       File file) throws IOException {
+        final int stripHeight = Math.max(1,
+                Math.min(imgSize.height, STRIP_PIXELS / imgSize.width));
+        final BufferedImage strip = new BufferedImage(
+                imgSize.width, stripHeight, BufferedImage.TYPE_INT_RGB);
+
+        // The stream is opened first, so that it is closed as well when
+        // creating the writer fails
+        FileOutputStream out = new FileOutputStream(file);
+        StripedPNGWriter writer = null;
+        boolean complete = false;
+        try {
+            writer = new StripedPNGWriter(out, imgSize.width, imgSize.height);
+            for (int y = 0; y < imgSize.height; y += stripHeight) {
+                final int rows = Math.min(stripHeight, imgSize.height - y);
+
+                Graphics2D g = strip.createGraphics();
+                g.translate(0, -y);
+                g.setClip(0, y, imgSize.width, rows);
+                view.paint(g);
+                g.dispose();
+
+                writer.writeRows(strip, 0, rows);
+            }
+            writer.close();
+            complete = true;
+        } finally {
+            if (!complete) {
+                if (writer != null) {
+                    writer.abort();
+                }
+                out.close();
+            }
+        }
+    }
+
     public class BasicFileFilter extends ConfirmableFileFilter
     {
         private final String extension;
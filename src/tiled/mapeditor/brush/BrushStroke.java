@@ -0,0 +1,107 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.brush;
+
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of the positions a brush should be stamped at during a single
+ * stroke. Mouse events are often several tiles apart when dragging quickly,
+ * so the positions in between are filled in along a straight line. Each
+ * position is only stamped once per stroke, and positions are collected
+ * until the editor takes them to paint them all at once.
+ *
+ * @version $Id$
+ */
+public class BrushStroke
+{
+    private final Set<Point> stamped = new HashSet<Point>();
+    private final List<Point> pending = new ArrayList<Point>();
+    private Point last;
+
+    /**
+     * Starts a new stroke, forgetting all positions of the previous one.
+     */
+    public void reset() {
+        stamped.clear();
+        pending.clear();
+        last = null;
+    }
+
+    /**
+     * Continues the stroke to the given tile position. All positions on the
+     * line from the previous position that were not stamped yet during this
+     * stroke are added to the pending positions.
+     *
+     * @param x the tile x-coordinate
+     * @param y the tile y-coordinate
+     */
+    public void lineTo(int x, int y) {
+        if (last == null) {
+            add(x, y);
+            last = new Point(x, y);
+            return;
+        }
+
+        // Bresenham's line algorithm, skipping the starting point which was
+        // added before
+        int cx = last.x, cy = last.y;
+        final int dx = Math.abs(x - cx), dy = -Math.abs(y - cy);
+        final int sx = cx < x ? 1 : -1, sy = cy < y ? 1 : -1;
+        int err = dx + dy;
+
+        while (cx != x || cy != y) {
+            final int e2 = 2 * err;
+            if (e2 >= dy) {
+                err += dy;
+                cx += sx;
+            }
+            if (e2 <= dx) {
+                err += dx;
+                cy += sy;
+            }
+            add(cx, cy);
+        }
+        last.setLocation(x, y);
+    }
+
+    private void add(int x, int y) {
+        Point p = new Point(x, y);
+        if (stamped.add(p)) {
+            pending.add(p);
+        }
+    }
+
+    /**
+     * Returns whether there are positions waiting to be stamped.
+     */
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Returns the positions waiting to be stamped, in stroke order, and
+     * clears them.
+     *
+     * @return the pending positions
+     */
+    public Point[] takePending() {
+        Point[] positions = pending.toArray(new Point[pending.size()]);
+        pending.clear();
+        return positions;
+    }
+}
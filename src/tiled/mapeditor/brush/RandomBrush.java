@@ -17,6 +17,7 @@ import java.awt.geom.Area;
 
 import tiled.core.MultilayerPlane;
 import tiled.core.TileLayer;
+import tiled.mapeditor.selection.SelectionMask;
 import tiled.util.MersenneTwister;
 
 /**
@@ -26,6 +27,7 @@ public class RandomBrush extends ShapeBrush
 {
     private final MersenneTwister mt;
     private double ratio = 0.5;
+    private int[] randoms = new int[0];
 
     public RandomBrush(Area shape) {
         super(shape);
@@ -51,8 +53,11 @@ public class RandomBrush extends ShapeBrush
     /**
      * Uses the MersenneTwister to fill in a random amount of the area
      * of the brush. Uses the formula: x % 101 &lt;= 100*ratio where, 'x'
-     * is a random number, to determine if a specific tile should be
-     * painted or not
+     * is an unsigned random number, to determine if a specific tile should
+     * be painted or not. The random numbers for a run of cells are drawn
+     * at once, and consecutive painted cells are set as a single run. Only
+     * the part of the stamp within the width and height of the shape is
+     * painted, while a {@link ShapeBrush} also paints its edges.
      *
      * @see ShapeBrush#doPaint
      * @return a Rectangle of the bounds of the area that was modified
@@ -65,16 +70,38 @@ public class RandomBrush extends ShapeBrush
         int centerx = x - shapeBounds.width / 2;
         int centery = y - shapeBounds.height / 2;
 
+        final SelectionMask mask = getStamp();
+        final double threshold = 100 * ratio;
+
         for (int i = 0; i < numLayers; i++) {
             TileLayer tl = (TileLayer) affectedMp.getLayer(initLayer - i);
             if (tl != null) {
-                for (int cy = 0; cy <= shapeBounds.height; cy++) {
-                    for (int cx = 0; cx < shapeBounds.width; cx++) {
-                        if (shape.contains(cx, cy) &&
-                                mt.genrand() % 101 <= 100 * ratio)
-                        {
-                            tl.setTileAt(
-                                    cx + centerx, cy + centery, paintTile);
+                final int height =
+                        Math.min(mask.getHeight(), shapeBounds.height + 1);
+                for (int cy = 0; cy < height; cy++) {
+                    final int[] row = mask.getRow(cy);
+                    for (int r = 0; r < row.length; r += 2) {
+                        final int length = Math.min(
+                                row[r + 1], shapeBounds.width) - row[r];
+                        if (length <= 0) {
+                            break;
+                        }
+                        if (randoms.length < length) {
+                            randoms = new int[length];
+                        }
+                        mt.genrand(randoms, 0, length);
+
+                        int runStart = -1;
+                        for (int k = 0; k <= length; k++) {
+                            final boolean paint = k < length &&
+                                (randoms[k] & 0xffffffffL) % 101 <= threshold;
+                            if (paint && runStart < 0) {
+                                runStart = k;
+                            } else if (!paint && runStart >= 0) {
+                                tl.fillRow(row[r] + runStart + centerx,
+                                        cy + centery, k - runStart, paintTile);
+                                runStart = -1;
+                            }
                         }
                     }
                 }
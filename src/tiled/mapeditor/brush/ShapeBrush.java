@@ -19,6 +19,7 @@ import tiled.core.LayerLockedException;
 import tiled.core.Tile;
 import tiled.core.TileLayer;
 import tiled.core.MultilayerPlane;
+import tiled.mapeditor.selection.SelectionMask;
 import tiled.view.MapView;
 
 /**
@@ -29,6 +30,10 @@ public class ShapeBrush extends AbstractBrush
     protected Area shape;
     protected Tile paintTile;
 
+    // The cells covered by the shape, compiled when the shape changes
+    private SelectionMask stamp;
+    private Area stampShape;
+
     public ShapeBrush() {
     }
 
@@ -41,6 +46,8 @@ public class ShapeBrush extends AbstractBrush
         if (sb instanceof ShapeBrush) {
             shape = ((ShapeBrush) sb).shape;
             paintTile = ((ShapeBrush) sb).paintTile;
+            stamp = ((ShapeBrush) sb).stamp;
+            stampShape = ((ShapeBrush) sb).stampShape;
         }
     }
 
@@ -109,6 +116,26 @@ public class ShapeBrush extends AbstractBrush
         super.startPaint(mp, x, y, button, layer);
     }
 
+    /**
+     * Returns the cells covered by the shape of this brush, as runs of cells
+     * per row. The runs are computed once for each new shape, so that
+     * painting does not need to test the shape cell by cell. A cell is
+     * covered when the shape contains its top left corner.
+     *
+     * @return the stamp of this brush
+     */
+    protected SelectionMask getStamp() {
+        if (stamp == null || stampShape != shape) {
+            Rectangle shapeBounds = shape.getBounds();
+            SelectionMask mask = new SelectionMask(
+                    shapeBounds.width + 2, shapeBounds.height + 2);
+            mask.add(shape);
+            stamp = mask;
+            stampShape = shape;
+        }
+        return stamp;
+    }
+
     /**
      * Paints the entire area of the brush with the set tile. This brush can
      * affect several layers.
@@ -121,6 +148,7 @@ public class ShapeBrush extends AbstractBrush
         Rectangle shapeBounds = shape.getBounds();
         int centerx = x - shapeBounds.width / 2;
         int centery = y - shapeBounds.height / 2;
+        final SelectionMask mask = getStamp();
         
         // check if all layers are editable
         for (int layer = 0; layer < numLayers; layer++) {
@@ -139,16 +167,14 @@ public class ShapeBrush extends AbstractBrush
         
         super.doPaint(x, y);
 
-        // FIXME: This loop does not take all edges into account
-
         for (int layer = 0; layer < numLayers; layer++) {
             TileLayer tl = (TileLayer) affectedMp.getLayer(initLayer + layer);
             if (tl != null) {
-                for (int i = 0; i <= shapeBounds.height + 1; i++) {
-                    for (int j = 0; j <= shapeBounds.width + 1; j++) {
-                        if (shape.contains(j, i)) {
-                            tl.setTileAt(j + centerx, i + centery, paintTile);
-                        }
+                for (int i = 0; i < mask.getHeight(); i++) {
+                    final int[] row = mask.getRow(i);
+                    for (int r = 0; r < row.length; r += 2) {
+                        tl.fillRow(row[r] + centerx, i + centery,
+                                row[r + 1] - row[r], paintTile);
                     }
                 }
             }
@@ -55,6 +55,7 @@ public class ConfigurationDialog extends JDialog
     private JComboBox coPixelFormat;
     private JComboBox coByteOrder;
     private JCheckBox cbGridAA;
+    private JCheckBox cbLevelOfDetail;
     //private JColorChooser gridColor;
 
     private static final Preferences prefs = TiledConfiguration.root();
@@ -71,6 +72,7 @@ public class ConfigurationDialog extends JDialog
     private static final String EMBED_IMAGES_CHECKBOX = Resources.getString("dialog.preferences.embed.images.checkbox");
     private static final String REPORT_IO_WARNINGS_CHECKBOX = Resources.getString("dialog.preferences.report.io.warnings.checkbox");
     private static final String AUTO_OPEN_LAST_FILE_CHECKBOX = Resources.getString("dialog.preferences.report.io.autoopenlast.checkbox");
+    private static final String LEVEL_OF_DETAIL_CHECKBOX = Resources.getString("dialog.preferences.levelofdetail.checkbox");
     private static final String EMBED_IN_TILES_CHECKBOX = Resources.getString("dialog.preferences.embed.in.tiles.checkbox");
     private static final String EMBED_IN_SET_CHECKBOX = Resources.getString("dialog.preferences.embed.in.set.checkbox");
     private static final String IMAGE_FORMAT_LABEL = Resources.getString("dialog.preferences.image.format.combobox");
@@ -130,6 +132,7 @@ public class ConfigurationDialog extends JDialog
         cbEmbedImages = new JCheckBox(EMBED_IMAGES_CHECKBOX);
         cbReportIOWarnings = new JCheckBox(REPORT_IO_WARNINGS_CHECKBOX);
         cbAutoOpenLastFile = new JCheckBox(AUTO_OPEN_LAST_FILE_CHECKBOX);
+        cbLevelOfDetail = new JCheckBox(LEVEL_OF_DETAIL_CHECKBOX);
         rbEmbedInTiles = new JRadioButton(EMBED_IN_TILES_CHECKBOX);
         rbEmbedInSet = new JRadioButton(EMBED_IN_SET_CHECKBOX);
         lbImageFormat = new JLabel(IMAGE_FORMAT_LABEL);
@@ -181,6 +184,9 @@ public class ConfigurationDialog extends JDialog
         c.gridy = 2;
         c.gridx = 0;
         generalOps.add(cbAutoOpenLastFile, c);
+        c.gridy = 3;
+        c.gridx = 0;
+        generalOps.add(cbLevelOfDetail, c);
 
         /* GENERAL SAVING OPTIONS */
         JPanel generalSavingOps = new VerticalStaticJPanel();
@@ -369,6 +375,13 @@ public class ConfigurationDialog extends JDialog
             }
         });
 
+        cbLevelOfDetail.addItemListener(new ItemListener() {
+            public void itemStateChanged(ItemEvent itemEvent) {
+                displayPrefs.putBoolean("levelOfDetail",
+                        cbLevelOfDetail.isSelected());
+            }
+        });
+
         cbGridAA.addItemListener(new ItemListener() {
             public void itemStateChanged(ItemEvent itemEvent) {
                 displayPrefs.putBoolean("gridAntialias", cbGridAA.isSelected());
@@ -435,6 +448,7 @@ public class ConfigurationDialog extends JDialog
         cbGridAA.setSelected(displayPrefs.getBoolean("gridAntialias", true));
         cbReportIOWarnings.setSelected(ioPrefs.getBoolean("reportWarnings", false));
         cbAutoOpenLastFile.setSelected(ioPrefs.getBoolean("autoOpenLast", false));
+        cbLevelOfDetail.setSelected(displayPrefs.getBoolean("levelOfDetail", true));
         
         coImageFormat.setSelectedItem(ImageHelper.ImageFormat.valueOf(savingPrefs.get("imageFormat", "PNG"), ImageHelper.ImageFormat.PNG));
         coPixelFormat.setSelectedItem(ImageHelper.PixelFormat.valueOf(savingPrefs.get("pixelFormat", "A1R5G5B5"), ImageHelper.PixelFormat.A1R5G5B5));
@@ -16,9 +16,8 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
-import java.awt.Image;
 import java.awt.event.*;
-import java.awt.image.PixelGrabber;
+import java.awt.image.BufferedImage;
 import javax.swing.*;
 
 import tiled.mapeditor.Resources;
@@ -28,7 +27,7 @@ import tiled.mapeditor.widget.VerticalStaticJPanel;
 public class ImageColorDialog extends JDialog implements MouseListener,
        MouseMotionListener
 {
-    private Image image;
+    private BufferedImage image;
     private JButton cancelButton;
     private Color color;
     private JPanel colorPanel;
@@ -39,18 +38,10 @@ public class ImageColorDialog extends JDialog implements MouseListener,
     private static final String CANCEL_BUTTON = Resources.getString("general.button.cancel");
     /* -- */
 
-    public ImageColorDialog(Image image) {
+    public ImageColorDialog(BufferedImage image) {
         this.image = image;
-        PixelGrabber pg = new PixelGrabber(image, 0, 0, -1, -1, true);
-
-        try {
-            pg.grabPixels();
-        }
-        catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
-        pixels = (int[]) pg.getPixels();
+        pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(),
+                null, 0, image.getWidth());
 
         init();
         pack();
@@ -136,9 +127,9 @@ public class ImageColorDialog extends JDialog implements MouseListener,
     }
 
     private void grabColor(int x, int y) {
-        int w = image.getWidth(null);
-        int h = image.getHeight(null);
-        if (pixels != null && (x < w && y < h)) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (x >= 0 && y >= 0 && x < w && y < h) {
             int r = pixels[y * w + x] >> 16 & 0xff;
             int g = pixels[y * w + x] >> 8 & 0xff;
             int b = pixels[y * w + x] & 0xff;
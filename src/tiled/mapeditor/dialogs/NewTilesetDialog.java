@@ -50,6 +50,7 @@ public class NewTilesetDialog extends JDialog implements ChangeListener
     private JLabel tilebmpFileLabel, cutterLabel, tileHeightLabel;
     private JCheckBox tilebmpCheck;
     private JCheckBox transCheck;
+    private JCheckBox mergeCheck;
     private JComboBox cutterBox;
     private JButton previewButton;
     private JButton browseButton;
@@ -73,6 +74,7 @@ public class NewTilesetDialog extends JDialog implements ChangeListener
     private static final String UNTITLED_FILE = Resources.getString("general.file.untitled");
     private static final String TILESET_IMG_LABEL = Resources.getString("dialog.newtileset.tilesetimgref.label");
     private static final String USE_TRANS_COLOR_LABEL = Resources.getString("dialog.newtileset.usetransparentcolor.label");
+    private static final String MERGE_DUPLICATES_LABEL = Resources.getString("dialog.newtileset.mergeduplicates.label");
     private static final String OK_BUTTON = Resources.getString("general.button.ok");
     private static final String PREVIEW_BUTTON = Resources.getString("general.button.preview");
     private static final String CANCEL_BUTTON = Resources.getString("general.button.cancel");
@@ -139,6 +141,8 @@ public class NewTilesetDialog extends JDialog implements ChangeListener
         transCheck = new JCheckBox(USE_TRANS_COLOR_LABEL);
         transCheck.addChangeListener(this);
 
+        mergeCheck = new JCheckBox(MERGE_DUPLICATES_LABEL);
+
         JButton okButton = new JButton(OK_BUTTON);
         previewButton = new JButton(PREVIEW_BUTTON);
         JButton cancelButton = new JButton(CANCEL_BUTTON);
@@ -229,6 +233,8 @@ public class NewTilesetDialog extends JDialog implements ChangeListener
         c.gridy = 5;
         c.gridwidth = 4;
         tilebmpPanel.add(tileColorPanel, c);
+        c.gridy = 6;
+        tilebmpPanel.add(mergeCheck, c);
         c.gridx = 2;
         c.gridy = 4;
         c.gridwidth = 1;
@@ -383,7 +389,8 @@ public class NewTilesetDialog extends JDialog implements ChangeListener
                 }
 
                 newTileset.importTileBitmap(file,
-                        getCutter(width, height, spacing, margin));
+                        getCutter(width, height, spacing, margin),
+                        mergeCheck.isSelected());
             }
             catch (IOException e) {
                 JOptionPane.showMessageDialog(this, e.getLocalizedMessage(),
@@ -434,6 +441,7 @@ public class NewTilesetDialog extends JDialog implements ChangeListener
         spacingLabel.setEnabled(value);
         marginLabel.setEnabled(value);
         transCheck.setEnabled(value);
+        mergeCheck.setEnabled(value);
         colorButton.setEnabled(value && transCheck.isSelected());
         /*
         cutterBox.setEnabled(value);
@@ -31,6 +31,7 @@ import tiled.core.TileLayer;
 import tiled.mapeditor.MapEditor;
 import tiled.mapeditor.Resources;
 import tiled.mapeditor.selection.SelectionLayer;
+import tiled.mapeditor.selection.SelectionMask;
 import tiled.mapeditor.util.PropertiesTableModel;
 import tiled.mapeditor.widget.VerticalStaticJPanel;
 
@@ -140,17 +141,14 @@ public class TileInstancePropertiesDialog extends JDialog
         MapLayer ml = editor.getCurrentLayer();
         if (ml instanceof TileLayer) {
             TileLayer tl = (TileLayer) ml;
-            Rectangle r = selection.getSelectedAreaBounds();
+            SelectionMask mask = selection.getMask();
+            Rectangle r = mask.getBounds();
             int maxJ = (int) (r.getY() + r.getHeight());
-            int maxI = (int) (r.getX() + r.getWidth());
 
-            // todo: BL - Why are tiles checked on null? Surely whether a tile
-            // todo: is null or not has nothing to do with whether you can place
-            // todo: a property as a certain location?
             for (int j = (int) r.getY(); j < maxJ; j++) {
-                for (int i = (int) r.getX(); i < maxI; i++) {
-                    Tile t = selection.getTileAt(i, j);
-                    if (t != null) {
+                int[] row = mask.getRow(j);
+                for (int run = 0; run < row.length; run += 2) {
+                    for (int i = row[run]; i < row[run + 1]; i++) {
                         propertiesCoordinates.add(new Point(i, j));
                     }
                 }
@@ -18,17 +18,21 @@ import java.awt.BorderLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.text.MessageFormat;
 import java.util.Iterator;
 import java.util.Vector;
 import javax.swing.*;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoableEditSupport;
 
 import tiled.core.*;
 import tiled.io.MapHelper;
 import tiled.io.MapWriter;
 import tiled.mapeditor.Resources;
 import tiled.mapeditor.plugin.PluginClassLoader;
+import tiled.mapeditor.undo.MapLayerEdit;
 import tiled.mapeditor.util.ConfirmingFileChooser;
 import tiled.mapeditor.util.TiledFileFilter;
 import tiled.mapeditor.util.TilesetTableModel;
@@ -40,9 +44,10 @@ public class TilesetManager extends JDialog implements ActionListener,
        ListSelectionListener
 {
     private final Map map;
+    private final UndoableEditSupport undoSupport;
 
     private JButton saveButton, saveAsButton, embedButton, removeButton, editButton;
-    private JButton moveUpButton, moveDownButton, closeButton;
+    private JButton moveUpButton, moveDownButton, mergeButton, closeButton;
     private TilesetTableModel tilesetTableModel;
     private JTable tilesetTable;
 
@@ -50,6 +55,9 @@ public class TilesetManager extends JDialog implements ActionListener,
     private static final String CLOSE_BUTTON = Resources.getString("general.button.close");
     private static final String MOVE_UP_BUTTON = Resources.getString("dialog.tilesetmanager.button.moveup");
     private static final String MOVE_DOWN_BUTTON = Resources.getString("dialog.tilesetmanager.button.movedown");
+    private static final String MERGE_BUTTON = Resources.getString("dialog.tilesetmanager.button.mergeduplicates");
+    private static final String MERGE_MESSAGE = Resources.getString("dialog.tilesetmanager.mergeduplicates.message");
+    private static final String MERGE_TITLE = Resources.getString("dialog.tilesetmanager.mergeduplicates.title");
     private static final String REMOVE_BUTTON = Resources.getString("general.button.remove");
     private static final String EMBED_BUTTON = Resources.getString("dialog.tilesetmanager.embed.button");
     private static final String SAVE_AS_BUTTON = Resources.getString("action.map.saveas.name");
@@ -62,9 +70,11 @@ public class TilesetManager extends JDialog implements ActionListener,
     private static final Icon EDIT_BUTTON_ICON = Resources.getIcon("gtk-edit.png");
     private static final Icon SAVE_BUTTON_ICON = Resources.getIcon("document-save.png");
 
-    public TilesetManager(JFrame parent, Map map) {
+    public TilesetManager(JFrame parent, Map map,
+                          UndoableEditSupport undoSupport) {
         super(parent, DIALOG_TITLE, true);
         this.map = map;
+        this.undoSupport = undoSupport;
         init();
         pack();
         setLocationRelativeTo(getOwner());
@@ -87,6 +97,7 @@ public class TilesetManager extends JDialog implements ActionListener,
         removeButton = new JButton(REMOVE_BUTTON_ICON);
         moveUpButton = new JButton(MOVE_UP_BUTTON);
         moveDownButton = new JButton(MOVE_DOWN_BUTTON);
+        mergeButton = new JButton(MERGE_BUTTON);
         closeButton = new JButton(CLOSE_BUTTON);
 
         saveButton.setActionCommand(SAVE_BUTTON);
@@ -114,6 +125,7 @@ public class TilesetManager extends JDialog implements ActionListener,
         editButton.addActionListener(this);
         moveUpButton.addActionListener(this);
         moveDownButton.addActionListener(this);
+        mergeButton.addActionListener(this);
         closeButton.addActionListener(this);
 
         // Create the main panel
@@ -143,6 +155,8 @@ public class TilesetManager extends JDialog implements ActionListener,
         buttonPanel.add(Box.createRigidArea(spacing));
         buttonPanel.add(moveDownButton);
         buttonPanel.add(Box.createRigidArea(spacing));
+        buttonPanel.add(mergeButton);
+        buttonPanel.add(Box.createRigidArea(spacing));
         buttonPanel.add(Box.createGlue());
         buttonPanel.add(closeButton);
         mainPanel.add(buttonPanel, BorderLayout.PAGE_END);
@@ -226,6 +240,11 @@ public class TilesetManager extends JDialog implements ActionListener,
             set.setSource(null);
             embedButton.setEnabled(false);
             saveButton.setEnabled(false);
+        } else if (command.equals(MERGE_BUTTON)) {
+            int changed = mergeDuplicateTiles(set);
+            JOptionPane.showMessageDialog(this,
+                    MessageFormat.format(MERGE_MESSAGE, changed),
+                    MERGE_TITLE, JOptionPane.INFORMATION_MESSAGE);
         } else if (command.equals(MOVE_UP_BUTTON)) {
             if (selectedRow > 0) {
                 int newRow = selectedRow - 1;
@@ -241,6 +260,49 @@ public class TilesetManager extends JDialog implements ActionListener,
         }
     }
 
+    /**
+     * Makes the map use the tile with the lowest id of any identical tiles
+     * of the given set. Every changed layer is recorded in a single undoable
+     * edit.
+     *
+     * @return the number of locations that were changed
+     */
+    private int mergeDuplicateTiles(TileSet set) {
+        final Tile[] replacements = set.findDuplicateTiles();
+        CompoundEdit edit = new CompoundEdit();
+        int changed = 0;
+
+        Iterator<MapLayer> layers = map.getLayers();
+        while (layers.hasNext()) {
+            MapLayer layer = layers.next();
+            if (!(layer instanceof TileLayer) || !layer.canEdit()) {
+                continue;
+            }
+            try {
+                MapLayer before = (MapLayer) layer.clone();
+                int layerChanged = set.replaceTiles((TileLayer) layer,
+                        replacements);
+                if (layerChanged > 0) {
+                    MapLayerEdit layerEdit = new MapLayerEdit(layer, before,
+                            (MapLayer) layer.clone());
+                    layerEdit.setPresentationName(MERGE_TITLE);
+                    edit.addEdit(layerEdit);
+                    changed += layerChanged;
+                }
+            } catch (CloneNotSupportedException e) {
+                // Tile layers can always be cloned
+                throw new RuntimeException(e);
+            }
+        }
+
+        edit.end();
+        if (changed > 0) {
+            undoSupport.postEdit(edit);
+            map.touch();
+        }
+        return changed;
+    }
+
     private void updateTilesetTable() {
         tilesetTable.repaint();
     }
@@ -286,6 +348,7 @@ public class TilesetManager extends JDialog implements ActionListener,
         }
 
         editButton.setEnabled(set != null);
+        mergeButton.setEnabled(set != null);
         removeButton.setEnabled(set != null);
         saveButton.setEnabled(set != null && set.getSource() != null);
         saveAsButton.setEnabled(set != null);
@@ -12,16 +12,22 @@
 
 package tiled.mapeditor.plugin;
 
+import java.awt.GraphicsEnvironment;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Hashtable;
 import java.util.Vector;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
 import javax.swing.JFrame;
 import javax.swing.ProgressMonitor;
 
@@ -33,19 +39,28 @@ import tiled.util.TiledConfiguration;
 /**
  * The plugin class loader searches and loads available reader and writer
  * plugins.
+ * <p>
+ * The class names and file filters of the plugins are kept in an index in
+ * the preferences, for each jar by its path, size and modification time.
+ * Only jars that changed since they were last indexed are opened at
+ * startup. The plugin classes are loaded when a file is first opened or
+ * saved with them, or when the list of plugins is asked for.
  */
 public final class PluginClassLoader extends URLClassLoader
 {
-    private final Vector<PluggableMapIO> readers, writers;
+    private static final Preferences index =
+            TiledConfiguration.node("pluginIndex");
+
+    private final Vector<String> readerClasses, writerClasses;
+    private Vector<PluggableMapIO> readers, writers;
     private final Hashtable<String, String> readerFormats;
     private final Hashtable<String, String> writerFormats;
     private static PluginClassLoader instance;
 
     private PluginClassLoader() {
         super(new URL[0]);
-        new Vector<Object>();
-        readers = new Vector<PluggableMapIO>();
-        writers = new Vector<PluggableMapIO>();
+        readerClasses = new Vector<String>();
+        writerClasses = new Vector<String>();
         readerFormats = new Hashtable<String, String>();
         writerFormats = new Hashtable<String, String>();
     }
@@ -59,7 +74,7 @@ public final class PluginClassLoader extends URLClassLoader
 
     public void readPlugins(String base, JFrame parent) throws Exception {
         String baseURL = base;
-        ProgressMonitor monitor;
+        ProgressMonitor monitor = null;
 
         if (base == null) {
             baseURL = TiledConfiguration.root().get("pluginsDir", "plugins");
@@ -74,41 +89,139 @@ public final class PluginClassLoader extends URLClassLoader
             return;
         }
 
-        int total = 0;
+        // Find the jars that are not in the index, or changed since
+        Vector<File> jars = new Vector<File>();
+        Vector<File> changed = new Vector<File>();
         File[] files = dir.listFiles();
         for (File file : files) {
-            String aPath = file.getAbsolutePath();
-            if (aPath.endsWith(".jar")) {
-                total++;
+            if (file.getName().endsWith(".jar")) {
+                jars.add(file);
+                if (!isIndexed(file)) {
+                    changed.add(file);
+                }
             }
         }
 
-        // Start the progress monitor
-        monitor = new ProgressMonitor(
-                parent, "Loading plugins", "", 0, total - 1);
-        monitor.setProgress(0);
-        monitor.setMillisToPopup(0);
-        monitor.setMillisToDecideToPopup(0);
+        if (!changed.isEmpty() && !GraphicsEnvironment.isHeadless()) {
+            // Start the progress monitor
+            monitor = new ProgressMonitor(
+                    parent, "Loading plugins", "", 0, changed.size());
+            monitor.setProgress(0);
+            monitor.setMillisToPopup(0);
+            monitor.setMillisToDecideToPopup(0);
+        }
 
-        for (int i = 0; i < files.length; i++) {
-            String aPath = files[i].getAbsolutePath();
-            String aName =
-                aPath.substring(aPath.lastIndexOf(File.separatorChar) + 1);
+        int progress = 0;
+        for (File jar : jars) {
+            if (changed.contains(jar)) {
+                if (monitor != null) {
+                    monitor.setNote("Reading " + jar.getName() + "...");
+                }
+                try {
+                    indexJar(jar);
+                } catch (Exception e) {
+                    // A broken jar should not keep the other plugins from
+                    // loading
+                    System.err.println("**Failed reading plugin " +
+                            jar.getName() + ": " + e.toString());
+                    continue;
+                } finally {
+                    if (monitor != null) {
+                        monitor.setProgress(++progress);
+                    }
+                }
+            }
 
-            // Skip non-jar files.
-            if (!aPath.endsWith(".jar")) {
+            Preferences entry = index.node(getIndexKey(jar));
+            String readerClassName = entry.get("readerClass", null);
+            String writerClassName = entry.get("writerClass", null);
+            if (readerClassName == null && writerClassName == null) {
                 continue;
             }
 
-            try {
-                monitor.setNote("Reading " + aName + "...");
-                JarFile jf = new JarFile(files[i]);
+            addURL(jar.toURI().toURL());
+            if (readerClassName != null) {
+                readerClasses.add(readerClassName);
+                for (String extension : entry.get("readerFilter", "").split(",")) {
+                    readerFormats.put(extension, readerClassName);
+                }
+            }
+            if (writerClassName != null) {
+                writerClasses.add(writerClassName);
+                for (String extension : entry.get("writerFilter", "").split(",")) {
+                    writerFormats.put(extension, writerClassName);
+                }
+            }
+        }
 
-                monitor.setProgress(i);
+        if (monitor != null) {
+            monitor.close();
+        }
 
-                if (jf.getManifest() == null)
-                    continue;
+        // Forget about jars that were removed, and entries under a key
+        // that no longer matches their path
+        for (String name : index.childrenNames()) {
+            Preferences entry = index.node(name);
+            File jar = new File(entry.get("path", ""));
+            if (!jar.exists() || !name.equals(getIndexKey(jar))) {
+                entry.removeNode();
+            }
+        }
+    }
 
+    /**
+     * Returns the name of the index entry of the given jar. Jars with the
+     * same name in different directories get different entries. Since the
+     * name of a preferences node is limited in length and can't contain
+     * slashes, the path is hashed.
+     */
+    private static String getIndexKey(File jar) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(
+                    jar.getAbsolutePath().getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns whether the index has an entry for this jar that is still
+     * up to date.
+     */
+    private static boolean isIndexed(File jar) throws BackingStoreException {
+        final String key = getIndexKey(jar);
+        if (!index.nodeExists(key)) {
+            return false;
+        }
+        Preferences entry = index.node(key);
+        return jar.getAbsolutePath().equals(entry.get("path", null)) &&
+                jar.length() == entry.getLong("size", -1) &&
+                jar.lastModified() == entry.getLong("modified", -1);
+    }
+
+    /**
+     * Reads the manifest of the jar, and loads its reader and writer classes
+     * in a separate class loader to find out which file types they support.
+     * The results are stored in the index.
+     */
+    private static void indexJar(File jar) throws Exception {
+        Preferences entry = index.node(getIndexKey(jar));
+        entry.clear();
+
+        JarFile jf = new JarFile(jar);
+        URLClassLoader loader = null;
+        try {
+            if (jf.getManifest() != null) {
                 String readerClassName =
                     jf.getManifest().getMainAttributes().getValue(
                             "Reader-Class");
@@ -116,71 +229,101 @@ public final class PluginClassLoader extends URLClassLoader
                     jf.getManifest().getMainAttributes().getValue(
                             "Writer-Class");
 
-                Class<Object> readerClass = null;
-                Class<Object> writerClass = null;
-
-                // Verify that the jar has the necessary files to be a
-                // plugin
-                if (readerClassName == null && writerClassName == null) {
-                    continue;
+                if (readerClassName != null || writerClassName != null) {
+                    loader = new URLClassLoader(
+                            new URL[] {jar.toURI().toURL()},
+                            PluginClassLoader.class.getClassLoader());
                 }
-
-                monitor.setNote("Loading " + aName + "...");
-                addURL(new File(aPath).toURI().toURL());
-
                 if (readerClassName != null) {
-                    JarEntry reader = jf.getJarEntry(
-                            readerClassName.replace('.', '/') + ".class");
-
-                    if (reader != null) {
-                        readerClass = loadFromJar(
-                                jf, reader, readerClassName);
-                    }else System.err.println("Manifest entry "+readerClassName+" does not match any class in the jar.");
+                    String filter = getFilter(loader, jf, readerClassName,
+                            "tiled.io.MapReader");
+                    if (filter != null) {
+                        entry.put("readerClass", readerClassName);
+                        entry.put("readerFilter", filter);
+                    }
                 }
                 if (writerClassName != null) {
-                    JarEntry writer = jf.getJarEntry(
-                            writerClassName.replace('.', '/') + ".class");
-
-                    if (writer != null) {
-                        writerClass = loadFromJar(
-                                jf, writer, writerClassName);
-                    } else System.err.println("Manifest entry "+writerClassName+" does not match any class in the jar.");
-                }
-
-                boolean bPlugin = false;
-                if (isReader(readerClass)) {
-                    bPlugin = true;
-                }
-                if (isWriter(writerClass)) {
-                    bPlugin = true;
+                    String filter = getFilter(loader, jf, writerClassName,
+                            "tiled.io.MapWriter");
+                    if (filter != null) {
+                        entry.put("writerClass", writerClassName);
+                        entry.put("writerFilter", filter);
+                    }
                 }
+            }
+        } finally {
+            if (loader != null) {
+                loader.close();
+            }
+            jf.close();
+        }
 
-                if (bPlugin) {
-                    if (readerClass != null) _add(readerClass);
-                    if (writerClass != null) _add(writerClass);
-                    //System.out.println(
-                    //        "Added " + files[i].getCanonicalPath());
-                }
+        entry.put("path", jar.getAbsolutePath());
+        entry.putLong("size", jar.length());
+        entry.putLong("modified", jar.lastModified());
+    }
 
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Loads a plugin class from a jar and returns its file filter, or
+     * <code>null</code> when it is not a valid plugin.
+     */
+    private static String getFilter(ClassLoader loader, JarFile jf,
+                                    String className, String interfaceName)
+            throws Exception
+    {
+        if (jf.getJarEntry(className.replace('.', '/') + ".class") == null) {
+            System.err.println("Manifest entry " + className +
+                    " does not match any class in the jar.");
+            return null;
+        }
+        try {
+            Class<?> klass = loader.loadClass(className);
+            if (!doesImplement(klass, interfaceName)) {
+                return null;
             }
+            return ((PluggableMapIO) klass.getDeclaredConstructor()
+                    .newInstance()).getFilter();
+        } catch (LinkageError e) {
+            System.err.println("**Failed loading plugin: " + e.toString());
+            return null;
         }
     }
 
-    public MapReader[] getReaders() {
+    public synchronized MapReader[] getReaders() {
+        if (readers == null) {
+            readers = instantiate(readerClasses);
+        }
         return (MapReader[]) readers.toArray(new MapReader[readers.size()]);
     }
 
-    public MapWriter[] getWriters() {
+    public synchronized MapWriter[] getWriters() {
+        if (writers == null) {
+            writers = instantiate(writerClasses);
+        }
         return (MapWriter[]) writers.toArray(new MapWriter[writers.size()]);
     }
 
+    private Vector<PluggableMapIO> instantiate(Vector<String> classNames) {
+        Vector<PluggableMapIO> plugins = new Vector<PluggableMapIO>();
+        for (String className : classNames) {
+            try {
+                plugins.add((PluggableMapIO) loadClass(className)
+                        .getDeclaredConstructor().newInstance());
+            } catch (Exception e) {
+                e.printStackTrace();
+            } catch (LinkageError e) {
+                System.err.println("**Failed loading plugin: " + e.toString());
+            }
+        }
+        return plugins;
+    }
+
     public Object getReaderFor(String file) throws Exception {
         for (String key : readerFormats.keySet()) {
             String ext = key.substring(1);
             if (file.toLowerCase().endsWith(ext)) {
-                return loadClass(readerFormats.get(key)).newInstance();
+                return loadClass(readerFormats.get(key))
+                        .getDeclaredConstructor().newInstance();
             }
         }
         throw new Exception(
@@ -191,7 +334,8 @@ public final class PluginClassLoader extends URLClassLoader
         for (String key : writerFormats.keySet()) {
             String ext = key.substring(1);
             if (file.toLowerCase().endsWith(ext)) {
-                return loadClass(writerFormats.get(key)).newInstance();
+                return loadClass(writerFormats.get(key))
+                        .getDeclaredConstructor().newInstance();
             }
         }
         throw new Exception(
@@ -236,36 +380,4 @@ public final class PluginClassLoader extends URLClassLoader
         }
         return false;
     }
-
-    private static boolean isReader(Class klass) throws Exception {
-        return doesImplement(klass, "tiled.io.MapReader");
-    }
-
-    private static boolean isWriter(Class writerClass) throws Exception {
-        return doesImplement(writerClass, "tiled.io.MapWriter");
-    }
-
-    private void _add(Class klass) throws Exception{
-        try {
-            PluggableMapIO p = (PluggableMapIO) klass.newInstance();
-            String clname = klass.toString();
-            clname = clname.substring(clname.indexOf(' ') + 1);
-            String filter = p.getFilter();
-            String[] extensions = filter.split(",");
-
-            if (isReader(klass)) {
-                for (String extension : extensions) {
-                    readerFormats.put(extension, clname);
-                }
-                readers.add(p);
-            } else if (isWriter(klass)) {
-                for (String extension : extensions) {
-                    writerFormats.put(extension, clname);
-                }
-                writers.add(p);
-            }
-        } catch (NoClassDefFoundError e) {
-            System.err.println("**Failed loading plugin: " + e.toString());
-        }
-    }
 }
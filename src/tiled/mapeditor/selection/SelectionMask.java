@@ -0,0 +1,559 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.selection;
+
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Area;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+
+/**
+ * A set of selected cells within a rectangle of a fixed size, stored as runs
+ * of selected cells per row. Each row is a sorted array of
+ * <code>start, end</code> pairs, where <code>end</code> is exclusive. Runs
+ * never overlap or touch, so a rectangular selection takes a single run per
+ * row no matter how wide it is.
+ * <p>
+ * Rows are never modified in place. An operation replaces the arrays of the
+ * rows it changes, which makes it safe to hold on to the array returned by
+ * {@link #getRow(int)} while the mask changes.
+ *
+ * @version $Id$
+ */
+public class SelectionMask implements Cloneable
+{
+    private static final int[] EMPTY_ROW = new int[0];
+
+    private static final int UNION = 0;
+    private static final int DIFFERENCE = 1;
+    private static final int INTERSECTION = 2;
+    private static final int EXCLUSIVE_OR = 3;
+
+    private int width;
+    private int height;
+    private int[][] rows;
+    private Rectangle bounds;
+
+    /**
+     * Creates an empty mask of the given size.
+     *
+     * @param width  the width of the mask in cells
+     * @param height the height of the mask in cells
+     */
+    public SelectionMask(int width, int height) {
+        this.width = Math.max(0, width);
+        this.height = Math.max(0, height);
+        rows = new int[this.height][];
+        clear();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Deselects all cells.
+     */
+    public void clear() {
+        for (int y = 0; y < height; y++) {
+            rows[y] = EMPTY_ROW;
+        }
+        bounds = new Rectangle();
+    }
+
+    /**
+     * Returns the runs of selected cells on the given row, as pairs of a
+     * start and an exclusive end. The returned array must not be modified.
+     *
+     * @param y the row
+     * @return the runs on the row, or an empty array when nothing on the row
+     *         is selected or the row is outside of the mask
+     */
+    public int[] getRow(int y) {
+        if (y < 0 || y >= height) {
+            return EMPTY_ROW;
+        }
+        return rows[y];
+    }
+
+    /**
+     * Returns whether the given cell is selected.
+     */
+    public boolean contains(int x, int y) {
+        if (y < 0 || y >= height) {
+            return false;
+        }
+        final int[] row = rows[y];
+
+        // Find the last run starting at or before x
+        int low = 0, high = row.length / 2 - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (row[mid * 2] <= x) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high >= 0 && x < row[high * 2 + 1];
+    }
+
+    public boolean isEmpty() {
+        return getBounds().isEmpty();
+    }
+
+    /**
+     * Returns the smallest rectangle containing all selected cells. An empty
+     * mask has empty bounds at the origin.
+     */
+    public Rectangle getBounds() {
+        if (bounds == null) {
+            int minX = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE;
+            int minY = -1, maxY = -1;
+            for (int y = 0; y < height; y++) {
+                final int[] row = rows[y];
+                if (row.length > 0) {
+                    if (minY < 0) {
+                        minY = y;
+                    }
+                    maxY = y;
+                    minX = Math.min(minX, row[0]);
+                    maxX = Math.max(maxX, row[row.length - 1]);
+                }
+            }
+            bounds = minY < 0 ? new Rectangle() :
+                    new Rectangle(minX, minY, maxX - minX, maxY - minY + 1);
+        }
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Selects the given rectangle.
+     */
+    public void add(Rectangle r) {
+        combine(r, UNION);
+    }
+
+    /**
+     * Deselects the given rectangle.
+     */
+    public void subtract(Rectangle r) {
+        combine(r, DIFFERENCE);
+    }
+
+    /**
+     * Deselects everything outside of the given rectangle.
+     */
+    public void intersect(Rectangle r) {
+        Rectangle clipped = r.intersection(new Rectangle(0, 0, width, height));
+        for (int y = 0; y < height; y++) {
+            if (y < clipped.y || y >= clipped.y + clipped.height ||
+                    clipped.isEmpty()) {
+                rows[y] = EMPTY_ROW;
+            }
+        }
+        bounds = null;
+        combine(clipped, INTERSECTION);
+    }
+
+    /**
+     * Adds the cells selected in the given mask to this mask.
+     */
+    public void add(SelectionMask mask) {
+        combine(mask, UNION);
+    }
+
+    /**
+     * Deselects the cells selected in the given mask.
+     */
+    public void subtract(SelectionMask mask) {
+        combine(mask, DIFFERENCE);
+    }
+
+    /**
+     * Deselects the cells that are not selected in the given mask.
+     */
+    public void intersect(SelectionMask mask) {
+        combine(mask, INTERSECTION);
+    }
+
+    /**
+     * Inverts the selection of all cells.
+     */
+    public void invert() {
+        combine(new Rectangle(0, 0, width, height), EXCLUSIVE_OR);
+    }
+
+    /**
+     * Selects the cells covered by the given shape. A cell is covered when
+     * the shape contains its top left corner. Rectangular shapes are added
+     * run by run, other shapes are tested cell by cell.
+     */
+    public void add(Shape shape) {
+        combine(shape, UNION);
+    }
+
+    /**
+     * Deselects the cells covered by the given shape.
+     *
+     * @see #add(Shape)
+     */
+    public void subtract(Shape shape) {
+        combine(shape, DIFFERENCE);
+    }
+
+    /**
+     * Selects a single cell.
+     */
+    public void add(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height || contains(x, y)) {
+            return;
+        }
+        rows[y] = combine(rows[y], new int[] {x, x + 1}, UNION);
+        bounds = null;
+    }
+
+    /**
+     * Changes the size of the mask. The selection is moved by the given
+     * offset and cut off at the new size.
+     */
+    public void resize(int width, int height, int dx, int dy) {
+        int[][] newRows = new int[Math.max(0, height)][];
+        int[] clip = {0, Math.max(0, width)};
+        for (int y = 0; y < newRows.length; y++) {
+            int[] row = getRow(y - dy);
+            if (row.length > 0 && dx != 0) {
+                row = row.clone();
+                for (int i = 0; i < row.length; i++) {
+                    row[i] += dx;
+                }
+            }
+            newRows[y] = width > 0 ?
+                    combine(row, clip, INTERSECTION) : EMPTY_ROW;
+        }
+        this.width = Math.max(0, width);
+        this.height = newRows.length;
+        rows = newRows;
+        bounds = null;
+    }
+
+    /**
+     * Mirrors the selection within the mask.
+     *
+     * @param horizontal <code>true</code> to mirror from left to right,
+     *                   <code>false</code> to mirror from top to bottom
+     */
+    public void mirror(boolean horizontal) {
+        if (horizontal) {
+            for (int y = 0; y < height; y++) {
+                final int[] row = rows[y];
+                final int[] mirrored = new int[row.length];
+                for (int i = 0; i < row.length; i++) {
+                    mirrored[row.length - 1 - i] = width - row[i];
+                }
+                rows[y] = mirrored;
+            }
+        } else {
+            for (int y = 0; y < height / 2; y++) {
+                final int[] row = rows[y];
+                rows[y] = rows[height - 1 - y];
+                rows[height - 1 - y] = row;
+            }
+        }
+        bounds = null;
+    }
+
+    /**
+     * Rotates the selection clockwise by the given angle, in the same way as
+     * {@link tiled.core.TileLayer#rotate(int)}. Rotating by 90 or 270
+     * degrees swaps the width and height of the mask.
+     *
+     * @param angle the angle, one of 90, 180 or 270
+     */
+    public void rotate(int angle) {
+        if (angle == 180) {
+            mirror(true);
+            mirror(false);
+            return;
+        }
+        if (angle != 90 && angle != 270) {
+            throw new IllegalArgumentException(
+                    "Unsupported rotation (" + angle + ")");
+        }
+
+        // Each column of the mask becomes a row
+        int[][] newRows = new int[width][];
+        int[] runs = new int[height + 1];
+        for (int x = 0; x < width; x++) {
+            int n = 0;
+            boolean inside = false;
+            for (int i = 0; i < height; i++) {
+                final int y = angle == 90 ? height - 1 - i : i;
+                if (contains(angle == 90 ? x : width - 1 - x, y) != inside) {
+                    runs[n++] = i;
+                    inside = !inside;
+                }
+            }
+            if (inside) {
+                runs[n++] = height;
+            }
+            newRows[x] = EMPTY_ROW;
+            if (n > 0) {
+                newRows[x] = new int[n];
+                System.arraycopy(runs, 0, newRows[x], 0, n);
+            }
+        }
+
+        final int newWidth = height;
+        height = width;
+        width = newWidth;
+        rows = newRows;
+        bounds = null;
+    }
+
+    /**
+     * Returns the selection as an area, with each cell a unit square. Rows
+     * with equal runs are joined into a single rectangle.
+     */
+    public Area toArea() {
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO);
+        int y = 0;
+        while (y < height) {
+            final int[] row = rows[y];
+            int end = y + 1;
+            while (end < height && sameRuns(row, rows[end])) {
+                end++;
+            }
+            for (int i = 0; i < row.length; i += 2) {
+                path.append(new Rectangle(
+                        row[i], y, row[i + 1] - row[i], end - y), false);
+            }
+            y = end;
+        }
+        return new Area(path);
+    }
+
+    /**
+     * Returns the outline of the selection, with each cell a unit square.
+     * The outline consists of separate horizontal and vertical segments
+     * along the edges between selected and unselected cells.
+     */
+    public GeneralPath createOutline() {
+        GeneralPath outline = new GeneralPath();
+
+        // Horizontal edges lie where a cell is selected either above or
+        // below the edge, but not both
+        int[] above = EMPTY_ROW;
+        for (int y = 0; y <= height; y++) {
+            final int[] below = getRow(y);
+            final int[] edges = combine(above, below, EXCLUSIVE_OR);
+            for (int i = 0; i < edges.length; i += 2) {
+                outline.moveTo(edges[i], y);
+                outline.lineTo(edges[i + 1], y);
+            }
+            above = below;
+        }
+
+        // Vertical edges lie at the ends of each run. Those of equal runs on
+        // consecutive rows are joined.
+        int y = 0;
+        while (y < height) {
+            final int[] row = rows[y];
+            int end = y + 1;
+            while (end < height && sameRuns(row, rows[end])) {
+                end++;
+            }
+            for (int i = 0; i < row.length; i++) {
+                outline.moveTo(row[i], y);
+                outline.lineTo(row[i], end);
+            }
+            y = end;
+        }
+
+        return outline;
+    }
+
+    public Object clone() throws CloneNotSupportedException {
+        SelectionMask clone = (SelectionMask) super.clone();
+        clone.rows = rows.clone();
+        return clone;
+    }
+
+    private void combine(Rectangle r, int op) {
+        Rectangle clipped = r.intersection(new Rectangle(0, 0, width, height));
+        if (clipped.isEmpty()) {
+            return;
+        }
+        final int[] runs = {clipped.x, clipped.x + clipped.width};
+        for (int y = clipped.y; y < clipped.y + clipped.height; y++) {
+            rows[y] = combine(rows[y], runs, op);
+        }
+        bounds = null;
+    }
+
+    private void combine(SelectionMask mask, int op) {
+        // The other mask may be wider, in which case the result is clipped
+        final int[] clip = mask.width > width ? new int[] {0, width} : null;
+        for (int y = 0; y < height; y++) {
+            rows[y] = combine(rows[y], mask.getRow(y), op);
+            if (clip != null) {
+                rows[y] = combine(rows[y], clip, INTERSECTION);
+            }
+        }
+        bounds = null;
+    }
+
+    private void combine(Shape shape, int op) {
+        Rectangle rect = getRectangle(shape);
+        if (rect != null) {
+            combine(rect, op);
+            return;
+        }
+
+        Rectangle clipped = shape.getBounds().intersection(
+                new Rectangle(0, 0, width, height));
+        if (clipped.isEmpty()) {
+            return;
+        }
+        int[] runs = new int[clipped.width + 1];
+        for (int y = clipped.y; y < clipped.y + clipped.height; y++) {
+            int n = 0;
+            boolean inside = false;
+            for (int x = clipped.x; x < clipped.x + clipped.width; x++) {
+                if (shape.contains(x, y) != inside) {
+                    runs[n++] = x;
+                    inside = !inside;
+                }
+            }
+            if (inside) {
+                runs[n++] = clipped.x + clipped.width;
+            }
+            if (n > 0) {
+                int[] row = new int[n];
+                System.arraycopy(runs, 0, row, 0, n);
+                rows[y] = combine(rows[y], row, op);
+            }
+        }
+        bounds = null;
+    }
+
+    /**
+     * Returns the given shape as a rectangle when it is a rectangle on
+     * whole cells, or <code>null</code> otherwise.
+     */
+    private static Rectangle getRectangle(Shape shape) {
+        if (shape instanceof Rectangle) {
+            return (Rectangle) shape;
+        }
+        if (shape instanceof Area && !((Area) shape).isRectangular()) {
+            return null;
+        }
+        if (shape instanceof Area || shape instanceof Rectangle2D) {
+            Rectangle2D r = shape.getBounds2D();
+            Rectangle rect = r.getBounds();
+            if (rect.getX() == r.getX() && rect.getY() == r.getY() &&
+                    rect.getWidth() == r.getWidth() &&
+                    rect.getHeight() == r.getHeight()) {
+                return rect;
+            }
+        }
+        return null;
+    }
+
+    private static boolean sameRuns(int[] a, int[] b) {
+        if (a == b) {
+            return true;
+        }
+        if (a.length != b.length) {
+            return false;
+        }
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Combines two rows of runs into a new row. Returns one of the given
+     * rows when the result equals it.
+     */
+    private static int[] combine(int[] a, int[] b, int op) {
+        if (b.length == 0) {
+            return op == INTERSECTION ? EMPTY_ROW : a;
+        }
+        if (a.length == 0) {
+            return op == UNION || op == EXCLUSIVE_OR ? b : EMPTY_ROW;
+        }
+
+        int[] result = new int[a.length + b.length];
+        int n = 0;
+        int i = 0, j = 0;
+        boolean inA = false, inB = false, inside = false;
+
+        while (i < a.length || j < b.length) {
+            final int x = Math.min(
+                    i < a.length ? a[i] : Integer.MAX_VALUE,
+                    j < b.length ? b[j] : Integer.MAX_VALUE);
+            if (i < a.length && a[i] == x) {
+                inA = !inA;
+                i++;
+            }
+            if (j < b.length && b[j] == x) {
+                inB = !inB;
+                j++;
+            }
+
+            final boolean selected;
+            switch (op) {
+                case UNION:        selected = inA || inB; break;
+                case DIFFERENCE:   selected = inA && !inB; break;
+                case INTERSECTION: selected = inA && inB; break;
+                default:           selected = inA != inB; break;
+            }
+            if (selected != inside) {
+                result[n++] = x;
+                inside = selected;
+            }
+        }
+
+        if (n == 0) {
+            return EMPTY_ROW;
+        }
+        if (sameRuns(a, result, n)) {
+            return a;
+        }
+        int[] row = new int[n];
+        System.arraycopy(result, 0, row, 0, n);
+        return row;
+    }
+
+    private static boolean sameRuns(int[] a, int[] b, int n) {
+        if (a.length != n) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *  Tiled Map Editor, (c) 2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.undo;
+
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+
+import tiled.core.LayerLockedException;
+import tiled.core.Map;
+import tiled.core.TileSet;
+import tiled.mapeditor.Resources;
+
+/**
+ * Adds a tileset to a map.
+ *
+ * @version $Id$
+ */
+public class AddTilesetEdit extends AbstractUndoableEdit
+{
+    private final Map map;
+    private final TileSet tileset;
+
+    public AddTilesetEdit(Map map, TileSet tileset) {
+        this.map = map;
+        this.tileset = tileset;
+    }
+
+    public void undo() throws CannotUndoException {
+        super.undo();
+        try {
+            map.removeTileset(tileset);
+        } catch (LayerLockedException e) {
+            throw new CannotUndoException();
+        }
+    }
+
+    public void redo() throws CannotRedoException {
+        super.redo();
+        map.addTileset(tileset);
+    }
+
+    public String getPresentationName() {
+        return Resources.getString("action.tileset.add.name");
+    }
+}
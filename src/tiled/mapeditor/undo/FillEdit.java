@@ -0,0 +1,68 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.undo;
+
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+
+import tiled.core.Tile;
+import tiled.core.TileLayer;
+import tiled.mapeditor.Resources;
+
+/**
+ * An edit that set spans of locations that all had the same tile to another
+ * tile, like a flood fill. Only the spans are stored, rather than copies of
+ * the layer.
+ *
+ * @version $Id$
+ */
+public class FillEdit extends AbstractUndoableEdit
+{
+    private final TileLayer layer;
+    private final int[] spans;
+    private final Tile oldTile, newTile;
+
+    /**
+     * @param layer   the layer that was filled
+     * @param spans   the filled spans, as consecutive (x, y, length) triples
+     * @param oldTile the tile the spans contained before
+     * @param newTile the tile the spans were filled with
+     */
+    public FillEdit(TileLayer layer, int[] spans, Tile oldTile, Tile newTile) {
+        this.layer = layer;
+        this.spans = spans;
+        this.oldTile = oldTile;
+        this.newTile = newTile;
+    }
+
+    public void undo() throws CannotUndoException {
+        super.undo();
+        fill(oldTile);
+    }
+
+    public void redo() throws CannotRedoException {
+        super.redo();
+        fill(newTile);
+    }
+
+    private void fill(Tile tile) {
+        for (int i = 0; i < spans.length; i += 3) {
+            layer.fillRow(spans[i], spans[i + 1], spans[i + 2], tile);
+        }
+    }
+
+    public String getPresentationName() {
+        return Resources.getString("tool.fill.name");
+    }
+}
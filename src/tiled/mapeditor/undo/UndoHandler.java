@@ -64,6 +64,7 @@ public class UndoHandler extends UndoManager
         // todo: Updating of the mapview should ultimately happen
         // todo: automatically based on the changes made to the map.
         editor.getMapView().repaint();
+        editor.getMiniMap().refresh();
     }
 
     /**
@@ -76,6 +77,7 @@ public class UndoHandler extends UndoManager
         updateActions();
         editor.updateTitle();
         editor.getMapView().repaint();
+        editor.getMiniMap().refresh();
     }
 
     public void undoableEditHappened(UndoableEditEvent e) {
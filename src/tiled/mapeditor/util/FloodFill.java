@@ -0,0 +1,223 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.util;
+
+import java.awt.Rectangle;
+
+import tiled.core.Tile;
+import tiled.core.TileLayer;
+import tiled.mapeditor.selection.SelectionMask;
+
+/**
+ * Fills the area of connected equal tiles around a location with another
+ * tile, one horizontal span at a time. Instead of a point per tile, only the
+ * start of each span that still needs to be filled is remembered, packed
+ * into a single <code>int</code> together with the span it was found from.
+ * That span does not need to be looked at again, so most locations are
+ * only read twice. The filled spans are returned so that they can be used
+ * to undo the fill.
+ *
+ * @version $Id$
+ */
+public final class FloodFill
+{
+    private final TileLayer layer;
+    private final SelectionMask mask;
+    private final Tile oldTile, newTile;
+    private final Rectangle bounds;
+
+    // Seeds are stored as (location, direction, parent x0, parent x1), where
+    // the parent span is the one in the row the seed was found from
+    private int[] seeds = new int[4 * 64];
+    private int seedCount;
+    private int[] spans = new int[3 * 16];
+    private int spanCount;
+    private int spanX0, spanX1;
+
+    private FloodFill(TileLayer layer, SelectionMask mask,
+                      Tile oldTile, Tile newTile) {
+        this.layer = layer;
+        this.mask = mask;
+        this.oldTile = oldTile;
+        this.newTile = newTile;
+        bounds = layer.getBounds();
+    }
+
+    /**
+     * Replaces the tile at the given location and all connected locations
+     * with the same tile by <code>tile</code>. When a selection mask is
+     * given, the fill does not extend beyond the selected locations.
+     *
+     * @param layer the layer to fill
+     * @param x     the x-coordinate to start filling at
+     * @param y     the y-coordinate to start filling at
+     * @param tile  the tile to fill with
+     * @param mask  the selection to stay within, or <code>null</code> to
+     *              fill without constraints
+     * @return the filled spans, as consecutive (x, y, length) triples. The
+     *         array is empty when nothing was filled.
+     */
+    public static int[] fill(TileLayer layer, int x, int y, Tile tile,
+                             SelectionMask mask) {
+        final Tile oldTile = layer.getTileAt(x, y);
+        if (oldTile == tile || !layer.canEdit() ||
+                !layer.getBounds().contains(x, y)) {
+            return new int[0];
+        }
+
+        FloodFill fill = new FloodFill(layer, mask, oldTile, tile);
+        fill.run(x, y);
+
+        int[] result = new int[fill.spanCount];
+        System.arraycopy(fill.spans, 0, result, 0, fill.spanCount);
+        return result;
+    }
+
+    /**
+     * Returns the bounds of the given spans, as returned by {@link #fill}.
+     *
+     * @return the bounding rectangle, or <code>null</code> when there are no
+     *         spans
+     */
+    public static Rectangle getBounds(int[] spans) {
+        Rectangle area = null;
+        for (int i = 0; i < spans.length; i += 3) {
+            Rectangle span = new Rectangle(spans[i], spans[i + 1],
+                                           spans[i + 2], 1);
+            if (area == null) {
+                area = span;
+            } else {
+                area.add(span);
+            }
+        }
+        return area;
+    }
+
+    private void run(int x, int y) {
+        push(x, y, 0, x, x);
+
+        while (seedCount > 0) {
+            final int px1 = seeds[--seedCount];
+            final int px0 = seeds[--seedCount];
+            final int dir = seeds[--seedCount];
+            final int seed = seeds[--seedCount];
+            final int sx = bounds.x + seed % bounds.width;
+            final int sy = bounds.y + seed / bounds.width;
+
+            // A seed may have been filled from another span in the meantime
+            if (layer.getTileAt(sx, sy) != oldTile) {
+                continue;
+            }
+
+            // Limit the span to the selected run containing the seed
+            int lo = bounds.x;
+            int hi = bounds.x + bounds.width;
+            if (mask != null) {
+                final int[] row = mask.getRow(sy);
+                int i = 0;
+                while (i < row.length && row[i + 1] <= sx) {
+                    i += 2;
+                }
+                if (i == row.length || row[i] > sx) {
+                    continue;
+                }
+                lo = Math.max(lo, row[i]);
+                hi = Math.min(hi, row[i + 1]);
+            }
+
+            int x0 = sx;
+            while (x0 > lo && layer.getTileAt(x0 - 1, sy) == oldTile) {
+                x0--;
+            }
+            int x1 = sx + 1;
+            while (x1 < hi && layer.getTileAt(x1, sy) == oldTile) {
+                x1++;
+            }
+
+            layer.fillRow(x0, sy, x1 - x0, newTile);
+            addSpan(x0, sy, x1 - x0);
+            spanX0 = x0;
+            spanX1 = x1;
+
+            // Continue in the same direction, and look back only next to the
+            // span this one was reached from
+            if (dir == 0) {
+                scan(x0, x1, sy, -1);
+                scan(x0, x1, sy, 1);
+            } else {
+                scan(x0, x1, sy, dir);
+                scan(x0, Math.min(x1, px0), sy, -dir);
+                scan(Math.max(x0, px1), x1, sy, -dir);
+            }
+        }
+    }
+
+    /**
+     * Pushes a seed for each run of fillable locations in the range
+     * [x0, x1) of the row next to row <code>y</code>, in the given
+     * direction.
+     */
+    private void scan(int x0, int x1, int y, int dir) {
+        final int ny = y + dir;
+        if (x0 >= x1 || ny < bounds.y || ny >= bounds.y + bounds.height) {
+            return;
+        }
+        if (mask == null) {
+            scanRange(x0, x1, ny, dir);
+            return;
+        }
+
+        final int[] row = mask.getRow(ny);
+        for (int i = 0; i < row.length && row[i] < x1; i += 2) {
+            final int start = Math.max(x0, row[i]);
+            final int end = Math.min(x1, row[i + 1]);
+            if (start < end) {
+                scanRange(start, end, ny, dir);
+            }
+        }
+    }
+
+    private void scanRange(int x0, int x1, int y, int dir) {
+        boolean inRun = false;
+        for (int x = x0; x < x1; x++) {
+            final boolean fillable = layer.getTileAt(x, y) == oldTile;
+            if (fillable && !inRun) {
+                push(x, y, dir, spanX0, spanX1);
+            }
+            inRun = fillable;
+        }
+    }
+
+    private void push(int x, int y, int dir, int px0, int px1) {
+        if (seedCount == seeds.length) {
+            int[] grown = new int[seeds.length * 2];
+            System.arraycopy(seeds, 0, grown, 0, seedCount);
+            seeds = grown;
+        }
+        seeds[seedCount++] = (y - bounds.y) * bounds.width + (x - bounds.x);
+        seeds[seedCount++] = dir;
+        seeds[seedCount++] = px0;
+        seeds[seedCount++] = px1;
+    }
+
+    private void addSpan(int x, int y, int length) {
+        if (spanCount == spans.length) {
+            int[] grown = new int[spans.length * 2];
+            System.arraycopy(spans, 0, grown, 0, spanCount);
+            spans = grown;
+        }
+        spans[spanCount++] = x;
+        spans[spanCount++] = y;
+        spans[spanCount++] = length;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.util;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import tiled.core.Map;
+import tiled.core.Tile;
+import tiled.core.TileLayer;
+import tiled.core.TileSet;
+import tiled.io.MapHelper;
+import tiled.mapeditor.selection.SelectionMask;
+
+/**
+ * A rectangular region of one or more tile layers, as stored on the
+ * clipboard. The tiles are stored as global tile ids in a single
+ * <code>int</code> array per layer, together with a table of the tilesets
+ * they refer to. Locations outside of the copied selection are empty.
+ * <p>
+ * A region can be written to a stream, optionally compressed, so that it
+ * can be exchanged with other instances of the editor. When pasted, each
+ * tileset is looked up in the target map only once, and the tiles are
+ * copied into the new layers one row at a time.
+ *
+ * @version $Id$
+ */
+public class TileRegion
+{
+    private static final int MAGIC = 0x54524731;    // "TRG1"
+    private static final int FLAG_COMPRESSED = 1;
+
+    // Limits for regions read from a stream, which may contain anything.
+    // A region can hold 64M locations in all layers and 16M tiles.
+    private static final int MAX_LOCATIONS = 1 << 26;
+    private static final int MAX_GIDS = 1 << 24;
+
+    private final Rectangle bounds;
+    private final int tileWidth, tileHeight;
+    private final TilesetReference[] tilesets;
+    private final int[][] layers;
+
+    private TileRegion(Rectangle bounds, int tileWidth, int tileHeight,
+                       TilesetReference[] tilesets, int[][] layers) {
+        this.bounds = bounds;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.tilesets = tilesets;
+        this.layers = layers;
+    }
+
+    /**
+     * Copies the selected locations of the given layers.
+     *
+     * @param source the layers to copy, which need to have the same tile
+     *               size
+     * @param mask   the selected locations
+     * @return the copied region, or <code>null</code> when nothing is
+     *         selected
+     */
+    public static TileRegion copy(List<TileLayer> source, SelectionMask mask) {
+        final Rectangle area = mask.getBounds();
+        if (area.isEmpty() || source.isEmpty()) {
+            return null;
+        }
+
+        final IdentityHashMap<TileSet, TilesetReference> references =
+                new IdentityHashMap<TileSet, TilesetReference>();
+        final List<TilesetReference> table = new ArrayList<TilesetReference>();
+        final Tile[] row = new Tile[area.width];
+        final int[][] layers = new int[source.size()][];
+        int nextGid = 1;
+
+        for (int l = 0; l < layers.length; l++) {
+            final TileLayer layer = source.get(l);
+            final int[] gids = new int[area.width * area.height];
+            TileSet lastSet = null;
+            int lastFirstGid = 0;
+
+            for (int y = area.y; y < area.y + area.height; y++) {
+                final int[] runs = mask.getRow(y);
+                final int offset = (y - area.y) * area.width - area.x;
+                for (int i = 0; i < runs.length; i += 2) {
+                    final int length = runs[i + 1] - runs[i];
+                    layer.getRow(runs[i], y, row, 0, length);
+                    for (int x = 0; x < length; x++) {
+                        final Tile tile = row[x];
+                        if (tile == null || tile.getTileSet() == null) {
+                            continue;
+                        }
+                        final TileSet set = tile.getTileSet();
+                        if (set != lastSet) {
+                            TilesetReference ref = references.get(set);
+                            if (ref == null) {
+                                ref = new TilesetReference(set, nextGid);
+                                nextGid += ref.tileCount;
+                                references.put(set, ref);
+                                table.add(ref);
+                            }
+                            lastSet = set;
+                            lastFirstGid = ref.firstGid;
+                        }
+                        gids[offset + runs[i] + x] = lastFirstGid + tile.getId();
+                    }
+                }
+            }
+            layers[l] = gids;
+        }
+
+        final TileLayer first = source.get(0);
+        return new TileRegion(area, first.getTileWidth(),
+                first.getTileHeight(),
+                table.toArray(new TilesetReference[table.size()]), layers);
+    }
+
+    /**
+     * Returns the location and size of this region in the map it was
+     * copied from.
+     */
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    /**
+     * Returns the number of layers in this region.
+     */
+    public int getLayerCount() {
+        return layers.length;
+    }
+
+    /**
+     * Creates new layers containing the tiles of this region, at the
+     * location they were copied from. The tilesets are looked up in the
+     * given map. Tilesets that are not part of the map are added to it, when
+     * they are available. These tilesets are also added to the given list,
+     * so that the caller can undo adding them.
+     *
+     * @param map           the map the layers are meant for
+     * @param addedTilesets the list the tilesets added to the map are
+     *                      added to
+     * @return the new layers
+     * @throws IOException when a tileset that is not part of the map failed
+     *         to load. The map is not changed in that case.
+     */
+    public List<TileLayer> paste(Map map, List<TileSet> addedTilesets)
+            throws IOException {
+        // Resolve all tiles once, indexed by their global id in this region
+        int gidCount = 1;
+        for (TilesetReference ref : tilesets) {
+            gidCount = Math.max(gidCount, ref.firstGid + ref.tileCount);
+        }
+        final Tile[] tiles = new Tile[gidCount];
+        final List<TileSet> missing = new ArrayList<TileSet>();
+        for (TilesetReference ref : tilesets) {
+            final TileSet set = ref.resolve(map);
+            if (set != null) {
+                if (!map.getTilesets().contains(set) && !missing.contains(set)) {
+                    missing.add(set);
+                }
+                for (int id = 0; id < ref.tileCount; id++) {
+                    tiles[ref.firstGid + id] = set.getTile(id);
+                }
+            }
+        }
+
+        // Only add tilesets once all of them were found
+        for (TileSet set : missing) {
+            map.addTileset(set);
+            addedTilesets.add(set);
+        }
+
+        final List<TileLayer> result = new ArrayList<TileLayer>();
+        final Tile[] row = new Tile[bounds.width];
+        for (int[] gids : layers) {
+            TileLayer layer = new TileLayer(bounds, tileWidth, tileHeight);
+            for (int y = 0; y < bounds.height; y++) {
+                final int offset = y * bounds.width;
+                for (int x = 0; x < bounds.width; x++) {
+                    final int gid = gids[offset + x];
+                    row[x] = gid > 0 && gid < tiles.length ? tiles[gid] : null;
+                }
+                layer.setRow(bounds.x, bounds.y + y, row, 0, bounds.width);
+            }
+            result.add(layer);
+        }
+        return result;
+    }
+
+    /**
+     * Writes this region to the given stream.
+     *
+     * @param out      the stream to write to
+     * @param compress whether to compress the tile data
+     * @throws IOException when writing fails
+     */
+    public void write(OutputStream out, boolean compress) throws IOException {
+        DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeInt(compress ? FLAG_COMPRESSED : 0);
+        data.writeInt(bounds.x);
+        data.writeInt(bounds.y);
+        data.writeInt(bounds.width);
+        data.writeInt(bounds.height);
+        data.writeInt(tileWidth);
+        data.writeInt(tileHeight);
+
+        data.writeInt(tilesets.length);
+        for (TilesetReference ref : tilesets) {
+            ref.write(data);
+        }
+        data.writeInt(layers.length);
+
+        data.flush();
+
+        // The tile data is written a row at a time, compressed for speed
+        // rather than size, since tile data compresses well anyway
+        Deflater def = null;
+        OutputStream tileOut = out;
+        if (compress) {
+            def = new Deflater(Deflater.BEST_SPEED);
+            tileOut = new DeflaterOutputStream(out, def);
+        }
+        try {
+            final ByteBuffer row = ByteBuffer.allocate(4 * bounds.width);
+            for (int[] gids : layers) {
+                for (int y = 0; y < bounds.height; y++) {
+                    row.clear();
+                    row.asIntBuffer().put(gids, y * bounds.width, bounds.width);
+                    tileOut.write(row.array());
+                }
+            }
+            if (def != null) {
+                ((DeflaterOutputStream) tileOut).finish();
+            }
+            tileOut.flush();
+        } finally {
+            if (def != null) {
+                def.end();
+            }
+        }
+    }
+
+    /**
+     * Reads a region that was written by {@link #write}.
+     *
+     * @param in the stream to read from
+     * @return the region
+     * @throws IOException when reading fails or the data is not a valid
+     *         region
+     */
+    public static TileRegion read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(
+                new BufferedInputStream(in));
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a tile region");
+        }
+        final int flags = data.readInt();
+        final Rectangle bounds = new Rectangle(data.readInt(), data.readInt(),
+                                               data.readInt(), data.readInt());
+        final int tileWidth = data.readInt();
+        final int tileHeight = data.readInt();
+        if (bounds.width <= 0 || bounds.height <= 0 ||
+                (long) bounds.width * bounds.height > MAX_LOCATIONS) {
+            throw new IOException("Invalid region size");
+        }
+
+        // The tilesets are numbered consecutively, as done by copy
+        final int tilesetCount = data.readInt();
+        if (tilesetCount < 0 || tilesetCount > MAX_GIDS) {
+            throw new IOException("Invalid number of tilesets");
+        }
+        final List<TilesetReference> tilesets =
+                new ArrayList<TilesetReference>();
+        int nextGid = 1;
+        for (int i = 0; i < tilesetCount; i++) {
+            TilesetReference ref = TilesetReference.read(data);
+            if (ref.firstGid != nextGid || ref.tileCount > MAX_GIDS - nextGid) {
+                throw new IOException("Invalid tileset reference");
+            }
+            nextGid += ref.tileCount;
+            tilesets.add(ref);
+        }
+
+        final int layerCount = data.readInt();
+        if (layerCount <= 0 ||
+                (long) layerCount * bounds.width * bounds.height > MAX_LOCATIONS) {
+            throw new IOException("Invalid number of layers");
+        }
+        final int[][] layers = new int[layerCount][];
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            data = new DataInputStream(new InflaterInputStream(data));
+        }
+        final byte[] row = new byte[4 * bounds.width];
+        for (int l = 0; l < layers.length; l++) {
+            final int[] gids = new int[bounds.width * bounds.height];
+            for (int y = 0; y < bounds.height; y++) {
+                data.readFully(row);
+                ByteBuffer.wrap(row).asIntBuffer()
+                        .get(gids, y * bounds.width, bounds.width);
+            }
+            layers[l] = gids;
+        }
+
+        return new TileRegion(bounds, tileWidth, tileHeight,
+                tilesets.toArray(new TilesetReference[tilesets.size()]),
+                layers);
+    }
+
+    /**
+     * Describes a tileset used by the region, well enough to find it again
+     * in another map or another instance of the editor.
+     */
+    private static class TilesetReference
+    {
+        /** The tileset itself, only known within the same editor. */
+        private final TileSet tileset;
+        private final int firstGid;
+        private final int tileCount;
+        private final String name;
+        private final String source;
+        private final String image;
+        private final int tileWidth, tileHeight;
+
+        TilesetReference(TileSet set, int firstGid) {
+            this(set, firstGid, set.getMaxTileId() + 1, set.getName(),
+                    set.getSource(), set.getTilebmpFile(),
+                    set.getTileWidth(), set.getTileHeight());
+        }
+
+        private TilesetReference(TileSet set, int firstGid, int tileCount,
+                                 String name, String source, String image,
+                                 int tileWidth, int tileHeight) {
+            tileset = set;
+            this.firstGid = firstGid;
+            this.tileCount = tileCount;
+            this.name = name;
+            this.source = source;
+            this.image = image;
+            this.tileWidth = tileWidth;
+            this.tileHeight = tileHeight;
+        }
+
+        /**
+         * Finds the referenced tileset in the given map. It is matched on
+         * the tileset file, the tileset image or the name, in that order.
+         * When the map does not contain the tileset, it is returned when it
+         * is available in this editor or can be loaded from its file.
+         *
+         * @return the tileset, or <code>null</code> when it could not be
+         *         found
+         * @throws IOException when loading the tileset file failed
+         */
+        TileSet resolve(Map map) throws IOException {
+            final List<TileSet> sets = map.getTilesets();
+            if (tileset != null && sets.contains(tileset)) {
+                return tileset;
+            }
+            for (TileSet set : sets) {
+                if (source != null && source.equals(set.getSource())) {
+                    return set;
+                }
+            }
+            for (TileSet set : sets) {
+                if (image != null && image.equals(set.getTilebmpFile()) &&
+                        hasTileSize(set)) {
+                    return set;
+                }
+            }
+            for (TileSet set : sets) {
+                if (name != null && name.equals(set.getName()) &&
+                        hasTileSize(set)) {
+                    return set;
+                }
+            }
+
+            if (tileset == null && source != null && new File(source).isFile()) {
+                try {
+                    return MapHelper.loadTileset(source);
+                } catch (Exception e) {
+                    IOException ioe = new IOException(
+                            "Failed to load tileset " + source);
+                    ioe.initCause(e);
+                    throw ioe;
+                }
+            }
+            return tileset;
+        }
+
+        private boolean hasTileSize(TileSet set) {
+            return set.getTileWidth() == tileWidth &&
+                    set.getTileHeight() == tileHeight;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(firstGid);
+            out.writeInt(tileCount);
+            writeString(out, name);
+            writeString(out, source);
+            writeString(out, image);
+            out.writeInt(tileWidth);
+            out.writeInt(tileHeight);
+        }
+
+        static TilesetReference read(DataInputStream in) throws IOException {
+            final int firstGid = in.readInt();
+            final int tileCount = in.readInt();
+            if (firstGid < 1 || tileCount < 0) {
+                throw new IOException("Invalid tileset reference");
+            }
+            return new TilesetReference(null, firstGid, tileCount,
+                    readString(in), readString(in), readString(in),
+                    in.readInt(), in.readInt());
+        }
+
+        private static void writeString(DataOutputStream out, String s)
+                throws IOException {
+            out.writeBoolean(s != null);
+            if (s != null) {
+                out.writeUTF(s);
+            }
+        }
+
+        private static String readString(DataInputStream in)
+                throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+    }
+}
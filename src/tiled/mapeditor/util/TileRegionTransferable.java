@@ -0,0 +1,102 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.util;
+
+import java.awt.Rectangle;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.Transferable;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Puts a {@link TileRegion} on the system clipboard. Within the same editor
+ * the region itself is used, while other instances of the editor read it
+ * from a stream. The region is only written to a stream when it is actually
+ * requested by another application.
+ *
+ * @version $Id$
+ */
+public class TileRegionTransferable implements Transferable
+{
+    public static final DataFlavor TILE_REGION_FLAVOR = new DataFlavor(
+            "application/x-tiled-region; class=java.io.InputStream",
+            "Tiled map region");
+
+    /** Regions with more tiles than this are compressed. */
+    private static final int COMPRESS_THRESHOLD = 4096;
+
+    private final TileRegion region;
+
+    public TileRegionTransferable(TileRegion region) {
+        this.region = region;
+    }
+
+    public TileRegion getRegion() {
+        return region;
+    }
+
+    public DataFlavor[] getTransferDataFlavors() {
+        return new DataFlavor[] {TILE_REGION_FLAVOR};
+    }
+
+    public boolean isDataFlavorSupported(DataFlavor flavor) {
+        return TILE_REGION_FLAVOR.equals(flavor);
+    }
+
+    public Object getTransferData(DataFlavor flavor)
+            throws UnsupportedFlavorException, IOException {
+        if (!isDataFlavorSupported(flavor)) {
+            throw new UnsupportedFlavorException(flavor);
+        }
+        final Rectangle size = region.getBounds();
+        final boolean compress = (long) size.width * size.height *
+                region.getLayerCount() > COMPRESS_THRESHOLD;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        region.write(out, compress);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    /**
+     * Returns the region contained in the given clipboard contents.
+     *
+     * @param contents the clipboard contents, may be <code>null</code>
+     * @return the region, or <code>null</code> when the contents are not a
+     *         region
+     * @throws IOException when the region could not be read
+     */
+    public static TileRegion getRegion(Transferable contents)
+            throws IOException {
+        if (contents instanceof TileRegionTransferable) {
+            return ((TileRegionTransferable) contents).getRegion();
+        }
+        if (contents == null ||
+                !contents.isDataFlavorSupported(TILE_REGION_FLAVOR)) {
+            return null;
+        }
+        try {
+            InputStream in = (InputStream)
+                    contents.getTransferData(TILE_REGION_FLAVOR);
+            try {
+                return TileRegion.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (UnsupportedFlavorException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,526 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.util;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.swing.SwingUtilities;
+
+import tiled.core.Map;
+import tiled.core.MapChangeAdapter;
+import tiled.core.MapChangedEvent;
+import tiled.core.Tile;
+import tiled.core.TileSet;
+import tiled.core.TilesetChangeListener;
+import tiled.core.TilesetChangedEvent;
+import tiled.io.ImageCache;
+import tiled.io.PluginLogger;
+import tiled.io.TilesetRegistry;
+import tiled.io.xml.XMLMapTransformer;
+
+/**
+ * Watches the tileset images and tileset files of a map, and reloads the
+ * tilesets when these files change, so that changes made in an image
+ * editor show up without refreshing the tilesets by hand.
+ * <p>
+ * Changes are noticed through a {@link WatchService} rather than by polling
+ * the files. A file is only reloaded once no more changes to it were seen
+ * for a short while, since image editors often write a file in several
+ * steps. New images are decoded and cut on a background thread. Only the
+ * tiles whose pixels changed, found by comparing a hash of the pixels of
+ * each tile, get new images, which happens on the event dispatch thread
+ * followed by a single change event for the tileset.
+ *
+ * @version $Id$
+ */
+public class TilesetWatcher extends MapChangeAdapter implements Runnable
+{
+    /** How long a file has to stay unchanged before it is reloaded. */
+    private static final long SETTLE_DELAY = 250;
+
+    private final TilesetChangeListener listener;
+    private final ErrorListener errorListener;
+    private WatchService watchService;
+    private Map map;
+
+    /** The watched directories. */
+    private final HashMap<Path, WatchKey> keys = new HashMap<Path, WatchKey>();
+    /** The tilesets by the image or tileset file they were loaded from. */
+    private final HashMap<Path, List<TileSet>> tilesets =
+            new HashMap<Path, List<TileSet>>();
+    /** The tileset files, which are reloaded completely. */
+    private final HashSet<Path> sources = new HashSet<Path>();
+    /** The pixel hashes of the tiles of each tileset, once known. */
+    private final IdentityHashMap<TileSet, int[]> tileHashes =
+            new IdentityHashMap<TileSet, int[]>();
+    /** The changed files by the time they were last changed. */
+    private final HashMap<Path, Long> pending = new HashMap<Path, Long>();
+
+    private final ExecutorService loader =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Tileset loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Notified on the event dispatch thread when a file can not be watched
+     * or reloaded.
+     */
+    public interface ErrorListener
+    {
+        public void watchFailed(File dir, IOException e);
+
+        public void reloadFailed(File file, Exception e);
+    }
+
+    /**
+     * @param listener notified on the event dispatch thread after a tileset
+     *                 was reloaded, or <code>null</code>
+     */
+    public TilesetWatcher(TilesetChangeListener listener) {
+        this(listener, null);
+    }
+
+    /**
+     * @param listener      notified on the event dispatch thread after a
+     *                      tileset was reloaded, or <code>null</code>
+     * @param errorListener notified of errors, or <code>null</code> to
+     *                      print them
+     */
+    public TilesetWatcher(TilesetChangeListener listener,
+                          ErrorListener errorListener)
+    {
+        this.listener = listener;
+        this.errorListener = errorListener;
+    }
+
+    /**
+     * Watches the tilesets of the given map instead of those of the map
+     * watched before, including tilesets added to it later on.
+     *
+     * @param map the map to watch, or <code>null</code> to stop watching
+     */
+    public synchronized void setMap(Map map) {
+        if (this.map != null) {
+            this.map.removeMapChangeListener(this);
+        }
+        this.map = map;
+        if (map != null) {
+            map.addMapChangeListener(this);
+        }
+        updateWatchedFiles();
+    }
+
+    public void tilesetAdded(MapChangedEvent e, TileSet tileset) {
+        updateWatchedFiles();
+    }
+
+    public void tilesetRemoved(MapChangedEvent e, int index) {
+        updateWatchedFiles();
+    }
+
+    private synchronized void updateWatchedFiles() {
+        tilesets.clear();
+        sources.clear();
+        if (map != null) {
+            for (TileSet set : map.getTilesets()) {
+                if (set.getTilebmpFile() != null) {
+                    addFile(new File(set.getTilebmpFile()), set);
+                }
+                if (set.getSource() != null) {
+                    sources.add(addFile(new File(set.getSource()), set));
+                }
+            }
+        }
+        tileHashes.keySet().retainAll(getWatchedTilesets());
+
+        // Hash the current tiles in advance, so that a change can be
+        // compared against them straight away
+        for (final TileSet set : getWatchedTilesets()) {
+            if (!tileHashes.containsKey(set) && !loader.isShutdown()) {
+                loader.execute(new Runnable() {
+                    public void run() {
+                        getTileHashes(set);
+                    }
+                });
+            }
+        }
+
+        // Stop watching directories without any watched files
+        Iterator<java.util.Map.Entry<Path, WatchKey>> iterator =
+                keys.entrySet().iterator();
+        while (iterator.hasNext()) {
+            java.util.Map.Entry<Path, WatchKey> entry = iterator.next();
+            boolean used = false;
+            for (Path file : tilesets.keySet()) {
+                used |= entry.getKey().equals(file.getParent());
+            }
+            if (!used) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+
+        for (Path file : tilesets.keySet()) {
+            watchDirectory(file.getParent());
+        }
+    }
+
+    private Path addFile(File file, TileSet set) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        List<TileSet> sets = tilesets.get(path);
+        if (sets == null) {
+            sets = new ArrayList<TileSet>();
+            tilesets.put(path, sets);
+        }
+        sets.add(set);
+        return path;
+    }
+
+    private List<TileSet> getWatchedTilesets() {
+        List<TileSet> watched = new ArrayList<TileSet>();
+        for (List<TileSet> sets : tilesets.values()) {
+            watched.addAll(sets);
+        }
+        return watched;
+    }
+
+    private void watchDirectory(Path dir) {
+        if (dir == null || keys.containsKey(dir)) {
+            return;
+        }
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(this, "Tileset watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            keys.put(dir, dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY));
+        } catch (final IOException e) {
+            final File dirFile = dir.toFile();
+            if (errorListener == null) {
+                System.err.println("Could not watch " + dir + ": " +
+                        e.getLocalizedMessage());
+            } else if (SwingUtilities.isEventDispatchThread()) {
+                errorListener.watchFailed(dirFile, e);
+            } else {
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        errorListener.watchFailed(dirFile, e);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Stops watching any files.
+     */
+    public synchronized void close() {
+        setMap(null);
+        loader.shutdownNow();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Waits for changes to the watched files, and starts reloading a file
+     * once it has not changed for a while.
+     */
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key;
+                long wait = getTimeUntilSettled();
+                if (wait < 0) {
+                    key = watchService.take();
+                } else {
+                    key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+                }
+
+                synchronized (this) {
+                    if (key != null) {
+                        Path dir = (Path) key.watchable();
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                // Some events were lost, so check all files
+                                for (Path file : tilesets.keySet()) {
+                                    if (dir.equals(file.getParent())) {
+                                        pending.put(file, System.currentTimeMillis());
+                                    }
+                                }
+                                continue;
+                            }
+                            Path file = dir.resolve((Path) event.context());
+                            if (tilesets.containsKey(file)) {
+                                pending.put(file, System.currentTimeMillis());
+                            }
+                        }
+                        key.reset();
+                    }
+
+                    final long now = System.currentTimeMillis();
+                    Iterator<java.util.Map.Entry<Path, Long>> iterator =
+                            pending.entrySet().iterator();
+                    while (iterator.hasNext()) {
+                        java.util.Map.Entry<Path, Long> entry = iterator.next();
+                        if (now - entry.getValue() >= SETTLE_DELAY) {
+                            iterator.remove();
+                            reload(entry.getKey());
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped watching
+        } catch (ClosedWatchServiceException e) {
+            // Stopped watching
+        }
+    }
+
+    private synchronized long getTimeUntilSettled() {
+        long wait = -1;
+        final long now = System.currentTimeMillis();
+        for (long changed : pending.values()) {
+            long left = Math.max(1, changed + SETTLE_DELAY - now);
+            wait = wait < 0 ? left : Math.min(wait, left);
+        }
+        return wait;
+    }
+
+    private void reload(final Path file) {
+        final boolean source = sources.contains(file);
+        final List<TileSet> sets = tilesets.get(file);
+        if (sets == null || loader.isShutdown()) {
+            return;
+        }
+        for (final TileSet set : sets) {
+            loader.execute(new Runnable() {
+                public void run() {
+                    try {
+                        if (source) {
+                            reloadTileset(set, file);
+                        } else {
+                            reloadImage(set, file);
+                        }
+                    } catch (final Exception e) {
+                        // Probably still being written, a next change will
+                        // be noticed again
+                        if (errorListener == null) {
+                            System.err.println("Could not reload " + file +
+                                    ": " + e.getLocalizedMessage());
+                            return;
+                        }
+                        SwingUtilities.invokeLater(new Runnable() {
+                            public void run() {
+                                errorListener.reloadFailed(file.toFile(), e);
+                            }
+                        });
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Decodes and cuts a changed tileset image, and updates the tiles that
+     * look different now.
+     */
+    private void reloadImage(TileSet set, Path file) throws IOException {
+        File imageFile = file.toFile();
+        ImageCache.getInstance().remove(imageFile);
+        BufferedImage image = ImageCache.getInstance().getImage(
+                imageFile, set.getTransparentColor());
+
+        Image[] cut = set.cutTileImages(image);
+        update(set, image, cut, null);
+    }
+
+    /**
+     * Reads a changed tileset file, and updates the tiles of the tileset
+     * that look different now as well as the properties of all tiles. When
+     * the tileset is shared through the {@link TilesetRegistry}, maps opened
+     * later on keep sharing it.
+     */
+    private void reloadTileset(TileSet set, Path file) throws Exception {
+        // The reader logs parse errors instead of throwing them
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        XMLMapTransformer reader = new XMLMapTransformer();
+        reader.setLogger(new PluginLogger(new PrintStream(log, true)));
+        final TileSet changed = reader.readTileset(file.toString());
+        if (changed == null) {
+            throw new IOException(log.size() > 0 ?
+                    log.toString().trim() : "no tileset found");
+        }
+        if (changed.getTilebmpFile() == null) {
+            return;
+        }
+        TilesetRegistry.getInstance().refresh(file.toFile(), set);
+
+        final BufferedImage image = ImageCache.getInstance().getImage(
+                new File(changed.getTilebmpFile()),
+                changed.getTransparentColor());
+        Image[] cut = new Image[changed.getMaxTileId() + 1];
+        for (int id = 0; id < cut.length; id++) {
+            Tile tile = changed.getTile(id);
+            cut[id] = tile != null ? tile.getImage() : null;
+        }
+        update(set, image, cut, changed);
+    }
+
+    private void update(final TileSet set, final BufferedImage image,
+                        final Image[] cut, final TileSet changedSet)
+    {
+        // Compare the pixels of the new tiles with those of the current
+        // ones, hashing the current ones the first time
+        final TreeMap<Integer, Image> changed;
+        if (cut != null) {
+            int[] hashes = getTileHashes(set);
+            int[] newHashes = new int[cut.length];
+            changed = new TreeMap<Integer, Image>();
+            for (int id = 0; id < cut.length; id++) {
+                newHashes[id] = hashImage(cut[id]);
+                if (cut[id] != null && (id >= hashes.length ||
+                        !(cut[id] instanceof BufferedImage) ||
+                        newHashes[id] != hashes[id])) {
+                    changed.put(id, cut[id]);
+                }
+            }
+            synchronized (this) {
+                tileHashes.put(set, newHashes);
+            }
+
+            if (changed.isEmpty() && changedSet == null) {
+                return;
+            }
+        } else {
+            changed = null;
+        }
+
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                set.updateTileImages(image, changed);
+                if (changedSet != null) {
+                    updateProperties(set, changedSet);
+                    // The tileset may use another image now
+                    updateWatchedFiles();
+                }
+                if (listener != null) {
+                    listener.tilesetChanged(new TilesetChangedEvent(set));
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the pixel hashes of the current tiles of a tileset, which are
+     * computed the first time.
+     */
+    private int[] getTileHashes(TileSet set) {
+        synchronized (this) {
+            int[] hashes = tileHashes.get(set);
+            if (hashes != null) {
+                return hashes;
+            }
+        }
+        int[] hashes = new int[set.getMaxTileId() + 1];
+        for (int id = 0; id < hashes.length; id++) {
+            Tile tile = set.getTile(id);
+            hashes[id] = hashImage(tile != null ? tile.getImage() : null);
+        }
+        synchronized (this) {
+            tileHashes.put(set, hashes);
+        }
+        return hashes;
+    }
+
+    private static void updateProperties(TileSet set, TileSet changedSet) {
+        if (changedSet.getName() != null &&
+                !changedSet.getName().equals(set.getName())) {
+            set.setName(changedSet.getName());
+        }
+        if (!changedSet.getTilebmpFile().equals(set.getTilebmpFile())) {
+            set.setTilesetImageFilename(changedSet.getTilebmpFile());
+        }
+        for (int id = 0; id <= set.getMaxTileId(); id++) {
+            Tile tile = set.getTile(id);
+            Tile changed = changedSet.getTile(id);
+            if (tile != null && changed != null) {
+                tile.setProperties(changed.getProperties());
+            }
+        }
+    }
+
+    /**
+     * Returns a hash of the pixels of an image, or 0 when it has none.
+     */
+    private static int hashImage(Image image) {
+        if (!(image instanceof BufferedImage)) {
+            return 0;
+        }
+        BufferedImage buffer = (BufferedImage) image;
+        final int w = buffer.getWidth();
+        final int h = buffer.getHeight();
+        final int[] row = new int[w];
+        final int type = buffer.getType();
+        // Reading the pixels of integer images without conversion is faster
+        final boolean direct = type == BufferedImage.TYPE_INT_ARGB ||
+                type == BufferedImage.TYPE_INT_ARGB_PRE ||
+                type == BufferedImage.TYPE_INT_RGB;
+        int hash = w * 31 + h;
+        for (int y = 0; y < h; y++) {
+            if (direct) {
+                buffer.getRaster().getDataElements(0, y, w, 1, row);
+            } else {
+                buffer.getRGB(0, y, w, 1, row, 0, w);
+            }
+            for (int x = 0; x < w; x++) {
+                hash = hash * 31 + row[x];
+            }
+        }
+        return hash;
+    }
+}
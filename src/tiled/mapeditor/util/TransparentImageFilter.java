@@ -17,7 +17,13 @@ import java.awt.image.RGBImageFilter;
 /**
  * This filter is used for filtering out a given "transparent" color from an
  * image. Sometimes known as magic pink.
+ *
+ * @deprecated Filtering through the toolkit produces an image that still
+ *             needs to be loaded. Use
+ *             {@link tiled.io.ImageHelper#toCompatibleImage(java.awt.Image,
+ *             java.awt.Color)} instead.
  */
+@Deprecated
 public class TransparentImageFilter extends RGBImageFilter
 {
     int trans;
@@ -5,7 +5,7 @@
  *  it under the terms of the GNU General Public License as published by
  *  the Free Software Foundation; either version 2 of the License, or
  *  (at your option) any later version.
- * 
+ *
  *  Adam Turk <aturk@biggeruniverse.com>
  *  Bjorn Lindeijer <bjorn@lindeijer.nl>
  *  Rainer Deyke <rainerd@eldwood.com>
@@ -15,45 +15,169 @@ package tiled.mapeditor.widget;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.ArrayList;
+import java.util.Iterator;
 
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 
+import tiled.core.*;
 import tiled.view.MapView;
 
-
+/**
+ * Displays an overview of a map. The minimap keeps its own raster with one
+ * pixel per tile, holding the composited average colors of the visible tile
+ * layers. When part of the map changes, only the affected pixels are
+ * recalculated with {@link #refreshRegion(Rectangle)}. The raster is scaled
+ * up when it is painted.
+ */
 public class MiniMapViewer extends JPanel
 {
     public static final int MAX_HEIGHT = 150;
 
-    private MapView myView;
+    private Map map;
     private JScrollPane mainPanel;
     private double scale = 0.0625;
     private BufferedImage renderedMap;
+    private int[] pixels;
+
+    /** The tilesets of the map whose changes are listened to. */
+    private final ArrayList<TileSet> tilesets = new ArrayList<TileSet>();
+
+    private final MapChangeListener mapChangeListener = new MapChangeListener() {
+        public void mapChanged(MapChangedEvent e) {
+            // The map may have been resized
+            if (renderedMap == null ||
+                    renderedMap.getWidth() != map.getWidth() ||
+                    renderedMap.getHeight() != map.getHeight()) {
+                createRaster();
+                revalidate();
+            }
+            refresh();
+        }
+
+        public void layerAdded(MapChangedEvent e) {
+            refresh();
+        }
+
+        public void layerRemoved(MapChangedEvent e) {
+            refresh();
+        }
+
+        public void layerMoved(MapChangedEvent e) {
+            refresh();
+        }
+
+        public void layerChanged(MapChangedEvent e, MapLayerChangeEvent layerChangeEvent) {
+            // Visibility or opacity may have changed
+            refresh();
+        }
+
+        public void tilesetAdded(MapChangedEvent e, TileSet tileset) {
+            listenToTilesets();
+        }
+
+        public void tilesetRemoved(MapChangedEvent e, int index) {
+            listenToTilesets();
+            refresh();
+        }
+
+        public void tilesetsSwapped(MapChangedEvent e, int index0, int index1) {
+        }
+    };
+
+    private final TilesetChangeListener tilesetChangeListener = new TilesetChangeListener() {
+        public void tilesetChanged(TilesetChangedEvent event) {
+            // Tile images may have changed
+            refresh();
+        }
+
+        public void nameChanged(TilesetChangedEvent event, String oldName, String newName) {
+        }
+
+        public void sourceChanged(TilesetChangedEvent event, String oldSource, String newSource) {
+        }
+    };
 
     public MiniMapViewer() {
         setSize(MAX_HEIGHT, MAX_HEIGHT);
     }
 
-    public MiniMapViewer(MapView view) {
+    public MiniMapViewer(Map map) {
         this();
-        setView(view);
+        setMap(map);
     }
 
-    public void setView(MapView view) {
-        myView = view;
-        myView.setZoom(scale);
-        Dimension d = myView.getPreferredSize();
-        renderedMap = new BufferedImage(d.width, d.height, BufferedImage.TYPE_INT_ARGB);
-        //scale = MAX_HEIGHT / (double)d.height;
-        Graphics2D g = renderedMap.createGraphics();
-        g.setClip(0, 0, d.width, d.height);
-        myView.paint(g);
+    /**
+     * Sets the map to display, or <code>null</code> to display nothing.
+     *
+     * @param map the map to display
+     */
+    public void setMap(Map map) {
+        if (this.map != null) {
+            this.map.removeMapChangeListener(mapChangeListener);
+        }
+
+        this.map = map;
+        listenToTilesets();
+        createRaster();
+
+        if (map != null) {
+            map.addMapChangeListener(mapChangeListener);
+        }
+
+        refresh();
+        revalidate();
+    }
+
+    /**
+     * Allocates the raster for the current size of the map.
+     */
+    private void createRaster() {
+        renderedMap = null;
+        pixels = null;
+
+        if (map != null && map.getWidth() > 0 && map.getHeight() > 0) {
+            renderedMap = new BufferedImage(map.getWidth(),
+                    map.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            pixels = ((DataBufferInt) renderedMap.getRaster()
+                    .getDataBuffer()).getData();
+        }
+    }
+
+    /**
+     * Listens to changes of exactly the tilesets of the current map.
+     */
+    private void listenToTilesets() {
+        for (TileSet tileset : tilesets) {
+            tileset.removeTilesetChangeListener(tilesetChangeListener);
+        }
+        tilesets.clear();
+
+        if (map != null) {
+            tilesets.addAll(map.getTilesets());
+            for (TileSet tileset : tilesets) {
+                tileset.addTilesetChangeListener(tilesetChangeListener);
+            }
+        }
+    }
+
+    /**
+     * Returns the size in pixels of a single tile on the minimap.
+     */
+    private Dimension getCellSize() {
+        return new Dimension(
+                Math.max(1, (int) (map.getTileWidth() * scale)),
+                Math.max(1, (int) (map.getTileHeight() * scale)));
     }
 
     public Dimension getPreferredSize() {
-        if(myView != null) {
-            return myView.getPreferredSize();
+        if (map != null) {
+            Dimension cell = getCellSize();
+            return new Dimension(
+                    map.getWidth() * cell.width,
+                    map.getHeight() * cell.height);
         }
         return new Dimension(0, 0);
     }
@@ -66,35 +190,113 @@ public class MiniMapViewer extends JPanel
         mainPanel = main;
     }
 
+    /**
+     * Recalculates the whole minimap. This is needed when layers are added,
+     * removed or reordered, when their visibility or opacity changes, or
+     * when tile images change.
+     */
     public void refresh() {
-        if(renderedMap != null && myView != null) {
-            Dimension d = myView.getPreferredSize();
-            Graphics2D g = renderedMap.createGraphics();
-            g.setClip(0, 0, d.width, d.height);
-            myView.paint(g);
+        if (map != null) {
+            refreshRegion(new Rectangle(0, 0, map.getWidth(), map.getHeight()));
+        }
+    }
+
+    /**
+     * Recalculates the minimap for the given region of the map, and repaints
+     * the affected part of the component.
+     *
+     * @param region the changed region, in tile coordinates
+     */
+    public void refreshRegion(Rectangle region) {
+        if (renderedMap == null || region == null) {
+            return;
+        }
+
+        Rectangle r = region.intersection(
+                new Rectangle(0, 0, map.getWidth(), map.getHeight()));
+        if (r.isEmpty()) {
+            return;
         }
+
+        final int stride = map.getWidth();
+        for (int y = r.y; y < r.y + r.height; y++) {
+            int i = y * stride + r.x;
+            for (int x = r.x; x < r.x + r.width; x++, i++) {
+                pixels[i] = 0;
+            }
+        }
+
+        // Composite the visible tile layers from the bottom up
+        Iterator<MapLayer> li = map.getLayers();
+        while (li.hasNext()) {
+            MapLayer layer = li.next();
+            if (!(layer instanceof TileLayer) || !layer.isVisible() ||
+                    layer.getOpacity() <= 0.0f) {
+                continue;
+            }
+
+            final TileLayer tileLayer = (TileLayer) layer;
+            final int opacity = (int) (layer.getOpacity() * 255);
+            Rectangle lr = r.intersection(layer.getBounds());
+
+            for (int y = lr.y; y < lr.y + lr.height; y++) {
+                int i = y * stride + lr.x;
+                for (int x = lr.x; x < lr.x + lr.width; x++, i++) {
+                    Tile tile = tileLayer.getTileAt(x, y);
+                    if (tile != null) {
+                        pixels[i] = blend(tile.getAverageColor(), opacity,
+                                pixels[i]);
+                    }
+                }
+            }
+        }
+
+        Dimension cell = getCellSize();
+        repaint(r.x * cell.width, r.y * cell.height,
+                r.width * cell.width, r.height * cell.height);
+    }
+
+    /**
+     * Composites an ARGB color, with additional opacity, over another.
+     */
+    private static int blend(int src, int opacity, int dst) {
+        final int sa = ((src >>> 24) * opacity) / 255;
+        if (sa == 0) {
+            return dst;
+        }
+        final int da = ((dst >>> 24) * (255 - sa)) / 255;
+        final int a = sa + da;
+        if (a == 0) {
+            return 0;
+        }
+        final int r = (((src >> 16) & 0xff) * sa + ((dst >> 16) & 0xff) * da) / a;
+        final int g = (((src >> 8) & 0xff) * sa + ((dst >> 8) & 0xff) * da) / a;
+        final int b = ((src & 0xff) * sa + (dst & 0xff) * da) / a;
+        return a << 24 | r << 16 | g << 8 | b;
     }
 
     public void paint(Graphics g) {
-        /*if (myView != null) {
-            myView.paint(g);
-        }*/
-        if(renderedMap != null) {
-            g.drawImage(renderedMap, 0, 0, null);
+        if (renderedMap != null) {
+            Dimension cell = getCellSize();
+            g.drawImage(renderedMap, 0, 0,
+                    map.getWidth() * cell.width,
+                    map.getHeight() * cell.height, null);
         }
 
-        if (mainPanel != null) {
+        if (mainPanel != null && map != null &&
+                mainPanel.getViewport().getView() instanceof MapView) {
+            MapView view = (MapView) mainPanel.getViewport().getView();
+            Rectangle viewArea = mainPanel.getViewport().getViewRect();
+            Dimension cell = getCellSize();
+            double sx = cell.width / (map.getTileWidth() * view.getZoom());
+            double sy = cell.height / (map.getTileHeight() * view.getZoom());
+
             g.setColor(Color.yellow);
-            Rectangle viewArea = mainPanel.getViewport().getBounds();
-            //Rectangle viewArea = mainPanel.getViewportBorderBounds();
-            if (viewArea != null) {
-                //System.out.println(viewArea.x+","+viewArea.y);
-                g.drawRect(
-                        (int)((viewArea.x-1) * scale),
-                        (int)((viewArea.y-1) * scale),
-                        (int)((viewArea.width-1) * scale),
-                        (int)((viewArea.height-1) * scale));
-            }
+            g.drawRect(
+                    (int) (viewArea.x * sx),
+                    (int) (viewArea.y * sy),
+                    (int) ((viewArea.width - 1) * sx),
+                    (int) ((viewArea.height - 1) * sy));
         }
     }
 }
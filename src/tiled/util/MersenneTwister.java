@@ -54,6 +54,9 @@ public class MersenneTwister extends Random {
     public static final int UPPER_MASK = 0x80000000; /* most significant w-r bits */
     public static final int LOWER_MASK = 0x7fffffff; /* least significant r bits */
 
+    /* mag01[x] = x * MATRIX_A  for x=0,1 */
+    private static final long[] mag01 = {0x0, MATRIX_A};
+
     private long[] mt;
     private int mti=N+1; /* mti==N+1 means mt[N] is not initialized */
 
@@ -114,31 +117,59 @@ public class MersenneTwister extends Random {
     /* generates a random number on [0,0xffffffff]-interval */
     public long genrand()
     {
-        int y;
-        long[] mag01={0x0, MATRIX_A};
-        /* mag01[x] = x * MATRIX_A  for x=0,1 */
-
         if (mti >= N) { /* generate N words at one time */
-            int kk;
+            generate();
+        }
 
-            if (mti == N+1)   /* if init_genrand() has not been called, */
-                initGenRand(5489); /* a default initial seed is used */
+        return temper(mt[mti++]);
+    }
 
-            for (kk=0;kk<N-M;kk++) {
-                y = (int) ((mt[kk]&UPPER_MASK)|(mt[kk+1]&LOWER_MASK));
-                mt[kk] = mt[kk+M] ^ (y >> 1) ^ mag01[y & 0x1];
+    /**
+     * Generates <code>count</code> numbers at once into the given array.
+     * The numbers are the same as those returned by as many calls to
+     * {@link #genrand()}, but this avoids the per call overhead when many
+     * numbers are needed.
+     *
+     * @param values the array to store the numbers in
+     * @param offset the index in <code>values</code> of the first number
+     * @param count  the amount of numbers to generate
+     */
+    public void genrand(int[] values, int offset, int count) {
+        final int end = offset + count;
+        while (offset < end) {
+            if (mti >= N) {
+                generate();
             }
-            for (;kk<N-1;kk++) {
-                y = (int) ((mt[kk]&UPPER_MASK)|(mt[kk+1]&LOWER_MASK));
-                mt[kk] = mt[kk+(M-N)] ^ (y >> 1) ^ mag01[y & 0x1];
+            final int n = Math.min(end - offset, N - mti);
+            for (int k = 0; k < n; k++) {
+                values[offset++] = temper(mt[mti++]);
             }
-            y = (int) ((mt[N-1]&UPPER_MASK)|(mt[0]&LOWER_MASK));
-            mt[N-1] = mt[M-1] ^ (y >> 1) ^ mag01[y & 0x1];
+        }
+    }
 
-            mti = 0;
+    private void generate() {
+        int y;
+        int kk;
+
+        if (mti == N+1)   /* if init_genrand() has not been called, */
+            initGenRand(5489); /* a default initial seed is used */
+
+        for (kk=0;kk<N-M;kk++) {
+            y = (int) ((mt[kk]&UPPER_MASK)|(mt[kk+1]&LOWER_MASK));
+            mt[kk] = mt[kk+M] ^ (y >> 1) ^ mag01[y & 0x1];
         }
+        for (;kk<N-1;kk++) {
+            y = (int) ((mt[kk]&UPPER_MASK)|(mt[kk+1]&LOWER_MASK));
+            mt[kk] = mt[kk+(M-N)] ^ (y >> 1) ^ mag01[y & 0x1];
+        }
+        y = (int) ((mt[N-1]&UPPER_MASK)|(mt[0]&LOWER_MASK));
+        mt[N-1] = mt[M-1] ^ (y >> 1) ^ mag01[y & 0x1];
+
+        mti = 0;
+    }
 
-        y = (int) mt[mti++];
+    private static int temper(long word) {
+        int y = (int) word;
 
         /* Tempering */
         y ^= (y >> 11);
@@ -78,7 +78,11 @@ public class NumberedSet
             data.add(null);
         }
 
-        data.add(id, o);
+        if (id < data.size()) {
+            data.set(id, o);
+        } else {
+            data.add(o);
+        }
         return id;
     }
 
@@ -12,13 +12,19 @@
 
 package tiled.util;
 
-import java.util.Vector;
-import java.util.Iterator;
-import java.awt.GraphicsEnvironment;
-import java.awt.GraphicsConfiguration;
-import java.awt.Image;
-import java.awt.Graphics;
+import java.awt.Graphics2D;
 import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import tiled.core.Map;
 import tiled.core.TileSet;
@@ -28,20 +34,29 @@ import tiled.core.MapLayer;
 
 /**
  * This class facilitates physically merging tiles.
+ * <p>
+ * Every location of the merged layers has a stack of tiles. Equal stacks are
+ * found by hashing, so each unique stack is only merged once. The unique
+ * stacks are rendered in parallel into shared atlas images, and the tiles
+ * of the merged set use parts of these atlases as their images.
  */
 public class TileMergeHelper
 {
+    /** The maximum width and height of a single atlas image. */
+    private static final int ATLAS_SIZE = 2048;
+
+    /** The number of stacks rendered by a single task. */
+    private static final int RENDER_BATCH = 256;
+
     private Map myMap;
     private TileSet myTs;
-    private Vector<Cell> cells;
 
     public TileMergeHelper(Map map) {
         myMap = map;
-        cells = new Vector();
         myTs = new TileSet();
         myTs.setName("Merged Set");
     }
-    
+
     public static boolean areTileSizesUniform(Map map){
         for(MapLayer l : map.getLayerVector()){
             if(l.getTileWidth() != map.getTileWidth() || l.getTileHeight() != map.getTileHeight()){
@@ -50,20 +65,91 @@ public class TileMergeHelper
         }
         return true;
     }
-    
+
     public TileLayer merge(int start, int len, boolean all) {
         Rectangle r = myMap.getBounds();
         TileLayer mergedLayer = new TileLayer(r, myMap.getTileWidth(), myMap.getTileHeight());
-        
+
         // make sure all tile sizes are the same as the map's default tile size, otherwise the result will be a large mess..
         assert areTileSizesUniform(myMap);
-        
-        for (int i = 0; i < r.height; i++) {
-            for (int j = 0; j < r.width; j++) {
-                mergedLayer.setTileAt(j, i, createCell(j, i, start, len, all));
+
+        List<TileLayer> layers = new ArrayList<TileLayer>();
+        for (int i = 0; i < len; i++) {
+            MapLayer ml = myMap.getLayer(start + i);
+            if (ml instanceof TileLayer && (ml.isVisible() || all)) {
+                layers.add((TileLayer) ml);
+            }
+        }
+
+        // Give every tile used a number, so that a stack of tiles can be
+        // described by an array of numbers
+        IdentityHashMap<Tile, Integer> tileNumbers =
+                new IdentityHashMap<Tile, Integer>();
+        List<Tile> numberedTiles = new ArrayList<Tile>();
+
+        HashMap<Stack, Integer> stackIds = new HashMap<Stack, Integer>();
+        List<Stack> stacks = new ArrayList<Stack>();
+        int[] cellStacks = new int[r.width * r.height];
+
+        Tile[] row = new Tile[r.width];
+        int[][] numbers = new int[layers.size()][r.width];
+        int[] stack = new int[layers.size()];
+
+        for (int y = 0; y < r.height; y++) {
+            for (int l = 0; l < layers.size(); l++) {
+                layers.get(l).getRow(r.x, r.y + y, row, 0, r.width);
+                for (int x = 0; x < r.width; x++) {
+                    Tile tile = row[x];
+                    int number = -1;
+                    if (tile != null) {
+                        Integer n = tileNumbers.get(tile);
+                        if (n == null) {
+                            n = numberedTiles.size();
+                            tileNumbers.put(tile, n);
+                            numberedTiles.add(tile);
+                        }
+                        number = n;
+                    }
+                    numbers[l][x] = number;
+                }
+            }
+
+            for (int x = 0; x < r.width; x++) {
+                // Empty locations don't change what the stack looks like
+                int size = 0;
+                for (int l = 0; l < layers.size(); l++) {
+                    if (numbers[l][x] >= 0) {
+                        stack[size++] = numbers[l][x];
+                    }
+                }
+
+                int id = -1;
+                if (size > 0) {
+                    int[] tiles = new int[size];
+                    System.arraycopy(stack, 0, tiles, 0, size);
+                    Stack key = new Stack(tiles);
+                    Integer existing = stackIds.get(key);
+                    if (existing == null) {
+                        existing = stacks.size();
+                        stackIds.put(key, existing);
+                        stacks.add(key);
+                    }
+                    id = existing;
+                }
+                cellStacks[y * r.width + x] = id;
             }
         }
 
+        Tile[] mergedTiles = createTiles(stacks, numberedTiles);
+
+        for (int y = 0; y < r.height; y++) {
+            for (int x = 0; x < r.width; x++) {
+                int id = cellStacks[y * r.width + x];
+                row[x] = id >= 0 ? mergedTiles[id] : null;
+            }
+            mergedLayer.setRow(r.x, r.y + y, row, 0, r.width);
+        }
+
         return mergedLayer;
     }
 
@@ -71,106 +157,131 @@ public class TileMergeHelper
         return myTs;
     }
 
-    public Tile createCell(int tx, int ty, int start, int len, boolean all) {
-        Cell c = new Cell(myMap, tx, ty, start, len, all);
-        Iterator<Cell> itr = cells.iterator();
-        Tile tile;
-
-        while (itr.hasNext()) {
-            Cell check = itr.next();
-            if (check.equals(c)) {
-                return check.getTile();
-            }
-        }
+    /**
+     * Lays out the given stacks on atlas images, renders them in parallel
+     * and adds a tile for each of them to the merged set.
+     */
+    private Tile[] createTiles(final List<Stack> stacks,
+                               List<Tile> numberedTiles) {
+        final Tile[] tiles = numberedTiles.toArray(new Tile[numberedTiles.size()]);
+        final Rectangle[] areas = new Rectangle[stacks.size()];
+        final BufferedImage[] pages = new BufferedImage[stacks.size()];
 
-        cells.add(c);
+        // Place the stacks on shelves, starting a new atlas when the current
+        // one is full
+        List<Rectangle> pageSizes = new ArrayList<Rectangle>();
+        Rectangle page = null;
+        int shelfX = 0, shelfY = 0, shelfHeight = 0;
+        int[] pageOf = new int[stacks.size()];
 
-        tile = new Tile();
-        c.setTile(tile);
+        for (int i = 0; i < stacks.size(); i++) {
+            int w = 0, h = 0;
+            for (int number : stacks.get(i).tiles) {
+                w = Math.max(w, tiles[number].getWidth());
+                h = Math.max(h, tiles[number].getHeight());
+            }
+            w = Math.max(w, 1);
+            h = Math.max(h, 1);
 
-        //GENERATE MERGED TILE IMAGE
-        //FIXME: although faster, the following doesn't seem to handle alpha on some platforms...
-        GraphicsConfiguration config =
-            GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
-        Image tileImg = config.createCompatibleImage(c.getWidth(), c.getHeight());
-        c.render(tileImg.getGraphics());
-        tile.setImage(tileImg);
+            if (page != null && shelfX + w > ATLAS_SIZE) {
+                shelfX = 0;
+                shelfY += shelfHeight;
+                shelfHeight = 0;
+            }
+            if (page == null || shelfY + h > ATLAS_SIZE && shelfY > 0) {
+                page = new Rectangle();
+                pageSizes.add(page);
+                shelfX = shelfY = shelfHeight = 0;
+            }
 
-        myTs.addTile(tile);
+            areas[i] = new Rectangle(shelfX, shelfY, w, h);
+            pageOf[i] = pageSizes.size() - 1;
+            page.add(areas[i]);
+            shelfX += w;
+            shelfHeight = Math.max(shelfHeight, h);
+        }
 
-        return tile;
-    }
+        final BufferedImage[] atlases = new BufferedImage[pageSizes.size()];
+        for (int p = 0; p < atlases.length; p++) {
+            Rectangle size = pageSizes.get(p);
+            atlases[p] = new BufferedImage(size.width, size.height,
+                    BufferedImage.TYPE_INT_ARGB);
+        }
+        for (int i = 0; i < stacks.size(); i++) {
+            pages[i] = atlases[pageOf[i]];
+        }
 
-    private class Cell {
-        private Vector<Tile> sandwich;
-        private Tile myTile;
-
-        public Cell(Map map, int posx, int posy, int start, int len, boolean all) {
-            sandwich = new Vector<Tile>();
-            for (int i = 0; i < len; i++) {
-                MapLayer ml = map.getLayer(start+i);
-                if (ml instanceof TileLayer) {
-                    TileLayer l = (TileLayer) ml;
-                    if (l.isVisible() || all) {
-                        sandwich.add(l.getTileAt(posx, posy));
-                    } else {
-                        sandwich.add(null);
+        // Render the stacks in parallel. Each stack has its own part of an
+        // atlas, so the tasks never draw to the same pixels.
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (int i = 0; i < stacks.size(); i += RENDER_BATCH) {
+                final int first = i;
+                final int last = Math.min(i + RENDER_BATCH, stacks.size());
+                results.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (int s = first; s < last; s++) {
+                            render(stacks.get(s), tiles, pages[s], areas[s]);
+                        }
+                        return null;
                     }
-                }
+                }));
             }
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
         }
 
-        public void setTile(Tile t) {
-            myTile = t;
+        Tile[] merged = new Tile[stacks.size()];
+        for (int i = 0; i < stacks.size(); i++) {
+            Rectangle area = areas[i];
+            Tile tile = new Tile(myTs);
+            tile.setImage(myTs.addImage(
+                    pages[i].getSubimage(area.x, area.y, area.width, area.height),
+                    i, null));
+            myTs.addTile(tile);
+            merged[i] = tile;
         }
+        return merged;
+    }
 
-        public Tile getTile() {
-            return myTile;
+    private static void render(Stack stack, Tile[] tiles,
+                               BufferedImage atlas, Rectangle area) {
+        Graphics2D g = atlas.createGraphics();
+        g.clipRect(area.x, area.y, area.width, area.height);
+        for (int number : stack.tiles) {
+            tiles[number].draw(g, area.x, area.y + area.height, 1.0f);
         }
+        g.dispose();
+    }
 
-        public void render(Graphics g) {
-            for (Tile tile : sandwich) {
-                if (tile != null) tile.draw(g, 0, getHeight(), 1.0f);
-            }
-        }
+    /**
+     * The tiles at a single location, from bottom to top, as numbers.
+     */
+    private static class Stack {
+        private final int[] tiles;
+        private final int hash;
 
-        public boolean equals(Cell c) {
-            Iterator<Tile> me = sandwich.iterator();
-            Iterator<Tile> them = c.sandwich.iterator();
-            while (me.hasNext()) {
-                Tile m = me.next();
-                Tile t = them.next();
-                if (m != null && t != null && !m.equals(t)) {
-                    return false;
-                } else if (m != null && t != null && t != m) {
-                    return false;
-                } else if ((m != null && t == null) || (m == null && t != null)) {
-                    return false;
-                }
-            }
-            return true;
+        public Stack(int[] tiles) {
+            this.tiles = tiles;
+            hash = Arrays.hashCode(tiles);
         }
 
-        public int getWidth() {
-            int width = 0;
-            for (Tile tile : sandwich) {
-                if (tile != null) {
-                    int w = tile.getWidth();
-                    if (w > width) width = w;
-                }
-            }
-            return width;
+        public int hashCode() {
+            return hash;
         }
 
-        public int getHeight() {
-            int height = 0;
-            for (Tile tile : sandwich) {
-                if (tile != null) {
-                    int h = tile.getHeight();
-                    if (h > height) height = h;
-                }
-            }
-            return height;
+        public boolean equals(Object o) {
+            return o instanceof Stack && Arrays.equals(tiles, ((Stack) o).tiles);
         }
     }
 }
@@ -0,0 +1,84 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.view;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.Timer;
+
+/**
+ * The clock driving the animated tiles of all map views that are currently
+ * displayed. On every tick, each view advances the animations within its
+ * visible area to the same point in time and repaints the tiles whose frame
+ * changed. The timer only runs while there are views to animate.
+ *
+ * @version $Id$
+ */
+final class AnimationClock
+{
+    /** The time between two ticks, in milliseconds. */
+    static final int TICK_INTERVAL = 40;
+
+    /**
+     * How often a view looks for animated tiles again when its visible area
+     * did not change, in milliseconds.
+     */
+    static final int RESCAN_INTERVAL = 1000;
+
+    private static final List<MapView> views = new ArrayList<MapView>();
+    private static Timer timer;
+
+    private AnimationClock() {
+    }
+
+    /**
+     * Starts animating the given view.
+     */
+    static void addView(MapView view) {
+        if (views.contains(view)) {
+            return;
+        }
+        views.add(view);
+
+        if (timer == null) {
+            timer = new Timer(TICK_INTERVAL, new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    tick();
+                }
+            });
+            timer.start();
+        }
+    }
+
+    /**
+     * Stops animating the given view.
+     */
+    static void removeView(MapView view) {
+        views.remove(view);
+
+        if (views.isEmpty() && timer != null) {
+            timer.stop();
+            timer = null;
+        }
+    }
+
+    private static void tick() {
+        final long time = System.currentTimeMillis();
+        for (MapView view : views) {
+            view.animate(time);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import javax.swing.SwingConstants;
 import tiled.core.*;
 //import tiled.io.TiledLogger;
 import tiled.mapeditor.selection.SelectionLayer;
+import tiled.mapeditor.selection.SelectionMask;
 
 /**
  * A View for displaying Hex based maps.
@@ -81,6 +82,19 @@ public class HexMapView extends MapView
     private boolean hexEdgesToTheLeft;
     private boolean alignedToBottomOrRight;
 
+    /* Tile geometry for the current zoom level, tile size and grid setting,
+     * kept up to date by updateGeometry(). This saves the paint code from
+     * recalculating (and allocating) it for every tile.
+     */
+    private double geomZoom = -1;
+    private int geomTileWidth = -1;
+    private int geomTileHeight = -1;
+    private boolean geomShowGrid;
+    private final Dimension geomTileSize = new Dimension();
+    private int geomThreeQuarter;
+    private Polygon hexTemplate;            // hex with its corner at (0, 0)
+    private final Point parallaxOffset = new Point();
+
     /**
      * Creates a new hexagonal map view that displays the specified map.
      *
@@ -228,66 +242,69 @@ public class HexMapView extends MapView
      * Paint one layer to the viewport.
      *
      * @param g2d The graphics context, i.e. where to paint.
-     * @param layer The layer to paint. Can be a special layer
-     *        like the selection layer.
+     * @param layer The layer to paint.
      */
     protected void paintLayer(Graphics2D g2d, TileLayer layer) {
         // Determine area to draw from clipping rectangle
-        Dimension tsize = getEffectiveTileSize(layer);
-        // int toffset = showGrid ? 1 : 0;
+        updateGeometry(layer.getTileWidth(), layer.getTileHeight());
+        final Dimension tsize = geomTileSize;
+        final int tq = geomThreeQuarter;
 
         Rectangle clipRect = g2d.getClipBounds();
 
-        //TiledLogger.getLogger().info("clip " + clipRect.x + "," + clipRect.y
-        //    + "-" + clipRect.width + "," + clipRect.height);
+        Point topLeft = screenToTileCoords(layer, clipRect.x, clipRect.y);
+        Point bottomRight = screenToTileCoords(layer,
+                clipRect.x + clipRect.width, clipRect.y + clipRect.height);
+        int startX = Math.max(0, topLeft.x);
+        int startY = Math.max(0, topLeft.y);
+        int endX = Math.min(map.getWidth() - 1, bottomRight.x);
+        int endY = Math.min(map.getHeight() - 1, bottomRight.y);
 
-        Point topLeft = screenToTileCoords(
-                layer,(int)clipRect.getMinX(), (int)clipRect.getMinY());
-        Point bottomRight = screenToTileCoords(
-                layer,(int)clipRect.getMaxX(), (int)clipRect.getMaxY());
-        int startX = (int)topLeft.getX();
-        int startY = (int)topLeft.getY();
-        int endX = (int)(bottomRight.getX());
-        int endY = (int)(bottomRight.getY());
-        if ( startX < 0 ) {
-            startX = 0;
-        }
-        if ( startY < 0 ) {
-            startY = 0;
-        }
-        if ( endX >= map.getWidth()) {
-            endX = map.getWidth() - 1;
-        }
-        if ( endY >= map.getHeight()) {
-            endY = map.getHeight() - 1;
-        }
-
-        //TiledLogger.getLogger().info("index " + startX + "," + startY
-        //    + "-" + endX + "," + endY);
-
-        Polygon gridPoly;
-        double gx;
-        double gy;
         for (int y = startY; y <= endY; y++) {
             for (int x = startX; x <= endX; x++) {
                 Tile t = layer.getTileAt(x, y);
 
                 if (t != null) {
-                    if (layer.getClass() == SelectionLayer.class) {
-                        //TiledLogger.getLogger().info(
-                        //    "selection tile at " + x + "," + y);
-                        gridPoly = createGridPolygon(tsize, x, y, 0);
-                        g2d.fillPolygon(gridPoly);
-                    } else {
-                        Point screenCoords = getTopLeftCornerOfTile(tsize, x, y);
-                        gx = screenCoords.getX();
-                        gy = screenCoords.getY();
-                        //TiledLogger.getLogger().info(
-                        //    "image tile at " + x + "," + y
-                        //    + " at " + gx + "," + gy);
-                        t.draw(g2d, (int)gx, (int)(gy + tsize.height),
-                            zoom);
-                    }
+                    final int gx = getTileCornerX(tsize, tq, x, y);
+                    final int gy = getTileCornerY(tsize, tq, x, y);
+                    t.draw(g2d, gx, gy + tsize.height, zoom);
+                }
+            }
+        }
+    }
+
+    /**
+     * Paints a selection by filling the hexagon of each selected cell. Only
+     * the runs of selected cells within the clipping rectangle are visited.
+     */
+    protected void paintSelection(Graphics2D g2d, SelectionLayer selection) {
+        updateGeometry(selection.getTileWidth(), selection.getTileHeight());
+        final Dimension tsize = geomTileSize;
+        final int tq = geomThreeQuarter;
+
+        Rectangle clipRect = g2d.getClipBounds();
+        Rectangle bounds = selection.getBounds();
+        SelectionMask mask = selection.getMask();
+
+        Point topLeft = screenToTileCoords(selection, clipRect.x, clipRect.y);
+        Point bottomRight = screenToTileCoords(selection,
+                clipRect.x + clipRect.width, clipRect.y + clipRect.height);
+        int startX = Math.max(0, topLeft.x);
+        int startY = Math.max(0, topLeft.y);
+        int endX = Math.min(map.getWidth() - 1, bottomRight.x);
+        int endY = Math.min(map.getHeight() - 1, bottomRight.y);
+
+        for (int y = startY; y <= endY; y++) {
+            final int[] row = mask.getRow(y - bounds.y);
+            for (int i = 0; i < row.length; i += 2) {
+                final int runStart = Math.max(startX, row[i] + bounds.x);
+                final int runEnd = Math.min(endX, row[i + 1] - 1 + bounds.x);
+                for (int x = runStart; x <= runEnd; x++) {
+                    final int gx = getTileCornerX(tsize, tq, x, y);
+                    final int gy = getTileCornerY(tsize, tq, x, y);
+                    hexTemplate.translate(gx, gy);
+                    g2d.fillPolygon(hexTemplate);
+                    hexTemplate.translate(-gx, -gy);
                 }
             }
         }
@@ -316,14 +333,23 @@ public class HexMapView extends MapView
     }
 
     /**
-     * @return The tile size in the view without border as Dimension.
+     * Brings the cached tile geometry up to date for the given (unzoomed)
+     * tile size, the current zoom level and whether the grid is shown.
      */
-    private Dimension getEffectiveTileSize(MapLayer layer) {
-        //TiledLogger.getLogger().info("size "
-        //    + ((int)(map.getTileWidth() * zoom + 0.999)) + ","
-        //    + ((int)(map.getTileHeight() * zoom + 0.999)));
-        return new Dimension((int)(layer.getTileWidth() * zoom + 0.999),
-            (int)(layer.getTileHeight() * zoom + 0.999));
+    private void updateGeometry(int tileWidth, int tileHeight) {
+        if (geomZoom == zoom && geomShowGrid == showGrid &&
+                geomTileWidth == tileWidth && geomTileHeight == tileHeight) {
+            return;
+        }
+
+        geomZoom = zoom;
+        geomShowGrid = showGrid;
+        geomTileWidth = tileWidth;
+        geomTileHeight = tileHeight;
+        geomTileSize.setSize((int)(tileWidth * zoom + 0.999),
+                (int)(tileHeight * zoom + 0.999));
+        geomThreeQuarter = getThreeQuarterHex(geomTileSize);
+        hexTemplate = createHexPolygon(geomTileSize, 0, 0);
     }
 
     /**
@@ -380,60 +406,29 @@ public class HexMapView extends MapView
         MapLayer currentLayer = getCurrentLayer();
         if(currentLayer == null)
             return;
-        Dimension tileSize = getEffectiveTileSize(currentLayer);
+        updateGeometry(currentLayer.getTileWidth(),
+                currentLayer.getTileHeight());
+        final Dimension tileSize = geomTileSize;
+        final int tq = geomThreeQuarter;
 
         // Determine area to draw from clipping rectangle
         Rectangle clipRect = g2d.getClipBounds();
         Point topLeft = screenToTileCoords(
-                currentLayer,(int)clipRect.getMinX(), (int)clipRect.getMinY());
-        Point bottomRight = screenToTileCoords(
-                currentLayer,(int)clipRect.getMaxX(), (int)clipRect.getMaxY());
-        int startX = (int)topLeft.getX();
-        int startY = (int)topLeft.getY();
-        int endX = (int)(bottomRight.getX());
-        int endY = (int)(bottomRight.getY());
+                currentLayer, clipRect.x, clipRect.y);
+        Point bottomRight = screenToTileCoords(currentLayer,
+                clipRect.x + clipRect.width, clipRect.y + clipRect.height);
+        int startX = Math.max(0, topLeft.x);
+        int startY = Math.max(0, topLeft.y);
+        int endX = Math.min(map.getWidth() - 1, bottomRight.x);
+        int endY = Math.min(map.getHeight() - 1, bottomRight.y);
 
-        //TiledLogger.getLogger().info(
-        //    "  scrn " + clipRect.getMinX() + "," + clipRect.getMinY()
-        //    + "-" + clipRect.getMaxX() + "," + clipRect.getMaxY());
-        //TiledLogger.getLogger().info(
-        //    "  tile " + startX + "," + startY + "-" + endX + "," + endY);
-
-        if ( startX < 0 ) {
-            startX = 0;
-        }
-        if ( startY < 0 ) {
-            startY = 0;
-        }
-        if ( endX >= map.getWidth()) {
-            endX = map.getWidth() - 1;
-        }
-        if ( endY >= map.getHeight()) {
-            endY = map.getHeight() - 1;
-        }
-
-        //TiledLogger.getLogger().info("  tile " + startX + "," + startY
-        //    + "-" + endX + "," + endY);
-
-        int dy = 0;
-        int dx = 0;
-        Polygon grid;
-
-        if ( hexEdgesToTheLeft ) {
+        for (int y = startY; y <= endY; y++) {
             for (int x = startX; x <= endX; x++) {
-                grid = createGridPolygon(tileSize, x, startY, 1);
-                for (int y = startY; y <= endY; y++) {
-                    g2d.drawPolygon(grid);
-                    grid.translate(0, tileSize.height + 1);
-                }
-            }
-        } else {
-            for (int y = startY; y <= endY; y++) {
-                grid = createGridPolygon(tileSize, startX, y, 1);
-                for (int x = startX; x <= endX; x++) {
-                    g2d.drawPolygon(grid);
-                    grid.translate(tileSize.width + 1, 0);
-                }
+                final int gx = getTileCornerX(tileSize, tq, x, y);
+                final int gy = getTileCornerY(tileSize, tq, x, y);
+                hexTemplate.translate(gx, gy);
+                g2d.drawPolygon(hexTemplate);
+                hexTemplate.translate(-gx, -gy);
             }
         }
     }
@@ -462,20 +457,15 @@ public class HexMapView extends MapView
      * @return The corresponding tile coords as Point.
      */
     public Point screenToTileCoords(MapLayer layer,int screenX, int screenY) {
-        //TiledLogger.getLogger().info(
-          //  "screen coords " + screenX + "," + screenY);
-
-        int tx = 0;
-        int ty = 0;
-        int border = showGrid ? 1 : 0;
-        Dimension tileSize = getEffectiveTileSize(layer);
-        Point offset = calculateParallaxOffsetZoomed(layer);
-        int tileWidth = tileSize.width + border;
-        int tileHeight = tileSize.height + border;
-        int hWidth = (int)(tileWidth / 2 + 0.49) + border;
-        int hHeight = (int)(tileHeight / 2 + 0.49) + border;
-        Point [] fourPoints = new Point [4];
-        Point [] fourTiles = new Point [4];
+        updateGeometry(layer.getTileWidth(), layer.getTileHeight());
+        final Dimension tileSize = geomTileSize;
+        final int tq = geomThreeQuarter;
+        final int border = showGrid ? 1 : 0;
+        final Point offset = calculateParallaxOffsetZoomed(layer, parallaxOffset);
+        final int tileWidth = tileSize.width + border;
+        final int tileHeight = tileSize.height + border;
+        final int hWidth = tileWidth / 2 + border;
+        final int hHeight = tileHeight / 2 + border;
 
         final int x = screenX;
         final int y = screenY;
@@ -484,67 +474,49 @@ public class HexMapView extends MapView
         // we are between col and col+1.
         // col == -1 means we are in the strip to the left
         //   of the centers of the hexes of column 0.
-        int col = 0;
+        int col;
         if ( x < hWidth ) {
             col = -1;
         } else {
             if ( hexEdgesToTheLeft ) {
-                col = (int)((x - hWidth)
-                    / (double)(getThreeQuarterHex(tileSize) + border) + 0.001);
+                col = (int)((x - hWidth) / (double)(tq + border) + 0.001);
             } else {
                 col = (int)((x - hWidth) / (double)tileWidth + 0.001);
             }
         }
 
         // determine the two rows of hexes we are between
-        int row = 0;
+        int row;
         if ( y < hHeight ) {
             row = -1;
         } else {
             if ( hexEdgesToTheLeft ) {
                 row = (int)((y - hHeight) / (double)tileHeight + 0.001);
             } else {
-                row = (int)((y - hHeight)
-                    / (double)(getThreeQuarterHex(tileSize) + border) + 0.001);
+                row = (int)((y - hHeight) / (double)(tq + border) + 0.001);
             }
         }
 
-        //TiledLogger.getLogger().info("  columns " + col + "/" + (col + 1));
-        //TiledLogger.getLogger().info("  rows " + row + "/" + (row + 1));
-
-        // now take the four surrounding points and
-        // find the one having the minimum distance to x,y
-        fourTiles [0] = new Point(col, row);
-        fourTiles [1] = new Point(col, row + 1);
-        fourTiles [2] = new Point(col + 1, row);
-        fourTiles [3] = new Point(col + 1, row + 1);
-
-        fourPoints [0] = tileToScreenCoords(offset,tileSize, col, row);
-        fourPoints [1] = tileToScreenCoords(offset,tileSize, col, row + 1);
-        fourPoints [2] = tileToScreenCoords(offset,tileSize, col + 1, row);
-        fourPoints [3] = tileToScreenCoords(offset,tileSize, col + 1, row + 1);
-
-        // find point with min.distance
-        double minDist = 2 * (map.getTileWidth() + map.getTileHeight());
-        int minI = 5;
-        //TiledLogger.getLogger().info("  init Min " + minDist);
-        for ( int i = 0; i < fourPoints.length; i++ ) {
-            if ( fourPoints [i].distance(x, y) < minDist ) {
-                minDist = fourPoints [i].distance(x, y);
-                minI = i;
+        // now take the four surrounding hexes and find the one whose
+        // center has the minimum distance to x,y
+        final int centerX = offset.x + tileSize.width / 2;
+        final int centerY = offset.y + tileSize.height / 2;
+        long minDist = Long.MAX_VALUE;
+        int tx = col;
+        int ty = row;
+        for (int i = 0; i < 4; i++) {
+            final int cx = col + (i >> 1);
+            final int cy = row + (i & 1);
+            final long dx = centerX + getTileCornerX(tileSize, tq, cx, cy) - x;
+            final long dy = centerY + getTileCornerY(tileSize, tq, cx, cy) - y;
+            final long dist = dx * dx + dy * dy;
+            if (dist < minDist) {
+                minDist = dist;
+                tx = cx;
+                ty = cy;
             }
-
-            //TiledLogger.getLogger().info("  min.pt " + fourPoints [minI].getX()
-            //    + "," + fourPoints [minI].getY() + " index " + minI
-            //    + " at dist " + minDist);
         }
 
-        // get min point
-        tx = (int)(fourTiles [minI].getX());
-        ty = (int)(fourTiles [minI].getY());
-
-        //TiledLogger.getLogger().info("  -> tile coords " + tx + "," + ty);
-
         return new Point(tx, ty);
     }
 
@@ -590,13 +562,17 @@ public class HexMapView extends MapView
      * @return A hexagon structure as Polygon.
      */
     protected Polygon createGridPolygon(Dimension tileSize, int tx, int ty, int border) {
-        Polygon poly = new Polygon();
         Point p = getTopLeftCornerOfTile(tileSize, tx, ty);
-        int topLeftX = (int)(p.getX());
-        int topLeftY = (int)(p.getY());
-
-        //TiledLogger.getLogger().info("hex at " + topLeftX + "," + topLeftY);
+        return createHexPolygon(tileSize, p.x, p.y);
+    }
 
+    /**
+     * Returns a hexagon with the top left corner of its bounding rectangle
+     * at the given screen coordinates.
+     */
+    private Polygon createHexPolygon(Dimension tileSize,
+                                     int topLeftX, int topLeftY) {
+        Polygon poly = new Polygon();
         int tq = getThreeQuarterHex(tileSize);
         int oq = getOneQuarterHex(tileSize);
 
@@ -635,39 +611,53 @@ public class HexMapView extends MapView
      *         in screen coordinates as Point.
      */
     private Point getTopLeftCornerOfTile(Dimension tileSize, int x, int y) {
-        //TiledLogger.getLogger().info("tile coords " + x + "," + y);
-
-        int w = tileSize.width;
-        int h = tileSize.height;
-        int xx;
-        int yy;
+        int tq = getThreeQuarterHex(tileSize);
+        return new Point(getTileCornerX(tileSize, tq, x, y),
+                getTileCornerY(tileSize, tq, x, y));
+    }
 
-        if ( hexEdgesToTheLeft ) {
-            xx = x * getThreeQuarterHex(tileSize);
-            yy = y * h;
-        } else {
-            xx = x * w;
-            yy = y * getThreeQuarterHex(tileSize);
-        }
+    /**
+     * Returns the x coordinate of the top left corner of the bounding
+     * rectangle of a hex.
+     *
+     * @param tileSize The tile size in the view.
+     * @param tq The three quarter hex size for this tile size.
+     * @param x The x coordinate of the tile.
+     * @param y The y coordinate of the tile.
+     *
+     * @return The x coordinate in screen coordinates.
+     * @see #getTopLeftCornerOfTile(Dimension, int, int)
+     */
+    private int getTileCornerX(Dimension tileSize, int tq, int x, int y) {
+        int xx = hexEdgesToTheLeft ? x * tq : x * tileSize.width;
 
         if ( showGrid ) {
             xx += x + 1;
-            yy += y + 1;
-        }
-
-        if ((Math.abs(x % 2) == 1 && mapAlignment == ALIGN_TOP)
-            || (x % 2 == 0 && mapAlignment == ALIGN_BOTTOM)) {
-            yy += (int)(h / 2.0 + 0.49);
         }
         if ((Math.abs(y % 2) == 1 && mapAlignment == ALIGN_LEFT)
             || (y % 2 == 0 && mapAlignment == ALIGN_RIGHT)) {
-            xx += (int)(w / 2.0 + 0.49);
+            xx += (int)(tileSize.width / 2.0 + 0.49);
         }
+        return xx;
+    }
 
-        //TiledLogger.getLogger().info(
-        //    "  -> screen coords " + xx + "," + yy + " zoom " + zoom);
+    /**
+     * Returns the y coordinate of the top left corner of the bounding
+     * rectangle of a hex.
+     *
+     * @see #getTileCornerX(Dimension, int, int, int)
+     */
+    private int getTileCornerY(Dimension tileSize, int tq, int x, int y) {
+        int yy = hexEdgesToTheLeft ? y * tileSize.height : y * tq;
 
-        return new Point(xx, yy);
+        if ( showGrid ) {
+            yy += y + 1;
+        }
+        if ((Math.abs(x % 2) == 1 && mapAlignment == ALIGN_TOP)
+            || (x % 2 == 0 && mapAlignment == ALIGN_BOTTOM)) {
+            yy += (int)(tileSize.height / 2.0 + 0.49);
+        }
+        return yy;
     }
 
     /**
@@ -17,19 +17,28 @@ package tiled.view;
 
 import java.awt.*;
 import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import javax.swing.SwingConstants;
 import java.util.Iterator;
 import java.util.Properties;
 
 import tiled.core.*;
 import tiled.mapeditor.selection.SelectionLayer;
+import tiled.mapeditor.selection.SelectionMask;
 
 /**
  * Isometric map view implementation.
  */
 public class IsoMapView extends MapView
 {
+    // Tile size for the current zoom level, kept up to date by
+    // updateGeometry() so that the paint code doesn't need to allocate it
+    private double geomZoom = -1;
+    private final Dimension geomTileSize = new Dimension();
+    private final Point parallaxOffset = new Point();
+
     /**
      * Creates a new isometric map view that displays the specified map.
      *
@@ -60,64 +69,176 @@ public class IsoMapView extends MapView
     }
 
     protected void paintLayer(Graphics2D g2d, TileLayer layer) {
-        // Turn anti alias on for selection drawing
-        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                RenderingHints.VALUE_ANTIALIAS_ON);
-        
         Rectangle clipRect = g2d.getClipBounds();
-        Dimension tileSize = new Dimension(layer.getTileWidth(), layer.getTileHeight());
-        int tileStepY = tileSize.height / 2 == 0 ? 1 : tileSize.height / 2;
-        Polygon gridPoly = createGridPolygon(tileSize, 0, -tileSize.height, 0);
 
-        Point rowItr = screenToTileCoords(layer, clipRect.x, clipRect.y);
-        rowItr.x--;
-        Point offset = calculateParallaxOffsetZoomed(layer);
-        Point drawLoc = tileToScreenCoords(offset,tileSize, rowItr.x, rowItr.y);
-        drawLoc.x -= tileSize.width / 2;
-        drawLoc.y += tileSize.height;
+        if (isLevelOfDetailActive()) {
+            paintLevelOfDetail(g2d, layer, clipRect);
+            return;
+        }
+
+        updateGeometry();
+        final int tileWidth = geomTileSize.width;
+        final int tileHeight = geomTileSize.height;
+        final int halfWidth = tileWidth / 2;
+        final int tileStepY = tileHeight / 2 == 0 ? 1 : tileHeight / 2;
+
+        Point start = screenToTileCoords(layer, clipRect.x, clipRect.y);
+        int rowX = start.x - 1;
+        int rowY = start.y;
+        Point offset = calculateParallaxOffsetZoomed(layer, parallaxOffset);
+        final int originX = (map.getHeight() * tileWidth) / 2;
+        int drawX = offset.x + ((rowX - rowY) * tileWidth / 2) + originX
+                - halfWidth;
+        int drawY = offset.y + ((rowX + rowY) * tileHeight / 2) + tileHeight;
 
         // Determine area to draw from clipping rectangle
-        int columns = clipRect.width / tileSize.width + 3;
+        int columns = clipRect.width / tileWidth + 3;
         int rows = (clipRect.height + (int)(map.getTileHeightMax() * zoom)) /
             tileStepY + 4;
 
         // Draw this map layer
         for (int y = 0; y < rows; y++) {
-            Point columnItr = new Point(rowItr);
+            int columnX = rowX;
+            int columnY = rowY;
+            int x = drawX;
 
-            for (int x = 0; x < columns; x++) {
-                Tile tile = layer.getTileAt(columnItr.x, columnItr.y);
+            for (int i = 0; i < columns; i++) {
+                Tile tile = layer.getTileAt(columnX, columnY);
 
                 if (tile != null) {
-                    if (layer instanceof SelectionLayer) {
-                        //Polygon gridPoly = createGridPolygon(
-                                //drawLoc.x, drawLoc.y - tileSize.height, 0);
-                        gridPoly.translate(drawLoc.x, drawLoc.y);
-                        g2d.fillPolygon(gridPoly);
-                        gridPoly.translate(-drawLoc.x, -drawLoc.y);
-                        //paintEdge(g2d, layer, drawLoc.x, drawLoc.y);
-                    } else {
-                        tile.draw(g2d, drawLoc.x, drawLoc.y, zoom);
-                    }
+                    tile.draw(g2d, x, drawY, zoom);
                 }
 
                 // Advance to the next tile
-                columnItr.x++;
-                columnItr.y--;
-                drawLoc.x += tileSize.width;
+                columnX++;
+                columnY--;
+                x += tileWidth;
             }
 
             // Advance to the next row
             if ((y & 1) > 0) {
-                rowItr.x++;
-                drawLoc.x += tileSize.width / 2;
+                rowX++;
+                drawX += halfWidth;
             } else {
-                rowItr.y++;
-                drawLoc.x -= tileSize.width / 2;
+                rowY++;
+                drawX -= halfWidth;
+            }
+            drawY += tileStepY;
+        }
+    }
+
+    /**
+     * Brings the cached tile size up to date with the current zoom level.
+     */
+    private void updateGeometry() {
+        final int tileWidth = (int)(map.getTileWidth() * zoom);
+        final int tileHeight = (int)(map.getTileHeight() * zoom);
+        if (geomZoom == zoom && geomTileSize.width == tileWidth &&
+                geomTileSize.height == tileHeight) {
+            return;
+        }
+
+        geomZoom = zoom;
+        geomTileSize.setSize(tileWidth, tileHeight);
+    }
+
+    /**
+     * Paints a selection by filling its runs of cells, each of which is
+     * sheared into the isometric projection as a single parallelogram.
+     */
+    protected void paintSelection(Graphics2D g2d, SelectionLayer selection) {
+        Dimension tileSize = getTileSize();
+        if (tileSize.width <= 0 || tileSize.height <= 0) {
+            return;
+        }
+        Point offset = calculateParallaxOffsetZoomed(selection);
+        Rectangle bounds = selection.getBounds();
+        SelectionMask mask = selection.getMask();
+
+        // The rows covered by the corners of the clip rectangle span the
+        // visible part of the selection
+        Rectangle clipRect = g2d.getClipBounds();
+        int left = clipRect.x - offset.x;
+        int top = clipRect.y - offset.y;
+        int startY = screenToTileCoords(selection,
+                left + clipRect.width, top).y - bounds.y;
+        int endY = screenToTileCoords(selection,
+                left, top + clipRect.height).y + 1 - bounds.y;
+        startY = Math.max(startY, 0);
+        endY = Math.min(endY, mask.getHeight());
+
+        // Map cell (x, y) of the mask onto the diamond of its tile
+        Point origin = tileToScreenCoords(offset, tileSize, bounds.x, bounds.y);
+        AffineTransform transform = new AffineTransform(
+                tileSize.width / 2.0, tileSize.height / 2.0,
+                -tileSize.width / 2.0, tileSize.height / 2.0,
+                origin.x, origin.y);
+
+        Graphics2D g = (Graphics2D) g2d.create();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        g.transform(transform);
+        int y = startY;
+        while (y < endY) {
+            final int[] row = mask.getRow(y);
+            int end = y + 1;
+            while (end < endY && mask.getRow(end) == row) {
+                end++;
+            }
+            for (int i = 0; i < row.length; i += 2) {
+                g.fillRect(row[i], y, row[i + 1] - row[i], end - y);
             }
-            drawLoc.x -= columns * tileSize.width;
-            drawLoc.y += tileStepY;
+            y = end;
         }
+        g.dispose();
+
+        paintSelectionOutline(g2d, selection, transform);
+    }
+
+    /**
+     * Paints the visible part of a layer as a raster of tile colors, which
+     * is sheared into the isometric projection by a single image transform.
+     */
+    private void paintLevelOfDetail(Graphics2D g2d, TileLayer layer,
+                                    Rectangle clipRect) {
+        Dimension tileSize = getTileSize();
+        if (tileSize.width <= 0 || tileSize.height <= 0) {
+            return;
+        }
+        Point offset = calculateParallaxOffsetZoomed(layer);
+
+        // The tiles covered by the corners of the clip rectangle span the
+        // visible part of the layer
+        int left = clipRect.x - offset.x;
+        int top = clipRect.y - offset.y;
+        int right = left + clipRect.width;
+        int bottom = top + clipRect.height;
+        int startX = screenToTileCoords(layer, left, top).x;
+        int startY = screenToTileCoords(layer, right, top).y;
+        int endX = screenToTileCoords(layer, right, bottom).x + 1;
+        int endY = screenToTileCoords(layer, left, bottom).y + 1;
+
+        Rectangle bounds = layer.getBounds();
+        startX = Math.max(startX, bounds.x);
+        startY = Math.max(startY, bounds.y);
+        endX = Math.min(endX, bounds.x + bounds.width);
+        endY = Math.min(endY, bounds.y + bounds.height);
+        if (startX >= endX || startY >= endY) {
+            return;
+        }
+
+        final int cols = endX - startX;
+        final int rows = endY - startY;
+        BufferedImage raster = createLevelOfDetailRaster(
+                layer, startX, startY, cols, rows);
+
+        // Map raster pixel (x, y) onto the diamond of tile (x, y)
+        Point origin = tileToScreenCoords(offset, tileSize, startX, startY);
+        AffineTransform transform = new AffineTransform(
+                tileSize.width / 2.0, tileSize.height / 2.0,
+                -tileSize.width / 2.0, tileSize.height / 2.0,
+                origin.x, origin.y);
+        g2d.drawImage(raster.getSubimage(0, 0, cols, rows), transform, null);
     }
 
     protected void paintObjectGroup(Graphics2D g2d, ObjectGroup og)
@@ -230,10 +351,12 @@ public class IsoMapView extends MapView
         g2d.setFont(font);
         FontRenderContext fontRenderContext = g2d.getFontRenderContext();
         
-        Point rowItr = screenToTileCoords(currentLayer, clipRect.x, clipRect.y);
-        rowItr.x--;
-        Point drawLoc = tileToScreenCoords(offset,tileSize, rowItr.x, rowItr.y);
-        drawLoc.y += tileSize.height / 2;
+        Point start = screenToTileCoords(currentLayer, clipRect.x, clipRect.y);
+        int rowX = start.x - 1;
+        int rowY = start.y;
+        Point drawLoc = tileToScreenCoords(offset, tileSize, rowX, rowY);
+        int drawX = drawLoc.x;
+        int drawY = drawLoc.y + tileSize.height / 2;
 
         // Determine area to draw from clipping rectangle
         int columns = clipRect.width / tileSize.width + 3;
@@ -241,37 +364,37 @@ public class IsoMapView extends MapView
 
         // Draw the coordinates
         for (int y = 0; y < rows; y++) {
-            Point columnItr = new Point(rowItr);
+            int columnX = rowX;
+            int columnY = rowY;
+            int x = drawX;
 
-            for (int x = 0; x < columns; x++) {
-                if (map.contains(columnItr.x, columnItr.y)) {
-                    String coords =
-                        "(" + columnItr.x + "," + columnItr.y + ")";
+            for (int i = 0; i < columns; i++) {
+                if (map.contains(columnX, columnY)) {
+                    String coords = "(" + columnX + "," + columnY + ")";
                     Rectangle2D textSize =
                         font.getStringBounds(coords, fontRenderContext);
 
-                    int fx = drawLoc.x - (int)(textSize.getWidth() / 2);
-                    int fy = drawLoc.y + (int)(textSize.getHeight() / 2);
+                    int fx = x - (int)(textSize.getWidth() / 2);
+                    int fy = drawY + (int)(textSize.getHeight() / 2);
 
                     g2d.drawString(coords, fx, fy);
                 }
 
                 // Advance to the next tile
-                columnItr.x++;
-                columnItr.y--;
-                drawLoc.x += tileSize.width;
+                columnX++;
+                columnY--;
+                x += tileSize.width;
             }
 
             // Advance to the next row
             if ((y & 1) > 0) {
-                rowItr.x++;
-                drawLoc.x += tileSize.width / 2;
+                rowX++;
+                drawX += tileSize.width / 2;
             } else {
-                rowItr.y++;
-                drawLoc.x -= tileSize.width / 2;
+                rowY++;
+                drawX -= tileSize.width / 2;
             }
-            drawLoc.x -= columns * tileSize.width;
-            drawLoc.y += tileStepY;
+            drawY += tileStepY;
         }
     }
 
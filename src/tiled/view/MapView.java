@@ -13,6 +13,9 @@
 package tiled.view;
 
 import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.util.Iterator;
 import javax.swing.JPanel;
 import javax.swing.Scrollable;
@@ -67,6 +70,24 @@ public abstract class MapView extends JPanel implements Scrollable
     protected boolean antialiasGrid;
     protected Color gridColor;
     protected int gridOpacity;
+
+    /**
+     * The zoom level at or below which tile layers are painted with a single
+     * color per tile, when level of detail rendering is enabled.
+     */
+    public static final double LOD_ZOOM_THRESHOLD = 0.125;
+
+    private boolean levelOfDetailEnabled = true;
+    private Color mapBackground = DEFAULT_BACKGROUND_COLOR;
+    private BufferedImage lodRaster;
+
+    // Cells holding animated tiles in and around the visible area, as found
+    // by the last scan. Each cell takes three entries: layer index, x and y.
+    private int[] animatedCells = new int[48];
+    private int animatedCellCount;
+    private final Rectangle animatedScanArea = new Rectangle();
+    private double animatedScanZoom;
+    private long animatedScanTime;
     
     protected static double[] zoomLevels = {
         0.0625, 0.125, 0.25, 0.5, 0.75, 1.0, 1.5, 2.0, 3.0, 4.0
@@ -81,6 +102,13 @@ public abstract class MapView extends JPanel implements Scrollable
     private MapLayer selectionRubberBandLayer;
     private SelectionSet selectionSet;
 
+    private final MapParallaxChangeListener parallaxChangeListener =
+            new MapParallaxChangeListener() {
+        public void parallaxParameterChanged(MapParallaxChangeEvent e) {
+            repaint();
+        }
+    };
+
     /**
      * Creates a new <code>MapView</code> that displays the specified map.
      *
@@ -98,15 +126,19 @@ public abstract class MapView extends JPanel implements Scrollable
         }
 
         this.map = map;
-        map.addMapParallaxChangeListener(new MapParallaxChangeListener() {
-
-            public void parallaxParameterChanged(MapParallaxChangeEvent e) {
-                repaint();
-            }
-        });
+        map.addMapParallaxChangeListener(parallaxChangeListener);
         setOpaque(true);
     }
 
+    /**
+     * Stops listening to the map. Views that are only created to render
+     * the map, rather than to display it, should be disposed of when done
+     * so that the map does not keep them alive.
+     */
+    public void dispose() {
+        map.removeMapParallaxChangeListener(parallaxChangeListener);
+    }
+
     public void setSelectionSet(SelectionSet selectionSet) {
         this.selectionSet = selectionSet;
         SelectionSetListener l = new SelectionSetListener(){
@@ -219,6 +251,16 @@ public abstract class MapView extends JPanel implements Scrollable
     /// @see isParallaxModeEnabled()
     /// @see setViewCenter()
     protected Point calculateParallaxOffset(MapLayer layer){
+        return calculateParallaxOffset(layer, new Point());
+    }
+
+    /// Same as calculateParallaxOffset(MapLayer), but stores the offset in
+    /// the given point instead of allocating a new one. Used by the paint
+    /// code, which needs the offset for every layer it draws.
+    /// @param    layer    The layer to calculate the parallax offset for
+    /// @param    result   The point to store the offset in
+    /// @returns    The result point
+    protected Point calculateParallaxOffset(MapLayer layer, Point result){
         // the parallax effect imitates a sense of depth by moving layers 
         // that are 'behind' a base plane (we call it the view plane) slower
         // than than the base plane. Layers 'above' the base plane are moved
@@ -247,8 +289,10 @@ public abstract class MapView extends JPanel implements Scrollable
         // view plane distance setting.
         // The map's coordinate system is assumed to be the same as the view
         // plane's.
-        if(!isParallaxModeEnabled())
-            return new Point(0,0);
+        if(!isParallaxModeEnabled()) {
+            result.setLocation(0, 0);
+            return result;
+        }
         
         int mapWidthPx = map.getWidth()*map.getTileWidth();
         int mapHeightPx = map.getHeight()*map.getTileHeight();
@@ -271,7 +315,8 @@ public abstract class MapView extends JPanel implements Scrollable
         float x = layerOffsetX + originPosX - layerWidthPx/2;
         float y = layerOffsetY + originPosY - layerHeightPx/2;
         
-        return new Point((int)x,(int)y);
+        result.setLocation((int)x, (int)y);
+        return result;
     }
     
     /// This function is effectively the same as calculateParallaxOffset(),
@@ -280,10 +325,19 @@ public abstract class MapView extends JPanel implements Scrollable
     /// @param    layer    The layer to calculate the parallax offset for
     /// @returns    The parallax offset to shift this layer by
     protected Point calculateParallaxOffsetZoomed(MapLayer layer){
-        Point p = calculateParallaxOffset(layer);
-        p.x *= zoom;
-        p.y *= zoom;
-        return p;
+        return calculateParallaxOffsetZoomed(layer, new Point());
+    }
+
+    /// Same as calculateParallaxOffsetZoomed(MapLayer), but stores the
+    /// offset in the given point instead of allocating a new one.
+    /// @param    layer    The layer to calculate the parallax offset for
+    /// @param    result   The point to store the offset in
+    /// @returns    The result point
+    protected Point calculateParallaxOffsetZoomed(MapLayer layer, Point result){
+        calculateParallaxOffset(layer, result);
+        result.x *= zoom;
+        result.y *= zoom;
+        return result;
     }
     
     public void toggleMode(int modeModifier) {
@@ -332,6 +386,42 @@ public abstract class MapView extends JPanel implements Scrollable
         repaint();
     }
 
+    /**
+     * Sets the color the view is filled with before painting the map.
+     *
+     * @param color the background color, or <code>null</code> to leave the
+     *              background untouched (for rendering onto a transparent
+     *              image)
+     */
+    public void setMapBackground(Color color) {
+        mapBackground = color;
+        repaint();
+    }
+
+    public boolean isLevelOfDetailEnabled() {
+        return levelOfDetailEnabled;
+    }
+
+    /**
+     * Enables or disables level of detail rendering. When enabled, tile
+     * layers are painted using the average color of each tile as soon as
+     * the zoom drops to {@link #LOD_ZOOM_THRESHOLD} or below.
+     *
+     * @param levelOfDetailEnabled whether to use level of detail rendering
+     */
+    public void setLevelOfDetailEnabled(boolean levelOfDetailEnabled) {
+        this.levelOfDetailEnabled = levelOfDetailEnabled;
+        repaint();
+    }
+
+    /**
+     * Returns whether tile layers should currently be painted as a raster
+     * of tile colors instead of tile by tile.
+     */
+    protected boolean isLevelOfDetailActive() {
+        return levelOfDetailEnabled && zoom <= LOD_ZOOM_THRESHOLD;
+    }
+
     /**
      * Sets a new brush. The brush can draw a preview of the change while
      * editing.
@@ -460,8 +550,10 @@ public abstract class MapView extends JPanel implements Scrollable
         //    g2d.setColor(Color.decode(colorString));
         //} catch (NumberFormatException e) {
         //}
-        g2d.setColor(DEFAULT_BACKGROUND_COLOR);
-        g2d.fillRect(clip.x, clip.y, clip.width, clip.height);
+        if (mapBackground != null) {
+            g2d.setColor(mapBackground);
+            g2d.fillRect(clip.x, clip.y, clip.width, clip.height);
+        }
 
         paintSubMap(map, g2d, 1.0f);
 
@@ -476,8 +568,10 @@ public abstract class MapView extends JPanel implements Scrollable
                                 AlphaComposite.SRC_ATOP, 0.3f));
                         g2d.setColor(
                                 ((SelectionLayer) layer).getHighlightColor());
+                        paintSelection(g2d, (SelectionLayer) layer);
+                    } else if (layer instanceof TileLayer) {
+                        paintLayer(g2d, (TileLayer) layer);
                     }
-                    paintLayer(g2d, (TileLayer) layer);
                 }
             }
 
@@ -529,14 +623,17 @@ public abstract class MapView extends JPanel implements Scrollable
         //    }
         //}
         
-        // render selected objects
-        for(Selection s : selectionSet){
-            if(ObjectSelection.class.isAssignableFrom(s.getClass())){
-                ObjectSelection os = (ObjectSelection)s;
-                MapObject o = os.getObject();
-                MapLayer l = os.getLayer();
-                Rectangle r = pixelToScreenCoords(l, o.getBounds());
-                paintSelectionRectangle(g2d, r);
+        // render selected objects (views used for exporting have no
+        // selection set)
+        if (selectionSet != null) {
+            for(Selection s : selectionSet){
+                if(ObjectSelection.class.isAssignableFrom(s.getClass())){
+                    ObjectSelection os = (ObjectSelection)s;
+                    MapObject o = os.getObject();
+                    MapLayer l = os.getLayer();
+                    Rectangle r = pixelToScreenCoords(l, o.getBounds());
+                    paintSelectionRectangle(g2d, r);
+                }
             }
         }
         
@@ -601,6 +698,80 @@ public abstract class MapView extends JPanel implements Scrollable
      */
     protected abstract void paintLayer(Graphics2D g2d, TileLayer layer);
 
+    /**
+     * Draws a selection by filling the runs of selected cells, and drawing
+     * the outline of the selection. Implemented in a subclass.
+     *
+     * @param g2d       the graphics context to draw the selection onto
+     * @param selection the selection to be drawn
+     */
+    protected abstract void paintSelection(Graphics2D g2d,
+                                           SelectionLayer selection);
+
+    /**
+     * Draws the outline of a selection with the current color, without
+     * transparency.
+     *
+     * @param g2d       the graphics context to draw the outline onto
+     * @param selection the selection to draw the outline of
+     * @param transform the transform from the cells of the selection mask to
+     *                  the screen
+     * @see tiled.mapeditor.selection.SelectionMask#createOutline()
+     */
+    protected void paintSelectionOutline(Graphics2D g2d,
+                                         SelectionLayer selection,
+                                         AffineTransform transform) {
+        Composite composite = g2d.getComposite();
+        Stroke stroke = g2d.getStroke();
+        g2d.setComposite(AlphaComposite.SrcOver);
+        g2d.setStroke(new BasicStroke());
+        g2d.draw(transform.createTransformedShape(
+                selection.getMask().createOutline()));
+        g2d.setStroke(stroke);
+        g2d.setComposite(composite);
+    }
+
+    /**
+     * Fills a raster with the average colors of the tiles in the given area
+     * of a layer, one pixel per tile. Positions without a tile are left
+     * transparent. The returned image is reused between calls, so only its
+     * top-left <code>width</code> by <code>height</code> pixels are valid.
+     *
+     * @param layer  the layer to take the tiles from
+     * @param startX the first column, in tile coordinates
+     * @param startY the first row, in tile coordinates
+     * @param width  the number of columns
+     * @param height the number of rows
+     * @return the raster with the tile colors
+     * @see Tile#getAverageColor()
+     */
+    protected BufferedImage createLevelOfDetailRaster(TileLayer layer,
+                                                      int startX, int startY,
+                                                      int width, int height) {
+        if (lodRaster == null ||
+                lodRaster.getWidth() < width ||
+                lodRaster.getHeight() < height) {
+            lodRaster = new BufferedImage(
+                    Math.max(width, lodRaster != null ? lodRaster.getWidth() : 0),
+                    Math.max(height, lodRaster != null ? lodRaster.getHeight() : 0),
+                    BufferedImage.TYPE_INT_ARGB);
+        }
+
+        final int stride = lodRaster.getWidth();
+        final int[] pixels =
+                ((DataBufferInt) lodRaster.getRaster().getDataBuffer()).getData();
+
+        for (int y = 0; y < height; y++) {
+            int i = y * stride;
+            for (int x = 0; x < width; x++, i++) {
+                Tile tile = layer.getTileAt(startX + x, startY + y);
+                pixels[i] = tile != null ? tile.getAverageColor() : 0;
+            }
+        }
+
+        return lodRaster;
+    }
+
     /**
      * Draws an ObjectGroup. Implemented in a subclass.
      *
@@ -676,6 +847,137 @@ public abstract class MapView extends JPanel implements Scrollable
         repaint();
     }
 
+    public void addNotify() {
+        super.addNotify();
+        AnimationClock.addView(this);
+    }
+
+    public void removeNotify() {
+        AnimationClock.removeView(this);
+        super.removeNotify();
+    }
+
+    /**
+     * Advances the animated tiles in the visible area to the given time and
+     * repaints the ones whose frame changed. Called on every tick of the
+     * {@link AnimationClock}.
+     *
+     * @param time the time of the current tick in milliseconds
+     */
+    void animate(long time) {
+        if (isLevelOfDetailActive() ||
+                map.getTileWidth() <= 0 || map.getTileHeight() <= 0) {
+            return;
+        }
+
+        Rectangle visible = getVisibleRect();
+        if (visible.isEmpty()) {
+            animatedCellCount = 0;
+            return;
+        }
+
+        if (!visible.equals(animatedScanArea) || zoom != animatedScanZoom ||
+                time - animatedScanTime >= AnimationClock.RESCAN_INTERVAL) {
+            findAnimatedCells(visible);
+            animatedScanArea.setBounds(visible);
+            animatedScanZoom = zoom;
+            animatedScanTime = time;
+        }
+
+        // The cells are sorted by layer, so the dirty cells can be collected
+        // into a single region per layer
+        MapLayer dirtyLayer = null;
+        Rectangle dirty = null;
+        for (int i = 0; i < animatedCellCount; i += 3) {
+            MapLayer layer = map.getLayer(animatedCells[i]);
+            if (!(layer instanceof TileLayer)) {
+                continue;
+            }
+            final int x = animatedCells[i + 1];
+            final int y = animatedCells[i + 2];
+            Tile tile = ((TileLayer) layer).getTileAt(x, y);
+            if (!(tile instanceof AnimatedTile)) {
+                continue;
+            }
+            Sprite sprite = ((AnimatedTile) tile).getSprite();
+            if (sprite == null || !sprite.update(time)) {
+                continue;
+            }
+
+            if (layer != dirtyLayer) {
+                if (dirty != null) {
+                    repaintRegion(dirtyLayer, dirty);
+                }
+                dirtyLayer = layer;
+                dirty = new Rectangle(x, y, 1, 1);
+            } else {
+                dirty.add(x, y);
+                dirty.add(x + 1, y + 1);
+            }
+        }
+        if (dirty != null) {
+            repaintRegion(dirtyLayer, dirty);
+        }
+    }
+
+    /**
+     * Collects the cells of the visible tile layers that hold an animated
+     * tile and may be shown within the given area.
+     */
+    private void findAnimatedCells(Rectangle visible) {
+        animatedCellCount = 0;
+
+        for (int l = 0; l < map.getTotalLayers(); l++) {
+            MapLayer layer = map.getLayer(l);
+            if (!(layer instanceof TileLayer) || !layer.isVisible()) {
+                continue;
+            }
+            final TileLayer tileLayer = (TileLayer) layer;
+            Rectangle area = getTileArea(layer, visible);
+
+            for (int y = area.y; y < area.y + area.height; y++) {
+                for (int x = area.x; x < area.x + area.width; x++) {
+                    if (tileLayer.getTileAt(x, y) instanceof AnimatedTile) {
+                        if (animatedCellCount + 3 > animatedCells.length) {
+                            int[] cells = new int[animatedCells.length * 2];
+                            System.arraycopy(animatedCells, 0, cells, 0,
+                                    animatedCellCount);
+                            animatedCells = cells;
+                        }
+                        animatedCells[animatedCellCount++] = l;
+                        animatedCells[animatedCellCount++] = x;
+                        animatedCells[animatedCellCount++] = y;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cells of the given layer that may be drawn within the given
+     * area of the screen. This includes the cells below the area holding
+     * tiles that are taller than the layer's tile height.
+     */
+    private Rectangle getTileArea(MapLayer layer, Rectangle screen) {
+        Point p1 = screenToTileCoords(layer, screen.x, screen.y);
+        Point p2 = screenToTileCoords(layer, screen.x + screen.width, screen.y);
+        Point p3 = screenToTileCoords(layer, screen.x, screen.y + screen.height);
+        Point p4 = screenToTileCoords(layer,
+                screen.x + screen.width, screen.y + screen.height);
+
+        final int x1 = Math.min(Math.min(p1.x, p2.x), Math.min(p3.x, p4.x));
+        final int y1 = Math.min(Math.min(p1.y, p2.y), Math.min(p3.y, p4.y));
+        final int x2 = Math.max(Math.max(p1.x, p2.x), Math.max(p3.x, p4.x));
+        final int y2 = Math.max(Math.max(p1.y, p2.y), Math.max(p3.y, p4.y));
+
+        final int tileHeight = Math.max(1, layer.getTileHeight());
+        final int extra = (map.getTileHeightMax() + tileHeight - 1) / tileHeight;
+
+        Rectangle area = new Rectangle(x1 - 1, y1 - 1,
+                x2 - x1 + 3 + extra, y2 - y1 + 3 + extra);
+        return area.intersection(layer.getBounds());
+    }
+
     /**
      * Draws the grid for the given layer.
      *
@@ -14,13 +14,17 @@ package tiled.view;
 
 import java.awt.*;
 import java.awt.font.FontRenderContext;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import javax.swing.SwingConstants;
 
 import tiled.core.*;
 import tiled.mapeditor.selection.SelectionLayer;
+import tiled.mapeditor.selection.SelectionMask;
 
 /**
  * An orthographic map view.
@@ -29,6 +33,12 @@ public class OrthoMapView extends MapView
 {
     private Polygon propPoly;
 
+    // Occlusion information for the map being painted. For each cell in
+    // occlusionBounds, the index of the topmost layer hiding the cell.
+    private Rectangle occlusionBounds;
+    private int[] occludingLayer;
+    private List<MapLayer> occlusionLayers;
+
     /**
      * Creates a new orthographic map view that displays the specified map.
      *
@@ -74,6 +84,79 @@ public class OrthoMapView extends MapView
                 map.getHeight() * tsize.height);
     }
     
+    /**
+     * Determines which cells are hidden by opaque tiles before painting the
+     * layers, so that tiles drawn below those can be skipped.
+     */
+    public void paintSubMap(MultilayerPlane m, Graphics2D g2d,
+                            float mapOpacity) {
+        if (!isParallaxModeEnabled() && !isLevelOfDetailActive()) {
+            findOccludedCells(m, g2d.getClipBounds(), mapOpacity);
+        }
+        try {
+            super.paintSubMap(m, g2d, mapOpacity);
+        }
+        finally {
+            occlusionBounds = null;
+            occlusionLayers = null;
+        }
+    }
+
+    private void findOccludedCells(MultilayerPlane m, Rectangle clipRect,
+                                   float mapOpacity) {
+        final int tw = map.getTileWidth();
+        final int th = map.getTileHeight();
+        Dimension tsize = getMapTileSize();
+        if (clipRect == null || tsize.width <= 0 || tsize.height <= 0) {
+            return;
+        }
+
+        Rectangle area = new Rectangle(
+                clipRect.x / tsize.width,
+                clipRect.y / tsize.height,
+                (clipRect.x + clipRect.width) / tsize.width + 1,
+                (clipRect.y + clipRect.height) / tsize.height + 3);
+        area.width -= area.x;
+        area.height -= area.y;
+        area = area.intersection(
+                new Rectangle(0, 0, map.getWidth(), map.getHeight()));
+        if (area.isEmpty()) {
+            return;
+        }
+
+        final int cells = area.width * area.height;
+        if (occludingLayer == null || occludingLayer.length < cells) {
+            occludingLayer = new int[cells];
+        }
+        Arrays.fill(occludingLayer, 0, cells, -1);
+
+        occlusionLayers = m.getLayerVector();
+        boolean occluded = false;
+
+        for (int l = 0; l < occlusionLayers.size(); l++) {
+            MapLayer layer = occlusionLayers.get(l);
+            if (!(layer instanceof TileLayer) || !layer.isVisible() ||
+                    layer.getOpacity() * mapOpacity < 1.0f ||
+                    layer.getTileWidth() != tw ||
+                    layer.getTileHeight() != th) {
+                continue;
+            }
+
+            TileLayer tileLayer = (TileLayer) layer;
+            for (int y = 0, i = 0; y < area.height; y++) {
+                for (int x = 0; x < area.width; x++, i++) {
+                    Tile tile = tileLayer.getTileAt(area.x + x, area.y + y);
+                    if (tile != null && tile.coversCell(tw, th)) {
+                        occludingLayer[i] = l;
+                        occluded = true;
+                    }
+                }
+            }
+        }
+
+        occlusionBounds = occluded ? area : null;
+    }
+    
     protected void paintLayer(Graphics2D g2d, TileLayer layer) {
         // Determine tile size and offset
         Dimension tsize = getLayerTileSize(layer);
@@ -81,9 +164,6 @@ public class OrthoMapView extends MapView
             return;
         }
         
-        
-        Polygon gridPoly = createGridPolygon(tsize, 0, -tsize.height, 0);
-        
         Point poffset = calculateParallaxOffsetZoomed(layer);
         
         // Determine area to draw from clipping rectangle
@@ -101,7 +181,34 @@ public class OrthoMapView extends MapView
         end.x += 1;
         end.y += 3;
         
-        boolean isSelectionLayer = layer instanceof SelectionLayer;
+        // Only layers in the occlusion calculation, with the same tile size
+        // as the map, can have hidden tiles
+        final Rectangle ob = occlusionBounds;
+        int layerIndex = -1;
+        if (ob != null &&
+                layer.getTileWidth() == map.getTileWidth() &&
+                layer.getTileHeight() == map.getTileHeight()) {
+            layerIndex = occlusionLayers.indexOf(layer);
+        }
+        final int tw = layer.getTileWidth();
+        final int th = layer.getTileHeight();
+
+        if (isLevelOfDetailActive()) {
+            // Too far out to see individual tiles, paint a tile color raster
+            final int cols = end.x - start.x;
+            final int rows = end.y - start.y;
+            if (cols > 0 && rows > 0) {
+                Image raster = createLevelOfDetailRaster(
+                        layer, start.x, start.y, cols, rows);
+                int dx = start.x * tsize.width + poffset.x;
+                int dy = start.y * tsize.height + poffset.y;
+                g2d.drawImage(raster,
+                        dx, dy,
+                        dx + cols * tsize.width, dy + rows * tsize.height,
+                        0, 0, cols, rows, null);
+            }
+            return;
+        }
         
         // Draw this map layer
         for (int y = start.y, gy = (start.y + 1) * tsize.height + poffset.y;
@@ -112,20 +219,58 @@ public class OrthoMapView extends MapView
 
                 if (tile == null)
                     continue;
-                
-                if (isSelectionLayer) {
-                    gridPoly.translate(gx, gy);
-                    g2d.fillPolygon(gridPoly);
-                    gridPoly.translate(-gx, -gy);
-                    //paintEdge(g, layer, gx, gy);
-                }
-                else {
-                    tile.draw(g2d, gx, gy, zoom);
+
+                if (layerIndex >= 0 && ob.contains(x, y) &&
+                        occludingLayer[(y - ob.y) * ob.width + x - ob.x] >
+                        layerIndex && tile.fitsCell(tw, th)) {
+                    continue;
                 }
+
+                tile.draw(g2d, gx, gy, zoom);
             }
         }
     }
 
+    protected void paintSelection(Graphics2D g2d, SelectionLayer selection) {
+        Dimension tsize = getLayerTileSize(selection);
+        if (tsize.width <= 0 || tsize.height <= 0) {
+            return;
+        }
+
+        final SelectionMask mask = selection.getMask();
+        final Rectangle bounds = selection.getBounds();
+        final Point poffset = calculateParallaxOffsetZoomed(selection);
+        final int originX = poffset.x + bounds.x * tsize.width;
+        final int originY = poffset.y + bounds.y * tsize.height;
+
+        // Determine the rows of the mask within the clipping rectangle
+        Rectangle clipRect = g2d.getClipBounds();
+        int startY = Math.max(0, (clipRect.y - originY) / tsize.height - 1);
+        int endY = Math.min(mask.getHeight(),
+                (clipRect.y + clipRect.height - originY) / tsize.height + 1);
+
+        // Fill each run, joining equal runs on consecutive rows
+        int y = startY;
+        while (y < endY) {
+            final int[] row = mask.getRow(y);
+            int end = y + 1;
+            while (end < endY && mask.getRow(end) == row) {
+                end++;
+            }
+            for (int i = 0; i < row.length; i += 2) {
+                g2d.fillRect(
+                        originX + row[i] * tsize.width,
+                        originY + y * tsize.height,
+                        (row[i + 1] - row[i]) * tsize.width,
+                        (end - y) * tsize.height);
+            }
+            y = end;
+        }
+
+        paintSelectionOutline(g2d, selection, new AffineTransform(
+                tsize.width, 0, 0, tsize.height, originX, originY));
+    }
+
     protected void paintObjectGroup(Graphics2D g2d, ObjectGroup og) {
         final Dimension tsize = getLayerTileSize(og);
         assert tsize.width != 0 && tsize.height != 0;
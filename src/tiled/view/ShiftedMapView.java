@@ -19,6 +19,7 @@ import tiled.core.Map;
 import tiled.core.MapLayer;
 import tiled.core.ObjectGroup;
 import tiled.core.TileLayer;
+import tiled.mapeditor.selection.SelectionLayer;
 
 /**
  * @version $Id$
@@ -78,6 +79,9 @@ public class ShiftedMapView extends MapView
     protected void paintLayer(Graphics2D g2d, TileLayer layer) {
     }
 
+    protected void paintSelection(Graphics2D g2d, SelectionLayer selection) {
+    }
+
     protected void paintObjectGroup(Graphics2D g2d, ObjectGroup og) {
     }
 
@@ -0,0 +1,210 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.util;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.LinkedList;
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import tiled.core.Tile;
+import tiled.core.TileLayer;
+import tiled.mapeditor.selection.SelectionMask;
+import tiled.mapeditor.undo.FillEdit;
+
+/**
+ * Compares the scanline flood fill against a plain fill visiting one tile
+ * at a time, and checks that the returned spans undo the fill.
+ *
+ * @version $Id$
+ */
+public class FloodFillTest
+{
+    private final Tile[] tiles = {new Tile(), new Tile(), new Tile()};
+    private final Tile fillTile = new Tile();
+
+    @Test
+    public void fillsLikeReferenceFill() {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            Rectangle bounds = new Rectangle(random.nextInt(5) - 2,
+                    random.nextInt(5) - 2,
+                    1 + random.nextInt(40), 1 + random.nextInt(40));
+            TileLayer layer = createLayer(bounds, random);
+            SelectionMask mask = random.nextBoolean() ?
+                    createMask(bounds, random) : null;
+            int x = bounds.x + random.nextInt(bounds.width);
+            int y = bounds.y + random.nextInt(bounds.height);
+
+            checkFill(layer, x, y, mask);
+        }
+    }
+
+    @Test
+    public void fillsSpiral() {
+        // A single winding path makes the fill turn back on itself often
+        Rectangle bounds = new Rectangle(0, 0, 31, 31);
+        TileLayer layer = new TileLayer(bounds, 32, 32);
+        for (int y = 0; y < bounds.height; y++) {
+            for (int x = 0; x < bounds.width; x++) {
+                int ring = Math.min(Math.min(x, y), Math.min(
+                        bounds.width - 1 - x, bounds.height - 1 - y));
+                layer.setTileAt(x, y, ring % 2 == 0 ? tiles[0] : tiles[1]);
+            }
+        }
+        for (int ring = 1; ring < bounds.width / 2; ring += 2) {
+            layer.setTileAt(ring, ring - 1, tiles[1]);
+        }
+
+        checkFill(layer, 0, 0, null);
+    }
+
+    @Test
+    public void doesNothingWhenTileIsSame() {
+        TileLayer layer = createLayer(new Rectangle(0, 0, 4, 4), new Random(2));
+        Tile tile = layer.getTileAt(1, 1);
+
+        assertEquals(0, FloodFill.fill(layer, 1, 1, tile, null).length);
+        assertNull(FloodFill.getBounds(new int[0]));
+    }
+
+    @Test
+    public void doesNothingOnLockedLayer() {
+        TileLayer layer = createLayer(new Rectangle(0, 0, 4, 4), new Random(3));
+        layer.setLocked(true);
+
+        assertEquals(0, FloodFill.fill(layer, 1, 1, fillTile, null).length);
+    }
+
+    @Test
+    public void doesNothingOutsideLayer() {
+        TileLayer layer = createLayer(new Rectangle(0, 0, 4, 4), new Random(4));
+
+        assertEquals(0, FloodFill.fill(layer, 4, 0, fillTile, null).length);
+    }
+
+    private void checkFill(TileLayer layer, int x, int y, SelectionMask mask) {
+        Rectangle bounds = layer.getBounds();
+        Tile[][] before = copyTiles(layer);
+        Tile oldTile = layer.getTileAt(x, y);
+        Tile[][] expected = copyTiles(layer);
+        referenceFill(expected, bounds, x, y, oldTile, mask);
+
+        int[] spans = FloodFill.fill(layer, x, y, fillTile, mask);
+        assertTilesEqual(expected, layer);
+
+        // The spans cover each filled location exactly once
+        boolean[][] covered = new boolean[bounds.height][bounds.width];
+        for (int i = 0; i < spans.length; i += 3) {
+            for (int sx = spans[i]; sx < spans[i] + spans[i + 2]; sx++) {
+                int cy = spans[i + 1] - bounds.y;
+                int cx = sx - bounds.x;
+                assertFalse("location filled twice", covered[cy][cx]);
+                covered[cy][cx] = true;
+            }
+        }
+        Rectangle area = null;
+        for (int ty = 0; ty < bounds.height; ty++) {
+            for (int tx = 0; tx < bounds.width; tx++) {
+                boolean filled = expected[ty][tx] != before[ty][tx];
+                assertEquals(filled, covered[ty][tx]);
+                if (filled) {
+                    Rectangle tile = new Rectangle(
+                            bounds.x + tx, bounds.y + ty, 1, 1);
+                    if (area == null) {
+                        area = tile;
+                    } else {
+                        area.add(tile);
+                    }
+                }
+            }
+        }
+        assertEquals(area, FloodFill.getBounds(spans));
+
+        FillEdit edit = new FillEdit(layer, spans, oldTile, fillTile);
+        edit.undo();
+        assertTilesEqual(before, layer);
+        edit.redo();
+        assertTilesEqual(expected, layer);
+    }
+
+    private void referenceFill(Tile[][] tiles, Rectangle bounds, int x, int y,
+                               Tile oldTile, SelectionMask mask) {
+        LinkedList<Point> queue = new LinkedList<Point>();
+        queue.add(new Point(x, y));
+        while (!queue.isEmpty()) {
+            Point p = queue.removeFirst();
+            if (!bounds.contains(p) ||
+                    (mask != null && !mask.contains(p.x, p.y)) ||
+                    tiles[p.y - bounds.y][p.x - bounds.x] != oldTile) {
+                continue;
+            }
+            tiles[p.y - bounds.y][p.x - bounds.x] = fillTile;
+            queue.add(new Point(p.x - 1, p.y));
+            queue.add(new Point(p.x + 1, p.y));
+            queue.add(new Point(p.x, p.y - 1));
+            queue.add(new Point(p.x, p.y + 1));
+        }
+    }
+
+    private TileLayer createLayer(Rectangle bounds, Random random) {
+        TileLayer layer = new TileLayer(bounds, 32, 32);
+        // Few kinds of tiles make for large irregular areas
+        int kinds = 2 + random.nextInt(2);
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            for (int x = bounds.x; x < bounds.x + bounds.width; x++) {
+                layer.setTileAt(x, y, random.nextInt(4) == 0 ?
+                        tiles[random.nextInt(kinds)] : tiles[0]);
+            }
+        }
+        return layer;
+    }
+
+    private SelectionMask createMask(Rectangle bounds, Random random) {
+        SelectionMask mask = new SelectionMask(
+                bounds.x + bounds.width, bounds.y + bounds.height);
+        for (int i = 0; i < 1 + random.nextInt(4); i++) {
+            mask.add(new Rectangle(
+                    bounds.x + random.nextInt(bounds.width),
+                    bounds.y + random.nextInt(bounds.height),
+                    1 + random.nextInt(bounds.width),
+                    1 + random.nextInt(bounds.height)));
+        }
+        return mask;
+    }
+
+    private static Tile[][] copyTiles(TileLayer layer) {
+        Rectangle bounds = layer.getBounds();
+        Tile[][] copy = new Tile[bounds.height][bounds.width];
+        for (int y = 0; y < bounds.height; y++) {
+            for (int x = 0; x < bounds.width; x++) {
+                copy[y][x] = layer.getTileAt(bounds.x + x, bounds.y + y);
+            }
+        }
+        return copy;
+    }
+
+    private static void assertTilesEqual(Tile[][] expected, TileLayer layer) {
+        Rectangle bounds = layer.getBounds();
+        for (int y = 0; y < bounds.height; y++) {
+            for (int x = 0; x < bounds.width; x++) {
+                assertSame("tile at " + (bounds.x + x) + "," + (bounds.y + y),
+                        expected[y][x],
+                        layer.getTileAt(bounds.x + x, bounds.y + y));
+            }
+        }
+    }
+}
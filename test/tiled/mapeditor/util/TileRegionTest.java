@@ -0,0 +1,245 @@
+/*
+ *  Tiled Map Editor, (c) 2004-2008
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  Adam Turk <aturk@biggeruniverse.com>
+ *  Bjorn Lindeijer <bjorn@lindeijer.nl>
+ */
+
+package tiled.mapeditor.util;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import tiled.core.Map;
+import tiled.core.Tile;
+import tiled.core.TileLayer;
+import tiled.core.TileSet;
+import tiled.mapeditor.selection.SelectionMask;
+import tiled.mapeditor.util.cutter.BasicTileCutter;
+
+/**
+ * Copies regions of tile layers, writes them to a stream the way they are
+ * put on the clipboard, and pastes them back.
+ *
+ * @version $Id$
+ */
+public class TileRegionTest
+{
+    private final List<File> images = new ArrayList<File>();
+    private Map map;
+    private TileSet first, second;
+    private List<TileLayer> layers;
+    private SelectionMask mask;
+
+    @Before
+    public void setUp() throws Exception {
+        map = new Map(20, 10);
+        first = createTileset("first");
+        second = createTileset("second");
+        map.addTileset(first);
+        map.addTileset(second);
+
+        Random random = new Random(1);
+        layers = new ArrayList<TileLayer>();
+        for (int l = 0; l < 2; l++) {
+            TileLayer layer = new TileLayer(20, 10, 16, 16);
+            for (int y = 0; y < 10; y++) {
+                for (int x = 0; x < 20; x++) {
+                    TileSet set = random.nextBoolean() ? first : second;
+                    if (random.nextInt(5) > 0) {
+                        layer.setTileAt(x, y, set.getTile(random.nextInt(8)));
+                    }
+                }
+            }
+            layers.add(layer);
+        }
+
+        mask = new SelectionMask(20, 10);
+        mask.add(new Rectangle(2, 1, 6, 4));
+        mask.add(new Rectangle(5, 3, 10, 5));
+    }
+
+    @After
+    public void tearDown() {
+        for (File image : images) {
+            image.delete();
+        }
+    }
+
+    @Test
+    public void copiesSelectedTiles() throws IOException {
+        TileRegion region = TileRegion.copy(layers, mask);
+
+        assertEquals(mask.getBounds(), region.getBounds());
+        assertEquals(2, region.getLayerCount());
+
+        List<TileSet> added = new ArrayList<TileSet>();
+        checkPasted(region.paste(map, added), first, second);
+        assertTrue(added.isEmpty());
+    }
+
+    @Test
+    public void copiesNothingWithoutSelection() {
+        assertNull(TileRegion.copy(layers, new SelectionMask(20, 10)));
+    }
+
+    @Test
+    public void roundTripsThroughStream() throws IOException {
+        for (boolean compress : new boolean[] {false, true}) {
+            TileRegion region = read(TileRegion.copy(layers, mask), compress);
+
+            assertEquals(mask.getBounds(), region.getBounds());
+            assertEquals(2, region.getLayerCount());
+
+            List<TileSet> added = new ArrayList<TileSet>();
+            checkPasted(region.paste(map, added), first, second);
+            assertTrue(added.isEmpty());
+        }
+    }
+
+    @Test
+    public void pastesIntoOtherMapByName() throws IOException {
+        // Another instance of the editor only finds tilesets by file, image
+        // or name
+        Map other = new Map(20, 10);
+        TileSet otherSecond = createTileset("second");
+        TileSet otherFirst = createTileset("first");
+        other.addTileset(otherSecond);
+        other.addTileset(otherFirst);
+
+        TileRegion region = read(TileRegion.copy(layers, mask), true);
+        List<TileSet> added = new ArrayList<TileSet>();
+        checkPasted(region.paste(other, added), otherFirst, otherSecond);
+        assertTrue(added.isEmpty());
+    }
+
+    @Test
+    public void addsMissingTilesetsOnce() throws IOException {
+        Map other = new Map(20, 10);
+        TileRegion region = TileRegion.copy(layers, mask);
+
+        List<TileSet> added = new ArrayList<TileSet>();
+        checkPasted(region.paste(other, added), first, second);
+        assertEquals(2, added.size());
+        assertTrue(added.contains(first));
+        assertTrue(added.contains(second));
+        assertEquals(added, other.getTilesets());
+
+        added.clear();
+        region.paste(other, added);
+        assertTrue(added.isEmpty());
+        assertEquals(2, other.getTilesets().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherData() throws IOException {
+        TileRegion.read(new ByteArrayInputStream(new byte[64]));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsHugeRegion() throws IOException {
+        TileRegion.read(new ByteArrayInputStream(
+                header(0, 0, 1 << 16, 1 << 16)));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedRegion() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TileRegion.copy(layers, mask).write(out, false);
+        byte[] data = out.toByteArray();
+
+        byte[] truncated = new byte[data.length - 4];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        TileRegion.read(new ByteArrayInputStream(truncated));
+    }
+
+    private TileSet createTileset(String name) throws IOException {
+        File image = File.createTempFile("tileregion", ".png");
+        images.add(image);
+        ImageIO.write(new BufferedImage(64, 32, BufferedImage.TYPE_INT_ARGB),
+                "png", image);
+
+        TileSet set = new TileSet();
+        set.setName(name);
+        set.importTileBitmap(image.getPath(), new BasicTileCutter(16, 16, 0, 0));
+        return set;
+    }
+
+    private static TileRegion read(TileRegion region, boolean compress)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        region.write(out, compress);
+        return TileRegion.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    /**
+     * Returns the start of a region without tilesets, as written by
+     * {@link TileRegion#write}.
+     */
+    private static byte[] header(int x, int y, int width, int height)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x54524731);
+        out.writeInt(0);
+        out.writeInt(x);
+        out.writeInt(y);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(16);
+        out.writeInt(16);
+        out.writeInt(0);
+        out.writeInt(1);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Checks that the pasted layers contain the selected tiles of the copied
+     * layers, with the tiles of the copied tilesets replaced by those of the
+     * given ones.
+     */
+    private void checkPasted(List<TileLayer> pasted,
+                             TileSet pastedFirst, TileSet pastedSecond) {
+        assertEquals(layers.size(), pasted.size());
+        for (int l = 0; l < layers.size(); l++) {
+            TileLayer source = layers.get(l);
+            TileLayer layer = pasted.get(l);
+            assertEquals(mask.getBounds(), layer.getBounds());
+
+            for (int y = 0; y < 10; y++) {
+                for (int x = 0; x < 20; x++) {
+                    Tile expected = null;
+                    Tile tile = source.getTileAt(x, y);
+                    if (mask.contains(x, y) && tile != null) {
+                        TileSet set = tile.getTileSet() == first ?
+                                pastedFirst : pastedSecond;
+                        expected = set.getTile(tile.getId());
+                    }
+                    Tile actual = layer.getBounds().contains(x, y) ?
+                            layer.getTileAt(x, y) : null;
+                    assertSame("tile at " + x + "," + y, expected, actual);
+                }
+            }
+        }
+    }
+}